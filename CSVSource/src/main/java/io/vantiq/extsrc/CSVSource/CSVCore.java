@@ -8,22 +8,23 @@
 
 package io.vantiq.extsrc.CSVSource;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
+import io.vantiq.extjsdk.QueryResponseStream;
 import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
 
 /**
@@ -45,7 +46,6 @@ public class CSVCore {
     CSV csv = null;
 
     final Logger log;
-    final static int RECONNECT_INTERVAL = 5000;
     final static int DEFAULT_BUNDLE_SIZE = 500;
     final static String SELECT_STATEMENT_IDENTIFIER = "select";
 
@@ -128,18 +128,8 @@ public class CSVCore {
             }
             oConfigHandler.configComplete = false;
 
-            boolean sourcesSucceeded = false;
-            while (!sourcesSucceeded) {
-                client.initiateFullConnection(targetVantiqServer, authToken);
-                sourcesSucceeded = exitIfConnectionFails(client, 10);
-                if (!sourcesSucceeded) {
-                    try {
-                        Thread.sleep(RECONNECT_INTERVAL);
-                    } catch (InterruptedException e) {
-                        log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                    }
-                }
-            }
+            // Retried with a jittered backoff on the shared scheduler, so that this doesn't hold up the websocket
+            ConnectionManager.getDefault().reconnect(client, targetVantiqServer, authToken, 10);
         }
     };
 
@@ -233,35 +223,35 @@ public class CSVCore {
         String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
 
         int bundleFactor = DEFAULT_BUNDLE_SIZE;
+        // Frames are only cut by size when the request leaves the number of rows to us
+        int maxFrameBytes = QueryResponseStream.DEFAULT_MAX_FRAME_BYTES;
         if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > -1) {
             bundleFactor = (Integer) request.get("bundleFactor");
+            maxFrameBytes = 0;
         }
 
-        // Send the results of the query
-        if (queryArray.length == 0) {
-            // If data is empty send empty map with 204 code
-            client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
-            lastRowBundle = null;
-        } else if (bundleFactor == 0) {
-            // If the bundleFactor was specified to be 0, then we sent the entire array
-            client.sendQueryResponse(200, replyAddress, queryArray);
-            lastRowBundle = queryArray;
-        } else {
-            // Otherwise, send messages containing 'bundleFactor' number of rows
-            int len = queryArray.length;
-            for (int i = 0; i < len; i += bundleFactor) {
-                HashMap[] rowBundle = Arrays.copyOfRange(queryArray, i, Math.min(queryArray.length, i + bundleFactor));
-
-                // If we reached the last row, send with 200 code
-                if (i + bundleFactor >= len) {
-                    client.sendQueryResponse(200, replyAddress, rowBundle);
-                } else {
-                    // Otherwise, send row with 100 code signifying more data to come
-                    client.sendQueryResponse(100, replyAddress, rowBundle);
-                }
-                lastRowBundle = rowBundle;
+        // Send the results of the query as they are serialized, 'bundleFactor' rows at a time, or at most
+        // QueryResponseStream.DEFAULT_MAX_FRAME_BYTES at a time if the request gave no bundleFactor. A bundleFactor of 0
+        // sends everything in one message.
+        QueryResponseStream stream = client.openQueryResponseStream(replyAddress, bundleFactor, maxFrameBytes);
+        try {
+            for (HashMap row : queryArray) {
+                stream.write(row);
             }
+            stream.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stream.fail(this.getClass().getName() + ".interrupted", "Sending the query results was interrupted.",
+                    null);
+        } catch (IOException e) {
+            log.error("Failed to serialize the query results.", e);
+            stream.fail(this.getClass().getName() + ".serializationFailed",
+                    "Failed to serialize the query results for reason: " + e.getMessage(), null);
         }
+
+        int lastFrameRows = stream.getLastFrameRows();
+        lastRowBundle = lastFrameRows == 0 ? null
+                : Arrays.copyOfRange(queryArray, queryArray.length - lastFrameRows, queryArray.length);
     }
 
     /**
@@ -271,31 +261,36 @@ public class CSVCore {
      * 
      * @param timeout The maximum number of seconds to wait before assuming failure
      *                and retrying.
-     * @return true if the source connection succeeds, (will retry indefinitely and
-     *         never return false).
+     * @return true once the source connection succeeds, or false if {@link #stop()}
+     *         cancelled it first.
+     * @throws RuntimeException if the client could not start connecting, as thrown
+     *         by {@link ExtensionWebSocketClient#initiateFullConnection}. It is not
+     *         retried.
      */
     public boolean start(int timeout) {
-        boolean sourcesSucceeded = false;
-        while (!sourcesSucceeded) {
-            client = new ExtensionWebSocketClient(sourceName);
-            oConfigHandler = new CSVHandleConfiguration(this);
-
-            client.setConfigHandler(oConfigHandler);
-            client.setReconnectHandler(reconnectHandler);
-            client.setCloseHandler(closeHandler);
-            // client.setAutoReconnect(true);
-            client.initiateFullConnection(targetVantiqServer, authToken);
-
-            sourcesSucceeded = exitIfConnectionFails(client, timeout);
-            if (!sourcesSucceeded) {
-                try {
-                    Thread.sleep(RECONNECT_INTERVAL);
-                } catch (InterruptedException e) {
-                    log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                }
-            }
+        try {
+            return startAsync(timeout).join();
+        } catch (CompletionException e) {
+            // Rethrow what the connection attempt threw rather than the wrapper added by join()
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
         }
-        return true;
+    }
+
+    /**
+     * Connects to the source through the shared {@link ConnectionManager}, retrying with a jittered backoff until it
+     * succeeds. Each attempt waits up to {@code timeout} seconds before failing and trying again.
+     * @param timeout   The maximum number of seconds to wait for each attempt before assuming failure.
+     * @return          A {@link CompletableFuture} that completes as true once the source connection succeeds.
+     */
+    public CompletableFuture<Boolean> startAsync(int timeout) {
+        client = new ExtensionWebSocketClient(sourceName);
+        oConfigHandler = new CSVHandleConfiguration(this);
+
+        client.setConfigHandler(oConfigHandler);
+        client.setReconnectHandler(reconnectHandler);
+        client.setCloseHandler(closeHandler);
+        // client.setAutoReconnect(true);
+        return ConnectionManager.getDefault().connect(client, targetVantiqServer, authToken, timeout);
     }
 
     /**
@@ -312,42 +307,12 @@ public class CSVCore {
      */
     public void stop() {
         close();
+        if (client != null) {
+            ConnectionManager.getDefault().cancel(client);
+        }
         if (client != null && client.isOpen()) {
             client.stop();
             client = null;
         }
     }
-
-    /**
-     * Waits for the connection to succeed or fail, logs and exits if the connection
-     * does not succeed within {@code timeout} seconds.
-     *
-     * @param client  The client to watch for success or failure.
-     * @param timeout The maximum number of seconds to wait before assuming failure
-     *                and stopping
-     * @return true if the connection succeeded, false if it failed to connect
-     *         within {@code timeout} seconds.
-     */
-    public boolean exitIfConnectionFails(ExtensionWebSocketClient client, int timeout) {
-        boolean sourcesSucceeded = false;
-        try {
-            sourcesSucceeded = client.getSourceConnectionFuture().get(timeout, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            log.error("Timeout: full connection did not succeed within {} seconds: {}", timeout, e);
-        } catch (Exception e) {
-            log.error("Exception occurred while waiting for webSocket connection", e);
-        }
-        if (!sourcesSucceeded) {
-            log.error("Failed to connect to all sources.");
-            if (!client.isOpen()) {
-                log.error("Failed to connect to server url '{}'.", targetVantiqServer);
-            } else if (!client.isAuthed()) {
-                log.error("Failed to authenticate within {} seconds using the given authentication data.", timeout);
-            } else {
-                log.error("Failed to connect within {} seconds", timeout);
-            }
-            return false;
-        }
-        return true;
-    }
 }
@@ -124,7 +124,7 @@ public class TestCSV extends TestCSVBase {
             }
         };
 
-        message.object = request[0];
+        message.setObject(request[0]);
 
         return message;
 
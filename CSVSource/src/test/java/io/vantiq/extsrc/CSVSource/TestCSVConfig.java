@@ -87,7 +87,7 @@ public class TestCSVConfig extends TestCSVBase {
         config.put("csvConfig", csvConfig);
         config.put("options", options);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
 
         handler.handleMessage(m);
     }
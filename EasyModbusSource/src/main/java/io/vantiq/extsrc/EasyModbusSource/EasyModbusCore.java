@@ -15,14 +15,13 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
@@ -47,7 +46,6 @@ public class EasyModbusCore {
     EasyModbus easyModbus = null;
 
     final Logger log;
-    final static int RECONNECT_INTERVAL = 5000;
     final static int DEFAULT_BUNDLE_SIZE = 500;
     final static String SELECT_STATEMENT_IDENTIFIER = "select";
 
@@ -103,18 +101,8 @@ public class EasyModbusCore {
 
             easyModbusConfigHandler.configComplete = false;
 
-            boolean sourcesSucceeded = false;
-            while (!sourcesSucceeded) {
-                client.initiateFullConnection(targetVantiqServer, authToken);
-                sourcesSucceeded = exitIfConnectionFails(client, 10);
-                if (!sourcesSucceeded) {
-                    try {
-                        Thread.sleep(RECONNECT_INTERVAL);
-                    } catch (InterruptedException e) {
-                        log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                    }
-                }
-            }
+            // Retried with a jittered backoff on the shared scheduler, so that this doesn't hold up the websocket
+            ConnectionManager.getDefault().reconnect(client, targetVantiqServer, authToken, 10);
         }
     };
 
@@ -147,30 +135,35 @@ public class EasyModbusCore {
      * 
      * @param timeout The maximum number of seconds to wait before assuming failure
      *                and stopping.
-     * @return true if the source connection succeeds, (will retry indefinitely and
-     *         never return false).
+     * @return true once the source connection succeeds, or false if {@link #stop()}
+     *         cancelled it first.
+     * @throws RuntimeException if the client could not start connecting, as thrown
+     *         by {@link ExtensionWebSocketClient#initiateFullConnection}. It is not
+     *         retried.
      */
     public boolean start(int timeout) {
-        boolean sourcesSucceeded = false;
-        while (!sourcesSucceeded) {
-            client = new ExtensionWebSocketClient(sourceName);
-            easyModbusConfigHandler = new EasyModbusHandleConfiguration(this);
-
-            client.setConfigHandler(easyModbusConfigHandler);
-            client.setReconnectHandler(reconnectHandler);
-            client.setCloseHandler(closeHandler);
-            client.initiateFullConnection(targetVantiqServer, authToken);
-
-            sourcesSucceeded = exitIfConnectionFails(client, timeout);
-            if (!sourcesSucceeded) {
-                try {
-                    Thread.sleep(RECONNECT_INTERVAL);
-                } catch (InterruptedException e) {
-                    log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                }
-            }
+        try {
+            return startAsync(timeout).join();
+        } catch (CompletionException e) {
+            // Rethrow what the connection attempt threw rather than the wrapper added by join()
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
         }
-        return true;
+    }
+
+    /**
+     * Connects to the source through the shared {@link ConnectionManager}, retrying with a jittered backoff until it
+     * succeeds. Each attempt waits up to {@code timeout} seconds before failing and trying again.
+     * @param timeout   The maximum number of seconds to wait for each attempt before assuming failure.
+     * @return          A {@link CompletableFuture} that completes as true once the source connection succeeds.
+     */
+    public CompletableFuture<Boolean> startAsync(int timeout) {
+        client = new ExtensionWebSocketClient(sourceName);
+        easyModbusConfigHandler = new EasyModbusHandleConfiguration(this);
+
+        client.setConfigHandler(easyModbusConfigHandler);
+        client.setReconnectHandler(reconnectHandler);
+        client.setCloseHandler(closeHandler);
+        return ConnectionManager.getDefault().connect(client, targetVantiqServer, authToken, timeout);
     }
 
     /**
@@ -385,42 +378,12 @@ public class EasyModbusCore {
      */
     public void stop() {
         close();
+        if (client != null) {
+            ConnectionManager.getDefault().cancel(client);
+        }
         if (client != null && client.isOpen()) {
             client.stop();
             client = null;
         }
     }
-
-    /**
-     * Waits for the connection to succeed or fail, logs and exits if the connection
-     * does not succeed within {@code timeout} seconds.
-     *
-     * @param client  The client to watch for success or failure.
-     * @param timeout The maximum number of seconds to wait before assuming failure
-     *                and stopping
-     * @return true if the connection succeeded, false if it failed to connect
-     *         within {@code timeout} seconds.
-     */
-    public boolean exitIfConnectionFails(ExtensionWebSocketClient client, int timeout) {
-        boolean sourcesSucceeded = false;
-        try {
-            sourcesSucceeded = client.getSourceConnectionFuture().get(timeout, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            log.error("Timeout: full connection did not succeed within {} seconds: {}", timeout, e);
-        } catch (Exception e) {
-            log.error("Exception occurred while waiting for webSocket connection", e);
-        }
-        if (!sourcesSucceeded) {
-            log.error("Failed to connect to all sources.");
-            if (!client.isOpen()) {
-                log.error("Failed to connect to server url '" + targetVantiqServer + "'.");
-            } else if (!client.isAuthed()) {
-                log.error("Failed to authenticate within " + timeout + " seconds using the given authentication data.");
-            } else {
-                log.error("Failed to connect within 10 seconds");
-            }
-            return false;
-        }
-        return true;
-    }
 }
@@ -142,7 +142,7 @@ public class TestEasyModbusConfig extends TestEasyModbusBase {
         config.put("easyModbusConfig", easyModbusConfig);
         config.put("vantiq", vantiqConfig);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
 
         handler.handleMessage(m);
     }
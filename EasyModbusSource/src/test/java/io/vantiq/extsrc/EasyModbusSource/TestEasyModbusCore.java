@@ -21,12 +21,14 @@ import java.sql.SQLException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.FalseClient;
 import io.vantiq.extsrc.EasyModbusSource.exception.VantiqEasyModbusException;
@@ -70,13 +72,13 @@ public class TestEasyModbusCore extends TestEasyModbusBase {
         msg.messageHeaders = header;
 
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executePublish(msg);
         assertFalse("Core should not be closed", core.isClosed());
 
         request = new LinkedHashMap<>();
         request.put("query", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.executePublish(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
@@ -94,53 +96,34 @@ public class TestEasyModbusCore extends TestEasyModbusBase {
         msg.messageHeaders = header;
 
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executeQuery(msg);
         assertFalse("Core should not be closed", core.isClosed());
 
         request = new LinkedHashMap<>();
         request.put("query", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.executeQuery(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
 
     @Test
-    public void testExitIfConnectionFails() throws VantiqEasyModbusException {
+    public void testStartThroughConnectionManager() throws VantiqEasyModbusException {
         assumeTrue(testIPAddress != null && testIPPort != 0);
         easyModbus.setupEasyModbus(testIPAddress, testIPPort, false, 0);
 
-        core.start(3);
-        assertTrue("Should have succeeded", core.exitIfConnectionFails(core.client, 3));
+        assertTrue("Should have succeeded", core.start(3));
         assertFalse("Success means it shouldn't be closed", core.isClosed());
 
+        // A source that never answers is retried until the core is stopped
         core.close();
         core = new NoSendEasyModbusCore(sourceName, authToken, targetVantiqServer);
         FalseClient fc = new FalseClient(sourceName);
         core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(false);
-        assertFalse("Should fail due to authentication failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-
-        core.close();
-        core = new NoSendEasyModbusCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(false);
-        assertFalse("Should fail due to WebSocket failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-
-        core.close();
-        core = new NoSendEasyModbusCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(true);
-        assertFalse("Should fail due to timeout on source connection", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
+        CompletableFuture<Boolean> connected = ConnectionManager.getDefault().connect(fc, targetVantiqServer,
+                authToken, 1);
+        assertFalse("Should not have connected", connected.isDone());
+        core.stop();
+        assertFalse("Stopping should cancel the connection", connected.join());
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the public sending methods of {@link ExtensionWebSocketClient} and the receiving side of
+ * {@link ExtensionWebSocketListener} against an in-process websocket that discards what it is sent, so that only the
+ * SDK's own work is measured. Reports ops/s by default; run with {@code -PjmhLatency} for latency percentiles. The gc
+ * profiler reports the allocation rate either way.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClientMessagePathBenchmark {
+
+    private static final String SOURCE_NAME = "benchmarkSource";
+    private static final String REPLY_ADDRESS = "d15cf6b0-8a1f-11e8-b880-48152d44a589";
+
+    /**
+     * The number of fields in each notification, query response row and received message.
+     */
+    @Param({"4", "64"})
+    public int fields;
+
+    private ExtensionWebSocketClient client;
+    private ExtensionWebSocketListener listener;
+    private NullWebSocket sink;
+    private Map<String, Object> data;
+    private Map[] rows;
+    private ByteString publishFrame;
+    private ByteString queryFrame;
+    private Object lastReceived;
+
+    @Setup
+    public void setup() throws Exception {
+        client = new ExtensionWebSocketClient(SOURCE_NAME);
+        sink = new NullWebSocket();
+        client.webSocket = sink;
+        client.webSocketFuture = CompletableFuture.completedFuture(true);
+        client.authFuture = CompletableFuture.completedFuture(true);
+        client.sourceFuture = CompletableFuture.completedFuture(true);
+        // Handlers ask for the message body, since it is only decoded on demand
+        Handler<ExtensionServiceMessage> handler = new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                lastReceived = message.getObject();
+            }
+        };
+        client.setPublishHandler(handler);
+        client.setQueryHandler(handler);
+        listener = client.getListener();
+
+        data = new LinkedHashMap<>();
+        for (int i = 0; i < fields; i++) {
+            data.put("field" + i, i % 2 == 0 ? "value" + i : i);
+        }
+        rows = new Map[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = data;
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        publishFrame = ByteString.of(mapper.writeValueAsBytes(inboundMessage("publish", null)));
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put(ExtensionServiceMessage.ORIGIN_ADDRESS_HEADER, REPLY_ADDRESS);
+        queryFrame = ByteString.of(mapper.writeValueAsBytes(inboundMessage("query", headers)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+    }
+
+    /**
+     * Sends a notification, then acknowledges it the way a response from Vantiq would, so that the flow control
+     * window never fills.
+     */
+    @Benchmark
+    public long sendNotification() {
+        client.sendNotification(data);
+        client.acknowledgeNotification();
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long send() {
+        client.send(data);
+        return sink.bytes;
+    }
+
+    /**
+     * A query response of 100 rows.
+     */
+    @Benchmark
+    public long sendQueryResponse() {
+        client.sendQueryResponse(ExtensionWebSocketClient.QUERY_DATA_CODE, REPLY_ADDRESS, rows);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public Object receivePublish() {
+        listener.onMessage(sink, publishFrame);
+        return lastReceived;
+    }
+
+    @Benchmark
+    public Object receiveQuery() {
+        listener.onMessage(sink, queryFrame);
+        return lastReceived;
+    }
+
+    private Map<String, Object> inboundMessage(String op, Map<String, Object> headers) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("op", op);
+        message.put("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        message.put("resourceId", SOURCE_NAME);
+        message.put("isSystemResource", true);
+        message.put("contentType", "application/json");
+        message.put("address", "c672e138-2915-433d-99fe-78a6661ea047");
+        message.put("messageHeaders", headers != null ? headers : new LinkedHashMap<>());
+        message.put("object", data);
+        return message;
+    }
+
+    /**
+     * A websocket that accepts and discards every frame, keeping only a count of the bytes sent.
+     */
+    private static class NullWebSocket implements WebSocket {
+        long bytes = 0;
+
+        @Override
+        public boolean send(@NotNull ByteString frame) {
+            bytes += frame.size();
+            return true;
+        }
+
+        @Override
+        public boolean send(@NotNull String text) {
+            bytes += text.length();
+            return true;
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public long queueSize() {
+            return 0;
+        }
+
+        @NotNull
+        @Override
+        public Request request() {
+            return new Request.Builder().url("http://localhost").build();
+        }
+    }
+}
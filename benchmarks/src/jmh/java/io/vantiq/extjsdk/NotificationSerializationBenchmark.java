@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bytes allocated per notification by the original serialization path (a {@link Map} copied into an
+ * {@link ExtensionServiceMessage}, serialized to a byte array and then copied into a {@link ByteString}) with the
+ * streaming {@link MessageSerializer}. Run with the gc profiler and compare {@code gc.alloc.rate.norm}.
+ * <p>
+ * The setup checks that both paths produce the same fields with the same values, so that the comparison is fair. The
+ * streaming path leaves out the fields that the legacy path writes as null.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotificationSerializationBenchmark {
+
+    private static final String SOURCE_NAME = "benchmarkSource";
+
+    /**
+     * The number of fields in each notification.
+     */
+    @Param({"4", "64"})
+    public int fields;
+
+    private ObjectMapper mapper;
+    private MessageSerializer serializer;
+    private Map<String, Object> data;
+    private List<Object> batch;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper();
+        serializer = new MessageSerializer(mapper);
+        data = new LinkedHashMap<>();
+        for (int i = 0; i < fields; i++) {
+            data.put("field" + i, i % 2 == 0 ? "value" + i : i);
+        }
+        batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(data);
+        }
+        checkEquivalence();
+    }
+
+    private void checkEquivalence() {
+        try {
+            Map<?, ?> legacy = mapper.readValue(legacyNotification().toByteArray(), Map.class);
+            legacy.values().removeIf(value -> value == null);
+            compareFields(legacy, mapper.readValue(streamingNotification().toByteArray(), Map.class), "notification");
+            List<?> streamed = mapper.readValue(streamingBatch().toByteArray(), List.class);
+            if (streamed.size() != batch.size()) {
+                throw new IllegalStateException("The batch holds " + streamed.size() + " notifications instead of "
+                        + batch.size());
+            }
+            for (int i = 0; i < streamed.size(); i++) {
+                compareFields(legacy, (Map<?, ?>) streamed.get(i), "batch[" + i + "]");
+            }
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not compare the serialized notifications", e);
+        }
+    }
+
+    private static void compareFields(Map<?, ?> legacy, Map<?, ?> streamed, String what) {
+        for (Map.Entry<?, ?> field : legacy.entrySet()) {
+            if (!streamed.containsKey(field.getKey())) {
+                throw new IllegalStateException(what + " is missing the field " + field.getKey());
+            }
+            if (!field.getValue().equals(streamed.get(field.getKey()))) {
+                throw new IllegalStateException(what + " has " + field.getKey() + "=" + streamed.get(field.getKey())
+                        + " instead of " + field.getValue());
+            }
+        }
+        for (Object key : streamed.keySet()) {
+            if (!legacy.containsKey(key)) {
+                throw new IllegalStateException(what + " has the extra field " + key);
+            }
+        }
+    }
+
+    @Benchmark
+    public ByteString legacyNotification() throws Exception {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("op", ExtensionServiceMessage.OP_NOTIFICATION);
+        m.put("resourceId", SOURCE_NAME);
+        m.put("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        m.put("object", data);
+        ExtensionServiceMessage msg = new ExtensionServiceMessage("");
+        msg.fromMap(m);
+        byte[] bytes = mapper.writeValueAsBytes(msg);
+        return ByteString.of(bytes);
+    }
+
+    @Benchmark
+    public ByteString streamingNotification() throws Exception {
+        return serializer.serializeNotification(SOURCE_NAME, data);
+    }
+
+    /**
+     * A batch of 100 notifications; divide the allocation by 100 for the per-notification cost.
+     */
+    @Benchmark
+    public ByteString streamingBatch() throws Exception {
+        return serializer.serializeNotificationBatch(SOURCE_NAME, batch);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways a request can obtain the JDBC instance it runs on, with as many threads as a source with
+ * {@code maxActiveTasks} of 16 runs queries and publishes on: reading it under a single monitor shared by every
+ * request, and acquiring and releasing it through {@link JDBCCore#acquireJDBC()}. Neither opens a connection, so only
+ * the cost of sharing the reference is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(32)
+public class JDBCAccessContentionBenchmark {
+
+    private static final String SYNCH_LOCK = "synchLock";
+
+    private JDBCCore core;
+    private JDBC synchronizedJDBC;
+
+    @Setup
+    public void setup() {
+        core = new JDBCCore("benchmarkSource", "token", "http://localhost");
+        synchronizedJDBC = new JDBC();
+        core.setJDBC(new JDBC());
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.setJDBC(null);
+    }
+
+    /**
+     * A shared monitor around reading the field, as every request did before.
+     */
+    @Benchmark
+    public JDBC synchronizedRead() {
+        synchronized (SYNCH_LOCK) {
+            return synchronizedJDBC;
+        }
+    }
+
+    /**
+     * Retaining the current instance and releasing it when done, as every request does now.
+     */
+    @Benchmark
+    public JDBC acquireAndRelease() {
+        JDBCCore.SharedJDBC shared = core.acquireJDBC();
+        try {
+            return shared.get();
+        } finally {
+            shared.release();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts query results into the maps sent to Vantiq, reading from an in-memory H2 database so that the decoding
+ * dominates. The table cycles through int, varchar, decimal, timestamp, date and time columns. Each operation is a
+ * single row, so the results are in rows/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResultDecodingBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final String[] COLUMN_TYPES = {"int", "varchar(64)", "decimal(10,2)", "timestamp", "date", "time"};
+
+    /**
+     * The number of columns in the table, narrow and wide.
+     */
+    @Param({"4", "64"})
+    public int columns;
+
+    private Connection conn;
+    private JDBC jdbc;
+    private String query;
+
+    @Setup
+    public void setup() throws Exception {
+        String url = "jdbc:h2:mem:decoding" + columns + ";DB_CLOSE_DELAY=-1";
+        conn = DriverManager.getConnection(url, "sa", "");
+
+        StringBuilder create = new StringBuilder("CREATE TABLE Decoding(");
+        StringBuilder insert = new StringBuilder("INSERT INTO Decoding VALUES (");
+        for (int i = 0; i < columns; i++) {
+            create.append(i > 0 ? ", " : "").append("c").append(i).append(' ')
+                    .append(COLUMN_TYPES[i % COLUMN_TYPES.length]);
+            insert.append(i > 0 ? ", ?" : "?");
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(create.append(')').toString());
+        }
+        try (PreparedStatement ps = conn.prepareStatement(insert.append(')').toString())) {
+            Timestamp ts = Timestamp.valueOf("2021-03-04 05:06:07.089");
+            for (int row = 0; row < ROWS; row++) {
+                for (int i = 0; i < columns; i++) {
+                    switch (i % COLUMN_TYPES.length) {
+                        case 0: ps.setInt(i + 1, row); break;
+                        case 1: ps.setString(i + 1, "value" + row); break;
+                        case 2: ps.setBigDecimal(i + 1, java.math.BigDecimal.valueOf(row, 2)); break;
+                        case 3: ps.setTimestamp(i + 1, ts); break;
+                        case 4: ps.setDate(i + 1, java.sql.Date.valueOf("2021-03-04")); break;
+                        default: ps.setTime(i + 1, java.sql.Time.valueOf("05:06:07")); break;
+                    }
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        query = "SELECT * FROM Decoding";
+
+        jdbc = new JDBC();
+        jdbc.setupJDBC(url, "sa", "", false, 0);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        jdbc.close();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE Decoding");
+        }
+        conn.close();
+    }
+
+    /**
+     * Only the conversion of each row, reading the rows of an already executed query.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object readRows() throws Exception {
+        Map<String, Object> last = null;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            JDBC.RowReader reader = new JDBC.RowReader(rs.getMetaData());
+            while (rs.next()) {
+                last = reader.read(rs);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * A whole SELECT as the source runs it, including the query and building the result array.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Map[] processQuery() throws Exception {
+        return jdbc.processQuery(query);
+    }
+}
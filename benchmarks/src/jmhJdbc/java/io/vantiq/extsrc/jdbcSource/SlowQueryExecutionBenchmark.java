@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a burst of slow queries at once, comparing the two asynchronous execution modes of the source: a pool of
+ * {@code maxActiveTasks} threads, and a virtual thread per request that waits for one of {@code maxActiveTasks}
+ * permits. Each query takes a connection from an in-memory H2 pool of the same size and holds it for
+ * {@link #LATENCY_MILLIS}, standing in for a slow database. Each operation is the whole burst.
+ * <p>
+ * The thread pool is given a queue large enough for the burst. With a {@code maxQueuedTasks} of 10, all but the 20
+ * requests running or queued would be rejected. The virtual thread benchmark needs Java 21 or later, and fails on
+ * older JVMs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SlowQueryExecutionBenchmark {
+
+    private static final int REQUESTS = 1000;
+    private static final int MAX_ACTIVE_TASKS = 10;
+    private static final long LATENCY_MILLIS = 2;
+
+    private ConnectionPools pools;
+    private ExecutorService threadPool;
+    private ExecutorService virtualThreads;
+    private Semaphore permits;
+
+    @Setup
+    public void setup() {
+        pools = new ConnectionPools("jdbc:h2:mem:slowQueries;DB_CLOSE_DELAY=-1", "sa", "", new Properties(),
+                MAX_ACTIVE_TASKS);
+        threadPool = new ThreadPoolExecutor(MAX_ACTIVE_TASKS, MAX_ACTIVE_TASKS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(REQUESTS));
+        virtualThreads = JDBCHandleConfiguration.newVirtualThreadExecutor();
+        permits = new Semaphore(MAX_ACTIVE_TASKS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        threadPool.shutdownNow();
+        if (virtualThreads != null) {
+            virtualThreads.shutdownNow();
+        }
+        pools.close();
+    }
+
+    /**
+     * Every request queued for one of the pool's threads, as the source does by default.
+     */
+    @Benchmark
+    public void threadPool() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            threadPool.execute(() -> slowQuery(done));
+        }
+        done.await();
+    }
+
+    /**
+     * Every request on a virtual thread of its own, waiting for a permit, as with an executionMode of virtualThreads.
+     */
+    @Benchmark
+    public void virtualThreads() throws InterruptedException {
+        if (virtualThreads == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+        }
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            virtualThreads.execute(JDBCHandleConfiguration.withPermit(permits, () -> slowQuery(done)));
+        }
+        done.await();
+    }
+
+    private void slowQuery(CountDownLatch done) {
+        try (Connection conn = pools.getConnection(ConnectionPools.Workload.QUERY);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1")) {
+            rs.next();
+            Thread.sleep(LATENCY_MILLIS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layout of a websocket frame that carries binary attachments next to its JSON message, instead of inside it as
+ * Base64 text.
+ * <p>
+ * Each {@code byte[]} in the message is replaced by a placeholder object, {@code {"$attachment": <index>}}, and its
+ * bytes are appended after the message. The frame is laid out as follows, with all integers big-endian:
+ * <pre>
+ *     byte     0x00, which can't start a JSON message
+ *     byte     the version of the layout, currently 1
+ *     int      the length of the JSON message
+ *     int      the number of attachments
+ *     int[]    the length of each attachment
+ *     byte[]   the JSON message
+ *     byte[]   the attachments, one after the other
+ * </pre>
+ * Frames are only sent in this layout when {@link ExtensionWebSocketClient#setBinaryAttachments binary attachments}
+ * are enabled, as older Vantiq servers only understand JSON frames.
+ */
+public final class AttachmentFrame {
+
+    /**
+     * The first byte of every attachment frame.
+     */
+    public static final byte MARKER = 0;
+
+    /**
+     * The version of the frame layout written by this SDK.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * The name of the field holding the attachment's index in the placeholders that replace binary values.
+     */
+    public static final String PLACEHOLDER_FIELD = "$attachment";
+
+    private static final int FIXED_HEADER_SIZE = 10;
+
+    private final ByteString message;
+    private final List<byte[]> attachments;
+
+    private AttachmentFrame(ByteString message, List<byte[]> attachments) {
+        this.message = message;
+        this.attachments = attachments;
+    }
+
+    /**
+     * @return  The JSON message of the frame, with placeholders where the attachments were.
+     */
+    public ByteString getMessage() {
+        return message;
+    }
+
+    /**
+     * @return  The attachments, in the order of their indexes.
+     */
+    public List<byte[]> getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * @param frame The frame to check.
+     * @return      Whether {@code frame} is laid out as an attachment frame, rather than being plain JSON.
+     */
+    public static boolean isAttachmentFrame(ByteString frame) {
+        return frame.size() >= FIXED_HEADER_SIZE && frame.getByte(0) == MARKER;
+    }
+
+    /**
+     * Lays out a JSON message and its attachments as a single frame.
+     *
+     * @param message       The buffer holding the JSON message.
+     * @param length        The length of the JSON message, which starts at the beginning of {@code message}.
+     * @param attachments   The attachments referenced by the message's placeholders.
+     * @return              The frame.
+     */
+    public static ByteString encode(byte[] message, int length, List<byte[]> attachments) {
+        int size = FIXED_HEADER_SIZE + 4 * attachments.size() + length;
+        for (byte[] attachment : attachments) {
+            size += attachment.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(MARKER).put(VERSION).putInt(length).putInt(attachments.size());
+        for (byte[] attachment : attachments) {
+            frame.putInt(attachment.length);
+        }
+        frame.put(message, 0, length);
+        for (byte[] attachment : attachments) {
+            frame.put(attachment);
+        }
+        // Cast so that this runs on Java 8, where Buffer's methods aren't overridden to return a ByteBuffer
+        ((Buffer) frame).flip();
+        return ByteString.of(frame);
+    }
+
+    /**
+     * Splits an attachment frame into its JSON message and its attachments.
+     *
+     * @param frame         The frame, which must satisfy {@link #isAttachmentFrame}.
+     * @return              The parts of the frame.
+     * @throws IOException  if the frame is not a valid attachment frame.
+     */
+    public static AttachmentFrame decode(ByteString frame) throws IOException {
+        ByteBuffer buffer = frame.asByteBuffer();
+        try {
+            if (buffer.get() != MARKER) {
+                throw new IOException("Frame is not an attachment frame");
+            }
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported attachment frame version " + version);
+            }
+            int messageLength = buffer.getInt();
+            int count = buffer.getInt();
+            if (messageLength < 0 || count < 0 || count > buffer.remaining() / 4) {
+                throw new IOException("Corrupt attachment frame header");
+            }
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = buffer.getInt();
+            }
+            byte[] message = new byte[messageLength];
+            buffer.get(message);
+            List<byte[]> attachments = new ArrayList<>(count);
+            for (int length : lengths) {
+                if (length < 0) {
+                    throw new IOException("Corrupt attachment frame header");
+                }
+                byte[] attachment = new byte[length];
+                buffer.get(attachment);
+                attachments.add(attachment);
+            }
+            return new AttachmentFrame(ByteString.of(message), Collections.unmodifiableList(attachments));
+        } catch (RuntimeException e) {
+            // Buffer underflows from lengths that run past the end of the frame
+            throw new IOException("Truncated attachment frame", e);
+        }
+    }
+
+    /**
+     * Replaces the placeholders in a decoded JSON value with the attachments they stand for.
+     *
+     * @param value         A value decoded from the message of an attachment frame.
+     * @param attachments   The attachments of the frame.
+     * @return              {@code value}, with every placeholder replaced by its {@code byte[]}.
+     */
+    static Object resolve(Object value, List<byte[]> attachments) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Object index = map.get(PLACEHOLDER_FIELD);
+            if (map.size() == 1 && index instanceof Integer) {
+                int i = (Integer) index;
+                if (i >= 0 && i < attachments.size()) {
+                    return attachments.get(i);
+                }
+            }
+            Map<Object, Object> resolved = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                resolved.put(entry.getKey(), resolve(entry.getValue(), attachments));
+            }
+            return resolved;
+        } else if (value instanceof List) {
+            List<Object> resolved = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                resolved.add(resolve(element, attachments));
+            }
+            return resolved;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects the {@link ExtensionWebSocketClient clients} of many sources to Vantiq, and reconnects them when their
+ * connection drops, on one shared scheduler instead of a thread per source.
+ * <p>
+ * A failed attempt is retried after an exponential backoff with jitter: the n-th retry waits between half and all of
+ * {@code min(maxBackoff, initialBackoff * 2^(n-1))}, chosen at random. Reconnects wait the same way before their first
+ * attempt, so that sources dropped together by a server restart don't all come back at the same instant. At most
+ * {@code maxConcurrentHandshakes} attempts are in progress at any time; the others wait their turn in the order they
+ * became due.
+ * <p>
+ * The number of attempts, failures, handshakes in progress and waiting, and the time from the first attempt to a
+ * connected source are recorded in the registry returned by {@link #getMetrics}, which can be published through
+ * {@link #addMetricsReporter}. The time to connect each source is also recorded in that client's own
+ * {@link ExtensionWebSocketClient#getMetrics() metrics}.
+ * <p>
+ * The scheduler's threads keep the JVM alive while attempts are outstanding, and go away after a minute without work.
+ */
+public class ConnectionManager {
+
+    /**
+     * The default number of connection attempts that may be in progress at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_HANDSHAKES = 16;
+
+    /**
+     * The default wait before the first retry, in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+
+    /**
+     * The default limit on the wait between retries, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+
+    /**
+     * The env var used to overwrite the default number of connection attempts in progress at once
+     */
+    private static final String MAX_CONCURRENT_HANDSHAKES = "CONNECT_MAX_CONCURRENT";
+
+    /**
+     * The env var used to overwrite the default wait before the first retry, in milliseconds
+     */
+    private static final String INITIAL_BACKOFF = "RECONNECT_INITIAL_BACKOFF";
+
+    /**
+     * The env var used to overwrite the default limit on the wait between retries, in milliseconds
+     */
+    private static final String MAX_BACKOFF = "RECONNECT_MAX_BACKOFF";
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionManager.class);
+
+    private static ConnectionManager defaultManager = null;
+
+    private final int maxConcurrentHandshakes;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<ExtensionWebSocketClient, Connection> connections = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final Deque<Connection> waiting = new ArrayDeque<>();
+    private int handshakes = 0;
+
+    private final MetricsRegistry metrics = new MetricsRegistry("");
+    private final MetricsRegistry.Counter attempts;
+    private final MetricsRegistry.Counter failures;
+    private final MetricsRegistry.Histogram timeToConnected;
+
+    /**
+     * Obtains the {@link ConnectionManager} shared by every connector in this JVM, creating it if necessary. Its
+     * settings are the defaults, unless overwritten by the {@code CONNECT_MAX_CONCURRENT},
+     * {@code RECONNECT_INITIAL_BACKOFF} and {@code RECONNECT_MAX_BACKOFF} environment variables.
+     *
+     * @return  The shared {@link ConnectionManager}.
+     */
+    public static synchronized ConnectionManager getDefault() {
+        if (defaultManager == null) {
+            int maxConcurrent = DEFAULT_MAX_CONCURRENT_HANDSHAKES;
+            long initial = DEFAULT_INITIAL_BACKOFF;
+            long max = DEFAULT_MAX_BACKOFF;
+            if (System.getenv(MAX_CONCURRENT_HANDSHAKES) != null) {
+                maxConcurrent = Integer.parseInt(System.getenv(MAX_CONCURRENT_HANDSHAKES));
+            }
+            if (System.getenv(INITIAL_BACKOFF) != null) {
+                initial = Long.parseLong(System.getenv(INITIAL_BACKOFF));
+            }
+            if (System.getenv(MAX_BACKOFF) != null) {
+                max = Long.parseLong(System.getenv(MAX_BACKOFF));
+            }
+            defaultManager = new ConnectionManager(maxConcurrent, initial, max);
+        }
+        return defaultManager;
+    }
+
+    /**
+     * Creates a {@link ConnectionManager}.
+     *
+     * @param maxConcurrentHandshakes   The number of connection attempts that may be in progress at once.
+     * @param initialBackoff            The wait before the first retry, in milliseconds.
+     * @param maxBackoff                The limit on the wait between retries, in milliseconds.
+     */
+    public ConnectionManager(int maxConcurrentHandshakes, long initialBackoff, long maxBackoff) {
+        if (maxConcurrentHandshakes < 1) {
+            throw new IllegalArgumentException("At least one handshake must be allowed at a time, was "
+                    + maxConcurrentHandshakes);
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Backoff must satisfy 0 <= initial <= max, was " + initialBackoff
+                    + " and " + maxBackoff);
+        }
+        this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(2, r ->
+                new Thread(r, "extjsdk-connection-manager-" + threadCount.incrementAndGet()));
+        scheduler.setKeepAliveTime(1, TimeUnit.MINUTES);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        attempts = metrics.counter("extjsdk_connection_attempts_total", "Number of attempts to connect a source.");
+        failures = metrics.counter("extjsdk_connection_failures_total",
+                "Number of attempts to connect a source that failed or timed out.");
+        timeToConnected = metrics.histogram("extjsdk_time_to_connected_seconds",
+                "Time from the first attempt to connect a source until it was connected.");
+        metrics.gauge("extjsdk_handshakes_in_progress", "Number of connection attempts in progress.",
+                this::getHandshakesInProgress);
+        metrics.gauge("extjsdk_handshakes_waiting", "Number of connection attempts waiting for their turn.",
+                this::getHandshakesWaiting);
+        metrics.gauge("extjsdk_sources_connecting", "Number of sources not yet connected.", connections::size);
+    }
+
+    /**
+     * @return  The metrics of this manager.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts publishing the metrics of this manager through {@code reporter}. See {@link MetricsReporter} for the
+     * reporters available.
+     *
+     * @param reporter  The reporter to add.
+     */
+    public void addMetricsReporter(MetricsReporter reporter) {
+        reporter.start(metrics);
+    }
+
+    /**
+     * @return  The number of connection attempts in progress.
+     */
+    public synchronized int getHandshakesInProgress() {
+        return handshakes;
+    }
+
+    /**
+     * @return  The number of connection attempts waiting for one of those in progress to finish.
+     */
+    public synchronized int getHandshakesWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Connects {@code client} to its source, retrying until it succeeds or {@link #cancel} is called. The first
+     * attempt is made as soon as a handshake may start. If the client is already being connected, the connection in
+     * progress is returned instead.
+     *
+     * @param client    The client to connect.
+     * @param url       The url of the Vantiq server.
+     * @param token     The authentication token for the target namespace.
+     * @param timeout   The number of seconds to wait for each attempt before assuming it failed.
+     * @return          A {@link CompletableFuture} that completes as true once the source is connected, or as false
+     *                  if the connection was cancelled.
+     */
+    public CompletableFuture<Boolean> connect(ExtensionWebSocketClient client, String url, String token,
+                                              int timeout) {
+        return connect(client, url, token, timeout, false);
+    }
+
+    /**
+     * Reconnects {@code client} to its source after its connection dropped, as {@link #connect} does, except that the
+     * first attempt also waits for a jittered backoff.
+     *
+     * @param client    The client to reconnect.
+     * @param url       The url of the Vantiq server.
+     * @param token     The authentication token for the target namespace.
+     * @param timeout   The number of seconds to wait for each attempt before assuming it failed.
+     * @return          A {@link CompletableFuture} that completes as true once the source is connected, or as false
+     *                  if the connection was cancelled.
+     */
+    public CompletableFuture<Boolean> reconnect(ExtensionWebSocketClient client, String url, String token,
+                                                int timeout) {
+        return connect(client, url, token, timeout, true);
+    }
+
+    private CompletableFuture<Boolean> connect(ExtensionWebSocketClient client, String url, String token,
+                                               int timeout, boolean delayFirst) {
+        Connection created = new Connection(client, url, token, timeout);
+        Connection existing = connections.putIfAbsent(client, created);
+        if (existing != null) {
+            return existing.result;
+        }
+        schedule(created, delayFirst ? backoff(1) : 0);
+        return created.result;
+    }
+
+    /**
+     * Stops connecting {@code client}. An attempt already in progress is left to finish, but is not retried.
+     *
+     * @param client    The client to stop connecting.
+     */
+    public void cancel(ExtensionWebSocketClient client) {
+        Connection connection = connections.remove(client);
+        if (connection != null) {
+            connection.cancelled = true;
+            synchronized (this) {
+                waiting.remove(connection);
+            }
+            connection.result.complete(false);
+        }
+    }
+
+    /**
+     * Stops this manager. Outstanding connections are cancelled.
+     */
+    public void shutdown() {
+        for (ExtensionWebSocketClient client : connections.keySet()) {
+            cancel(client);
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param retry The number of the retry, starting at 1.
+     * @return      The wait before {@code retry}, in milliseconds.
+     */
+    long backoff(int retry) {
+        long ceiling = initialBackoff << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoff) {
+            ceiling = maxBackoff;
+        }
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    private void schedule(Connection connection, long delay) {
+        if (delay == 0) {
+            scheduler.execute(() -> enqueue(connection));
+        } else {
+            scheduler.schedule(() -> enqueue(connection), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void enqueue(Connection connection) {
+        if (connection.cancelled) {
+            return;
+        }
+        synchronized (this) {
+            if (handshakes >= maxConcurrentHandshakes) {
+                waiting.add(connection);
+                return;
+            }
+            handshakes++;
+        }
+        attempt(connection);
+    }
+
+    private void attempt(Connection connection) {
+        ExtensionWebSocketClient client = connection.client;
+        connection.tries++;
+        attempts.increment();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        CompletableFuture<Boolean> sourceFuture;
+        try {
+            sourceFuture = client.initiateFullConnection(connection.url, connection.token);
+        } catch (RuntimeException e) {
+            log.error("Could not start connecting source {}. It will not be retried.", client.getSourceName(), e);
+            finished.set(true);
+            release();
+            connections.remove(client, connection);
+            connection.result.completeExceptionally(e);
+            return;
+        }
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> finish(connection, false, finished),
+                connection.timeout, TimeUnit.SECONDS);
+        sourceFuture.whenComplete((success, error) -> {
+            timeout.cancel(false);
+            finish(connection, error == null && Boolean.TRUE.equals(success), finished);
+        });
+    }
+
+    private void finish(Connection connection, boolean success, AtomicBoolean finished) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        release();
+        ExtensionWebSocketClient client = connection.client;
+        if (success) {
+            long elapsed = System.nanoTime() - connection.startTime;
+            timeToConnected.record(elapsed);
+            client.getMetrics().histogram("extjsdk_time_to_connected_seconds",
+                    "Time from the first attempt to connect the source until it was connected.").record(elapsed);
+            log.info("Source {} connected after {} attempts in {} ms", client.getSourceName(), connection.tries,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+            connections.remove(client, connection);
+            connection.result.complete(true);
+            return;
+        }
+
+        failures.increment();
+        if (connection.cancelled) {
+            return;
+        }
+        long delay = backoff(connection.tries);
+        if (!client.isOpen()) {
+            log.error("Failed to connect source {} to server url '{}'. Retrying in {} ms.", client.getSourceName(),
+                    connection.url, delay);
+        } else if (!client.isAuthed()) {
+            log.error("Failed to authenticate source {} within {} seconds. Retrying in {} ms.",
+                    client.getSourceName(), connection.timeout, delay);
+        } else {
+            log.error("Failed to connect source {} within {} seconds. Retrying in {} ms.", client.getSourceName(),
+                    connection.timeout, delay);
+        }
+        schedule(connection, delay);
+    }
+
+    private void release() {
+        Connection next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                handshakes--;
+                return;
+            }
+        }
+        // The handshake slot passes straight to the next connection in line
+        scheduler.execute(() -> {
+            if (next.cancelled) {
+                release();
+            } else {
+                attempt(next);
+            }
+        });
+    }
+
+    /**
+     * The state of one client being connected.
+     */
+    private static class Connection {
+        final ExtensionWebSocketClient client;
+        final String url;
+        final String token;
+        final int timeout;
+        final long startTime = System.nanoTime();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        volatile boolean cancelled = false;
+        int tries = 0;
+
+        Connection(ExtensionWebSocketClient client, String url, String token, int timeout) {
+            this.client = client;
+            this.url = url;
+            this.token = token;
+            this.timeout = timeout;
+        }
+    }
+}
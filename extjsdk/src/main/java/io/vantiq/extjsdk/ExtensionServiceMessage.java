@@ -88,9 +88,19 @@ public class ExtensionServiceMessage {
 
     /**
      * The body content of the operation.
+     *
+     * @deprecated  For messages received from Vantiq, this is null until {@link #getObject()} is first called. Use
+     *              {@link #getObject()} and {@link #setObject(Object)} instead.
      */
+    @Deprecated
     public Object object;
 
+    /**
+     * The body content of a received message that has not been decoded yet. Decoded into {@link #object} by
+     * {@link #getObject()}.
+     */
+    MessageDecoder.LazyValue rawObject;
+
     /**
      * The execution context that should be established for this message.
      */
@@ -143,9 +153,29 @@ public class ExtensionServiceMessage {
         return asMap().toString();
     }
 
+    /**
+     * Returns the body content of the message. For messages received from Vantiq, the body is decoded on the first
+     * call, so handlers should use this rather than reading {@link #object} directly.
+     *
+     * @return  The body content of the message.
+     */
     public Object getObject() {
+        if (this.object == null && this.rawObject != null) {
+            this.object = this.rawObject.decode();
+        }
+        this.rawObject = null;
         return this.object;
     }
+
+    /**
+     * Sets the body content of the message, replacing any received body that has not been decoded yet.
+     *
+     * @param object    The body content of the message.
+     */
+    public void setObject(Object object) {
+        this.object = object;
+        this.rawObject = null;
+    }
     
     public String getSourceName() {
         return this.resourceId;
@@ -212,7 +242,7 @@ public class ExtensionServiceMessage {
         m.put("isSystemResource", isSystemResource);
         if (resourceId != null) m.put("resourceId", resourceId);
         if (parameters != null) m.put("parameters", parameters);
-        if (object != null) m.put("object", object);
+        if (getObject() != null) m.put("object", object);
         if (sessionId != null) m.put("sessionId", sessionId);
         if (contentType != null) m.put("contentType", contentType);
         if (responseType != null) m.put("responseType", responseType);
@@ -20,17 +20,19 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.WebSocket;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.Queue;
 import java.util.UUID;
-
-import com.google.common.collect.EvictingQueue;
+import java.util.function.Supplier;
 
 // Logging
 import okio.ByteString;
@@ -62,6 +64,14 @@ public class ExtensionWebSocketClient {
      */
     public static final int DEFAULT_TCP_PROBE_PORT = 8000;
 
+    /**
+     * The ops outbound messages are counted under in the metrics, for those that don't carry an op of their own.
+     */
+    private static final String OP_NOTIFICATION = ExtensionServiceMessage.OP_NOTIFICATION;
+    static final String OP_NOTIFICATION_BATCH = "notificationBatch";
+    private static final String OP_RESPONSE = "response";
+    static final String OP_OTHER = "other";
+
     /**
      * The default max queue size of the failedMessageQueue
      */
@@ -72,20 +82,111 @@ public class ExtensionWebSocketClient {
      */
     private static final String FAILED_MESAGE_QUEUE_SIZE = "FAILED_MESSAGE_QUEUE_SIZE";
 
+    /**
+     * The env var used to enable spilling the failedMessageQueue to disk, naming the directory to spill to
+     */
+    private static final String FAILED_MESSAGE_SPILL_DIRECTORY = "FAILED_MESSAGE_SPILL_DIR";
+
+    /**
+     * The env var used to overwrite the default replay rate of the failedMessageQueue, in messages per second
+     */
+    private static final String FAILED_MESSAGE_REPLAY_RATE = "FAILED_MESSAGE_REPLAY_RATE";
+
+    /**
+     * The env var used to enable metrics reporters, as a comma separated list of "jmx", "prometheus" and "log"
+     */
+    private static final String METRICS_REPORTERS = "METRICS_REPORTERS";
+
+    /**
+     * The env var used to overwrite the interval of the "log" metrics reporter, in seconds
+     */
+    private static final String METRICS_LOG_INTERVAL = "METRICS_LOG_INTERVAL";
+
+    /**
+     * The env var used to send byte[] values as binary attachments instead of Base64 text, when set to "true"
+     */
+    private static final String BINARY_ATTACHMENTS = "BINARY_ATTACHMENTS";
+
+    /**
+     * The env var used to enable application-level compression of outbound frames, giving the level from 1 to 9
+     */
+    private static final String COMPRESSION_LEVEL = "COMPRESSION_LEVEL";
+
+    /**
+     * The env var used to overwrite the size below which frames are not compressed, in bytes
+     */
+    private static final String COMPRESSION_MIN_SIZE = "COMPRESSION_MIN_SIZE";
+
+    /**
+     * The env var used to share one websocket connection among every source connecting to the same url, when set to
+     * "true"
+     */
+    private static final String SHARED_CONNECTION = "SHARED_CONNECTION";
+
+    /**
+     * The default size below which messages are not compressed by the websocket permessage-deflate extension, in bytes
+     */
+    public static final long DEFAULT_WEBSOCKET_COMPRESSION_THRESHOLD = 1024;
+
     /**
      * An {@link ObjectMapper} used to transform objects into JSON before sending
      */
     private ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * The {@link MessageSerializer} used to turn outbound messages into websocket frames
+     */
+    private final MessageSerializer serializer;
+
+    /**
+     * The {@link FrameCompressor} applied to outbound frames, or null if application-level compression is disabled
+     */
+    private volatile FrameCompressor compressor = null;
+
+    /**
+     * The size below which messages are not compressed by the websocket permessage-deflate extension
+     */
+    private volatile long webSocketCompressionThreshold = DEFAULT_WEBSOCKET_COMPRESSION_THRESHOLD;
+
+    /**
+     * The {@link SharedConnection} this client connects through, or null if it opens its own websocket
+     */
+    private volatile SharedConnection sharedConnection = null;
+
+    /**
+     * Whether to connect through the {@link SharedConnection#forUrl shared connection} to the url given to
+     * {@link #initiateWebsocketConnection}, when no {@link #sharedConnection} has been set
+     */
+    private volatile boolean shareConnection = false;
+
+    /**
+     * The metrics of this client, published by {@link #metricsReporters}
+     */
+    private final MetricsRegistry metrics;
+
+    /**
+     * The reporters publishing {@link #metrics}
+     */
+    private final List<MetricsReporter> metricsReporters = new CopyOnWriteArrayList<>();
+
+    /**
+     * The reporter that answers requests on the TCP probe port, if one has been added
+     */
+    private volatile PrometheusMetricsReporter probeReporter = null;
+
+    private final MetricsRegistry.Histogram windowWaitTime;
+    private final MetricsRegistry.Histogram ackRoundTripTime;
+    private final MetricsRegistry.Counter reconnects;
+
     /**
      * The WebSocket used to talk to the Vantiq deployment. null when no connection is established
      */
     WebSocket webSocket = null;
 
     /**
-     * The semaphore used to manage sending source notifications back to Vantiq.
+     * The flow control window used to manage sending source notifications back to Vantiq.
      */
-    Semaphore outstandingNotifications = null;
+    volatile NotificationFlowControl flowControl = null;
 
     /**
      * The name of the source this client is connected to.
@@ -149,10 +250,16 @@ public class ExtensionWebSocketClient {
     Handler<ExtensionWebSocketClient> closeHandler;
 
     /**
-     * A {@link Queue} that is used as an internal queue to store messages that failed to send to Vantiq because
-     * of a dropped connection. Once a reconnect is successful, the queued messages will be resent.
+     * A {@link StoreAndForwardQueue} that is used as an internal queue to store messages that failed to send to Vantiq
+     * because of a dropped connection. Once a reconnect is successful, the queued messages will be resent.
+     */
+    StoreAndForwardQueue failedMessageQueue;
+
+    /**
+     * The {@link NotificationBatcher} used to coalesce notifications into batches. null unless batching has been
+     * enabled through {@link #enableNotificationBatching}.
      */
-    Queue<Object> failedMessageQueue;
+    volatile NotificationBatcher notificationBatcher = null;
 
     /**
      * Obtain the {@link ExtensionWebSocketListener} listening to this client's source on Vantiq. Necessary to set
@@ -194,19 +301,342 @@ public class ExtensionWebSocketClient {
      */
     public ExtensionWebSocketClient (String sourceName, int failedMessageQueueSize) {
         this.sourceName = sourceName;
-        outstandingNotifications = new Semaphore(5, true);
+        flowControl = new NotificationFlowControl();
         log = LoggerFactory.getLogger(this.getClass().getCanonicalName() + "#" + sourceName);
+        metrics = new MetricsRegistry(sourceName);
+        serializer = new MessageSerializer(mapper, metrics.histogram("extjsdk_serialization_seconds",
+                "Time spent serializing outbound messages."));
+        windowWaitTime = metrics.histogram("extjsdk_notification_window_wait_seconds",
+                "Time notifications spent waiting for room in the flow control window.");
+        ackRoundTripTime = metrics.histogram("extjsdk_notification_ack_rtt_seconds",
+                "Time between sending a notification and receiving its acknowledgement.");
+        reconnects = metrics.counter("extjsdk_reconnects_total", "Number of attempts to reconnect to the source.");
         listener = new ExtensionWebSocketListener(this);
 
         // Check for Environment Variable to overwrite failedMessageQueue size, otherwise use default
         if (System.getenv(FAILED_MESAGE_QUEUE_SIZE) != null) {
             int customQueueSize = new Integer(System.getenv(FAILED_MESAGE_QUEUE_SIZE));
-            failedMessageQueue = EvictingQueue.create(customQueueSize);
+            failedMessageQueue = new StoreAndForwardQueue(sourceName, customQueueSize, serializer);
         } else {
-            failedMessageQueue = EvictingQueue.create(failedMessageQueueSize);
+            failedMessageQueue = new StoreAndForwardQueue(sourceName, failedMessageQueueSize, serializer);
+        }
+        if (System.getenv(FAILED_MESSAGE_REPLAY_RATE) != null) {
+            failedMessageQueue.setReplayRate(Double.parseDouble(System.getenv(FAILED_MESSAGE_REPLAY_RATE)));
+        }
+        if (System.getenv(FAILED_MESSAGE_SPILL_DIRECTORY) != null) {
+            try {
+                enableFailedMessageSpill(new File(System.getenv(FAILED_MESSAGE_SPILL_DIRECTORY)),
+                        StoreAndForwardQueue.DEFAULT_SEGMENT_SIZE, StoreAndForwardQueue.DEFAULT_MAX_SPILL_BYTES);
+            } catch (IOException e) {
+                log.error("Could not enable spilling of failed messages to {}. Failed messages will only be held in "
+                        + "memory.", System.getenv(FAILED_MESSAGE_SPILL_DIRECTORY), e);
+            }
+        }
+
+        if (System.getenv(BINARY_ATTACHMENTS) != null) {
+            setBinaryAttachments(Boolean.parseBoolean(System.getenv(BINARY_ATTACHMENTS)));
+        }
+        if (System.getenv(COMPRESSION_LEVEL) != null) {
+            int minSize = FrameCompressor.DEFAULT_MIN_SIZE;
+            if (System.getenv(COMPRESSION_MIN_SIZE) != null) {
+                minSize = Integer.parseInt(System.getenv(COMPRESSION_MIN_SIZE));
+            }
+            enableCompression(Integer.parseInt(System.getenv(COMPRESSION_LEVEL)), minSize);
+        }
+        if (System.getenv(SHARED_CONNECTION) != null) {
+            shareConnection = Boolean.parseBoolean(System.getenv(SHARED_CONNECTION));
+        }
+
+        registerGauges();
+        if (System.getenv(METRICS_REPORTERS) != null) {
+            addMetricsReportersFromEnvironment(System.getenv(METRICS_REPORTERS));
         }
     }
 
+    private void registerGauges() {
+        metrics.gauge("extjsdk_failed_queue_depth", "Number of messages waiting in the failed message queue.",
+                () -> failedMessageQueue.size());
+        metrics.gauge("extjsdk_failed_queue_spilled_depth",
+                "Number of messages in the failed message queue that are spilled to disk.",
+                () -> failedMessageQueue.getSpilledDepth());
+        metrics.gauge("extjsdk_failed_queue_dropped",
+                "Number of messages dropped because the failed message queue was full.",
+                () -> failedMessageQueue.getMessagesDropped());
+        metrics.gauge("extjsdk_notification_window", "Current size of the notification flow control window.",
+                () -> flowControl.getWindow());
+        metrics.gauge("extjsdk_notifications_in_flight", "Number of notifications waiting for an acknowledgement.",
+                () -> flowControl.getInFlight());
+        metrics.gauge("extjsdk_notification_ack_rtt_p50_seconds",
+                "Median acknowledgement round-trip time of recent notifications.",
+                () -> rttPercentile(50));
+        metrics.gauge("extjsdk_notification_ack_rtt_p99_seconds",
+                "99th percentile acknowledgement round-trip time of recent notifications.",
+                () -> rttPercentile(99));
+        metrics.gauge("extjsdk_notification_blocked_seconds",
+                "Total time producers waited for room in the notification flow control window.",
+                () -> flowControl.getBlockedTime(TimeUnit.NANOSECONDS) / 1e9);
+        metrics.gauge("extjsdk_notification_blocked_acquires",
+                "Number of times a producer waited for room in the notification flow control window.",
+                () -> flowControl.getBlockedAcquires());
+
+        // The batcher is only present while batching is enabled, and is replaced whenever it is reconfigured
+        for (NotificationBatcher.FlushReason reason : NotificationBatcher.FlushReason.values()) {
+            metrics.gauge("extjsdk_notification_batch_flushes", "Number of notification batches sent, per reason.",
+                    "reason", reason.name().toLowerCase(), () -> {
+                        NotificationBatcher batcher = notificationBatcher;
+                        return batcher == null ? 0 : batcher.getFlushCount(reason);
+                    });
+        }
+        metrics.gauge("extjsdk_notification_batch_average_size", "Average number of notifications per batch.",
+                () -> {
+                    NotificationBatcher batcher = notificationBatcher;
+                    return batcher == null ? 0 : batcher.getAverageBatchSize();
+                });
+
+        for (HandlerDispatcher.HandlerType type : HandlerDispatcher.HandlerType.values()) {
+            String handler = type.name().toLowerCase();
+            metrics.gauge("extjsdk_handler_queue_depth", "Number of messages waiting for a handler.",
+                    "handler", handler, () -> handlerStats(type).getQueueDepth());
+            metrics.gauge("extjsdk_handler_latency_p50_seconds", "Median time the handler took for recent messages.",
+                    "handler", handler, () -> handlerLatency(type, 50));
+            metrics.gauge("extjsdk_handler_latency_p99_seconds",
+                    "99th percentile time the handler took for recent messages.",
+                    "handler", handler, () -> handlerLatency(type, 99));
+        }
+
+        metrics.gauge("extjsdk_failed_queue_bytes_spilled", "Total number of message bytes written to disk.",
+                () -> failedMessageQueue.getBytesSpilled());
+        metrics.gauge("extjsdk_failed_queue_replayed", "Total number of messages replayed from the failed queue.",
+                () -> failedMessageQueue.getMessagesReplayed());
+        metrics.gauge("extjsdk_failed_queue_replay_rate",
+                "Messages per second sent by the current replay, or by the last one if none is running.",
+                () -> failedMessageQueue.getCurrentReplayRate());
+    }
+
+    /**
+     * @return  The percentile of the recent acknowledgement round trips in seconds, or NaN if there are none.
+     */
+    private double rttPercentile(double percentile) {
+        long nanos = flowControl.getRttPercentile(percentile, TimeUnit.NANOSECONDS);
+        return nanos < 0 ? Double.NaN : nanos / 1e9;
+    }
+
+    /**
+     * @return  The statistics of the current dispatcher, which may be replaced through the listener.
+     */
+    private HandlerDispatcher.Stats handlerStats(HandlerDispatcher.HandlerType type) {
+        return listener.getHandlerDispatcher().getStats(type);
+    }
+
+    /**
+     * @return  The percentile of the handler's recent latencies in seconds, or NaN if it has handled nothing.
+     */
+    private double handlerLatency(HandlerDispatcher.HandlerType type, double percentile) {
+        long nanos = handlerStats(type).getLatencyPercentile(percentile, TimeUnit.NANOSECONDS);
+        return nanos < 0 ? Double.NaN : nanos / 1e9;
+    }
+
+    private void addMetricsReportersFromEnvironment(String reporters) {
+        for (String reporter : reporters.split(",")) {
+            switch (reporter.trim().toLowerCase()) {
+                case "jmx":
+                    addMetricsReporter(MetricsReporter.jmx());
+                    break;
+                case "prometheus":
+                    addMetricsReporter(MetricsReporter.prometheus());
+                    break;
+                case "log":
+                    long interval = MetricsReporter.DEFAULT_LOG_INTERVAL;
+                    if (System.getenv(METRICS_LOG_INTERVAL) != null) {
+                        interval = Long.parseLong(System.getenv(METRICS_LOG_INTERVAL));
+                    }
+                    addMetricsReporter(MetricsReporter.log(interval, TimeUnit.SECONDS));
+                    break;
+                case "":
+                    break;
+                default:
+                    log.warn("Ignoring unknown metrics reporter '{}' in {}.", reporter, METRICS_REPORTERS);
+            }
+        }
+    }
+
+    /**
+     * Obtain the {@link MetricsRegistry} holding the metrics of this client: the messages and bytes sent and received
+     * per op, the time spent serializing messages and waiting on the notification flow control window, the
+     * acknowledgement round-trip times, the depth of the failed message queue, and the number of reconnects.
+     * Connectors may add their own metrics to it, so that they are published alongside.
+     *
+     * @return  The metrics of this client.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts publishing the metrics of this client through {@code reporter}. See {@link MetricsReporter} for the
+     * reporters available. Reporters can also be enabled with the {@code METRICS_REPORTERS} environment variable.
+     *
+     * @param reporter  The reporter to add.
+     */
+    public void addMetricsReporter(MetricsReporter reporter) {
+        reporter.start(metrics);
+        metricsReporters.add(reporter);
+        if (reporter instanceof PrometheusMetricsReporter) {
+            probeReporter = (PrometheusMetricsReporter) reporter;
+        }
+    }
+
+    /**
+     * Stops publishing the metrics of this client through {@code reporter}.
+     *
+     * @param reporter  The reporter to remove.
+     */
+    public void removeMetricsReporter(MetricsReporter reporter) {
+        if (metricsReporters.remove(reporter)) {
+            reporter.stop();
+            if (reporter == probeReporter) {
+                probeReporter = null;
+            }
+        }
+    }
+
+    /**
+     * Counts a message received from Vantiq.
+     *
+     * @param op    The op of the message, or "response" for responses.
+     * @param bytes The size of the message.
+     */
+    void recordReceived(String op, int bytes) {
+        metrics.counter("extjsdk_messages_received_total", "Number of messages received, per op.", "op", op)
+                .increment();
+        metrics.counter("extjsdk_bytes_received_total", "Number of bytes received, per op.", "op", op).add(bytes);
+    }
+
+    private void recordSent(String op, int bytes) {
+        metrics.counter("extjsdk_messages_sent_total", "Number of messages sent, per op.", "op", op).increment();
+        metrics.counter("extjsdk_bytes_sent_total", "Number of bytes sent, per op.", "op", op).add(bytes);
+    }
+
+    /**
+     * Lets the messages that don't fit in the in-memory failed message queue spill to memory-mapped segment files in
+     * {@code directory}, instead of dropping the oldest messages. Messages left in the directory by an earlier run for
+     * this source are queued again. See {@link StoreAndForwardQueue} for details.
+     *
+     * @param directory     The directory that holds the segment files.
+     * @param segmentSize   The size of each segment file, in bytes.
+     * @param maxBytes      The limit on the total size of the segment files, in bytes.
+     * @throws IOException  if the directory or the segments in it could not be opened.
+     */
+    public void enableFailedMessageSpill(File directory, int segmentSize, long maxBytes) throws IOException {
+        failedMessageQueue.enableSpill(directory, segmentSize, maxBytes);
+    }
+
+    /**
+     * Sets whether {@code byte[]} values in outbound messages, such as raw file contents or images, are sent as binary
+     * attachments after the JSON message instead of as Base64 text inside it. This saves the third of the message that
+     * Base64 adds, and the encoding work on both ends. It must only be enabled for Vantiq servers that accept
+     * {@link AttachmentFrame attachment frames}; the default is Base64 text, which every server understands.
+     *
+     * @param enabled   Whether to send {@code byte[]} values as binary attachments.
+     */
+    public void setBinaryAttachments(boolean enabled) {
+        serializer.setBinaryAttachments(enabled);
+    }
+
+    /**
+     * @return  Whether {@code byte[]} values in outbound messages are sent as binary attachments.
+     */
+    public boolean isBinaryAttachments() {
+        return serializer.isBinaryAttachments();
+    }
+
+    /**
+     * Compresses outbound frames of at least {@code minSize} bytes at the application level, as described in
+     * {@link FrameCompressor}. Like binary attachments, this must only be enabled for Vantiq servers that accept
+     * compressed frames. Servers that negotiate the websocket permessage-deflate extension compress messages without
+     * it; see {@link #setWebSocketCompressionThreshold}. The compression ratio and the time spent compressing are
+     * published in the {@link #getMetrics() metrics}.
+     *
+     * @param level     The compression level, from 1 (fastest) to 9 (smallest).
+     *                  {@link FrameCompressor#DEFAULT_LEVEL} is a reasonable default.
+     * @param minSize   The size below which frames are sent uncompressed, in bytes.
+     *                  {@link FrameCompressor#DEFAULT_MIN_SIZE} is a reasonable default.
+     */
+    public void enableCompression(int level, int minSize) {
+        compressor = new FrameCompressor(level, minSize, metrics);
+    }
+
+    /**
+     * Stops compressing outbound frames at the application level.
+     */
+    public void disableCompression() {
+        compressor = null;
+    }
+
+    /**
+     * @return  The {@link FrameCompressor} applied to outbound frames, or null if application-level compression is
+     *          disabled.
+     */
+    public FrameCompressor getFrameCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Sets the size below which messages are not compressed by the websocket permessage-deflate extension, which is
+     * used whenever the Vantiq server negotiates it. Takes effect on the next connection. The extension is not used
+     * for outbound messages while application-level compression is enabled, as they are already compressed.
+     *
+     * @param bytes The size below which messages are sent uncompressed, in bytes. {@link Long#MAX_VALUE} disables
+     *              compression of outbound messages.
+     */
+    public void setWebSocketCompressionThreshold(long bytes) {
+        webSocketCompressionThreshold = bytes;
+    }
+
+    /**
+     * @return  The size below which messages are not compressed by the websocket permessage-deflate extension.
+     */
+    long getMinWebSocketMessageToCompress() {
+        // Frames compressed by the application would not get any smaller from permessage-deflate
+        return compressor == null ? webSocketCompressionThreshold : Long.MAX_VALUE;
+    }
+
+    /**
+     * Connects this client through {@code connection} instead of its own websocket, as described in
+     * {@link SharedConnection}. Takes effect on the next connection. Setting the {@code SHARED_CONNECTION}
+     * environment variable to {@code true} connects every client through the connection returned by
+     * {@link SharedConnection#forUrl} for the url it connects to.
+     *
+     * @param connection    The {@link SharedConnection} to connect through, or null to open a websocket of its own.
+     */
+    public void setSharedConnection(SharedConnection connection) {
+        sharedConnection = connection;
+    }
+
+    /**
+     * @return  The {@link SharedConnection} this client connects through, or null if it opens its own websocket.
+     */
+    public SharedConnection getSharedConnection() {
+        return sharedConnection;
+    }
+
+    /**
+     * Sets the maximum rate at which queued messages are resent once the connection has been reestablished.
+     *
+     * @param messagesPerSecond The maximum number of messages resent per second. 0 means unlimited.
+     */
+    public void setFailedMessageReplayRate(double messagesPerSecond) {
+        failedMessageQueue.setReplayRate(messagesPerSecond);
+    }
+
+    /**
+     * @return  The {@link StoreAndForwardQueue} holding the messages that could not be sent while the connection was
+     *          down.
+     */
+    public StoreAndForwardQueue getFailedMessageQueue() {
+        return failedMessageQueue;
+    }
+
     /**
      * Initializes the Server Socket and probeFuture to actively listen for incoming TCP messages from the K8s
      * readiness/liveness probe.
@@ -228,7 +658,14 @@ public class ExtensionWebSocketClient {
             probeFuture = CompletableFuture.runAsync(() -> {
                 while (true) {
                     try {
-                        livenessSocket.accept();
+                        Socket connection = livenessSocket.accept();
+                        PrometheusMetricsReporter localProbeReporter = probeReporter;
+                        if (localProbeReporter != null) {
+                            // Answered elsewhere, so that a slow scrape doesn't keep the probe from being accepted
+                            localProbeReporter.accept(connection);
+                        } else {
+                            connection.close();
+                        }
                     } catch (IOException e) {
                         log.error("An error occurred while attempting to listen for TCP Probe messages.", e);
                     }
@@ -301,10 +738,23 @@ public class ExtensionWebSocketClient {
         if (webSocket == null || !webSocketFuture.getNow(true)) {
             webSocketFuture = new CompletableFuture<>();
 
+            SharedConnection connection = sharedConnection;
+            if (connection == null && shareConnection) {
+                connection = SharedConnection.forUrl(validifyUrl(url));
+                sharedConnection = connection;
+            }
+            if (connection != null) {
+                SharedConnection.Channel channel = connection.attach(this);
+                webSocket = channel;
+                channel.open();
+                return webSocketFuture;
+            }
+
             // Start the connection attempt
             OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
                     .readTimeout(0, TimeUnit.MILLISECONDS)
-                    .writeTimeout(0, TimeUnit.MILLISECONDS);
+                    .writeTimeout(0, TimeUnit.MILLISECONDS)
+                    .minWebSocketMessageToCompress(getMinWebSocketMessageToCompress());
 
             boolean sendPings = Utils.obtainSendPingStatus();
             if (sendPings) {
@@ -383,6 +833,48 @@ public class ExtensionWebSocketClient {
         if (data != null && (data.getClass().isArray() || data instanceof List)) {
             throw new IllegalArgumentException("Notifications cannot be lists or arrays.");
         }
+        if (queueIfUnavailable(() -> Collections.singletonList(createNotificationMessage(data)))) {
+            return;
+        }
+        NotificationBatcher localBatcher = notificationBatcher;
+        if (localBatcher != null) {
+            localBatcher.add(data);
+        } else {
+            // Serialize before waiting on the window, so that the window only covers time spent on the wire
+            ByteString frame;
+            try {
+                frame = serializer.serializeNotification(sourceName, data);
+            } catch (Exception e) {
+                log.warn("Error sending to WebSocket", e);
+                return;
+            }
+            sendWithinWindow(OP_NOTIFICATION, frame);
+        }
+    }
+
+    /**
+     * Puts messages in the failed message queue instead of sending them if the connection is down, or if earlier
+     * messages are still being replayed from the queue, so that Vantiq receives messages in the order they were sent.
+     *
+     * @param messages  Produces the messages to queue. Only called if they are queued.
+     * @return          true if the messages were queued, false if they should be sent now.
+     */
+    boolean queueIfUnavailable(Supplier<? extends Collection<?>> messages) {
+        if (!isConnected()) {
+            failedMessageQueue.addAll(messages.get());
+            return true;
+        }
+        return failedMessageQueue.offerIfReplaying(messages);
+    }
+
+    /**
+     * Creates the {@link ExtensionServiceMessage} for a notification to this client's source, for use when the
+     * notification has to be held until the connection is back.
+     *
+     * @param data  The data to be sent to the source.
+     * @return      The notification message.
+     */
+    ExtensionServiceMessage createNotificationMessage(Object data) {
         Map<String,Object> m = new LinkedHashMap<>();
         m.put("op", ExtensionServiceMessage.OP_NOTIFICATION);
         m.put("resourceId", sourceName);
@@ -390,25 +882,124 @@ public class ExtensionWebSocketClient {
         m.put("object", data);
         ExtensionServiceMessage msg = new ExtensionServiceMessage("");
         msg.fromMap(m);
-        if (isConnected()) {
-            Semaphore localOutstandingNotifications = outstandingNotifications;
-            try {
-                localOutstandingNotifications.acquire();
-                this.send(msg);
-            } catch (InterruptedException ie) {
-                log.warn("Obtaining space to sent notifications was interrupted.", ie);
-            } catch (Exception e) {
-                // If we get an exception during the send, we're unlikely to get a response so release now.
-                if (localOutstandingNotifications != null) {
-                    localOutstandingNotifications.release();
-                }
-                throw e;
-            }
-        } else {
-            failedMessageQueue.add(msg);
+        return msg;
+    }
+
+    /**
+     * Sends a batch of notifications as a single frame. The batch takes a single notification slot, and is
+     * acknowledged by the Vantiq server as a unit.
+     *
+     * @param batch The data of the notifications to send.
+     * @return      true if the batch was handed to the websocket, false otherwise.
+     * @throws IOException if the batch could not be serialized.
+     */
+    boolean sendNotificationBatch(List<Object> batch) throws IOException {
+        return sendWithinWindow(OP_NOTIFICATION_BATCH, serializer.serializeNotificationBatch(sourceName, batch));
+    }
+
+    /**
+     * Waits for room in the notification flow control window, then sends {@code frame}.
+     *
+     * @param op    The op the frame is counted under in the metrics.
+     * @param frame The serialized notification or batch of notifications to send.
+     * @return      true if the frame was handed to the websocket, false otherwise.
+     */
+    private boolean sendWithinWindow(String op, ByteString frame) {
+        NotificationFlowControl localFlowControl = flowControl;
+        long waitStart = System.nanoTime();
+        try {
+            localFlowControl.acquire();
+            windowWaitTime.record(System.nanoTime() - waitStart);
+        } catch (InterruptedException ie) {
+            log.warn("Obtaining space to sent notifications was interrupted.", ie);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // Timed from before the send, since the acknowledgement can arrive before the send returns
+        long sendId = localFlowControl.sending();
+        boolean sent;
+        try {
+            sent = this.sendFrame(op, frame);
+        } catch (Exception e) {
+            // If we get an exception during the send, we're unlikely to get a response so release now.
+            localFlowControl.abort(sendId);
+            throw e;
+        }
+        if (!sent) {
+            localFlowControl.abort(sendId);
+        }
+        return sent;
+    }
+
+    /**
+     * Reconfigures the notification flow control window used by this client. The window starts at
+     * {@code initialWindow} notifications in flight, and adapts to the acknowledgement round-trip time while staying
+     * between {@code minWindow} and {@code maxWindow}. See {@link NotificationFlowControl} for details.
+     * <p>
+     * Notifications already in flight stay in flight and are released by their acknowledgements, and producers
+     * waiting for room in the window are woken up to re-check it against the new size.
+     *
+     * @param initialWindow The number of notifications that may initially be in flight.
+     * @param minWindow     The lower bound of the window.
+     * @param maxWindow     The upper bound of the window.
+     */
+    public void configureNotificationFlowControl(int initialWindow, int minWindow, int maxWindow) {
+        flowControl.configure(initialWindow, minWindow, maxWindow);
+    }
+
+    /**
+     * Obtain the {@link NotificationFlowControl} used by this client, which exposes the current window, the
+     * acknowledgement round-trip time percentiles, and the time producers have spent blocked on the window.
+     *
+     * @return  The {@link NotificationFlowControl} used by this client.
+     */
+    public NotificationFlowControl getNotificationFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * Enables coalescing of the notifications sent by this client into batches. A batch is sent as a single frame
+     * once it holds {@code maxBatchSize} notifications, or {@code maxBatchDelay} milliseconds after its first
+     * notification was added, whichever comes first. Each batch is acknowledged by the Vantiq server as a unit.
+     * <p>
+     * This should only be enabled when the target Vantiq server accepts batched notification frames. Any
+     * previously enabled batching is flushed and replaced.
+     * <p>
+     * While batching is enabled, the {@code data} passed to {@link #sendNotification} is held by reference until its
+     * batch is sent, and is only serialized then. It must not be changed after it has been sent.
+     *
+     * @param maxBatchSize  The maximum number of notifications sent in a single batch.
+     * @param maxBatchDelay The maximum number of milliseconds a notification will be held before being sent.
+     */
+    public void enableNotificationBatching(int maxBatchSize, long maxBatchDelay) {
+        NotificationBatcher oldBatcher = notificationBatcher;
+        notificationBatcher = new NotificationBatcher(this, maxBatchSize, maxBatchDelay);
+        if (oldBatcher != null) {
+            oldBatcher.flush();
         }
     }
 
+    /**
+     * Stops batching notifications, sending any notifications still waiting in the current batch.
+     */
+    public void disableNotificationBatching() {
+        NotificationBatcher oldBatcher = notificationBatcher;
+        notificationBatcher = null;
+        if (oldBatcher != null) {
+            oldBatcher.flush();
+        }
+    }
+
+    /**
+     * Obtain the {@link NotificationBatcher} used by this client, which holds the batch size and flush reason
+     * counters.
+     *
+     * @return  The {@link NotificationBatcher} used by this client, or null if batching is not enabled.
+     */
+    public NotificationBatcher getNotificationBatcher() {
+        return notificationBatcher;
+    }
+
     /**
      * Acknowledge the notification
      * 
@@ -417,9 +1008,12 @@ public class ExtensionWebSocketClient {
      * receipt of a response message.
      */
     void acknowledgeNotification() {
-        Semaphore localOutstandingNotifications = outstandingNotifications;
-        if (localOutstandingNotifications != null) {
-            localOutstandingNotifications.release();
+        NotificationFlowControl localFlowControl = flowControl;
+        if (localFlowControl != null) {
+            long rtt = localFlowControl.acknowledge();
+            if (rtt >= 0) {
+                ackRoundTripTime.record(rtt);
+            }
         }
     }
 
@@ -433,10 +1027,8 @@ public class ExtensionWebSocketClient {
         Response response = new Response()
                 .status(QUERY_NODATA_CODE)
                 .addHeader(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER, replyAddress);
-        if (isConnected()) {
+        if (!queueIfUnavailable(() -> Collections.singletonList(response))) {
             send(response);
-        } else {
-            failedMessageQueue.add(response);
         }
     }
     
@@ -455,10 +1047,8 @@ public class ExtensionWebSocketClient {
                 .status(httpCode)
                 .addHeader(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER, replyAddress)
                 .body(body);
-        if (isConnected()) {
+        if (!queueIfUnavailable(() -> Collections.singletonList(response))) {
             send(response);
-        } else {
-            failedMessageQueue.add(response);
         }
     }
 
@@ -477,13 +1067,59 @@ public class ExtensionWebSocketClient {
                 .status(httpCode)
                 .addHeader(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER, replyAddress)
                 .body(body);
-        if (isConnected()) {
+        if (!queueIfUnavailable(() -> Collections.singletonList(response))) {
             send(response);
-        } else {
-            failedMessageQueue.add(response);
         }
     }
 
+    /**
+     * Opens a {@link QueryResponseStream} that sends the result of a specific query message as its rows are produced,
+     * using the default frame limits.
+     *
+     * @param replyAddress  The address where the reply will go. This is a UUID that must be obtained from the original
+     *                      query message through {@link ExtensionServiceMessage#extractReplyAddress(Object)}
+     * @return              The stream. It must be closed to send the last frame of the response.
+     */
+    public QueryResponseStream openQueryResponseStream(String replyAddress) {
+        return openQueryResponseStream(replyAddress, QueryResponseStream.DEFAULT_MAX_ROWS_PER_FRAME,
+                QueryResponseStream.DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Opens a {@link QueryResponseStream} that sends the result of a specific query message as its rows are produced.
+     *
+     * @param replyAddress      The address where the reply will go. This is a UUID that must be obtained from the
+     *                          original query message through
+     *                          {@link ExtensionServiceMessage#extractReplyAddress(Object)}
+     * @param maxRowsPerFrame   The maximum number of rows sent in a single frame, or 0 for no limit.
+     * @param maxFrameBytes     The maximum number of bytes of rows sent in a single frame, or 0 for no limit.
+     * @return                  The stream. It must be closed to send the last frame of the response.
+     */
+    public QueryResponseStream openQueryResponseStream(String replyAddress, int maxRowsPerFrame, int maxFrameBytes) {
+        return new QueryResponseStream(this, mapper, serializer, replyAddress, maxRowsPerFrame, maxFrameBytes,
+                QueryResponseStream.DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Sends a query response frame built by a {@link QueryResponseStream}, or queues it if the connection is down.
+     *
+     * @param frame The serialized query response.
+     */
+    void sendQueryResponseFrame(ByteString frame) {
+        StoreAndForwardQueue.SpilledMessage queued = new StoreAndForwardQueue.SpilledMessage(frame, false);
+        if (!queueIfUnavailable(() -> Collections.singletonList(queued))) {
+            sendFrame(OP_RESPONSE, frame);
+        }
+    }
+
+    /**
+     * @return  The number of bytes waiting to be written by the websocket, or 0 if it is not open.
+     */
+    long getOutboundQueueSize() {
+        WebSocket localWebSocket = webSocket;
+        return isOpen() && localWebSocket != null ? localWebSocket.queueSize() : 0;
+    }
+
     /**
      * Sends an error for a specific query message
      *
@@ -522,12 +1158,7 @@ public class ExtensionWebSocketClient {
         }
         log.trace("Sending message");
         try {
-            byte[] bytes = mapper.writeValueAsBytes(obj);
-            synchronized (this) {
-                if (webSocket != null) {
-                    this.webSocket.send(ByteString.of(bytes));
-                }
-            }
+            sendFrame(opOf(obj), serializer.serialize(obj));
         }
         catch (Exception e) {
             log.warn("Error sending to WebSocket", e);
@@ -535,20 +1166,100 @@ public class ExtensionWebSocketClient {
     }
 
     /**
-     * Method used to resend all messages in failedMessageQueue after a successful reconnection
+     * Sends an already serialized message over the websocket, if it is open.
+     *
+     * @param op    The op the message is counted under in the metrics.
+     * @param frame The serialized message.
+     * @return      true if the frame was handed to the websocket, false otherwise.
+     */
+    boolean sendFrame(String op, ByteString frame) {
+        if (!isOpen()) {
+            return false;
+        }
+        FrameCompressor localCompressor = compressor;
+        if (localCompressor != null) {
+            frame = localCompressor.compress(frame);
+        }
+        boolean sent;
+        synchronized (this) {
+            if (webSocket instanceof SharedConnection.Channel) {
+                // The shared connection needs the op to route the response to this client
+                sent = ((SharedConnection.Channel) webSocket).send(op, frame);
+            } else {
+                sent = webSocket != null && this.webSocket.send(frame);
+            }
+        }
+        if (sent) {
+            recordSent(op, frame.size());
+        }
+        return sent;
+    }
+
+    /**
+     * @return  The op a message is counted under in the metrics.
+     */
+    private static String opOf(Object message) {
+        if (message instanceof ExtensionServiceMessage) {
+            return ((ExtensionServiceMessage) message).getOp();
+        } else if (message instanceof Map && ((Map) message).get("op") instanceof String) {
+            return (String) ((Map) message).get("op");
+        } else if (message instanceof Response) {
+            return OP_RESPONSE;
+        }
+        return OP_OTHER;
+    }
+
+    /**
+     * Method used to resend all messages in failedMessageQueue after a successful reconnection. The messages are
+     * resent on a separate thread, paced to the queue's replay rate, with notifications going through the notification
+     * flow control window. Messages sent while the replay is in progress are queued behind it.
      */
     public void flushQueue() {
-        int currentQueueSize = failedMessageQueue.size();
-        for (int i = 0; i < currentQueueSize; i++) {
-            Object obj = failedMessageQueue.poll();
-            send(obj);
+        failedMessageQueue.startReplay(this::replayMessage);
+    }
+
+    /**
+     * Resends a message from the failed message queue.
+     *
+     * @param obj   The queued message.
+     * @return      true if the message was sent, false if the connection is down again.
+     */
+    private boolean replayMessage(Object obj) {
+        if (!isOpen()) {
+            return false;
+        }
+        ByteString frame;
+        boolean notification;
+        String op;
+        if (obj instanceof StoreAndForwardQueue.SpilledMessage) {
+            StoreAndForwardQueue.SpilledMessage spilled = (StoreAndForwardQueue.SpilledMessage) obj;
+            frame = spilled.getFrame();
+            notification = spilled.isNotification();
+            // Only notifications and query responses are queued
+            op = notification ? OP_NOTIFICATION : OP_RESPONSE;
+        } else {
+            try {
+                frame = serializer.serialize(obj);
+            } catch (IOException e) {
+                log.warn("Dropping a queued message that could not be serialized", e);
+                return true;
+            }
+            notification = StoreAndForwardQueue.isNotification(obj);
+            op = opOf(obj);
         }
+        return notification ? sendWithinWindow(op, frame) : sendFrame(op, frame);
     }
 
     /** 
      * Send the authentication message based on the auth data passed through {@link #authenticate}
      */
     protected void doAuthentication() {
+        WebSocket localWebSocket = webSocket;
+        if (localWebSocket instanceof SharedConnection.Channel) {
+            ((SharedConnection.Channel) localWebSocket).authenticate(authData);
+            log.trace("Authentication requested from shared connection");
+            return;
+        }
         Map<String, Object> authMsg = new LinkedHashMap<>();
         // If this is username and password combo, use authenticate op
         if (authData instanceof Map) {
@@ -691,6 +1402,7 @@ public class ExtensionWebSocketClient {
      * @return  Returns boolean completable indicating if the reconnect was successful, used by the caller
      */
     public CompletableFuture<Boolean> doCoreReconnect() {
+        reconnects.increment();
         return CompletableFuture.supplyAsync(() -> {
             CompletableFuture<Boolean> success = connectToSource();
             boolean isReconnected = false;
@@ -805,6 +1517,12 @@ public class ExtensionWebSocketClient {
      * completes all {@link CompletableFuture} obtained from the connection and authentication functions as false.
      */
     public void stop() {
+        // Keep any notifications that are waiting to be batched so they are resent after a reconnect
+        NotificationBatcher localBatcher = notificationBatcher;
+        if (localBatcher != null) {
+            localBatcher.drainTo(failedMessageQueue);
+        }
+
         // Saving and nulling before closing so EWSListener can know when it is closed by the client 
         WebSocket socket = webSocket;
         webSocket = null;
@@ -820,6 +1538,9 @@ public class ExtensionWebSocketClient {
             }
         }
 
+        // Notifications still in flight will never be acknowledged on this connection
+        flowControl.reset();
+
         // Calling declareUnhealthy to make sure the TCP Listener is not left open
         declareUnhealthy();
 
@@ -895,7 +1616,7 @@ public class ExtensionWebSocketClient {
      * contents.
      * <br>
      * The handler will receive a {@link Map} that represents the Publish message. The most
-     * significant part will be msg.object which contains the data published to the source
+     * significant part will be msg.getObject() which contains the data published to the source
      *
      * @param publishHandler    {@link Handler} that deals with any publishes from a source without its own publish
      *                          {@link Handler}
@@ -903,6 +1624,17 @@ public class ExtensionWebSocketClient {
     public void setPublishHandler(Handler<ExtensionServiceMessage> publishHandler) {
         this.listener.setPublishHandler(publishHandler);
     }
+
+    /**
+     * Set the {@link HandlerDispatcher} that decides which thread runs the publish, query and HTTP handlers. By
+     * default they run directly on the thread reading from the websocket, so a slow handler delays every message
+     * behind it. See {@link HandlerDispatcher} for the alternatives.
+     *
+     * @param dispatcher    The {@link HandlerDispatcher} to use.
+     */
+    public void setHandlerDispatcher(HandlerDispatcher dispatcher) {
+        this.listener.setHandlerDispatcher(dispatcher);
+    }
     /**
      * Set the {@link Handler} for any queries that are received.
      * <br>
@@ -911,7 +1643,7 @@ public class ExtensionWebSocketClient {
      * <br>
      * The handler will receive an {@link Map} that represents the Query message. The most
      * significant parts will be msg.getMessageHeaders().get("REPLY_ADDR_HEADER") which contains a String representing the
-     * return address and must be sent as part of the response, and msg.object being a {@link Map} with query options
+     * return address and must be sent as part of the response, and msg.getObject() being a {@link Map} with query options
      * specified by "WITH" in the SELECT statement.
      *
      * @param queryHandler   {@link Handler} that deals with any queries from a source without its own query
@@ -927,7 +1659,7 @@ public class ExtensionWebSocketClient {
      * config received, make sure to call this before {@link ExtensionWebSocketClient#connectToSource}
      * <p>
      * The handler will receive an {@link Map} that represents the Configuration message. The most
-     * significant parts will be msg.resourceId which will contain the source's name, and msg.object.config that
+     * significant parts will be msg.resourceId which will contain the source's name, and msg.getObject().config that
      * will contain the source's config as a {@link Map}
      *
      * @param configHandler {@link Handler} that deals with any configurations from a source without its own
@@ -941,8 +1673,8 @@ public class ExtensionWebSocketClient {
      * and the result of the authentication attempt.
      * <p>
      * The handler will receive a {@link Map} of the message received. If the authentication was successful,
-     * then message.status.code() should equal 200. On success, the most significant part is msg.body['userInfo'] which
-     * is a Map of various data about the user you logged in as. On failure, msg.body will be an Object containing
+     * then message.status.code() should equal 200. On success, the most significant part is msg.getBody()['userInfo'] which
+     * is a Map of various data about the user you logged in as. On failure, msg.getBody() will be an Object containing
      * error messages.
      *
      * @param authHandler   {@link Handler} that deals with the results of authentication messages
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import java.io.EOFException;
 import java.net.ConnectException;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * A listener that deals with messages received from a Vantiq deployment for Extension sources. It uses {@link Handler}
@@ -83,11 +84,28 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      */
     ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * {@link MessageDecoder} used to translate the received message into a {@link Response} or
+     * {@link ExtensionServiceMessage}
+     */
+    MessageDecoder decoder = new MessageDecoder(mapper);
+
     /**
      * Whether this listener has been closed, and should not make any more changes to its client.
      */
     boolean isClosed = false;
 
+    /**
+     * {@link HandlerDispatcher} that runs the publish, query and HTTP handlers. Set by {@link #setHandlerDispatcher}
+     */
+    HandlerDispatcher dispatcher = HandlerDispatcher.direct();
+
+    /**
+     * Computes the ordering key of publish and query messages. null to use the default keys. Set by
+     * {@link #setOrderingKey}
+     */
+    Function<ExtensionServiceMessage, Object> orderingKey = null;
+
     /**
      * Creates a new {@link ExtensionWebSocketListener} connected to {@code client}
      *
@@ -115,7 +133,7 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      * Set the {@link Handler} for any Publish messages that are received.
      * <br>
      * The handler will receive a {@link Map} that represents the Publish message. The most
-     * significant part will be msg.object which contains the data published to the source
+     * significant part will be msg.getObject() which contains the data published to the source
      *
      * @param publishHandler    {@link Handler} that deals with any publishes from a source without its own publish
      *                          {@link Handler}
@@ -132,7 +150,7 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      * <br>
      * The handler will receive an {@link Map} that represents the Query message. The most
      * significant parts will be msg.getMessageHeaders().get("REPLY_ADDR_HEADER") which contains a String representing the
-     * return address and must be sent as part of the response, and msg.object being a {@link Map} with query options
+     * return address and must be sent as part of the response, and msg.getObject() being a {@link Map} with query options
      * specified by "WITH" in the SELECT statement.
      *
      * @param queryHandler   {@link Handler} that deals with any queries from a source without its own query
@@ -149,7 +167,7 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      * config received, make sure to call this before {@link ExtensionWebSocketClient#connectToSource}
      * <p>
      * The handler will receive an {@link Map} that represents the Configuration message. The most
-     * significant parts will be msg.resourceId which will contain the source's name, and msg.object.config that
+     * significant parts will be msg.resourceId which will contain the source's name, and msg.getObject().config that
      * will contain the source's config as a {@link Map}
      *
      * @param configHandler {@link Handler} that deals with any configurations from a source without its own
@@ -164,8 +182,8 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      * and the result of the authentication attempt.
      * <p>
      * The handler will receive a {@link Map} of the message received. If the authentication was successful,
-     * then message.status should equal 200. On success, the most significant part is msg.body['userInfo'] which
-     * is a Map of various data about the user you logged in as. On failure, msg.body will be an Object containing
+     * then message.status should equal 200. On success, the most significant part is msg.getBody()['userInfo'] which
+     * is a Map of various data about the user you logged in as. On failure, msg.getBody() will be an Object containing
      * error messages.
      *
      * @param authHandler   {@link Handler} that deals with the results of authentication messages
@@ -188,6 +206,47 @@ public class ExtensionWebSocketListener extends WebSocketListener {
         this.reconnectHandler = reconnectHandler;
     }
     
+    /**
+     * Set the {@link HandlerDispatcher} that decides which thread runs the publish, query and HTTP handlers. By
+     * default they run directly on the thread reading from the websocket.
+     *
+     * @param dispatcher    The {@link HandlerDispatcher} to use.
+     */
+    public void setHandlerDispatcher(HandlerDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @return  The {@link HandlerDispatcher} that runs the publish, query and HTTP handlers.
+     */
+    public HandlerDispatcher getHandlerDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Set the function that computes the ordering key of publish and query messages. Messages with equal keys are
+     * handled in the order they arrived by dispatchers that preserve ordering, such as
+     * {@link HandlerDispatcher#orderedLanes}.
+     * <br>
+     * By default publishes are keyed by source name, so that all publishes to a source are handled in order, and
+     * queries by their reply address, so that independent queries can be handled in parallel.
+     *
+     * @param orderingKey   Computes the ordering key of a message, or null to use the default keys.
+     */
+    public void setOrderingKey(Function<ExtensionServiceMessage, Object> orderingKey) {
+        this.orderingKey = orderingKey;
+    }
+
+    private Object orderingKeyFor(ExtensionServiceMessage message) {
+        Function<ExtensionServiceMessage, Object> localOrderingKey = orderingKey;
+        if (localOrderingKey != null) {
+            return localOrderingKey.apply(message);
+        } else if (ExtensionServiceMessage.OP_QUERY.equals(message.getOp())) {
+            return ExtensionServiceMessage.extractReplyAddress(message);
+        }
+        return message.getSourceName();
+    }
+
     /**
      * Called when its {@link ExtensionWebSocketClient} is closed. Stops this listener from dealing with any future 
      * auth, config, Query, or reconnect messages. It keeps its handlers and will finish any Publish messages in 
@@ -227,59 +286,64 @@ public class ExtensionWebSocketListener extends WebSocketListener {
      */
     @Override
     public void onMessage(@NotNull WebSocket webSocket, ByteString bodyBytes) {
-        // Extract the original message from the body
-        byte[] data = bodyBytes.toByteArray();
-
         if (this.isClosed) {
             return; // Do nothing if closed at this point
         }
         
-        // Convert the data from a Json string/byte array to a map
-        Map msg;
+        // Decode the message straight from the received bytes. Its body is only decoded once a handler asks for it.
+        Object decoded;
         try {
-            msg = mapper.readValue(data, Map.class);
+            decoded = decoder.decode(bodyBytes);
         }
         catch (Exception e) {
             log.warn("Failed to interpret WebSocket message as Map.", e);
             return;
         }
-        
-        //Check to see if we should use log with Debug, or with Error
-        if (msg.containsKey("status")) {
-            int statusCheck = (Integer) msg.get("status");
-            if (statusCheck >= 300) {
-                log.error("Map of the received message: {}", msg);
-            } else {
-                log.trace("Map of the received message: {}", msg);
-            }
-        } else {
-            log.debug("Map of the received message: {}", msg);
+        onDecodedMessage(decoded, bodyBytes.size());
+    }
+
+    /**
+     * Passes a received message that has already been decoded on to the related handler. Additionally, updates the
+     * client about successful authentications and source connections. Used directly by {@link SharedConnection},
+     * which decodes each message once to route it.
+     *
+     * @param decoded   The {@link Response} or {@link ExtensionServiceMessage} received.
+     * @param size      The size of the message received, in bytes.
+     */
+    void onDecodedMessage(Object decoded, int size) {
+        if (this.isClosed) {
+            return; // Do nothing if closed at this point
         }
+        client.recordReceived(decoded instanceof Response ? "response" : ((ExtensionServiceMessage) decoded).getOp(),
+                size);
         
         // Now we figure out which handler should receive the message
         
         // The message received has no op, and thus is not an ExtensionServiceMethod
         // Since we're acting through the WebSocket interface, this means it should be a Http response
-        if (msg.get("op") == null) {
-            Response message = Response.fromMap(msg);
+        if (decoded instanceof Response) {
+            Response message = (Response) decoded;
+            // Check to see if we should log with Trace, or with Error. Logging the message decodes its body, so only
+            // do it when it will actually be logged.
+            if (message.getStatus() >= 300) {
+                log.error("Map of the received message: {}", message);
+            } else if (log.isTraceEnabled()) {
+                log.trace("Map of the received message: {}", message);
+            }
             log.trace("Http response received");
             if (client.isAuthed()) {
                 // Is an error message before successful connection to the target source
                 // This is most likely a failure related to a source connection request
                 if (!client.isConnected() && (Integer) message.getStatus() >= 300) {
                     log.warn("Error occurred attempting to connect to source.");
-                    log.debug("Error message was: {}", message);
                     client.sourceFuture.complete(false);
                 } else {
+                    // Ignored by the flow control unless a notification is waiting for an acknowledgement
                     client.acknowledgeNotification();
                 }
                 if (this.httpHandler != null) {
-                    try {
-                        this.httpHandler.handleMessage(message);
-                    }
-                    catch (Exception e) {
-                        log.error("Error occurred when running the HTTP handler.", e);
-                    }
+                    dispatcher.dispatch(HandlerDispatcher.HandlerType.HTTP, client.getSourceName(), this.httpHandler,
+                            message);
                 }
                 else {
                     log.trace("Http response received with no handler set");
@@ -314,19 +378,17 @@ public class ExtensionWebSocketListener extends WebSocketListener {
             }
         }
         else {
-            ExtensionServiceMessage message = new ExtensionServiceMessage("").fromMap(msg);
+            ExtensionServiceMessage message = (ExtensionServiceMessage) decoded;
+            if (log.isDebugEnabled()) {
+                log.debug("Map of the received message: {}", message);
+            }
             if (client.isConnected()) {
                 log.debug("Message with op '{}' received", message.getOp());
-                log.debug("Map of ExtensionServiceMessage: {}", message);
                 if (message.getOp().equals(ExtensionServiceMessage.OP_PUBLISH))
                 {
                     if (this.publishHandler != null) {
-                        try {
-                            this.publishHandler.handleMessage(message);
-                        }
-                        catch (Exception e) {
-                            log.error("Error occurred when running the Publish handler.", e);
-                        }
+                        dispatcher.dispatch(HandlerDispatcher.HandlerType.PUBLISH, orderingKeyFor(message),
+                                this.publishHandler, message);
                     }
                     else {
                         log.debug("Publish received with no handler set");
@@ -334,17 +396,21 @@ public class ExtensionWebSocketListener extends WebSocketListener {
                 }
                 else if (message.getOp().equals(ExtensionServiceMessage.OP_QUERY)) {
                     if (this.queryHandler != null && !isClosed) {
-                        try {
-                            this.queryHandler.handleMessage(message);
-                        }
-                        catch (Exception e) {
-                            log.error("Error occurred when running the Query handler.", e);
+                        if (!dispatcher.dispatch(HandlerDispatcher.HandlerType.QUERY, orderingKeyFor(message),
+                                this.queryHandler, message)) {
+                            // Answer now, so that the query doesn't wait for a timeout
+                            client.sendQueryError(ExtensionServiceMessage.extractReplyAddress(message),
+                                    "io.vantiq.extjsdk.queryRejected",
+                                    "The query could not be handled by source {0}, as its handlers are too busy.",
+                                    new Object[] {message.getSourceName()});
                         }
                     } else {
                         log.warn("Query received with no user-set handler");
-                        log.debug("Full message: {}", message);
+                        if (log.isDebugEnabled()) {
+                            log.debug("Full message: {}", message);
+                        }
                         // Prepare a response with an empty body, so that the query doesn't wait for a timeout
-                        client.sendQueryError(ExtensionServiceMessage.extractReplyAddress(msg),
+                        client.sendQueryError(ExtensionServiceMessage.extractReplyAddress(message),
                                 "io.vantiq.extjsdk.unsetQueryHandler",
                                 "Queries are not supported for source {0}. No handler has been set.",
                                 new Object[] {message.getSourceName()});
@@ -377,10 +443,10 @@ public class ExtensionWebSocketListener extends WebSocketListener {
                     }
                 }
                 else {
-                    log.warn("ExtensionServiceMessage with unknown/unexpected op '{}'", msg.get("op"));
+                    log.warn("ExtensionServiceMessage with unknown/unexpected op '{}'", message.getOp());
                 }
             }
-            else if (msg.get("op").equals(ExtensionServiceMessage.OP_CONFIGURE_EXTENSION) && client.isAuthed()) {
+            else if (message.getOp().equals(ExtensionServiceMessage.OP_CONFIGURE_EXTENSION) && client.isAuthed()) {
                 // Resetting sourceFuture is also sync'd on client, so this way they won't interfere with each other
                 synchronized (client) {
                     // Rechecking isAuthed() while sync'd in case of concurrency problems
@@ -389,7 +455,7 @@ public class ExtensionWebSocketListener extends WebSocketListener {
                     }
 
                     client.sourceFuture.complete(true);
-                    log.info("Successful connection to {}", msg.get("resourceId").toString());
+                    log.info("Successful connection to {}", message.getSourceName());
 
                     // Since we've connected successfully, we'll flush the queue if there was anything left behind after
                     // a dropped connection
@@ -426,6 +492,8 @@ public class ExtensionWebSocketListener extends WebSocketListener {
         this.httpHandler = listener.httpHandler;
         this.queryHandler = listener.queryHandler;
         this.reconnectHandler = listener.reconnectHandler;
+        this.dispatcher = listener.dispatcher;
+        this.orderingKey = listener.orderingKey;
     }
     
     /**
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import okio.ByteString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses outbound websocket frames with DEFLATE, at the application level.
+ * <p>
+ * A compressed frame is the byte {@code 0x01}, which can't start a JSON message or an {@link AttachmentFrame}, followed
+ * by the raw DEFLATE stream of the original frame. Frames smaller than the minimum size, and frames that don't get any
+ * smaller, are sent as they are. This is meant for Vantiq servers that accept compressed frames but don't negotiate
+ * the websocket permessage-deflate extension; large batches of repetitive notifications gain the most from it.
+ * <p>
+ * The number of bytes before and after compression, their ratio, and the time spent compressing are recorded in the
+ * {@link MetricsRegistry} given to the constructor.
+ */
+public class FrameCompressor {
+
+    /**
+     * The first byte of every compressed frame.
+     */
+    public static final byte MARKER = 1;
+
+    /**
+     * The default compression level, the same as zlib's.
+     */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * The default size below which frames are not compressed, in bytes.
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int level;
+    private final int minSize;
+    private final ThreadLocal<Deflater> deflaters;
+    private final MetricsRegistry.Counter bytesIn;
+    private final MetricsRegistry.Counter bytesOut;
+    private final MetricsRegistry.Counter uncompressed;
+    private final MetricsRegistry.Histogram compressionTime;
+
+    /**
+     * Creates a {@link FrameCompressor}.
+     *
+     * @param level     The DEFLATE compression level, from 1 (fastest) to 9 (smallest).
+     * @param minSize   The size below which frames are sent uncompressed, in bytes.
+     * @param metrics   The registry that receives the compression metrics. May be null.
+     */
+    public FrameCompressor(int level, int minSize, MetricsRegistry metrics) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9, was " + level);
+        }
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Minimum size to compress cannot be negative, was " + minSize);
+        }
+        this.level = level;
+        this.minSize = minSize;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        if (metrics == null) {
+            metrics = new MetricsRegistry("");
+        }
+        bytesIn = metrics.counter("extjsdk_compression_input_bytes_total",
+                "Number of bytes in the frames that were compressed.");
+        bytesOut = metrics.counter("extjsdk_compression_output_bytes_total",
+                "Number of bytes in the compressed frames.");
+        uncompressed = metrics.counter("extjsdk_compression_skipped_total",
+                "Number of frames sent uncompressed because they were too small or did not compress.");
+        compressionTime = metrics.histogram("extjsdk_compression_seconds", "Time spent compressing frames.");
+        metrics.gauge("extjsdk_compression_ratio", "Ratio of the size of frames before and after compression.",
+                this::getCompressionRatio);
+    }
+
+    /**
+     * @return  The DEFLATE compression level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return  The size below which frames are sent uncompressed, in bytes.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * @return  The size of the frames before compression divided by their size after, or 1 if no frames have been
+     *          compressed yet.
+     */
+    public double getCompressionRatio() {
+        long out = bytesOut.get();
+        return out == 0 ? 1 : (double) bytesIn.get() / out;
+    }
+
+    /**
+     * Compresses a frame, if it is large enough and compresses at all.
+     *
+     * @param frame The frame to compress.
+     * @return      The compressed frame, or {@code frame} if it wasn't worth compressing.
+     */
+    public ByteString compress(ByteString frame) {
+        if (frame.size() < minSize) {
+            uncompressed.increment();
+            return frame;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(frame.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.size() / 4 + 16);
+        out.write(MARKER);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (!deflater.finished() && out.size() < frame.size()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        compressionTime.record(System.nanoTime() - start);
+        if (!deflater.finished()) {
+            // Already as large as the original, so don't bother finishing
+            uncompressed.increment();
+            return frame;
+        }
+        bytesIn.add(frame.size());
+        bytesOut.add(out.size());
+        return ByteString.of(out.toByteArray());
+    }
+
+    /**
+     * @param frame The frame to check.
+     * @return      Whether {@code frame} was compressed by a {@link FrameCompressor}.
+     */
+    public static boolean isCompressedFrame(ByteString frame) {
+        return frame.size() > 0 && frame.getByte(0) == MARKER;
+    }
+
+    /**
+     * Restores a compressed frame.
+     *
+     * @param frame         The frame, which must satisfy {@link #isCompressedFrame}.
+     * @return              The original frame.
+     * @throws IOException  if the frame is not a valid compressed frame.
+     */
+    public static ByteString decompress(ByteString frame) throws IOException {
+        byte[] compressed = frame.toByteArray();
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, 1, compressed.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                out.write(chunk, 0, inflated);
+            }
+            return ByteString.of(out.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which thread runs the publish, query and HTTP {@link Handler}s of an {@link ExtensionWebSocketListener}.
+ * <p>
+ * By default handlers run directly on the thread that reads from the websocket, as they always have, so a slow handler
+ * holds up every message behind it, including the acknowledgements of notifications. The other dispatchers free the
+ * reader as soon as the message has been decoded:
+ * <ul>
+ * <li>{@link #boundedExecutor} runs handlers on a fixed pool of threads, with no ordering between messages.</li>
+ * <li>{@link #orderedLanes} runs handlers on a fixed number of single-threaded lanes. Messages with the same ordering
+ * key always go to the same lane, so they are handled one at a time and in the order they arrived.</li>
+ * <li>{@link #virtualThreads} runs each handler on its own virtual thread. Requires Java 21 or later.</li>
+ * </ul>
+ * The pooled dispatchers have bounded queues. When a queue is full the reader waits for room, which pushes back on
+ * the Vantiq server through the websocket instead of buffering without limit. It only waits for up to
+ * {@code maxWaitMillis}, after which the message is rejected: a query is answered with an error, and a publish or HTTP
+ * response is dropped and counted as a failure.
+ * <p>
+ * Authentication, configuration and reconnect handlers always run on the reader, since the connection state depends
+ * on them, and so do notification acknowledgements. A handler that sends notifications can therefore be waiting for
+ * an acknowledgement that the reader will only read once there is room in the queue. Rejecting the message once the
+ * wait runs out is what lets the reader get to that acknowledgement, rather than both waiting on each other forever.
+ * <p>
+ * Every dispatcher keeps per {@link HandlerType} statistics on the number of messages waiting to be handled and on how
+ * long the handlers take, available through {@link #getStats}.
+ */
+public abstract class HandlerDispatcher {
+
+    /**
+     * The default number of threads or lanes used by the pooled dispatchers.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default number of messages that can wait for a pooled dispatcher's threads, per pool or lane.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * The default number of milliseconds the reader waits for room in a pooled dispatcher's queue before rejecting the
+     * message.
+     */
+    public static final long DEFAULT_MAX_WAIT = 1000;
+
+    /**
+     * The types of handler that are dispatched.
+     */
+    public enum HandlerType {
+        PUBLISH,
+        QUERY,
+        HTTP
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(HandlerDispatcher.class);
+
+    private final Map<HandlerType, Stats> stats = new EnumMap<>(HandlerType.class);
+
+    protected HandlerDispatcher() {
+        for (HandlerType type : HandlerType.values()) {
+            stats.put(type, new Stats());
+        }
+    }
+
+    /**
+     * Runs {@code handler} on {@code message} according to this dispatcher's policy.
+     *
+     * @param type          The type of the handler, used for the statistics.
+     * @param orderingKey   Messages with equal keys are handled in order by dispatchers that preserve ordering. May
+     *                      be null, in which case the message has no ordering requirements.
+     * @param handler       The {@link Handler} to run.
+     * @param message       The message to pass to {@code handler}.
+     * @param <T>           The type of the message.
+     * @return              true if the message was dispatched, false if it was rejected because the dispatcher has
+     *                      been shut down or has had no room for it.
+     */
+    public final <T> boolean dispatch(HandlerType type, Object orderingKey, Handler<T> handler, T message) {
+        Stats typeStats = stats.get(type);
+        typeStats.queued();
+        Runnable task = () -> {
+            typeStats.started();
+            long start = System.nanoTime();
+            try {
+                handler.handleMessage(message);
+            } catch (Exception e) {
+                typeStats.failures.incrementAndGet();
+                log.error("Error occurred when running the {} handler.", type, e);
+            } finally {
+                typeStats.record(System.nanoTime() - start);
+            }
+        };
+        try {
+            execute(orderingKey, task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            typeStats.started();
+            typeStats.failures.incrementAndGet();
+            log.error("The {} handler could not be run: {}", type, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs {@code task}, either on the calling thread or on another one.
+     *
+     * @param orderingKey   Tasks with equal keys must be run in the order they are submitted, if this dispatcher
+     *                      preserves ordering. May be null.
+     * @param task          The task to run.
+     * @throws RejectedExecutionException if the dispatcher has been shut down, or has had no room for the task.
+     */
+    protected abstract void execute(Object orderingKey, Runnable task);
+
+    /**
+     * Stops accepting new messages. Messages already dispatched are still handled.
+     */
+    public void shutdown() {
+    }
+
+    /**
+     * @param type  The type of handler of interest.
+     * @return      The statistics for handlers of that type.
+     */
+    public Stats getStats(HandlerType type) {
+        return stats.get(type);
+    }
+
+    /**
+     * @return  A dispatcher that runs handlers directly on the websocket reader thread. This is the default.
+     */
+    public static HandlerDispatcher direct() {
+        return new HandlerDispatcher() {
+            @Override
+            protected void execute(Object orderingKey, Runnable task) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Creates a dispatcher that runs handlers on a pool of {@code threads} threads, with no ordering guarantees. The
+     * reader waits up to {@link #DEFAULT_MAX_WAIT} milliseconds for room in the queue.
+     *
+     * @param threads       The number of threads that run handlers.
+     * @param queueCapacity The number of messages that can wait for a thread before the reader has to wait.
+     * @return              The dispatcher.
+     */
+    public static HandlerDispatcher boundedExecutor(int threads, int queueCapacity) {
+        return boundedExecutor(threads, queueCapacity, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * Creates a dispatcher that runs handlers on a pool of {@code threads} threads, with no ordering guarantees.
+     *
+     * @param threads       The number of threads that run handlers.
+     * @param queueCapacity The number of messages that can wait for a thread before the reader has to wait.
+     * @param maxWaitMillis The milliseconds the reader waits for room in the queue before rejecting the message.
+     * @return              The dispatcher.
+     */
+    public static HandlerDispatcher boundedExecutor(int threads, int queueCapacity, long maxWaitMillis) {
+        ThreadPoolExecutor executor = newBlockingExecutor(threads, queueCapacity, maxWaitMillis, "extjsdk-handler-");
+        return new HandlerDispatcher() {
+            @Override
+            protected void execute(Object orderingKey, Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Creates a dispatcher that runs handlers on {@code lanes} single-threaded lanes. Messages with the same ordering
+     * key are always handled by the same lane, one at a time and in the order they arrived. Messages without a key go
+     * to the first lane. The reader waits up to {@link #DEFAULT_MAX_WAIT} milliseconds for room in a lane.
+     *
+     * @param lanes             The number of lanes.
+     * @param queueCapacity     The number of messages that can wait in each lane before the reader has to wait.
+     * @return                  The dispatcher.
+     */
+    public static HandlerDispatcher orderedLanes(int lanes, int queueCapacity) {
+        return orderedLanes(lanes, queueCapacity, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * Creates a dispatcher that runs handlers on {@code lanes} single-threaded lanes. Messages with the same ordering
+     * key are always handled by the same lane, one at a time and in the order they arrived. Messages without a key go
+     * to the first lane.
+     *
+     * @param lanes             The number of lanes.
+     * @param queueCapacity     The number of messages that can wait in each lane before the reader has to wait.
+     * @param maxWaitMillis     The milliseconds the reader waits for room in a lane before rejecting the message.
+     * @return                  The dispatcher.
+     */
+    public static HandlerDispatcher orderedLanes(int lanes, int queueCapacity, long maxWaitMillis) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("There must be at least one lane.");
+        }
+        ThreadPoolExecutor[] executors = new ThreadPoolExecutor[lanes];
+        for (int i = 0; i < lanes; i++) {
+            executors[i] = newBlockingExecutor(1, queueCapacity, maxWaitMillis, "extjsdk-handler-lane-" + i + "-");
+        }
+        return new HandlerDispatcher() {
+            @Override
+            protected void execute(Object orderingKey, Runnable task) {
+                int lane = orderingKey == null ? 0 : Math.floorMod(orderingKey.hashCode(), lanes);
+                executors[lane].execute(task);
+            }
+
+            @Override
+            public void shutdown() {
+                Arrays.stream(executors).forEach(ThreadPoolExecutor::shutdown);
+            }
+        };
+    }
+
+    /**
+     * Creates a dispatcher that runs every handler on a new virtual thread, with no ordering guarantees.
+     *
+     * @return  The dispatcher.
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads.
+     */
+    public static HandlerDispatcher virtualThreads() {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively so that the SDK still runs on Java 8
+            executor = (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.", e);
+        }
+        return new HandlerDispatcher() {
+            @Override
+            protected void execute(Object orderingKey, Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    private static ThreadPoolExecutor newBlockingExecutor(int threads, int queueCapacity, long maxWaitMillis,
+                                                          String namePrefix) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("The thread count and queue capacity must be greater than 0.");
+        }
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("The maximum wait cannot be negative.");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // Wait for room rather than running the task on the reader, which would break lane ordering, but only for so
+        // long, since the reader also reads the acknowledgements that handlers sending notifications may be waiting for
+        RejectedExecutionHandler waitForRoom = (r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Dispatcher has been shut down");
+            }
+            try {
+                if (!executor.getQueue().offer(r, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    throw new RejectedExecutionException("No room for the message after waiting " + maxWaitMillis
+                            + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to dispatch a message", e);
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory, waitForRoom);
+    }
+
+    /**
+     * Statistics for the handlers of one {@link HandlerType}.
+     */
+    public static class Stats {
+        // Number of recent latencies kept for the percentiles
+        private static final int LATENCY_SAMPLES = 256;
+
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+        // Guarded by "this"
+        private final long[] latencySamples = new long[LATENCY_SAMPLES];
+
+        void queued() {
+            maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        }
+
+        void started() {
+            queueDepth.decrementAndGet();
+        }
+
+        void record(long latencyNanos) {
+            long count = handled.getAndIncrement();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            synchronized (this) {
+                latencySamples[(int) (count % LATENCY_SAMPLES)] = latencyNanos;
+            }
+        }
+
+        /**
+         * @return  The number of messages waiting for their handler to start.
+         */
+        public int getQueueDepth() {
+            return queueDepth.get();
+        }
+
+        /**
+         * @return  The largest number of messages that have been waiting for their handler at once.
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        /**
+         * @return  The number of messages whose handler has finished.
+         */
+        public long getHandled() {
+            return handled.get();
+        }
+
+        /**
+         * @return  The number of messages whose handler threw an exception or could not be run.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @param unit  The time unit of the result.
+         * @return      The mean time the handler took, or 0 if no message has been handled.
+         */
+        public long getMeanLatency(TimeUnit unit) {
+            long count = handled.get();
+            return count == 0 ? 0 : unit.convert(totalLatencyNanos.get() / count, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns a percentile of the time the handler took for recent messages.
+         *
+         * @param percentile    The percentile to compute, between 0 and 100.
+         * @param unit          The time unit of the result.
+         * @return              The requested percentile, or -1 if no message has been handled.
+         */
+        public long getLatencyPercentile(double percentile, TimeUnit unit) {
+            long[] samples;
+            synchronized (this) {
+                samples = Arrays.copyOf(latencySamples, (int) Math.min(handled.get(), LATENCY_SAMPLES));
+            }
+            if (samples.length == 0) {
+                return -1;
+            }
+            Arrays.sort(samples);
+            int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+            index = Math.max(0, Math.min(samples.length - 1, index));
+            return unit.convert(samples[index], TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Registers the metrics of a {@link MetricsRegistry} as the read-only attributes of an MBean named
+ * {@code io.vantiq.extjsdk:type=Metrics,source=<source name>} on the platform MBean server.
+ * <p>
+ * Counters and gauges are attributes named after the metric, followed by {@code .<label value>} for metrics with a
+ * label. Histograms are split into {@code <name>.count}, {@code <name>.sumMillis} and {@code <name>.meanMillis}. The
+ * attributes are read from the registry each time they are listed, so metrics created after the reporter started are
+ * picked up as well.
+ */
+public class JmxMetricsReporter extends MetricsReporter {
+
+    /**
+     * The domain of the MBeans registered by this reporter.
+     */
+    public static final String DOMAIN = "io.vantiq.extjsdk";
+
+    private static final Logger log = LoggerFactory.getLogger(JmxMetricsReporter.class);
+
+    private ObjectName name = null;
+
+    JmxMetricsReporter() {
+    }
+
+    @Override
+    protected synchronized void start(MetricsRegistry registry) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            name = new ObjectName(DOMAIN + ":type=Metrics,source=" + ObjectName.quote(registry.getSourceName()));
+            if (server.isRegistered(name)) {
+                // Left behind by an earlier client for the same source
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(registry), name);
+        } catch (JMException e) {
+            log.error("Could not register the metrics MBean for source {}.", registry.getSourceName(), e);
+            name = null;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            log.debug("Could not unregister the metrics MBean {}.", name, e);
+        }
+        name = null;
+    }
+
+    /**
+     * @return  The name of the registered MBean, or null if none is registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return name;
+    }
+
+    /**
+     * Flattens the metrics in {@code registry} into attribute names and the functions that read them.
+     */
+    static Map<String, Supplier<Object>> attributes(MetricsRegistry registry) {
+        Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+        registry.getFamilies().stream()
+                .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                .forEach(family -> {
+                    for (Map.Entry<String, Object> metric : family.getMetrics().entrySet()) {
+                        String attribute = family.getLabelName() == null ? family.getName()
+                                : family.getName() + "." + metric.getKey();
+                        Object value = metric.getValue();
+                        if (value instanceof MetricsRegistry.Counter) {
+                            attributes.put(attribute, ((MetricsRegistry.Counter) value)::get);
+                        } else if (value instanceof MetricsRegistry.Histogram) {
+                            MetricsRegistry.Histogram histogram = (MetricsRegistry.Histogram) value;
+                            attributes.put(attribute + ".count", histogram::getCount);
+                            attributes.put(attribute + ".sumMillis", () -> histogram.getSum(TimeUnit.MILLISECONDS));
+                            attributes.put(attribute + ".meanMillis",
+                                    () -> histogram.getMean(TimeUnit.MICROSECONDS) / 1000.0);
+                        } else {
+                            attributes.put(attribute, () -> MetricsRegistry.Family.readGauge(value));
+                        }
+                    }
+                });
+        return attributes;
+    }
+
+    /**
+     * The MBean through which the metrics are read.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+
+        MetricsMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Supplier<Object> value = attributes(registry).get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.get();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Supplier<Object>> all = attributes(registry);
+            AttributeList list = new AttributeList();
+            for (String attribute : names) {
+                Supplier<Object> value = all.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value.get()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Supplier<Object>> all = attributes(registry);
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[all.size()];
+            int i = 0;
+            for (Map.Entry<String, Supplier<Object>> attribute : all.entrySet()) {
+                Object value = attribute.getValue().get();
+                infos[i++] = new MBeanAttributeInfo(attribute.getKey(), value.getClass().getName(), attribute.getKey(),
+                        true, false, false);
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(), "Metrics of source " + registry.getSourceName(),
+                    infos, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("The metrics MBean has no operations.");
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the frames received from Vantiq directly into {@link ExtensionServiceMessage} and {@link Response} objects.
+ * <p>
+ * The frame is read in a single pass with Jackson's streaming {@link JsonParser}, straight from the frame's bytes. A
+ * message with an {@code op} becomes an {@link ExtensionServiceMessage}, and anything else a {@link Response}, filled
+ * in the same way as {@link ExtensionServiceMessage#fromMap} and {@link Response#fromMap} would. The body of the
+ * message ({@code object} or {@code body}) is only checked for well-formedness while decoding. If it is a JSON object
+ * or array, it is turned into Java objects the first time {@link ExtensionServiceMessage#getObject()} or
+ * {@link Response#getBody()} is called, so large bodies that are never looked at are never built.
+ * <p>
+ * Frames compressed by a {@link FrameCompressor} are decompressed first. Frames laid out as an {@link AttachmentFrame}
+ * are decoded from their JSON message, and the attachment placeholders in the body are replaced by their
+ * {@code byte[]} when the body is built.
+ */
+public class MessageDecoder {
+
+    private final ObjectMapper mapper;
+
+    /**
+     * Creates a {@link MessageDecoder} that uses {@code mapper} to decode messages.
+     *
+     * @param mapper    The {@link ObjectMapper} used for headers and message bodies.
+     */
+    public MessageDecoder(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Decodes a frame received from Vantiq.
+     *
+     * @param frame         The frame to decode.
+     * @return              An {@link ExtensionServiceMessage} if the frame has an {@code op}, otherwise a
+     *                      {@link Response}.
+     * @throws IOException  if the frame is not a JSON object, or a valid attachment frame.
+     */
+    public Object decode(ByteString frame) throws IOException {
+        Fields fields = new Fields();
+        if (FrameCompressor.isCompressedFrame(frame)) {
+            frame = FrameCompressor.decompress(frame);
+        }
+        if (AttachmentFrame.isAttachmentFrame(frame)) {
+            AttachmentFrame parts = AttachmentFrame.decode(frame);
+            frame = parts.getMessage();
+            fields.attachments = parts.getAttachments();
+        }
+        try (JsonParser p = mapper.getFactory().createParser(new ByteBufferBackedInputStream(frame.asByteBuffer()))) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Message is not a JSON object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                readField(p, frame, name, fields);
+            }
+        }
+
+        if (fields.op == null) {
+            Response response = new Response();
+            if (fields.body != null) {
+                response.rawBody = fields.body;
+            }
+            if (fields.status != null) {
+                response.status = fields.status;
+            }
+            if (fields.headers != null) {
+                response.headers = fields.headers;
+            }
+            if (fields.contentType != null) {
+                response.contentType = fields.contentType;
+            }
+            return response;
+        }
+
+        ExtensionServiceMessage message = new ExtensionServiceMessage("");
+        message.op = fields.op;
+        message.namespaceName = fields.namespaceName;
+        message.locale = fields.locale;
+        message.resourceName = fields.resourceName;
+        message.resourceId = fields.resourceId;
+        message.sessionId = fields.sessionId;
+        message.responseType = fields.responseType;
+        message.isSystemResource = fields.isSystemResource;
+        message.skipMonitoring = fields.skipMonitoring;
+        message.isExternal = fields.isExternal;
+        message.rawObject = fields.object;
+        if (fields.contentType != null) {
+            message.contentType = fields.contentType;
+        }
+        if (fields.messageHeaders != null) {
+            message.messageHeaders = fields.messageHeaders;
+        }
+        return message;
+    }
+
+    private void readField(JsonParser p, ByteString frame, String name, Fields fields) throws IOException {
+        switch (name) {
+            case "op":
+                fields.op = readString(p);
+                break;
+            case "namespaceName":
+                fields.namespaceName = readString(p);
+                break;
+            case "locale":
+                fields.locale = readString(p);
+                break;
+            case "resourceName":
+                fields.resourceName = readString(p);
+                break;
+            case "resourceId":
+                fields.resourceId = readString(p);
+                break;
+            case "sessionId":
+                fields.sessionId = readString(p);
+                break;
+            case "contentType":
+                fields.contentType = readString(p);
+                break;
+            case "responseType":
+                fields.responseType = readString(p);
+                break;
+            case "isSystemResource":
+                fields.isSystemResource = readBoolean(p);
+                break;
+            case "skipMonitoring":
+                fields.skipMonitoring = readBoolean(p);
+                break;
+            case "isExternal":
+                fields.isExternal = readBoolean(p);
+                break;
+            case "status":
+                if (p.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                    fields.status = p.getIntValue();
+                } else {
+                    p.skipChildren();
+                }
+                break;
+            case "headers":
+                fields.headers = readMap(p);
+                break;
+            case ExtensionServiceMessage.PROPERTY_MESSAGE_HEADERS:
+                fields.messageHeaders = readMap(p);
+                break;
+            case "object":
+                fields.object = readBody(p, frame, fields.attachments);
+                break;
+            case "body":
+                fields.body = readBody(p, frame, fields.attachments);
+                break;
+            default:
+                p.skipChildren();
+        }
+    }
+
+    private static String readString(JsonParser p) throws IOException {
+        if (p.currentToken() == JsonToken.VALUE_STRING) {
+            return p.getText();
+        }
+        p.skipChildren();
+        return null;
+    }
+
+    private static boolean readBoolean(JsonParser p) throws IOException {
+        p.skipChildren();
+        return p.currentToken() == JsonToken.VALUE_TRUE;
+    }
+
+    private static Map readMap(JsonParser p) throws IOException {
+        if (p.currentToken() == JsonToken.START_OBJECT) {
+            return p.readValueAs(Map.class);
+        }
+        p.skipChildren();
+        return null;
+    }
+
+    /**
+     * Scalar bodies are read immediately, since they're no more expensive to keep than their location. Objects and
+     * arrays are skipped over, remembering where in the frame they are.
+     */
+    private LazyValue readBody(JsonParser p, ByteString frame, List<byte[]> attachments) throws IOException {
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            int start = (int) p.getTokenLocation().getByteOffset();
+            p.skipChildren();
+            int end = (int) p.getCurrentLocation().getByteOffset();
+            return new LazyValue(mapper, frame, start, end, attachments);
+        } else if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return new LazyValue(p.readValueAs(Object.class));
+    }
+
+    /**
+     * A message body that has not been turned into Java objects yet.
+     */
+    static final class LazyValue {
+        private final ObjectMapper mapper;
+        private final ByteString frame;
+        private final int start;
+        private final int end;
+        private final Object value;
+        private final List<byte[]> attachments;
+
+        LazyValue(ObjectMapper mapper, ByteString frame, int start, int end, List<byte[]> attachments) {
+            this.mapper = mapper;
+            this.frame = frame;
+            this.start = start;
+            this.end = end;
+            this.value = null;
+            this.attachments = attachments;
+        }
+
+        LazyValue(Object value) {
+            this.mapper = null;
+            this.frame = null;
+            this.start = 0;
+            this.end = 0;
+            this.value = value;
+            this.attachments = null;
+        }
+
+        /**
+         * @return  The Java representation of the value, as {@link ObjectMapper#readValue} would produce.
+         */
+        Object decode() {
+            if (frame == null) {
+                return value;
+            }
+            ByteBuffer slice = frame.asByteBuffer();
+            // Cast so that this runs on Java 8, where Buffer's methods aren't overridden to return a ByteBuffer
+            ((Buffer) slice).limit(end);
+            ((Buffer) slice).position(start);
+            try {
+                Object decoded = mapper.readValue(new ByteBufferBackedInputStream(slice), Object.class);
+                return attachments == null ? decoded : AttachmentFrame.resolve(decoded, attachments);
+            } catch (IOException e) {
+                // The value was already parsed once when the frame was decoded, so this shouldn't happen
+                throw new UncheckedIOException("Failed to decode message body", e);
+            }
+        }
+    }
+
+    /**
+     * The fields read from a frame, held until it is known whether the frame is a message or a response.
+     */
+    private static class Fields {
+        String op;
+        String namespaceName;
+        String locale;
+        String resourceName;
+        String resourceId;
+        String sessionId;
+        String contentType;
+        String responseType;
+        boolean isSystemResource;
+        boolean skipMonitoring;
+        boolean isExternal;
+        Integer status;
+        Map headers;
+        Map messageHeaders;
+        LazyValue object;
+        LazyValue body;
+        List<byte[]> attachments;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import okio.ByteString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes outbound messages straight into a per-thread, reusable buffer.
+ * <p>
+ * Notifications are written field by field with Jackson's streaming {@link JsonGenerator}, so no intermediate
+ * {@link java.util.Map} or {@link ExtensionServiceMessage} is created for them. The only copy made of the serialized
+ * bytes is the one into the {@link ByteString} handed to the websocket.
+ * <p>
+ * When {@link #setBinaryAttachments binary attachments} are enabled, {@code byte[]} values are not written as Base64
+ * text. They are carried as raw bytes after the JSON message, in the layout described by {@link AttachmentFrame}.
+ * Messages without any {@code byte[]} values are serialized as plain JSON either way.
+ */
+public class MessageSerializer {
+
+    // Buffers that grew past this size are released after use instead of being kept for the thread
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // The writer attribute holding the attachments collected while serializing a message
+    private static final String ATTACHMENTS = "attachments";
+
+    private final ObjectMapper mapper;
+    // Writes message bodies into a generator that is already mid-message, so it must not flush after each value
+    private final ObjectWriter bodyWriter;
+    // Shared by every serializer, so that a thread sending for many sources holds a single buffer
+    private static final ThreadLocal<ReusableBuffer> buffers = ThreadLocal.withInitial(ReusableBuffer::new);
+    private final MetricsRegistry.Histogram serializationTime;
+    // Replaces byte[] values with attachment placeholders when writing through a writer that collects attachments
+    private final ObjectMapper attachmentMapper;
+    private volatile boolean binaryAttachments = false;
+
+    /**
+     * Creates a {@link MessageSerializer} that uses {@code mapper} to serialize message bodies.
+     *
+     * @param mapper    The {@link ObjectMapper} used for message bodies.
+     */
+    public MessageSerializer(ObjectMapper mapper) {
+        this(mapper, null);
+    }
+
+    /**
+     * Creates a {@link MessageSerializer} that uses {@code mapper} to serialize message bodies, and records how long
+     * each message takes to serialize.
+     *
+     * @param mapper            The {@link ObjectMapper} used for message bodies.
+     * @param serializationTime The histogram that receives the serialization times. May be null.
+     */
+    public MessageSerializer(ObjectMapper mapper, MetricsRegistry.Histogram serializationTime) {
+        this.mapper = mapper;
+        this.bodyWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.serializationTime = serializationTime;
+        this.attachmentMapper = mapper.copy()
+                .registerModule(new SimpleModule().addSerializer(byte[].class, new AttachmentSerializer()));
+    }
+
+    /**
+     * Sets whether {@code byte[]} values are sent as binary attachments rather than as Base64 text. Only Vantiq servers
+     * that understand {@link AttachmentFrame attachment frames} should be sent them. Off by default.
+     *
+     * @param binaryAttachments Whether to send {@code byte[]} values as binary attachments.
+     */
+    public void setBinaryAttachments(boolean binaryAttachments) {
+        this.binaryAttachments = binaryAttachments;
+    }
+
+    /**
+     * @return  Whether {@code byte[]} values are sent as binary attachments rather than as Base64 text.
+     */
+    public boolean isBinaryAttachments() {
+        return binaryAttachments;
+    }
+
+    /**
+     * Serializes an arbitrary object as JSON.
+     *
+     * @param obj           The object to serialize.
+     * @return              The serialized object.
+     * @throws IOException  if the object could not be serialized.
+     */
+    public ByteString serialize(Object obj) throws IOException {
+        long start = System.nanoTime();
+        ReusableBuffer buffer = takeBuffer();
+        List<byte[]> attachments = binaryAttachments ? new ArrayList<>() : null;
+        if (attachments == null) {
+            mapper.writeValue(buffer, obj);
+        } else {
+            attachmentMapper.writer().withAttribute(ATTACHMENTS, attachments).writeValue(buffer, obj);
+        }
+        return finish(buffer, start, attachments);
+    }
+
+    /**
+     * Serializes the notification message that carries {@code data} to the source {@code sourceName}.
+     *
+     * @param sourceName    The name of the source the notification is for.
+     * @param data          The body of the notification.
+     * @return              The serialized notification message.
+     * @throws IOException  if the notification could not be serialized.
+     */
+    public ByteString serializeNotification(String sourceName, Object data) throws IOException {
+        long start = System.nanoTime();
+        ReusableBuffer buffer = takeBuffer();
+        List<byte[]> attachments = binaryAttachments ? new ArrayList<>() : null;
+        ObjectWriter writer = writerFor(attachments);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(buffer, JsonEncoding.UTF8)) {
+            writeNotification(gen, writer, sourceName, data);
+        }
+        return finish(buffer, start, attachments);
+    }
+
+    /**
+     * Serializes a batch of notifications to the source {@code sourceName} as a JSON array of notification messages.
+     *
+     * @param sourceName    The name of the source the notifications are for.
+     * @param batch         The bodies of the notifications.
+     * @return              The serialized batch.
+     * @throws IOException  if the batch could not be serialized.
+     */
+    public ByteString serializeNotificationBatch(String sourceName, List<?> batch) throws IOException {
+        long start = System.nanoTime();
+        ReusableBuffer buffer = takeBuffer();
+        List<byte[]> attachments = binaryAttachments ? new ArrayList<>() : null;
+        ObjectWriter writer = writerFor(attachments);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(buffer, JsonEncoding.UTF8)) {
+            gen.writeStartArray();
+            for (Object data : batch) {
+                writeNotification(gen, writer, sourceName, data);
+            }
+            gen.writeEndArray();
+        }
+        return finish(buffer, start, attachments);
+    }
+
+    /**
+     * Serializes a query response whose body is a JSON array that has already been serialized, as
+     * {@link QueryResponseStream} does with its rows. The result is the same as serializing the equivalent
+     * {@link Response}.
+     *
+     * @param status        The status code of the response.
+     * @param replyAddress  The reply address of the query.
+     * @param body          The serialized body.
+     * @param length        The number of bytes of {@code body} to use, starting at its beginning.
+     * @return              The serialized response.
+     * @throws IOException  if the response could not be serialized.
+     */
+    public ByteString serializeQueryResponse(int status, String replyAddress, byte[] body, int length)
+            throws IOException {
+        long start = System.nanoTime();
+        ReusableBuffer buffer = takeBuffer();
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(buffer, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeNumberField("status", status);
+            gen.writeObjectFieldStart("headers");
+            gen.writeStringField(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER, replyAddress);
+            gen.writeEndObject();
+            gen.writeFieldName("body");
+            // An empty raw value makes the generator write the separator and expect the next field. The body itself
+            // goes straight into the buffer once the generator has flushed what it has so far.
+            gen.writeRawValue("");
+            gen.flush();
+            buffer.write(body, 0, length);
+            gen.writeStringField("contentType", ExtensionServiceMessage.CONTENT_TYPE_JSON.toString());
+            gen.writeEndObject();
+        }
+        return finish(buffer, start, null);
+    }
+
+    /**
+     * @return  The writer for message bodies, which collects {@code byte[]} values into {@code attachments} if that
+     *          isn't null.
+     */
+    private ObjectWriter writerFor(List<byte[]> attachments) {
+        if (attachments == null) {
+            return bodyWriter;
+        }
+        return attachmentMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+                .withAttribute(ATTACHMENTS, attachments);
+    }
+
+    private ByteString finish(ReusableBuffer buffer, long start, List<byte[]> attachments) {
+        ByteString frame = attachments == null || attachments.isEmpty() ? buffer.toByteString()
+                : buffer.toAttachmentFrame(attachments);
+        if (serializationTime != null) {
+            serializationTime.record(System.nanoTime() - start);
+        }
+        return frame;
+    }
+
+    private ReusableBuffer takeBuffer() {
+        ReusableBuffer buffer = buffers.get();
+        buffer.recycle();
+        return buffer;
+    }
+
+    /**
+     * Writes the same fields, with the same values, that serializing the equivalent {@link ExtensionServiceMessage}
+     * would produce, including the {@code sourceName} property of its getter. Fields that would be null are left out,
+     * and the fields come in a different order, so the output is equivalent rather than identical.
+     */
+    private void writeNotification(JsonGenerator gen, ObjectWriter writer, String sourceName, Object data)
+            throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("op", ExtensionServiceMessage.OP_NOTIFICATION);
+        gen.writeStringField("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        gen.writeStringField("resourceId", sourceName);
+        gen.writeStringField("sourceName", sourceName);
+        gen.writeFieldName("object");
+        writer.writeValue(gen, data);
+        gen.writeStringField("address", "");
+        gen.writeObjectFieldStart(ExtensionServiceMessage.PROPERTY_MESSAGE_HEADERS);
+        gen.writeEndObject();
+        gen.writeStringField("contentType", ExtensionServiceMessage.CONTENT_TYPE_JSON.toString());
+        gen.writeEndObject();
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose backing array is kept between uses by the same thread.
+     */
+    private static class ReusableBuffer extends ByteArrayOutputStream {
+        ReusableBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        /**
+         * Empties the buffer for its next use. Arrays that grew for an unusually large message are dropped, so that
+         * one large message doesn't pin that memory for the life of the thread.
+         */
+        void recycle() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            reset();
+        }
+
+        ByteString toByteString() {
+            return ByteString.of(buf, 0, count);
+        }
+
+        ByteString toAttachmentFrame(List<byte[]> attachments) {
+            return AttachmentFrame.encode(buf, count, attachments);
+        }
+    }
+
+    /**
+     * Writes a {@code byte[]} as an attachment placeholder, adding the array to the list of attachments held in the
+     * {@link #ATTACHMENTS} attribute. Arrays written without that attribute are written as Base64 text as usual.
+     */
+    private static class AttachmentSerializer extends StdSerializer<byte[]> {
+        AttachmentSerializer() {
+            super(byte[].class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void serialize(byte[] value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            List<byte[]> attachments = (List<byte[]>) provider.getAttribute(ATTACHMENTS);
+            if (attachments == null) {
+                gen.writeBinary(provider.getConfig().getBase64Variant(), value, 0, value.length);
+                return;
+            }
+            gen.writeStartObject();
+            gen.writeNumberField(AttachmentFrame.PLACEHOLDER_FIELD, attachments.size());
+            gen.writeEndObject();
+            attachments.add(value);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds the metrics of a single {@link ExtensionWebSocketClient}, and of anything else that wants to report alongside
+ * them, such as the connector built on it.
+ * <p>
+ * Metrics are grouped into {@link Family families} that share a name, a help text and a type. A family either holds a
+ * single metric, or one metric per value of its label, such as one counter per message op. Three types are supported:
+ * <ul>
+ * <li>{@link Counter}s, which only go up.</li>
+ * <li>Gauges, whose value is read from a {@link Supplier} whenever the metrics are reported.</li>
+ * <li>{@link Histogram}s of durations, with fixed buckets from 100 microseconds to 10 seconds.</li>
+ * </ul>
+ * Names follow the Prometheus conventions, since that is the strictest of the formats they are reported in.
+ * Recording a value never blocks, so metrics can be updated from the threads that send and receive messages. The
+ * metrics are published by the {@link MetricsReporter}s added through
+ * {@link ExtensionWebSocketClient#addMetricsReporter}.
+ */
+public class MetricsRegistry {
+
+    /**
+     * The types of metric.
+     */
+    public enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private final String sourceName;
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty registry for the metrics of the source {@code sourceName}.
+     *
+     * @param sourceName    The name of the source, reported with every metric.
+     */
+    public MetricsRegistry(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * @return  The name of the source whose metrics this registry holds.
+     */
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    /**
+     * Obtains the counter {@code name}, creating it if necessary.
+     *
+     * @param name  The name of the counter.
+     * @param help  A description of what is counted.
+     * @return      The counter.
+     */
+    public Counter counter(String name, String help) {
+        return (Counter) family(name, help, Type.COUNTER, null).get("", k -> new Counter());
+    }
+
+    /**
+     * Obtains the counter {@code name} for one value of its label, creating it if necessary.
+     *
+     * @param name          The name of the counter family.
+     * @param help          A description of what is counted.
+     * @param labelName     The name of the label that distinguishes the counters of the family.
+     * @param labelValue    The value of the label for the counter wanted.
+     * @return              The counter.
+     */
+    public Counter counter(String name, String help, String labelName, String labelValue) {
+        return (Counter) family(name, help, Type.COUNTER, labelName).get(labelValue, k -> new Counter());
+    }
+
+    /**
+     * Obtains the histogram {@code name}, creating it if necessary.
+     *
+     * @param name  The name of the histogram.
+     * @param help  A description of the durations recorded.
+     * @return      The histogram.
+     */
+    public Histogram histogram(String name, String help) {
+        return (Histogram) family(name, help, Type.HISTOGRAM, null).get("", k -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier gauge of the same name.
+     *
+     * @param name  The name of the gauge.
+     * @param help  A description of the value.
+     * @param value Supplies the current value of the gauge whenever the metrics are reported.
+     */
+    public void gauge(String name, String help, Supplier<? extends Number> value) {
+        family(name, help, Type.GAUGE, null).metrics.put("", value);
+    }
+
+    /**
+     * Registers a gauge distinguished by a label, replacing any earlier gauge with the same name and label value.
+     *
+     * @param name          The name of the gauge.
+     * @param help          A description of the value.
+     * @param labelName     The name of the label, which must be the same for every gauge of this name.
+     * @param labelValue    The value of the label for this gauge.
+     * @param value         Supplies the current value of the gauge whenever the metrics are reported.
+     */
+    public void gauge(String name, String help, String labelName, String labelValue,
+            Supplier<? extends Number> value) {
+        family(name, help, Type.GAUGE, labelName).metrics.put(labelValue, value);
+    }
+
+    /**
+     * @return  A snapshot of the metric families, in no particular order.
+     */
+    public Collection<Family> getFamilies() {
+        return Collections.unmodifiableCollection(new ArrayList<>(families.values()));
+    }
+
+    private Family family(String name, String help, Type type, String labelName) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type, labelName));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type + ".");
+        }
+        return family;
+    }
+
+    /**
+     * The metrics that share a name.
+     */
+    public static final class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final String labelName;
+        private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type, String labelName) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelName = labelName;
+        }
+
+        Object get(String labelValue, Function<String, Object> create) {
+            // Look up first, since computeIfAbsent locks even when the metric already exists
+            Object metric = metrics.get(labelValue);
+            return metric != null ? metric : metrics.computeIfAbsent(labelValue, create);
+        }
+
+        /**
+         * @return  The name of the family.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return  The description of the family.
+         */
+        public String getHelp() {
+            return help;
+        }
+
+        /**
+         * @return  The type of the metrics in the family.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return  The name of the label that distinguishes the metrics of the family, or null if it holds a single
+         *          metric.
+         */
+        public String getLabelName() {
+            return labelName;
+        }
+
+        /**
+         * Returns the metrics of the family, keyed by the value of their label, or by an empty string if the family
+         * has no label. Counters are {@link Counter}s, histograms {@link Histogram}s, and gauges the {@link Supplier}s
+         * they were registered with.
+         *
+         * @return  A snapshot of the metrics of the family.
+         */
+        public Map<String, Object> getMetrics() {
+            return Collections.unmodifiableMap(new TreeMap<>(metrics));
+        }
+
+        /**
+         * Reads the current value of a gauge returned by {@link #getMetrics()}, treating a failing or null gauge as
+         * not a number.
+         *
+         * @param gauge The gauge to read.
+         * @return      Its current value.
+         */
+        public static double readGauge(Object gauge) {
+            try {
+                Number value = ((Supplier<? extends Number>) gauge).get();
+                return value == null ? Double.NaN : value.doubleValue();
+            } catch (RuntimeException e) {
+                return Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Adds one to the count.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * @param amount    The amount to add to the count.
+         */
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        /**
+         * @return  The current count.
+         */
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A histogram of durations, with cumulative buckets in the style of Prometheus.
+     */
+    public static final class Histogram {
+        /**
+         * The upper bounds of the buckets, in seconds. Durations above the last bound are only counted in the total.
+         */
+        public static final double[] BUCKET_BOUNDS = {
+                0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+        };
+
+        private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+
+        static {
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos The duration, in nanoseconds.
+         */
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            if (bucket < buckets.length) {
+                buckets[bucket].increment();
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @return  The number of durations recorded.
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @param unit  The time unit of the result.
+         * @return      The sum of the durations recorded.
+         */
+        public long getSum(TimeUnit unit) {
+            return unit.convert(sumNanos.sum(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return  The sum of the durations recorded, in seconds.
+         */
+        public double getSumSeconds() {
+            return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        /**
+         * @param unit  The time unit of the result.
+         * @return      The mean of the durations recorded, or 0 if none have been.
+         */
+        public long getMean(TimeUnit unit) {
+            long n = count.sum();
+            return n == 0 ? 0 : unit.convert(sumNanos.sum() / n, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return  For each bound in {@link #BUCKET_BOUNDS}, the number of durations recorded that were no longer than
+         *          it.
+         */
+        public long[] getCumulativeCounts() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i].sum();
+                counts[i] = total;
+            }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics held in a {@link MetricsRegistry}. Reporters are added to a client through
+ * {@link ExtensionWebSocketClient#addMetricsReporter}, or through the {@code METRICS_REPORTERS} environment variable,
+ * and stopped when the client is stopped.
+ * <ul>
+ * <li>{@link #jmx()} registers an MBean whose attributes are the metrics.</li>
+ * <li>{@link #prometheus()} serves the metrics in the Prometheus text format on the TCP probe port, once the client
+ * has been {@link ExtensionWebSocketClient#declareHealthy declared healthy}.</li>
+ * <li>{@link #log(long, TimeUnit)} writes all the metrics on a single log line at a fixed interval.</li>
+ * </ul>
+ */
+public abstract class MetricsReporter {
+
+    /**
+     * The default interval between the log lines written by {@link #log(long, TimeUnit)}, in seconds.
+     */
+    public static final long DEFAULT_LOG_INTERVAL = 60;
+
+    /**
+     * Single daemon thread shared by all log reporters.
+     */
+    private static final ScheduledExecutorService logScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "extjsdk-metrics-log");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Starts publishing the metrics in {@code registry}.
+     *
+     * @param registry  The metrics to publish.
+     */
+    protected abstract void start(MetricsRegistry registry);
+
+    /**
+     * Stops publishing metrics.
+     */
+    public void stop() {
+    }
+
+    /**
+     * @return  A reporter that registers the metrics as the attributes of a JMX MBean named
+     *          {@code io.vantiq.extjsdk:type=Metrics,source=<source name>}.
+     */
+    public static MetricsReporter jmx() {
+        return new JmxMetricsReporter();
+    }
+
+    /**
+     * @return  A reporter that serves the metrics in the Prometheus text format on the TCP probe port.
+     */
+    public static MetricsReporter prometheus() {
+        return new PrometheusMetricsReporter();
+    }
+
+    /**
+     * Creates a reporter that writes the value of every metric on a single line of the client's log, at level INFO.
+     * Histograms are written as their count and mean in milliseconds.
+     *
+     * @param interval  The time between log lines.
+     * @param unit      The time unit of {@code interval}.
+     * @return          The reporter.
+     */
+    public static MetricsReporter log(long interval, TimeUnit unit) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The log interval must be greater than 0.");
+        }
+        return new MetricsReporter() {
+            private ScheduledFuture<?> task;
+
+            @Override
+            protected synchronized void start(MetricsRegistry registry) {
+                Logger log = LoggerFactory.getLogger(MetricsReporter.class.getCanonicalName() + "#"
+                        + registry.getSourceName());
+                task = logScheduler.scheduleAtFixedRate(() -> log.info("Metrics: {}", formatLine(registry)),
+                        interval, interval, unit);
+            }
+
+            @Override
+            public synchronized void stop() {
+                if (task != null) {
+                    task.cancel(false);
+                    task = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Formats the value of every metric as {@code name{label=value}=value}, separated by spaces.
+     *
+     * @param registry  The metrics to format.
+     * @return          The formatted metrics.
+     */
+    static String formatLine(MetricsRegistry registry) {
+        StringBuilder line = new StringBuilder();
+        registry.getFamilies().stream()
+                .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                .forEach(family -> {
+                    for (Map.Entry<String, Object> metric : family.getMetrics().entrySet()) {
+                        if (line.length() > 0) {
+                            line.append(' ');
+                        }
+                        line.append(family.getName());
+                        if (family.getLabelName() != null) {
+                            line.append('{').append(family.getLabelName()).append('=').append(metric.getKey())
+                                    .append('}');
+                        }
+                        line.append('=');
+                        Object value = metric.getValue();
+                        if (value instanceof MetricsRegistry.Counter) {
+                            line.append(((MetricsRegistry.Counter) value).get());
+                        } else if (value instanceof MetricsRegistry.Histogram) {
+                            MetricsRegistry.Histogram histogram = (MetricsRegistry.Histogram) value;
+                            line.append(histogram.getCount()).append("/mean:")
+                                    .append(histogram.getMean(TimeUnit.MICROSECONDS) / 1000.0).append("ms");
+                        } else {
+                            line.append(formatNumber(MetricsRegistry.Family.readGauge(value)));
+                        }
+                    }
+                });
+        return line.toString();
+    }
+
+    /**
+     * Formats a metric value, leaving out the fraction of whole numbers.
+     */
+    static String formatNumber(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
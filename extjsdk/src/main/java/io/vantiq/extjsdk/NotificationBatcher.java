@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces the notifications sent by an {@link ExtensionWebSocketClient} into batches that are sent as a single
+ * websocket frame and acknowledged by the Vantiq server as a unit.
+ * <p>
+ * A batch is flushed as soon as it holds {@code maxBatchSize} notifications, or {@code maxBatchDelay} milliseconds
+ * after the first notification was added to it, whichever comes first. The batch is sent as a JSON array of the
+ * notification messages that would otherwise have been sent one per frame. Batches are sent in the order they were
+ * filled, whatever the reason they were flushed for. A batch that cannot be sent is put in the client's failed message
+ * queue, along with the batches behind it, to be sent once the connection is back.
+ * <p>
+ * The data of each notification is held by reference until its batch is sent, so it must not be changed after it has
+ * been added.
+ * <p>
+ * Batching is opt-in, and is enabled per source through
+ * {@link ExtensionWebSocketClient#enableNotificationBatching(int, long)}. It should only be enabled when the Vantiq
+ * server the connector talks to accepts batched notification frames.
+ */
+public class NotificationBatcher {
+
+    /**
+     * The default maximum number of notifications held in a single batch.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * The default maximum number of milliseconds a notification will wait in a batch before it is sent.
+     */
+    public static final long DEFAULT_MAX_BATCH_DELAY = 5;
+
+    /**
+     * The reasons for which a batch can be sent.
+     */
+    public enum FlushReason {
+        /**
+         * The batch reached its maximum size.
+         */
+        SIZE,
+        /**
+         * The oldest notification in the batch reached the maximum batch delay.
+         */
+        LATENCY,
+        /**
+         * The batch was flushed explicitly, either through {@link #flush()} or because batching was disabled.
+         */
+        EXPLICIT
+    }
+
+    /**
+     * Single daemon thread shared by all batchers, used to hand off batches whose delay has expired. It never sends
+     * them itself, since sending can block on a client's notification window.
+     */
+    private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "extjsdk-notification-batcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Daemon threads shared by all batchers, used to send the batches handed off by {@link #flushScheduler}.
+     */
+    private static final ExecutorService sendExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "extjsdk-notification-batch-sender");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ExtensionWebSocketClient client;
+    private final Logger log;
+    private final int maxBatchSize;
+    private final long maxBatchDelay;
+
+    // Guarded by "this"
+    private List<Object> pending;
+    private ScheduledFuture<?> pendingFlush = null;
+
+    // The batches waiting to be sent, in the order they were taken. Only added to while synchronized on this, and
+    // only sent while holding sendLock, so that batches are sent in order whichever thread flushed them.
+    private final Queue<Batch> ready = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
+
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong notificationsSent = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong[] flushCounts = new AtomicLong[FlushReason.values().length];
+
+    /**
+     * Creates a batcher that sends its batches through {@code client}.
+     *
+     * @param client        The {@link ExtensionWebSocketClient} that will send the batches.
+     * @param maxBatchSize  The maximum number of notifications in a batch. Must be greater than 0.
+     * @param maxBatchDelay The maximum number of milliseconds a notification can wait before its batch is sent. Must
+     *                      be greater than 0.
+     */
+    NotificationBatcher(ExtensionWebSocketClient client, int maxBatchSize, long maxBatchDelay) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("The maximum batch size must be greater than 0.");
+        }
+        if (maxBatchDelay < 1) {
+            throw new IllegalArgumentException("The maximum batch delay must be greater than 0.");
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelay = maxBatchDelay;
+        this.pending = new ArrayList<>(maxBatchSize);
+        for (int i = 0; i < flushCounts.length; i++) {
+            flushCounts[i] = new AtomicLong();
+        }
+        log = LoggerFactory.getLogger(this.getClass().getCanonicalName() + "#" + client.getSourceName());
+    }
+
+    /**
+     * Adds a notification to the current batch, sending the batch from the calling thread if it is now full. The
+     * calling thread also waits for any batches filled before it to be sent first.
+     *
+     * @param data  The data of the notification to add. Held by reference until its batch is sent.
+     */
+    void add(Object data) {
+        boolean full = false;
+        synchronized (this) {
+            pending.add(data);
+            if (pending.size() >= maxBatchSize) {
+                ready.add(new Batch(takePending(), FlushReason.SIZE));
+                full = true;
+            } else if (pendingFlush == null) {
+                pendingFlush = flushScheduler.schedule(this::handOff, maxBatchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            sendReady();
+        }
+    }
+
+    /**
+     * Sends the current batch immediately, if it holds any notifications.
+     */
+    public void flush() {
+        flush(FlushReason.EXPLICIT);
+    }
+
+    void flush(FlushReason reason) {
+        if (take(reason)) {
+            sendReady();
+        }
+    }
+
+    /**
+     * Takes the current batch once its delay has expired, and leaves sending it to {@link #sendExecutor}, so that
+     * the shared {@link #flushScheduler} is never held up by a client's notification window.
+     */
+    private void handOff() {
+        if (take(FlushReason.LATENCY) && sendScheduled.compareAndSet(false, true)) {
+            sendExecutor.execute(() -> {
+                // Cleared first, so that batches taken from now on schedule another send
+                sendScheduled.set(false);
+                sendReady();
+            });
+        }
+    }
+
+    /**
+     * Moves the current batch to the batches waiting to be sent, if it holds any notifications.
+     *
+     * @return  true if a batch was taken.
+     */
+    private synchronized boolean take(FlushReason reason) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        ready.add(new Batch(takePending(), reason));
+        return true;
+    }
+
+    /**
+     * Moves any notifications that have not yet been sent into {@code queue}, so that they can be resent once the
+     * connection has been reestablished.
+     *
+     * @param queue The queue that will receive the unsent notifications.
+     */
+    void drainTo(Queue<Object> queue) {
+        List<Object> notifications = new ArrayList<>();
+        synchronized (this) {
+            Batch batch;
+            while ((batch = ready.poll()) != null) {
+                notifications.addAll(batch.notifications);
+            }
+            notifications.addAll(takePending());
+        }
+        queue.addAll(toMessages(notifications));
+    }
+
+    private List<ExtensionServiceMessage> toMessages(List<Object> batch) {
+        List<ExtensionServiceMessage> messages = new ArrayList<>(batch.size());
+        for (Object data : batch) {
+            messages.add(client.createNotificationMessage(data));
+        }
+        return messages;
+    }
+
+    // Must be called while synchronized on this
+    private List<Object> takePending() {
+        List<Object> batch = pending;
+        pending = new ArrayList<>(maxBatchSize);
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        return batch;
+    }
+
+    /**
+     * Sends the batches waiting to be sent, oldest first. If one cannot be sent, it and every batch behind it are put
+     * in the client's failed message queue instead, so that they are still sent in order.
+     */
+    private void sendReady() {
+        sendLock.lock();
+        try {
+            Batch batch;
+            while ((batch = ready.poll()) != null) {
+                if (!send(batch.notifications, batch.reason)) {
+                    List<Object> unsent = new ArrayList<>(batch.notifications);
+                    while ((batch = ready.poll()) != null) {
+                        unsent.addAll(batch.notifications);
+                    }
+                    log.warn("Queueing {} batched notifications that could not be sent", unsent.size());
+                    client.getFailedMessageQueue().addAll(toMessages(unsent));
+                    if (client.isConnected()) {
+                        client.flushQueue();
+                    }
+                }
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return  false if the batch could not be sent and should be queued, true if it was sent, queued or dropped.
+     */
+    private boolean send(List<Object> batch, FlushReason reason) {
+        if (client.queueIfUnavailable(() -> toMessages(batch))) {
+            log.debug("Connection unavailable or replaying, queueing {} batched notifications", batch.size());
+            return true;
+        }
+        try {
+            if (!client.sendNotificationBatch(batch)) {
+                return false;
+            }
+        } catch (IOException e) {
+            // It would fail the same way when resent
+            log.warn("Dropping a batch of {} notifications that could not be serialized", batch.size(), e);
+            return true;
+        } catch (Exception e) {
+            log.warn("Error sending a batch of {} notifications", batch.size(), e);
+            return false;
+        }
+        batchesSent.incrementAndGet();
+        notificationsSent.addAndGet(batch.size());
+        flushCounts[reason.ordinal()].incrementAndGet();
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        log.trace("Sent batch of {} notifications, flushed due to {}", batch.size(), reason);
+        return true;
+    }
+
+    /**
+     * @return  The maximum number of notifications in a batch.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return  The maximum number of milliseconds a notification can wait before its batch is sent.
+     */
+    public long getMaxBatchDelay() {
+        return maxBatchDelay;
+    }
+
+    /**
+     * @return  The number of batches sent.
+     */
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    /**
+     * @return  The total number of notifications sent in batches.
+     */
+    public long getNotificationsSent() {
+        return notificationsSent.get();
+    }
+
+    /**
+     * @return  The number of notifications in the largest batch sent so far.
+     */
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    /**
+     * @return  The average number of notifications per batch, or 0 if no batch has been sent.
+     */
+    public double getAverageBatchSize() {
+        long batches = batchesSent.get();
+        return batches == 0 ? 0 : (double) notificationsSent.get() / batches;
+    }
+
+    /**
+     * @param reason    The flush reason of interest.
+     * @return          The number of batches sent because of {@code reason}.
+     */
+    public long getFlushCount(FlushReason reason) {
+        return flushCounts[reason.ordinal()].get();
+    }
+
+    /**
+     * A batch waiting to be sent, and the reason it was flushed for.
+     */
+    private static class Batch {
+        final List<Object> notifications;
+        final FlushReason reason;
+
+        Batch(List<Object> notifications, FlushReason reason) {
+            this.notifications = notifications;
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Controls how many notifications an {@link ExtensionWebSocketClient} may have waiting for an acknowledgement from
+ * the Vantiq server.
+ * <p>
+ * The size of the window adapts to the measured acknowledgement round-trip time (RTT) using additive increase,
+ * multiplicative decrease (AIMD). Each acknowledgement whose RTT stays close to the lowest recently observed RTT grows
+ * the window by roughly one slot per window's worth of acknowledgements. When the RTT climbs above
+ * {@code congestionFactor} times that baseline (and by more than a millisecond, to ignore scheduling jitter), the
+ * server or the network is considered congested, and the window is multiplied by {@code decreaseFactor}, at most once
+ * per round trip. The window always stays between the configured minimum and maximum.
+ * <p>
+ * This way a link with high but steady latency can keep many notifications in flight, while a server that is falling
+ * behind sees the rate of notifications back off.
+ */
+public class NotificationFlowControl {
+
+    /**
+     * The default number of notifications that may be in flight when the client starts.
+     */
+    public static final int DEFAULT_INITIAL_WINDOW = 5;
+
+    /**
+     * The default lower bound of the window.
+     */
+    public static final int DEFAULT_MIN_WINDOW = 1;
+
+    /**
+     * The default upper bound of the window.
+     */
+    public static final int DEFAULT_MAX_WINDOW = 100;
+
+    /**
+     * The default ratio between the current and baseline RTT above which the window shrinks.
+     */
+    public static final double DEFAULT_CONGESTION_FACTOR = 2.0;
+
+    /**
+     * The default factor applied to the window when it shrinks.
+     */
+    public static final double DEFAULT_DECREASE_FACTOR = 0.5;
+
+    // Number of recent RTT samples kept for the percentiles and the baseline RTT
+    private static final int RTT_SAMPLES = 256;
+
+    // RTT increases smaller than this are treated as scheduling jitter rather than congestion
+    private static final long MIN_CONGESTION_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final double congestionFactor;
+    private final double decreaseFactor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+
+    // The following are guarded by lock
+    private int minWindow;
+    private int maxWindow;
+    private double window;
+    private int inFlight = 0;
+    private long baseRttNanos = Long.MAX_VALUE;
+    private long lastDecreaseNanos = 0;
+    private final long[] rttSamples = new long[RTT_SAMPLES];
+    private int rttSampleCount = 0;
+    private long totalAcks = 0;
+    private long blockedNanos = 0;
+    private long blockedAcquires = 0;
+    private long windowDecreases = 0;
+    private long lastSendId = 0;
+
+    /**
+     * The notifications still waiting for an acknowledgement, oldest first. The Vantiq server acknowledges messages
+     * in the order it receives them. Guarded by lock.
+     */
+    private final ArrayDeque<Send> sends = new ArrayDeque<>();
+
+    /**
+     * Creates a {@link NotificationFlowControl} with the default settings.
+     */
+    public NotificationFlowControl() {
+        this(DEFAULT_INITIAL_WINDOW, DEFAULT_MIN_WINDOW, DEFAULT_MAX_WINDOW);
+    }
+
+    /**
+     * Creates a {@link NotificationFlowControl} with the given window bounds, and the default congestion and decrease
+     * factors.
+     *
+     * @param initialWindow The number of notifications that may initially be in flight.
+     * @param minWindow     The lower bound of the window. Must be at least 1.
+     * @param maxWindow     The upper bound of the window. Must be at least {@code minWindow}.
+     */
+    public NotificationFlowControl(int initialWindow, int minWindow, int maxWindow) {
+        this(initialWindow, minWindow, maxWindow, DEFAULT_CONGESTION_FACTOR, DEFAULT_DECREASE_FACTOR);
+    }
+
+    /**
+     * Creates a {@link NotificationFlowControl} with the given settings.
+     *
+     * @param initialWindow     The number of notifications that may initially be in flight.
+     * @param minWindow         The lower bound of the window. Must be at least 1.
+     * @param maxWindow         The upper bound of the window. Must be at least {@code minWindow}.
+     * @param congestionFactor  The ratio between an acknowledgement's RTT and the baseline RTT above which the window
+     *                          shrinks. Must be greater than 1.
+     * @param decreaseFactor    The factor applied to the window when it shrinks. Must be between 0 and 1.
+     */
+    public NotificationFlowControl(int initialWindow, int minWindow, int maxWindow, double congestionFactor,
+                                   double decreaseFactor) {
+        checkBounds(minWindow, maxWindow);
+        if (congestionFactor <= 1) {
+            throw new IllegalArgumentException("The congestion factor must be greater than 1.");
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("The decrease factor must be between 0 and 1.");
+        }
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.congestionFactor = congestionFactor;
+        this.decreaseFactor = decreaseFactor;
+        this.window = Math.max(minWindow, Math.min(maxWindow, initialWindow));
+    }
+
+    private static void checkBounds(int minWindow, int maxWindow) {
+        if (minWindow < 1 || maxWindow < minWindow) {
+            throw new IllegalArgumentException("The window bounds must satisfy 1 <= minWindow <= maxWindow.");
+        }
+    }
+
+    /**
+     * Changes the window and its bounds. Notifications already in flight keep their slots and are released by their
+     * acknowledgements as usual, while producers waiting for room re-check it against the new window.
+     *
+     * @param initialWindow The number of notifications that may now be in flight.
+     * @param minWindow     The lower bound of the window. Must be at least 1.
+     * @param maxWindow     The upper bound of the window. Must be at least {@code minWindow}.
+     */
+    public void configure(int initialWindow, int minWindow, int maxWindow) {
+        checkBounds(minWindow, maxWindow);
+        lock.lock();
+        try {
+            this.minWindow = minWindow;
+            this.maxWindow = maxWindow;
+            this.window = Math.max(minWindow, Math.min(maxWindow, initialWindow));
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the window has room for another notification, and reserves a slot for it. The caller must follow
+     * up with either {@link #sending()} or {@link #abort()}.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) window) {
+                long start = System.nanoTime();
+                while (inFlight >= (int) window) {
+                    slotAvailable.await();
+                }
+                blockedNanos += System.nanoTime() - start;
+                blockedAcquires++;
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the notification for a slot reserved through {@link #acquire()} is about to be sent, starting the
+     * measurement of its round trip. Must be called before the notification is handed to the websocket, since its
+     * acknowledgement may arrive before the send returns.
+     *
+     * @return  The id of the send, to pass to {@link #abort(long)} if the notification could not be sent.
+     */
+    public long sending() {
+        lock.lock();
+        try {
+            long id = ++lastSendId;
+            sends.add(new Send(id, System.nanoTime()));
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot reserved through {@link #acquire()} whose notification could not be sent.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot whose notification could not be sent after {@link #sending()} was called for it, forgetting its
+     * send time.
+     *
+     * @param sendId    The id returned by {@link #sending()}.
+     */
+    public void abort(long sendId) {
+        lock.lock();
+        try {
+            sends.removeIf(send -> send.id == sendId);
+            abort();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the acknowledgement of the oldest notification in flight, releasing its slot and adjusting the window
+     * based on its round-trip time. Acknowledgements received while no notification is waiting for one are ignored,
+     * so that they neither release a slot nor count as a round trip.
+     *
+     * @return  The round-trip time of the acknowledged notification in nanoseconds, or -1 if no notification was
+     *          waiting for an acknowledgement.
+     */
+    public long acknowledge() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Send send = sends.poll();
+            if (send == null) {
+                return -1;
+            }
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            long rttNanos = now - send.sendNanos;
+            adjustWindow(rttNanos, now);
+            slotAvailable.signalAll();
+            return rttNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called while holding lock
+    private void adjustWindow(long rttNanos, long now) {
+        rttSamples[(int) (totalAcks % RTT_SAMPLES)] = rttNanos;
+        totalAcks++;
+        rttSampleCount = (int) Math.min(totalAcks, RTT_SAMPLES);
+
+        // Refresh the baseline periodically so that it can follow a link whose latency has permanently increased
+        if (totalAcks % RTT_SAMPLES == 0) {
+            baseRttNanos = Long.MAX_VALUE;
+            for (long sample : rttSamples) {
+                baseRttNanos = Math.min(baseRttNanos, sample);
+            }
+        } else {
+            baseRttNanos = Math.min(baseRttNanos, rttNanos);
+        }
+
+        if (rttNanos > baseRttNanos * congestionFactor && rttNanos - baseRttNanos > MIN_CONGESTION_DELAY_NANOS) {
+            // Only back off once per round trip, since all acks in the same round trip saw the same congestion
+            if (now - lastDecreaseNanos > rttNanos) {
+                window = Math.max(minWindow, window * decreaseFactor);
+                lastDecreaseNanos = now;
+                windowDecreases++;
+            }
+        } else {
+            window = Math.min(maxWindow, window + 1.0 / window);
+        }
+    }
+
+    /**
+     * Forgets every notification in flight. Used when the connection is lost, as those notifications will never be
+     * acknowledged.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            inFlight = 0;
+            sends.clear();
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The current number of notifications that may be in flight.
+     */
+    public int getWindow() {
+        lock.lock();
+        try {
+            return (int) window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of notifications currently waiting for an acknowledgement.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The lower bound of the window.
+     */
+    public int getMinWindow() {
+        lock.lock();
+        try {
+            return minWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The upper bound of the window.
+     */
+    public int getMaxWindow() {
+        lock.lock();
+        try {
+            return maxWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a percentile of the recently measured acknowledgement round-trip times.
+     *
+     * @param percentile    The percentile to compute, between 0 and 100.
+     * @param unit          The time unit of the result.
+     * @return              The requested percentile, or -1 if no round trip has been measured yet.
+     */
+    public long getRttPercentile(double percentile, TimeUnit unit) {
+        long[] samples;
+        lock.lock();
+        try {
+            samples = Arrays.copyOf(rttSamples, rttSampleCount);
+        } finally {
+            lock.unlock();
+        }
+        if (samples.length == 0) {
+            return -1;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+        index = Math.max(0, Math.min(samples.length - 1, index));
+        return unit.convert(samples[index], TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return  The number of acknowledgements whose round trip has been measured.
+     */
+    public long getAcknowledgements() {
+        lock.lock();
+        try {
+            return totalAcks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of times the window has shrunk due to congestion.
+     */
+    public long getWindowDecreases() {
+        lock.lock();
+        try {
+            return windowDecreases;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param unit  The time unit of the result.
+     * @return      The total time producers have spent waiting for room in the window.
+     */
+    public long getBlockedTime(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(blockedNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  The number of times a producer had to wait for room in the window.
+     */
+    public long getBlockedAcquires() {
+        lock.lock();
+        try {
+            return blockedAcquires;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A notification waiting for its acknowledgement.
+     */
+    private static final class Send {
+        final long id;
+        final long sendNanos;
+
+        Send(long id, long sendNanos) {
+            this.id = id;
+            this.sendNanos = sendNanos;
+        }
+    }
+}
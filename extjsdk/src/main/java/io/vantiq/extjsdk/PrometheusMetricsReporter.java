@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry} in the Prometheus text exposition format, on the TCP probe port
+ * opened by {@link ExtensionWebSocketClient#declareHealthy()}.
+ * <p>
+ * The probe port keeps working as a TCP probe: connections that send nothing, as Kubernetes' TCP probes do, are simply
+ * closed. A connection that sends an HTTP {@code GET} request for any path receives the metrics, so the port can be
+ * scraped directly, e.g. with a {@code prometheus.io/port} annotation on the pod.
+ * <p>
+ * Connections are answered on a small pool of threads, so that a slow or idle client doesn't hold up the thread
+ * accepting probe connections.
+ */
+public class PrometheusMetricsReporter extends MetricsReporter {
+
+    /**
+     * The content type of the text exposition format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // How long to wait for a request on a probe connection
+    private static final int REQUEST_TIMEOUT_MILLIS = 2000;
+
+    // Threads answering connections, and the number of connections that may wait for one
+    private static final int SERVE_THREADS = 2;
+    private static final int SERVE_QUEUE_CAPACITY = 32;
+
+    private static final Logger log = LoggerFactory.getLogger(PrometheusMetricsReporter.class);
+
+    private volatile MetricsRegistry registry = null;
+
+    private final ThreadPoolExecutor executor;
+
+    PrometheusMetricsReporter() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(SERVE_THREADS, SERVE_THREADS, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(SERVE_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "extjsdk-metrics-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void start(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void stop() {
+        registry = null;
+    }
+
+    /**
+     * @return  The current metrics in the Prometheus text format, or an empty string if the reporter isn't running.
+     */
+    public String scrape() {
+        MetricsRegistry localRegistry = registry;
+        if (localRegistry == null) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        String source = "source=\"" + escape(localRegistry.getSourceName()) + "\"";
+        localRegistry.getFamilies().stream()
+                .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                .forEach(family -> {
+                    text.append("# HELP ").append(family.getName()).append(' ')
+                            .append(family.getHelp().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+                    text.append("# TYPE ").append(family.getName()).append(' ')
+                            .append(family.getType().name().toLowerCase()).append('\n');
+                    for (Map.Entry<String, Object> metric : family.getMetrics().entrySet()) {
+                        String labels = family.getLabelName() == null ? source
+                                : source + "," + family.getLabelName() + "=\"" + escape(metric.getKey()) + "\"";
+                        writeMetric(text, family.getName(), labels, metric.getValue());
+                    }
+                });
+        return text.toString();
+    }
+
+    private static void writeMetric(StringBuilder text, String name, String labels, Object value) {
+        if (value instanceof MetricsRegistry.Counter) {
+            writeSample(text, name, labels, Long.toString(((MetricsRegistry.Counter) value).get()));
+        } else if (value instanceof MetricsRegistry.Histogram) {
+            MetricsRegistry.Histogram histogram = (MetricsRegistry.Histogram) value;
+            long[] counts = histogram.getCumulativeCounts();
+            for (int i = 0; i < counts.length; i++) {
+                writeSample(text, name + "_bucket",
+                        labels + ",le=\"" + MetricsRegistry.Histogram.BUCKET_BOUNDS[i] + "\"",
+                        Long.toString(counts[i]));
+            }
+            String count = Long.toString(histogram.getCount());
+            writeSample(text, name + "_bucket", labels + ",le=\"+Inf\"", count);
+            writeSample(text, name + "_sum", labels, Double.toString(histogram.getSumSeconds()));
+            writeSample(text, name + "_count", labels, count);
+        } else {
+            writeSample(text, name, labels, formatNumber(MetricsRegistry.Family.readGauge(value)));
+        }
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels, String value) {
+        text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Hands a connection accepted on the TCP probe port to one of the threads that answer them, see {@link #serve}.
+     * The connection is closed right away if too many are already waiting.
+     *
+     * @param connection    The accepted connection.
+     */
+    void accept(Socket connection) {
+        try {
+            executor.execute(() -> serve(connection));
+        } catch (RejectedExecutionException e) {
+            log.debug("Too many connections waiting on the TCP probe port. Closing the new one.");
+            try {
+                connection.close();
+            } catch (IOException closeError) {
+                log.debug("Error closing a connection on the TCP probe port.", closeError);
+            }
+        }
+    }
+
+    /**
+     * Answers a connection accepted on the TCP probe port. If it carries an HTTP request, the metrics are sent back.
+     * The connection is closed either way.
+     *
+     * @param connection    The accepted connection.
+     */
+    void serve(Socket connection) {
+        try (Socket socket = connection) {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                // A plain TCP probe
+                return;
+            }
+            // Skip the headers. The request has no body.
+            String header;
+            do {
+                header = reader.readLine();
+            } while (header != null && !header.isEmpty());
+
+            String status;
+            byte[] body;
+            if (requestLine.startsWith("GET ")) {
+                status = "200 OK";
+                body = scrape().getBytes(StandardCharsets.UTF_8);
+            } else {
+                status = "405 Method Not Allowed";
+                body = new byte[0];
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + CONTENT_TYPE + "\r\nContent-Length: "
+                    + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body);
+            out.flush();
+        } catch (SocketTimeoutException e) {
+            // A probe that connected and waited without sending anything
+        } catch (IOException e) {
+            log.debug("Error answering a connection on the TCP probe port.", e);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import okio.ByteString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the result of a query back to Vantiq a few rows at a time, as the rows are produced, instead of building the
+ * whole result in memory first.
+ * <p>
+ * Each row is serialized as soon as it is {@link #write written}, into the frame currently being built. A frame is
+ * cut once it holds {@code maxRowsPerFrame} rows or {@code maxFrameBytes} bytes of rows, whichever comes first. Every
+ * frame is sent with {@link ExtensionWebSocketClient#QUERY_CHUNK_CODE} except the last, which is sent with
+ * {@link ExtensionWebSocketClient#QUERY_DATA_CODE} when the stream is {@link #close closed}. A stream closed without
+ * any rows sends {@link ExtensionWebSocketClient#QUERY_NODATA_CODE}. Since a full frame is held back until the next row
+ * arrives, only about two frames' worth of rows are ever held in memory, however large the result.
+ * <p>
+ * Before each frame is handed to the websocket, the stream waits until the websocket's outbound queue holds no more
+ * than {@code maxQueuedBytes}. OkHttp closes a websocket whose outbound queue grows past 16MB, so without this a
+ * producer that reads rows faster than the network can carry them would lose the connection.
+ * <p>
+ * If the connection to Vantiq is down, frames are put in the client's failed message queue like any other query
+ * response. A stream is meant to be used by a single thread, typically the query handler, and is not thread safe.
+ * Streams are obtained through {@link ExtensionWebSocketClient#openQueryResponseStream}.
+ */
+public class QueryResponseStream implements Closeable {
+
+    /**
+     * The default maximum number of rows sent in a single frame.
+     */
+    public static final int DEFAULT_MAX_ROWS_PER_FRAME = 500;
+
+    /**
+     * The default maximum number of bytes of rows sent in a single frame.
+     */
+    public static final int DEFAULT_MAX_FRAME_BYTES = 1024 * 1024;
+
+    /**
+     * The default number of bytes that may be waiting in the websocket's outbound queue before the stream waits for it
+     * to drain.
+     */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * The property holding the rows of a frame sent with a {@link #setFrameHeader header}.
+     */
+    public static final String FRAME_ROWS = "rows";
+
+    private static final long MAX_DRAIN_POLL_MILLIS = 50;
+
+    private final ExtensionWebSocketClient client;
+    private final ObjectMapper mapper;
+    private final MessageSerializer serializer;
+    private final ObjectWriter rowWriter;
+    private final String replyAddress;
+    private final int maxRowsPerFrame;
+    private final int maxFrameBytes;
+    private final long maxQueuedBytes;
+    private Map<String, ?> frameHeader = null;
+
+    // The rows of the frame being built, as an unterminated JSON array
+    private final RowBuffer rows = new RowBuffer();
+    private JsonGenerator rowGenerator = null;
+    private int rowsInFrame = 0;
+    private boolean frameFull = false;
+    private boolean closed = false;
+
+    private long rowsWritten = 0;
+    private long framesSent = 0;
+    private int lastFrameRows = 0;
+    private long bytesSent = 0;
+    private long backPressureNanos = 0;
+
+    /**
+     * Creates a stream that sends the response to the query with reply address {@code replyAddress} through
+     * {@code client}.
+     *
+     * @param client            The {@link ExtensionWebSocketClient} that sends the frames.
+     * @param mapper            The {@link ObjectMapper} used to serialize the rows.
+     * @param serializer        The {@link MessageSerializer} used to build the frames.
+     * @param replyAddress      The reply address of the query.
+     * @param maxRowsPerFrame   The maximum number of rows in a frame, or 0 for no limit.
+     * @param maxFrameBytes     The maximum number of bytes of rows in a frame, or 0 for no limit. A single row larger
+     *                          than this is still sent, alone in its frame.
+     * @param maxQueuedBytes    The number of bytes that may wait in the websocket's outbound queue before sending
+     *                          waits for it to drain.
+     */
+    QueryResponseStream(ExtensionWebSocketClient client, ObjectMapper mapper, MessageSerializer serializer,
+                        String replyAddress, int maxRowsPerFrame, int maxFrameBytes, long maxQueuedBytes) {
+        if (maxRowsPerFrame < 0 || maxFrameBytes < 0) {
+            throw new IllegalArgumentException("The frame limits cannot be negative.");
+        }
+        if (maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("The maximum number of queued bytes must be greater than 0.");
+        }
+        this.client = client;
+        this.mapper = mapper;
+        this.serializer = serializer;
+        this.rowWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.replyAddress = replyAddress;
+        this.maxRowsPerFrame = maxRowsPerFrame;
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Sends each frame as an object holding the entries of {@code header} and the rows of the frame under
+     * {@link #FRAME_ROWS}, rather than as an array of rows. This lets what every row has in common, such as the names
+     * of the columns when rows are sent as arrays of values, be sent once per frame instead of once per row. Every
+     * frame carries the header, so that each can be read on its own.
+     *
+     * @param header                    The entries sent before the rows of each frame, or null to send bare arrays.
+     * @throws IllegalStateException    if rows have already been written.
+     */
+    public void setFrameHeader(Map<String, ?> header) {
+        if (rowsWritten > 0) {
+            throw new IllegalStateException("The frame header must be set before any rows are written.");
+        }
+        frameHeader = header;
+    }
+
+    /**
+     * Adds a row to the response, sending the previous frame first if it is full.
+     *
+     * @param row                       The row to add, typically a {@link java.util.Map}.
+     * @throws IOException              if the row could not be serialized.
+     * @throws InterruptedException     if interrupted while waiting for the websocket to drain.
+     * @throws IllegalStateException    if the stream has been closed.
+     */
+    public void write(Object row) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("The query response stream has been closed.");
+        }
+        if (frameFull) {
+            sendFrame(ExtensionWebSocketClient.QUERY_CHUNK_CODE);
+        }
+        if (rowGenerator == null) {
+            rowGenerator = mapper.getFactory().createGenerator(rows, JsonEncoding.UTF8);
+            if (frameHeader != null) {
+                rowGenerator.writeStartObject();
+                for (Map.Entry<String, ?> entry : frameHeader.entrySet()) {
+                    rowGenerator.writeFieldName(entry.getKey());
+                    rowWriter.writeValue(rowGenerator, entry.getValue());
+                }
+                rowGenerator.writeFieldName(FRAME_ROWS);
+            }
+            rowGenerator.writeStartArray();
+        }
+        rowWriter.writeValue(rowGenerator, row);
+        // Flush so that the buffer's size reflects the row just written
+        rowGenerator.flush();
+        rowsInFrame++;
+        rowsWritten++;
+        frameFull = (maxRowsPerFrame > 0 && rowsInFrame >= maxRowsPerFrame)
+                || (maxFrameBytes > 0 && rows.size() >= maxFrameBytes);
+    }
+
+    /**
+     * Sends the last frame of the response, or a 204 with an empty object as its body if no rows were written, as the
+     * connectors have always answered an empty result. Does nothing if the stream is already closed.
+     *
+     * @throws IOException  if the last frame could not be built.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (rowsInFrame == 0) {
+            client.sendQueryResponse(ExtensionWebSocketClient.QUERY_NODATA_CODE, replyAddress, new LinkedHashMap<>());
+            return;
+        }
+        try {
+            sendFrame(ExtensionWebSocketClient.QUERY_DATA_CODE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending the last frame of a query response", e);
+        }
+    }
+
+    /**
+     * Ends the response with an error instead of the remaining rows. Any rows not yet sent are discarded. Does nothing
+     * if the stream is already closed.
+     *
+     * @param messageCode       A code identifying the error.
+     * @param messageTemplate   The error message, with {#} placeholders for the parameters.
+     * @param parameters        The parameters of {@code messageTemplate}.
+     * @see ExtensionWebSocketClient#sendQueryError
+     */
+    public void fail(String messageCode, String messageTemplate, Object[] parameters) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        resetFrame();
+        client.sendQueryError(replyAddress, messageCode, messageTemplate, parameters);
+    }
+
+    private void sendFrame(int status) throws IOException, InterruptedException {
+        rowGenerator.writeEndArray();
+        if (frameHeader != null) {
+            rowGenerator.writeEndObject();
+        }
+        rowGenerator.close();
+        ByteString frame = serializer.serializeQueryResponse(status, replyAddress, rows.array(), rows.size());
+        int frameRows = rowsInFrame;
+        resetFrame();
+
+        long start = System.nanoTime();
+        awaitOutboundRoom();
+        backPressureNanos += System.nanoTime() - start;
+
+        client.sendQueryResponseFrame(frame);
+        framesSent++;
+        lastFrameRows = frameRows;
+        bytesSent += frame.size();
+    }
+
+    private void resetFrame() {
+        rows.recycle();
+        rowGenerator = null;
+        rowsInFrame = 0;
+        frameFull = false;
+    }
+
+    /**
+     * Waits until the websocket's outbound queue is small enough to take another frame, or the websocket is closed, in
+     * which case the frame will be queued instead.
+     */
+    private void awaitOutboundRoom() throws InterruptedException {
+        long pollMillis = 1;
+        while (client.getOutboundQueueSize() > maxQueuedBytes) {
+            Thread.sleep(pollMillis);
+            pollMillis = Math.min(pollMillis * 2, MAX_DRAIN_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * @return  The reply address of the query this stream responds to.
+     */
+    public String getReplyAddress() {
+        return replyAddress;
+    }
+
+    /**
+     * @return  Whether the stream has been closed or failed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return  The number of rows written to the stream.
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return  The number of frames sent, or queued if the connection was down.
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return  The number of rows in the most recently sent frame, or 0 if no frame has been sent.
+     */
+    public int getLastFrameRows() {
+        return lastFrameRows;
+    }
+
+    /**
+     * @return  The total size of the frames sent, in bytes.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @param unit  The time unit of the result.
+     * @return      The total time spent waiting for the websocket's outbound queue to drain.
+     */
+    public long getBackPressureTime(TimeUnit unit) {
+        return unit.convert(backPressureNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that exposes its backing array, so that a frame can be built from it without
+     * copying the rows first. Grows to the size of the largest frame, and is shrunk again if that was unusually large.
+     */
+    private class RowBuffer extends ByteArrayOutputStream {
+        RowBuffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void recycle() {
+            if (maxFrameBytes > 0 && buf.length > 2 * maxFrameBytes) {
+                buf = new byte[4096];
+            }
+            reset();
+        }
+    }
+}
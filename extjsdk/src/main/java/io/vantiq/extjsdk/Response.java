@@ -41,9 +41,20 @@ import java.util.HashMap;
 public class Response {
     public int status;
     public Map<String,String> headers;
+    /**
+     * @deprecated  For responses received from Vantiq, this is null until {@link #getBody()} is first called. Use
+     *              {@link #getBody()} and {@link #body(Object)} instead.
+     */
+    @Deprecated
     public Object body;
     public String contentType;
 
+    /**
+     * The body of a received response that has not been decoded yet. Decoded into {@link #body} by
+     * {@link #getBody()}.
+     */
+    MessageDecoder.LazyValue rawBody;
+
     public Response() {
         headers = new HashMap<String, String>();
         body = null;
@@ -58,6 +69,7 @@ public class Response {
 
     public Response body(Object body) {
         this.body = body;
+        this.rawBody = null;
         return this;
     }
 
@@ -70,7 +82,16 @@ public class Response {
         return this.headers.get(name);
     }
     
+    /**
+     * Returns the body of the response. For responses received from Vantiq, the body is decoded on the first call.
+     *
+     * @return  The body of the response.
+     */
     public Object getBody() {
+        if (this.body == null && this.rawBody != null) {
+            this.body = this.rawBody.decode();
+        }
+        this.rawBody = null;
         return this.body;
     }
     
@@ -100,7 +121,7 @@ public class Response {
     public Map<String,Object> asMap() {
         Map<String, Object> m = new HashMap<>();
         
-        if (this.body != null) m.put("body", this.body);
+        if (this.getBody() != null) m.put("body", this.body);
         if (this.status != 0) m.put("status", this.status);
         if (this.headers != null) m.put("headers", this.headers);
         if (this.contentType != null) m.put("contentType", this.contentType);
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.Buffer;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single websocket connection to a Vantiq server, shared by the {@link ExtensionWebSocketClient clients} of many
+ * sources.
+ * <p>
+ * Each client attached to the connection keeps its own listener, handlers, notification flow control window and failed
+ * message queue, and sees the connection as if it were its own. The connection authenticates once, with the
+ * credentials of the first client that asks, and hands the result to every client that authenticates after it with the
+ * same credentials. A client that asks with other credentials fails to authenticate, rather than acting with those of
+ * another source, so sources with different credentials must use different connections.
+ * <p>
+ * Inbound messages are decoded once and routed to their client by {@code resourceId}. Responses carry no
+ * {@code resourceId}, so each JSON message sent is given a {@code requestId}, and a response that names it in its
+ * {@code X-Request-Id} header is routed to the client that sent it, or dropped if that message expects no response.
+ * Responses without one are routed to the client that sent the oldest message still waiting for one, which relies on
+ * the Vantiq server answering the messages of a connection in the order they were sent.
+ * <p>
+ * The websocket is opened when the first client attaches, and closed when the last one detaches. If it drops, every
+ * attached client is closed, and the first to reconnect opens a new websocket.
+ */
+public class SharedConnection extends WebSocketListener {
+
+    /**
+     * The field added to the messages sent, and the header of a response that names the message it answers
+     */
+    static final String REQUEST_ID = "requestId";
+    static final String REQUEST_ID_HEADER = "X-Request-Id";
+
+    /**
+     * The connections shared through {@link #forUrl}, by url
+     */
+    private static final Map<String, SharedConnection> connections = new ConcurrentHashMap<>();
+
+    private final Logger log;
+    private final String url;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final MessageDecoder decoder = new MessageDecoder(mapper);
+
+    /**
+     * The channels of the attached clients, by source name
+     */
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * The messages waiting for a response, in the order they were sent. Only changed while holding the lock on this
+     * connection, so that it matches the order of the messages on the wire.
+     */
+    private final Deque<Pending> awaitingResponse = new ConcurrentLinkedDeque<>();
+
+    /**
+     * The clients waiting for the result of the authentication
+     */
+    private final List<ExtensionWebSocketClient> awaitingAuth = new ArrayList<>();
+
+    // Only changed while holding the lock on this connection
+    private long lastRequestId = 0;
+
+    private WebSocket webSocket = null;
+    private okhttp3.Response openResponse = null;
+    private Object authData = null;
+    private boolean authSent = false;
+    private Response authResponse = null;
+    private int authResponseSize = 0;
+
+    /**
+     * Obtains the connection shared by every client that connects to {@code url} through it, creating it if necessary.
+     *
+     * @param url   The url of the Vantiq server, as given to {@link ExtensionWebSocketClient#validifyUrl}.
+     * @return      The connection to {@code url}.
+     */
+    public static SharedConnection forUrl(String url) {
+        return connections.computeIfAbsent(url, SharedConnection::new);
+    }
+
+    /**
+     * Creates a {@link SharedConnection} to {@code url}. It is not opened until a client attaches to it.
+     *
+     * @param url   The url of the Vantiq server. Typically "wss://dev.vantiq.com/api/v1/wsock/websocket"
+     */
+    public SharedConnection(String url) {
+        this.url = url;
+        log = LoggerFactory.getLogger(this.getClass().getCanonicalName() + "#" + url);
+    }
+
+    /**
+     * @return  The url of the Vantiq server.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return  The number of clients attached to this connection.
+     */
+    public int getSourceCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return  Whether the websocket is open.
+     */
+    public synchronized boolean isOpen() {
+        return webSocket != null && openResponse != null;
+    }
+
+    /**
+     * Attaches {@code client} to this connection, opening the websocket if it isn't already. The client's
+     * {@link ExtensionWebSocketClient#webSocketFuture webSocketFuture} completes once the websocket is open, or as
+     * soon as {@link Channel#open} is called if it already is.
+     *
+     * @param client    The client to attach.
+     * @return          The {@link Channel} the client sends through.
+     */
+    synchronized Channel attach(ExtensionWebSocketClient client) {
+        Channel channel = new Channel(client);
+        Channel old = channels.put(client.getSourceName(), channel);
+        if (old != null) {
+            awaitingAuth.remove(old.client);
+        }
+        if (webSocket == null) {
+            webSocket = openWebSocket(client.getMinWebSocketMessageToCompress());
+        }
+        log.debug("Source {} attached", client.getSourceName());
+        return channel;
+    }
+
+    /**
+     * Opens the websocket. Messages received on it are passed to this connection.
+     *
+     * @param minToCompress The size below which messages are not compressed by the permessage-deflate extension.
+     * @return              The websocket.
+     */
+    WebSocket openWebSocket(long minToCompress) {
+        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .writeTimeout(0, TimeUnit.MILLISECONDS)
+                .minWebSocketMessageToCompress(minToCompress);
+        if (Utils.obtainSendPingStatus()) {
+            clientBuilder.pingInterval(5000, TimeUnit.MILLISECONDS);
+        }
+        Request request = new Request.Builder().url(url).build();
+        return clientBuilder.build().newWebSocket(request, this);
+    }
+
+    /**
+     * Detaches the client of {@code channel}, closing the websocket if no clients are left.
+     */
+    private void detach(Channel channel) {
+        WebSocket toClose = null;
+        synchronized (this) {
+            if (!channels.remove(channel.client.getSourceName(), channel)) {
+                return;
+            }
+            // Its messages still waiting for a response are kept, so that later responses reach the right client
+            awaitingAuth.remove(channel.client);
+            if (channels.isEmpty() && webSocket != null) {
+                toClose = webSocket;
+                reset();
+            }
+        }
+        log.debug("Source {} detached", channel.client.getSourceName());
+        if (toClose != null) {
+            toClose.close(1000, "Closed by client");
+        }
+    }
+
+    // Must be called while holding the lock on this connection
+    private void reset() {
+        webSocket = null;
+        openResponse = null;
+        authSent = false;
+        authResponse = null;
+        awaitingAuth.clear();
+        awaitingResponse.clear();
+    }
+
+    /**
+     * Authenticates {@code client}. The first client to ask sends the authentication message, and every client
+     * receives its result.
+     */
+    private void authenticate(ExtensionWebSocketClient client, Object clientAuthData) {
+        Response result;
+        int resultSize;
+        synchronized (this) {
+            if ((authSent || authResponse != null) && !Objects.equals(clientAuthData, authData)) {
+                log.error("Source {} uses different credentials than the shared connection was authenticated with, "
+                        + "and cannot share it.", client.getSourceName());
+                result = credentialsMismatch(client);
+                resultSize = 0;
+            } else if (authResponse == null) {
+                awaitingAuth.add(client);
+                if (!authSent) {
+                    authData = clientAuthData;
+                    authSent = sendAuthentication();
+                }
+                return;
+            } else {
+                result = authResponse;
+                resultSize = authResponseSize;
+            }
+        }
+        client.getListener().onDecodedMessage(result, resultSize);
+    }
+
+    /**
+     * The failed authentication given to a client whose credentials differ from those the connection uses.
+     */
+    private Response credentialsMismatch(ExtensionWebSocketClient client) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("code", "io.vantiq.extjsdk.sharedConnectionCredentials");
+        error.put("message", "Source " + client.getSourceName() + " cannot share the connection to " + url
+                + ", as it was authenticated with other credentials.");
+        error.put("params", new ArrayList<>());
+        return new Response().status(401).body(Collections.singletonList(error));
+    }
+
+    // Must be called while holding the lock on this connection
+    private boolean sendAuthentication() {
+        Map<String, Object> authMsg = new LinkedHashMap<>();
+        authMsg.put("op", authData instanceof Map ? "authenticate" : "validate");
+        authMsg.put("resourceName", "system.credentials");
+        authMsg.put("object", authData);
+        try {
+            return webSocket != null && webSocket.send(ByteString.of(mapper.writeValueAsBytes(authMsg)));
+        } catch (Exception e) {
+            log.warn("Error sending authentication to WebSocket", e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends a frame for the client of {@code channel}, remembering it if it will be answered with a response.
+     */
+    private synchronized boolean send(Channel channel, String op, ByteString frame) {
+        if (webSocket == null || channels.get(channel.client.getSourceName()) != channel) {
+            return false;
+        }
+        String requestId = Long.toString(++lastRequestId);
+        ByteString tagged = withRequestId(frame, requestId);
+        if (tagged == null) {
+            requestId = null;
+            tagged = frame;
+        }
+        if (!isAnswered(op)) {
+            return webSocket.send(tagged);
+        }
+        Pending pending = new Pending(channel.client, ExtensionServiceMessage.OP_CONNECT_EXTENSION.equals(op),
+                requestId);
+        awaitingResponse.add(pending);
+        boolean sent = webSocket.send(tagged);
+        if (!sent) {
+            awaitingResponse.removeLastOccurrence(pending);
+        }
+        return sent;
+    }
+
+    /**
+     * Whether the Vantiq server answers a message with {@code op} with a response. Query responses and anything else
+     * sent are not answered, so remembering them would route the responses that follow to the wrong client.
+     */
+    private static boolean isAnswered(String op) {
+        return ExtensionServiceMessage.OP_NOTIFICATION.equals(op)
+                || ExtensionWebSocketClient.OP_NOTIFICATION_BATCH.equals(op)
+                || ExtensionServiceMessage.OP_CONNECT_EXTENSION.equals(op);
+    }
+
+    /**
+     * Adds {@code requestId} as the first field of the JSON object in {@code frame}.
+     *
+     * @return  The frame with the field added, or null if the frame is compressed or holds attachments, and so cannot
+     *          be tagged.
+     */
+    static ByteString withRequestId(ByteString frame, String requestId) {
+        if (frame.size() < 2 || frame.getByte(0) != '{') {
+            return null;
+        }
+        return new Buffer()
+                .writeUtf8("{\"" + REQUEST_ID + "\":\"")
+                .writeUtf8(requestId)
+                .writeUtf8(frame.getByte(1) == '}' ? "\"" : "\",")
+                .write(frame.substring(1))
+                .readByteString();
+    }
+
+    @Override
+    public void onOpen(@NotNull WebSocket webSocket, @NotNull okhttp3.Response response) {
+        List<Channel> attached;
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            openResponse = response;
+            attached = new ArrayList<>(channels.values());
+        }
+        log.info("Shared WebSocket open for {} sources", attached.size());
+        for (Channel channel : attached) {
+            channel.client.getListener().onOpen(webSocket, response);
+        }
+    }
+
+    /**
+     * Decodes the message once and passes it to the listener of the client it is meant for.
+     *
+     * @param webSocket The websocket on which the message was received.
+     * @param bodyBytes The {@link ByteString} containing the message received.
+     */
+    @Override
+    public void onMessage(@NotNull WebSocket webSocket, @NotNull ByteString bodyBytes) {
+        Object decoded;
+        try {
+            decoded = decoder.decode(bodyBytes);
+        } catch (Exception e) {
+            log.warn("Failed to interpret WebSocket message as Map.", e);
+            return;
+        }
+
+        if (decoded instanceof ExtensionServiceMessage) {
+            ExtensionServiceMessage message = (ExtensionServiceMessage) decoded;
+            Channel channel = channels.get(String.valueOf(message.getSourceName()));
+            if (channel == null) {
+                log.warn("Message with op '{}' received for unknown source {}", message.getOp(),
+                        message.getSourceName());
+                return;
+            }
+            if (ExtensionServiceMessage.OP_CONFIGURE_EXTENSION.equals(message.getOp())) {
+                // The connection succeeded, so its message will not get a response
+                synchronized (this) {
+                    removeFirst(channel.client, true);
+                }
+            }
+            channel.client.getListener().onDecodedMessage(message, bodyBytes.size());
+            return;
+        }
+
+        Response response = (Response) decoded;
+        List<ExtensionWebSocketClient> recipients = new ArrayList<>();
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            if (authResponse == null) {
+                if (!authSent) {
+                    log.warn("Response received before authentication was sent");
+                    return;
+                }
+                recipients.addAll(awaitingAuth);
+                awaitingAuth.clear();
+                if (response.getStatus() == 200) {
+                    authResponse = response;
+                    authResponseSize = bodyBytes.size();
+                } else {
+                    // Let the next client to authenticate try again
+                    authSent = false;
+                }
+            } else {
+                Object requestId = response.headers == null ? null : ((Map) response.headers).get(REQUEST_ID_HEADER);
+                Pending pending = requestId == null ? awaitingResponse.poll() : removeRequest(requestId.toString());
+                if (pending == null) {
+                    log.debug("Response received with no message waiting for it, request id {}", requestId);
+                    return;
+                }
+                Channel channel = channels.get(pending.client.getSourceName());
+                if (channel == null || channel.client != pending.client) {
+                    log.debug("Response received for detached source {}", pending.client.getSourceName());
+                    return;
+                }
+                recipients.add(pending.client);
+            }
+        }
+        for (ExtensionWebSocketClient client : recipients) {
+            client.getListener().onDecodedMessage(response, bodyBytes.size());
+        }
+    }
+
+    // Must be called while holding the lock on this connection
+    private Pending removeRequest(String requestId) {
+        for (Iterator<Pending> it = awaitingResponse.iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (requestId.equals(pending.requestId)) {
+                it.remove();
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    // Must be called while holding the lock on this connection
+    private void removeFirst(ExtensionWebSocketClient client, boolean connect) {
+        for (Iterator<Pending> it = awaitingResponse.iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (pending.client == client && pending.connect == connect) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        log.info("Closing shared websocket code: {}", code);
+        log.debug(reason);
+    }
+
+    @Override
+    public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        for (Channel channel : dropped(webSocket)) {
+            channel.client.getListener().onClosed(webSocket, code, reason);
+        }
+    }
+
+    @Override
+    public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, okhttp3.Response response) {
+        for (Channel channel : dropped(webSocket)) {
+            channel.client.getListener().onFailure(webSocket, t, response);
+        }
+    }
+
+    /**
+     * Forgets {@code webSocket} and detaches every client, so that the next client to attach opens a new websocket.
+     *
+     * @return  The channels of the clients that were attached.
+     */
+    private synchronized List<Channel> dropped(WebSocket webSocket) {
+        if (webSocket != this.webSocket) {
+            return new ArrayList<>();
+        }
+        List<Channel> attached = new ArrayList<>(channels.values());
+        channels.clear();
+        reset();
+        return attached;
+    }
+
+    /**
+     * A message waiting for a response.
+     */
+    private static class Pending {
+        final ExtensionWebSocketClient client;
+        final boolean connect;
+        // Null if the message could not be tagged with one
+        final String requestId;
+
+        Pending(ExtensionWebSocketClient client, boolean connect, String requestId) {
+            this.client = client;
+            this.connect = connect;
+            this.requestId = requestId;
+        }
+    }
+
+    /**
+     * The view of a {@link SharedConnection} given to one attached client. Closing it detaches the client.
+     */
+    class Channel implements WebSocket {
+        final ExtensionWebSocketClient client;
+
+        Channel(ExtensionWebSocketClient client) {
+            this.client = client;
+        }
+
+        /**
+         * Sends a frame for the client.
+         *
+         * @param op    The op of the message in the frame.
+         * @param frame The frame to send.
+         * @return      true if the frame was handed to the websocket, false otherwise.
+         */
+        boolean send(String op, ByteString frame) {
+            return SharedConnection.this.send(this, op, frame);
+        }
+
+        /**
+         * Tells the client that the websocket is open, if it already is.
+         */
+        void open() {
+            WebSocket openSocket;
+            okhttp3.Response localOpenResponse;
+            synchronized (SharedConnection.this) {
+                openSocket = webSocket;
+                localOpenResponse = openResponse;
+            }
+            if (localOpenResponse != null) {
+                client.getListener().onOpen(openSocket, localOpenResponse);
+            }
+        }
+
+        /**
+         * Authenticates the client, through the authentication shared by every client of the connection.
+         *
+         * @param authData  The credentials of the client.
+         */
+        void authenticate(Object authData) {
+            SharedConnection.this.authenticate(client, authData);
+        }
+
+        @NotNull
+        @Override
+        public Request request() {
+            return new Request.Builder().url(url).build();
+        }
+
+        @Override
+        public long queueSize() {
+            WebSocket localWebSocket;
+            synchronized (SharedConnection.this) {
+                localWebSocket = webSocket;
+            }
+            return localWebSocket == null ? 0 : localWebSocket.queueSize();
+        }
+
+        @Override
+        public boolean send(@NotNull String text) {
+            return send(ByteString.encodeUtf8(text));
+        }
+
+        @Override
+        public boolean send(@NotNull ByteString bytes) {
+            return send(ExtensionWebSocketClient.OP_OTHER, bytes);
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            detach(this);
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            detach(this);
+        }
+    }
+}
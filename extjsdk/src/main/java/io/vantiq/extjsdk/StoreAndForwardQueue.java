@@ -0,0 +1,706 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import okio.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Holds the messages that an {@link ExtensionWebSocketClient} could not send while its connection to Vantiq was down,
+ * and replays them once the connection is back.
+ * <p>
+ * Messages are first kept in an in-memory ring of a fixed capacity. Once the ring is full, the oldest message is
+ * dropped to make room, unless spilling has been enabled through {@link #enableSpill}. With spilling enabled, the
+ * messages that don't fit in memory are serialized and appended to a log of memory-mapped segment files in a local
+ * directory, and the oldest segment is dropped only when the log would grow past its size limit. The segment a replay
+ * is reading from is never dropped; when it is the only one left, the new message is dropped instead. Messages that
+ * fail to spill are kept in memory behind the spilled ones, within the capacity of the ring. Messages always come out of the
+ * queue in the order they went in. Segment files are deleted once every message in them has been replayed,
+ * and the segments left behind by an earlier run for the same source are picked up again when spilling is enabled.
+ * <p>
+ * Replay runs on its own thread and is paced to a configurable number of messages per second. While a replay is in
+ * progress newly sent messages are queued behind it, so that Vantiq still receives them in order.
+ */
+public class StoreAndForwardQueue extends AbstractQueue<Object> {
+
+    /**
+     * The default maximum number of messages replayed per second. 0 means unlimited.
+     */
+    public static final double DEFAULT_REPLAY_RATE = 500;
+
+    /**
+     * The default size of each segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The default limit on the total size of the segment files.
+     */
+    public static final long DEFAULT_MAX_SPILL_BYTES = 256L * 1024 * 1024;
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    // Segment layout: a header holding a magic number and the read position, followed by records made up of the
+    // payload length, a flags byte and the payload. A length of 0 marks the end of the written records.
+    private static final int SEGMENT_MAGIC = 0x56534631;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int DATA_START = 8;
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte FLAG_NOTIFICATION = 1;
+
+    private final String sourceName;
+    private final int memoryCapacity;
+    private final MessageSerializer serializer;
+    private final Logger log;
+
+    // The following are guarded by "this"
+    private final ArrayDeque<Object> memory;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // Messages that could not be spilled, held in memory behind the spilled messages so that they keep their order
+    private final ArrayDeque<Object> unspilled = new ArrayDeque<>();
+    private int spilledDepth = 0;
+    private File spillDirectory = null;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long maxSpillBytes = DEFAULT_MAX_SPILL_BYTES;
+    private long spillBytesOnDisk = 0;
+    private long nextSegmentId = 0;
+    private boolean replaying = false;
+    private long replayStartNanos = 0;
+    private long replayedThisRun = 0;
+
+    private volatile double replayRate = DEFAULT_REPLAY_RATE;
+
+    private final AtomicLong bytesSpilled = new AtomicLong();
+    private final AtomicLong messagesSpilled = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final AtomicLong messagesReplayed = new AtomicLong();
+
+    /**
+     * Creates a queue that holds up to {@code memoryCapacity} messages in memory, and doesn't spill to disk until
+     * {@link #enableSpill} is called.
+     *
+     * @param sourceName        The name of the source whose messages are queued. Used to name the segment files.
+     * @param memoryCapacity    The number of messages held in memory.
+     * @param serializer        The {@link MessageSerializer} used to write the messages that are spilled to disk.
+     */
+    public StoreAndForwardQueue(String sourceName, int memoryCapacity, MessageSerializer serializer) {
+        if (memoryCapacity < 1) {
+            throw new IllegalArgumentException("The queue's memory capacity must be greater than 0.");
+        }
+        this.sourceName = sourceName;
+        this.memoryCapacity = memoryCapacity;
+        this.serializer = serializer;
+        this.memory = new ArrayDeque<>(memoryCapacity);
+        log = LoggerFactory.getLogger(this.getClass().getCanonicalName() + "#" + sourceName);
+    }
+
+    /**
+     * Spills the messages that don't fit in memory to segment files in {@code directory}. Any segments left in the
+     * directory by an earlier run for the same source are queued again, ahead of any new messages.
+     *
+     * @param directory     The directory that holds the segment files. Created if it doesn't exist.
+     * @param segmentSize   The size of each segment file, in bytes.
+     * @param maxBytes      The limit on the total size of the segment files. Must be at least {@code segmentSize}.
+     * @throws IOException  if the directory or the existing segments could not be opened.
+     */
+    public synchronized void enableSpill(File directory, int segmentSize, long maxBytes) throws IOException {
+        if (segmentSize <= DATA_START + RECORD_HEADER_SIZE || maxBytes < segmentSize) {
+            throw new IllegalArgumentException("The segment size must be positive and no larger than maxBytes.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the spill directory " + directory);
+        }
+        this.spillDirectory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSpillBytes = maxBytes;
+        recoverSegments();
+    }
+
+    /**
+     * @return  Whether messages that don't fit in memory are spilled to disk.
+     */
+    public synchronized boolean isSpillEnabled() {
+        return spillDirectory != null;
+    }
+
+    /**
+     * Sets the maximum number of messages replayed per second.
+     *
+     * @param messagesPerSecond The maximum replay rate. 0 means unlimited.
+     */
+    public void setReplayRate(double messagesPerSecond) {
+        if (messagesPerSecond < 0) {
+            throw new IllegalArgumentException("The replay rate cannot be negative.");
+        }
+        this.replayRate = messagesPerSecond;
+    }
+
+    /**
+     * @return  The maximum number of messages replayed per second, or 0 if unlimited.
+     */
+    public double getReplayRate() {
+        return replayRate;
+    }
+
+    @Override
+    public synchronized boolean offer(Object message) {
+        if (message == null) {
+            throw new NullPointerException("Messages cannot be null.");
+        }
+        // Once anything has spilled, new messages must follow it onto disk to keep them in order
+        if (segments.isEmpty() && unspilled.isEmpty() && memory.size() < memoryCapacity) {
+            memory.addLast(message);
+            return true;
+        }
+        if (spillDirectory != null && unspilled.isEmpty()) {
+            try {
+                spill(message);
+                return true;
+            } catch (IOException e) {
+                log.error("Failed to spill a message to {}. Keeping it in memory instead.", spillDirectory, e);
+            }
+        }
+        if (segments.isEmpty() && unspilled.isEmpty()) {
+            memory.pollFirst();
+            messagesDropped.incrementAndGet();
+            memory.addLast(message);
+            return true;
+        }
+        // Behind the spilled messages, within the same limit as the ring, dropping the oldest message held in memory
+        if (memory.size() + unspilled.size() >= memoryCapacity) {
+            if (memory.pollFirst() == null) {
+                unspilled.pollFirst();
+            }
+            messagesDropped.incrementAndGet();
+        }
+        unspilled.addLast(message);
+        return true;
+    }
+
+    @Override
+    public synchronized Object poll() {
+        Object message = memory.pollFirst();
+        if (message != null) {
+            return message;
+        }
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            SpilledMessage spilled = segment.read(true);
+            if (segment.isConsumed()) {
+                segments.pollFirst();
+                deleteSegment(segment);
+            }
+            if (spilled != null) {
+                spilledDepth--;
+                return spilled;
+            }
+        }
+        return unspilled.pollFirst();
+    }
+
+    @Override
+    public synchronized Object peek() {
+        Object message = memory.peekFirst();
+        if (message != null) {
+            return message;
+        }
+        for (Segment segment : segments) {
+            SpilledMessage spilled = segment.read(false);
+            if (spilled != null) {
+                return spilled;
+            }
+        }
+        return unspilled.peekFirst();
+    }
+
+    @Override
+    public synchronized int size() {
+        return memory.size() + spilledDepth + unspilled.size();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue. Spilled messages are returned as {@link SpilledMessage}s.
+     * Removal is not supported.
+     */
+    @Override
+    public synchronized Iterator<Object> iterator() {
+        List<Object> snapshot = new ArrayList<>(memory);
+        for (Segment segment : segments) {
+            segment.readAll(snapshot);
+        }
+        snapshot.addAll(unspilled);
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        memory.clear();
+        unspilled.clear();
+        for (Segment segment : segments) {
+            deleteSegment(segment);
+        }
+        segments.clear();
+        spilledDepth = 0;
+    }
+
+    /**
+     * Adds the messages produced by {@code messages} to the queue if a replay is in progress, so that they are sent
+     * after the messages queued before them.
+     *
+     * @param messages  Produces the messages to add. Only called if they are added.
+     * @return          true if the messages were added, false if they should be sent directly.
+     */
+    synchronized boolean offerIfReplaying(Supplier<? extends Collection<?>> messages) {
+        if (!replaying) {
+            return false;
+        }
+        for (Object message : messages.get()) {
+            offer(message);
+        }
+        return true;
+    }
+
+    /**
+     * @return  Whether a replay is in progress.
+     */
+    public synchronized boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Starts replaying the queued messages on a separate thread, unless a replay is already in progress or the queue
+     * is empty. Each message is passed to {@code sender}, which returns false if the message could not be sent. That
+     * message is then put back at the head of the queue and the replay stops.
+     *
+     * @param sender    Sends a queued message.
+     */
+    public void startReplay(Predicate<Object> sender) {
+        synchronized (this) {
+            if (replaying || isEmpty()) {
+                return;
+            }
+            replaying = true;
+            replayStartNanos = System.nanoTime();
+            replayedThisRun = 0;
+        }
+        log.info("Replaying {} queued messages", size());
+        Thread replayThread = new Thread(() -> replay(sender), "extjsdk-replay-" + sourceName);
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    private void replay(Predicate<Object> sender) {
+        long sent = 0;
+        try {
+            while (true) {
+                Object message;
+                synchronized (this) {
+                    message = poll();
+                    if (message == null) {
+                        replaying = false;
+                        break;
+                    }
+                }
+                pace(sent);
+                boolean delivered;
+                try {
+                    delivered = sender.test(message);
+                } catch (Exception e) {
+                    log.warn("Error replaying a queued message", e);
+                    delivered = false;
+                }
+                if (!delivered) {
+                    synchronized (this) {
+                        memory.addFirst(message);
+                        replaying = false;
+                    }
+                    log.info("Replay stopped with {} messages still queued", size());
+                    break;
+                }
+                sent++;
+                messagesReplayed.incrementAndGet();
+                synchronized (this) {
+                    replayedThisRun = sent;
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                replaying = false;
+            }
+            Thread.currentThread().interrupt();
+        }
+        log.debug("Replayed {} queued messages", sent);
+    }
+
+    // Waits until the replay is allowed to send the next message
+    private void pace(long sent) throws InterruptedException {
+        double rate = replayRate;
+        if (rate <= 0) {
+            return;
+        }
+        long startNanos;
+        synchronized (this) {
+            startNanos = replayStartNanos;
+        }
+        long dueNanos = startNanos + (long) (sent * TimeUnit.SECONDS.toNanos(1) / rate);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    // Must be called while synchronized on this
+    private void spill(Object message) throws IOException {
+        boolean notification = false;
+        ByteString frame;
+        if (message instanceof SpilledMessage) {
+            notification = ((SpilledMessage) message).isNotification();
+            frame = ((SpilledMessage) message).getFrame();
+        } else {
+            notification = isNotification(message);
+            frame = serializer.serialize(message);
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoomFor(frame.size())) {
+            tail = createSegment(frame.size());
+            if (tail == null) {
+                messagesDropped.incrementAndGet();
+                log.warn("Spilled messages exceeded {} bytes while replaying. Dropped the newest message.",
+                        maxSpillBytes);
+                return;
+            }
+        }
+        tail.append(notification ? FLAG_NOTIFICATION : 0, frame);
+        spilledDepth++;
+        messagesSpilled.incrementAndGet();
+        bytesSpilled.addAndGet(frame.size());
+    }
+
+    // Must be called while synchronized on this. Returns null if there is no room for another segment.
+    private Segment createSegment(int recordSize) throws IOException {
+        int capacity = Math.max(segmentSize, DATA_START + RECORD_HEADER_SIZE + recordSize);
+        // Make room by dropping the oldest segments, but never the one being read from while a replay is running
+        Iterator<Segment> evictable = segments.iterator();
+        if (replaying && evictable.hasNext()) {
+            evictable.next();
+        }
+        while (spillBytesOnDisk + capacity > maxSpillBytes) {
+            if (!evictable.hasNext()) {
+                if (segments.isEmpty()) {
+                    // A record larger than the limit still gets a segment of its own
+                    break;
+                }
+                return null;
+            }
+            Segment oldest = evictable.next();
+            evictable.remove();
+            int lost = oldest.unread;
+            spilledDepth -= lost;
+            messagesDropped.addAndGet(lost);
+            deleteSegment(oldest);
+            log.warn("Spilled messages exceeded {} bytes. Dropped {} of the oldest messages.", maxSpillBytes, lost);
+        }
+        File file = new File(spillDirectory, segmentName(nextSegmentId++));
+        Segment segment = Segment.create(file, capacity);
+        segments.addLast(segment);
+        spillBytesOnDisk += capacity;
+        return segment;
+    }
+
+    // Must be called while synchronized on this
+    private void recoverSegments() throws IOException {
+        String prefix = segmentPrefix();
+        File[] files = spillDirectory.listFiles((dir, name) -> name.startsWith(prefix)
+                && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files) {
+            try {
+                Segment segment = Segment.open(file);
+                if (segment.isConsumed()) {
+                    deleteSegment(segment);
+                } else {
+                    recovered.add(segment);
+                }
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable segment file {}", file, e);
+            }
+            String id = file.getName().substring(prefix.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length());
+            try {
+                nextSegmentId = Math.max(nextSegmentId, Long.parseLong(id) + 1);
+            } catch (NumberFormatException e) {
+                // Not one of ours after all; its name just looks similar
+            }
+        }
+        if (recovered.isEmpty()) {
+            return;
+        }
+        // Recovered messages are older than anything in memory, so the messages in memory move behind them
+        List<Object> inMemory = new ArrayList<>(memory);
+        inMemory.addAll(unspilled);
+        memory.clear();
+        unspilled.clear();
+        for (Segment segment : recovered) {
+            segments.addLast(segment);
+            spilledDepth += segment.unread;
+            spillBytesOnDisk += segment.capacity;
+        }
+        for (Object message : inMemory) {
+            spill(message);
+        }
+        log.info("Recovered {} spilled messages from {}", spilledDepth, spillDirectory);
+    }
+
+    private void deleteSegment(Segment segment) {
+        spillBytesOnDisk -= segment.capacity;
+        if (!segment.file.delete()) {
+            log.debug("Could not delete segment file {}", segment.file);
+        }
+    }
+
+    private String segmentPrefix() {
+        return sourceName.replaceAll("[^A-Za-z0-9_.-]", "_") + "-";
+    }
+
+    private String segmentName(long id) {
+        return segmentPrefix() + String.format("%016d", id) + SEGMENT_SUFFIX;
+    }
+
+    static boolean isNotification(Object message) {
+        return message instanceof ExtensionServiceMessage
+                && ExtensionServiceMessage.OP_NOTIFICATION.equals(((ExtensionServiceMessage) message).getOp());
+    }
+
+    /**
+     * @return  The number of messages held in memory.
+     */
+    public synchronized int getMemoryDepth() {
+        return memory.size() + unspilled.size();
+    }
+
+    /**
+     * @return  The number of messages held on disk.
+     */
+    public synchronized int getSpilledDepth() {
+        return spilledDepth;
+    }
+
+    /**
+     * @return  The current total size of the segment files, in bytes.
+     */
+    public synchronized long getSpillBytesOnDisk() {
+        return spillBytesOnDisk;
+    }
+
+    /**
+     * @return  The total number of message bytes written to disk.
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled.get();
+    }
+
+    /**
+     * @return  The total number of messages written to disk.
+     */
+    public long getMessagesSpilled() {
+        return messagesSpilled.get();
+    }
+
+    /**
+     * @return  The number of messages dropped because the queue was full.
+     */
+    public long getMessagesDropped() {
+        return messagesDropped.get();
+    }
+
+    /**
+     * @return  The total number of messages replayed.
+     */
+    public long getMessagesReplayed() {
+        return messagesReplayed.get();
+    }
+
+    /**
+     * @return  The number of messages per second sent by the current replay, or by the last one if none is running.
+     */
+    public synchronized double getCurrentReplayRate() {
+        long elapsed = System.nanoTime() - replayStartNanos;
+        if (replayedThisRun == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return replayedThisRun * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * A message that was spilled to disk, in the serialized form it will be sent in.
+     */
+    public static class SpilledMessage {
+        private final ByteString frame;
+        private final boolean notification;
+
+        SpilledMessage(ByteString frame, boolean notification) {
+            this.frame = frame;
+            this.notification = notification;
+        }
+
+        /**
+         * @return  The serialized message.
+         */
+        public ByteString getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return  Whether the message is a notification, and so subject to notification flow control.
+         */
+        public boolean isNotification() {
+            return notification;
+        }
+
+        @Override
+        public String toString() {
+            return frame.utf8();
+        }
+    }
+
+    /**
+     * A single memory-mapped segment file. Not thread safe; only used while synchronized on the queue.
+     */
+    private static class Segment {
+        final File file;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int readPosition;
+        int unread;
+
+        private Segment(File file, int capacity, MappedByteBuffer buffer) {
+            this.file = file;
+            this.capacity = capacity;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, int capacity) throws IOException {
+            Segment segment = new Segment(file, capacity, map(file, capacity));
+            segment.buffer.putInt(0, SEGMENT_MAGIC);
+            segment.buffer.putInt(READ_POSITION_OFFSET, DATA_START);
+            segment.writePosition = DATA_START;
+            segment.readPosition = DATA_START;
+            return segment;
+        }
+
+        static Segment open(File file) throws IOException {
+            long length = file.length();
+            if (length < DATA_START || length > Integer.MAX_VALUE) {
+                throw new IOException("Segment file has an invalid size");
+            }
+            Segment segment = new Segment(file, (int) length, map(file, (int) length));
+            if (segment.buffer.getInt(0) != SEGMENT_MAGIC) {
+                throw new IOException("Not a segment file");
+            }
+            segment.readPosition = segment.buffer.getInt(READ_POSITION_OFFSET);
+            int position = DATA_START;
+            while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+                int recordLength = segment.buffer.getInt(position);
+                if (recordLength <= 0 || position + RECORD_HEADER_SIZE + recordLength > segment.capacity) {
+                    break;
+                }
+                if (position >= segment.readPosition) {
+                    segment.unread++;
+                }
+                position += RECORD_HEADER_SIZE + recordLength;
+            }
+            segment.writePosition = position;
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int capacity) throws IOException {
+            // The mapping stays valid after the channel is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        boolean hasRoomFor(int size) {
+            return writePosition + RECORD_HEADER_SIZE + size <= capacity;
+        }
+
+        void append(byte flags, ByteString frame) {
+            ByteBuffer target = buffer.duplicate();
+            ((Buffer) target).position(writePosition + RECORD_HEADER_SIZE);
+            target.put(frame.asByteBuffer());
+            buffer.put(writePosition + 4, flags);
+            // Writing the length last means that a partially written record is never read back
+            buffer.putInt(writePosition, frame.size());
+            writePosition += RECORD_HEADER_SIZE + frame.size();
+            unread++;
+        }
+
+        SpilledMessage read(boolean consume) {
+            if (readPosition >= writePosition) {
+                return null;
+            }
+            SpilledMessage message = readAt(readPosition);
+            if (consume) {
+                readPosition += RECORD_HEADER_SIZE + message.getFrame().size();
+                buffer.putInt(READ_POSITION_OFFSET, readPosition);
+                unread--;
+            }
+            return message;
+        }
+
+        void readAll(List<Object> into) {
+            int position = readPosition;
+            while (position < writePosition) {
+                SpilledMessage message = readAt(position);
+                into.add(message);
+                position += RECORD_HEADER_SIZE + message.getFrame().size();
+            }
+        }
+
+        private SpilledMessage readAt(int position) {
+            int length = buffer.getInt(position);
+            byte flags = buffer.get(position + 4);
+            ByteBuffer source = buffer.duplicate();
+            ((Buffer) source).limit(position + RECORD_HEADER_SIZE + length);
+            ((Buffer) source).position(position + RECORD_HEADER_SIZE);
+            return new SpilledMessage(ByteString.of(source), (flags & FLAG_NOTIFICATION) != 0);
+        }
+
+        boolean isConsumed() {
+            return readPosition >= writePosition;
+        }
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local stand-in for the Vantiq server, speaking enough of the websocket protocol for connectors to run against it
+ * without a live server. It authenticates clients, answers source connections with a configuration, acknowledges
+ * notifications and batches of notifications, and sends publishes and queries, either one at a time or as a steady
+ * load. It records the notifications received, the time taken to acknowledge them and the round trip time of queries,
+ * so that connectors can run reproducible throughput and soak tests on a single machine.
+ * <p>
+ * The acknowledgement round trip as seen by a client is recorded by the client itself, as
+ * {@code extjsdk_notification_ack_rtt_seconds}. Use {@link #setAckDelay} to simulate a slower server.
+ * <p>
+ * Modules using this through the extjsdk test artifacts also need {@code com.squareup.okhttp3:mockwebserver} as a
+ * test dependency.
+ */
+public class MockVantiqServer implements Closeable {
+
+    /**
+     * The number of bytes that may be queued on a websocket before the load generators skip a message, rather than
+     * let OkHttp close the connection for exceeding its own limit.
+     */
+    public static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /**
+     * The interval at which the load generators send their messages.
+     */
+    private static final long LOAD_TICK_MILLIS = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(MockVantiqServer.class);
+
+    private final MockWebServer server = new MockWebServer();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final MessageDecoder decoder = new MessageDecoder(mapper);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    private final Map<String, WebSocket> sources = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> configs = new ConcurrentHashMap<>();
+    private final Map<String, PendingQuery> queries = new ConcurrentHashMap<>();
+    private final List<ScheduledFuture<?>> loads = new CopyOnWriteArrayList<>();
+
+    private volatile String authToken = null;
+    private volatile long ackDelayMillis = 0;
+
+    private final MetricsRegistry metrics = new MetricsRegistry("mockVantiqServer");
+    private final MetricsRegistry.Counter notifications;
+    private final MetricsRegistry.Counter notificationFrames;
+    private final MetricsRegistry.Counter publishes;
+    private final MetricsRegistry.Counter queriesSent;
+    private final MetricsRegistry.Counter queriesFailed;
+    private final MetricsRegistry.Counter loadSkipped;
+    private final MetricsRegistry.Histogram ackLatency;
+    private final MetricsRegistry.Histogram queryLatency;
+    private final AtomicLong firstNotification = new AtomicLong();
+    private volatile long lastNotification = 0;
+
+    /**
+     * Starts a server on a free local port.
+     *
+     * @throws IOException  if the server could not be started.
+     */
+    public MockVantiqServer() throws IOException {
+        notifications = metrics.counter("mock_notifications_received_total", "Notifications received.");
+        notificationFrames = metrics.counter("mock_notification_frames_received_total",
+                "Frames of notifications received, counting each batch once.");
+        publishes = metrics.counter("mock_publishes_sent_total", "Publishes sent to sources.");
+        queriesSent = metrics.counter("mock_queries_sent_total", "Queries sent to sources.");
+        queriesFailed = metrics.counter("mock_queries_failed_total", "Queries answered with an error.");
+        loadSkipped = metrics.counter("mock_load_skipped_total",
+                "Generated messages skipped because the websocket had too much queued.");
+        ackLatency = metrics.histogram("mock_ack_latency_seconds",
+                "Time between receiving a notification frame and sending its acknowledgement.");
+        queryLatency = metrics.histogram("mock_query_latency_seconds",
+                "Time between sending a query and receiving the last frame of its response.");
+        metrics.gauge("mock_sources_connected", "Sources currently connected.", sources::size);
+        metrics.gauge("mock_queries_in_progress", "Queries sent that are still awaiting their response.",
+                queries::size);
+
+        server.setDispatcher(new Dispatcher() {
+            @NotNull
+            @Override
+            public MockResponse dispatch(@NotNull RecordedRequest request) {
+                return new MockResponse().withWebSocketUpgrade(new ServerListener());
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return  The URL that clients should connect to.
+     */
+    public String getUrl() {
+        return "http://" + server.getHostName() + ":" + server.getPort();
+    }
+
+    /**
+     * Requires clients to authenticate with {@code token}. By default any token is accepted.
+     *
+     * @param token The token to accept, or null to accept any.
+     */
+    public void setAuthToken(String token) {
+        authToken = token;
+    }
+
+    /**
+     * Sets the configuration sent to {@code sourceName} when it connects. Sources without one receive an empty
+     * configuration.
+     *
+     * @param sourceName    The name of the source.
+     * @param config        The configuration document, sent as the {@code config} property of the source.
+     */
+    public void setSourceConfig(String sourceName, Map<String, Object> config) {
+        configs.put(sourceName, config);
+    }
+
+    /**
+     * Delays every acknowledgement of a notification, to simulate a server further away or under load.
+     *
+     * @param delay The delay.
+     * @param unit  The unit of {@code delay}.
+     */
+    public void setAckDelay(long delay, TimeUnit unit) {
+        ackDelayMillis = unit.toMillis(delay);
+    }
+
+    /**
+     * @param sourceName    The name of the source.
+     * @return              true if {@code sourceName} is connected.
+     */
+    public boolean isConnected(String sourceName) {
+        return sources.containsKey(sourceName);
+    }
+
+    /**
+     * Sends a publish to a connected source.
+     *
+     * @param sourceName    The name of the source.
+     * @param data          The object to publish.
+     * @return              true if the publish was sent, false if the source is not connected.
+     */
+    public boolean publish(String sourceName, Object data) {
+        WebSocket ws = sources.get(sourceName);
+        if (ws == null) {
+            return false;
+        }
+        send(ws, sourceMessage(ExtensionServiceMessage.OP_PUBLISH, sourceName, data, new LinkedHashMap<>()));
+        publishes.increment();
+        return true;
+    }
+
+    /**
+     * Sends a query to a connected source.
+     *
+     * @param sourceName    The name of the source.
+     * @param data          The object sent with the query.
+     * @return              A {@link CompletableFuture} that completes with the rows of the response once the last
+     *                      frame arrives, or exceptionally if the source answers with an error or is not connected.
+     */
+    public CompletableFuture<List<Object>> query(String sourceName, Object data) {
+        WebSocket ws = sources.get(sourceName);
+        if (ws == null) {
+            CompletableFuture<List<Object>> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("Source " + sourceName + " is not connected"));
+            return result;
+        }
+        String replyAddress = UUID.randomUUID().toString();
+        PendingQuery pending = new PendingQuery(ws);
+        queries.put(replyAddress, pending);
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put(ExtensionServiceMessage.ORIGIN_ADDRESS_HEADER, replyAddress);
+        send(ws, sourceMessage(ExtensionServiceMessage.OP_QUERY, sourceName, data, headers));
+        queriesSent.increment();
+        return pending.result;
+    }
+
+    /**
+     * Starts publishing to {@code sourceName} at a steady rate, until {@link #stopLoad} is called. Publishes are
+     * skipped while the source is disconnected, or while more than {@link #MAX_QUEUED_BYTES} are waiting to be sent
+     * to it.
+     *
+     * @param sourceName    The name of the source.
+     * @param perSecond     The number of publishes to send each second.
+     * @param payload       Produces the object to send with each publish.
+     */
+    public void startPublishLoad(String sourceName, double perSecond, Supplier<?> payload) {
+        startLoad(sourceName, perSecond, () -> publish(sourceName, payload.get()));
+    }
+
+    /**
+     * Starts querying {@code sourceName} at a steady rate, until {@link #stopLoad} is called. Queries are skipped
+     * under the same conditions as in {@link #startPublishLoad}. The round trip time of each query is recorded in
+     * {@link #getQueryLatency()}.
+     *
+     * @param sourceName    The name of the source.
+     * @param perSecond     The number of queries to send each second.
+     * @param payload       Produces the object to send with each query.
+     */
+    public void startQueryLoad(String sourceName, double perSecond, Supplier<?> payload) {
+        startLoad(sourceName, perSecond, () -> query(sourceName, payload.get()));
+    }
+
+    /**
+     * Stops all publish and query load.
+     */
+    public void stopLoad() {
+        for (ScheduledFuture<?> load : loads) {
+            load.cancel(false);
+        }
+        loads.clear();
+    }
+
+    /**
+     * @return  The metrics recorded by this server, which can be given to a {@link MetricsReporter}.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return  The number of notifications received, counting each notification in a batch.
+     */
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    /**
+     * @return  The average number of notifications received per second, between the first and the latest.
+     */
+    public double getNotificationRate() {
+        long first = firstNotification.get();
+        long elapsed = lastNotification - first;
+        return first == 0 || elapsed <= 0 ? 0 : notifications.get() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @return  The number of publishes sent.
+     */
+    public long getPublishCount() {
+        return publishes.get();
+    }
+
+    /**
+     * @return  The number of queries sent, whether or not they have been answered.
+     */
+    public long getQueryCount() {
+        return queriesSent.get();
+    }
+
+    /**
+     * @return  The time between receiving a notification frame and sending its acknowledgement.
+     */
+    public MetricsRegistry.Histogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * @return  The round trip time of the queries that have been answered.
+     */
+    public MetricsRegistry.Histogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * Estimates a percentile of a histogram, as the upper bound of the bucket it falls in.
+     *
+     * @param histogram The histogram.
+     * @param quantile  The percentile wanted, between 0 and 1.
+     * @return          The upper bound in seconds of the bucket holding the percentile, or
+     *                  {@link Double#POSITIVE_INFINITY} if it is above every bucket.
+     */
+    public static double percentile(MetricsRegistry.Histogram histogram, double quantile) {
+        long[] counts = histogram.getCumulativeCounts();
+        long target = (long) Math.ceil(quantile * histogram.getCount());
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] >= target) {
+                return MetricsRegistry.Histogram.BUCKET_BOUNDS[i];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Stops all load, closes every connection and shuts the server down.
+     */
+    @Override
+    public void close() throws IOException {
+        stopLoad();
+        scheduler.shutdownNow();
+        for (WebSocket ws : sources.values()) {
+            ws.close(1000, "Server shutting down");
+        }
+        sources.clear();
+        server.shutdown();
+    }
+
+    private void startLoad(String sourceName, double perSecond, Runnable sendOne) {
+        double perTick = perSecond * LOAD_TICK_MILLIS / 1000;
+        loads.add(scheduler.scheduleAtFixedRate(new Runnable() {
+            // Carries fractions of a message over to the next tick, so that low rates are kept too
+            double owed = 0;
+
+            @Override
+            public void run() {
+                owed += perTick;
+                while (owed >= 1) {
+                    owed--;
+                    WebSocket ws = sources.get(sourceName);
+                    if (ws == null || ws.queueSize() > MAX_QUEUED_BYTES) {
+                        loadSkipped.increment();
+                    } else {
+                        sendOne.run();
+                    }
+                }
+            }
+        }, 0, LOAD_TICK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private Map<String, Object> sourceMessage(String op, String sourceName, Object data, Map<String, Object> headers) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("op", op);
+        message.put("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        message.put("resourceId", sourceName);
+        message.put("isSystemResource", true);
+        message.put("contentType", "application/json");
+        message.put("messageHeaders", headers);
+        message.put("object", data);
+        return message;
+    }
+
+    private void send(WebSocket ws, Object message) {
+        try {
+            ws.send(ByteString.of(mapper.writeValueAsBytes(message)));
+        } catch (IOException e) {
+            log.error("Could not serialize message {}", message, e);
+        }
+    }
+
+    private void receiveNotifications(WebSocket ws, int count) {
+        long received = System.nanoTime();
+        firstNotification.compareAndSet(0, received);
+        lastNotification = received;
+        notifications.add(count);
+        notificationFrames.increment();
+        Runnable ack = () -> {
+            send(ws, new Response().status(200));
+            ackLatency.record(System.nanoTime() - received);
+        };
+        if (ackDelayMillis > 0) {
+            scheduler.schedule(ack, ackDelayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            ack.run();
+        }
+    }
+
+    private void receiveQueryResponse(Response response) {
+        String replyAddress = response.getHeader(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER);
+        PendingQuery pending = replyAddress == null ? null : queries.get(replyAddress);
+        if (pending == null) {
+            log.warn("Response received for unknown query {}", replyAddress);
+            return;
+        }
+        int status = response.getStatus();
+        Object body = response.getBody();
+        if (status >= 300) {
+            queries.remove(replyAddress);
+            queriesFailed.increment();
+            pending.result.completeExceptionally(new IOException("Query failed with status " + status + ": " + body));
+            return;
+        }
+        if (body instanceof Collection) {
+            pending.rows.addAll((Collection<?>) body);
+        } else if (body != null) {
+            pending.rows.add(body);
+        }
+        if (status != ExtensionWebSocketClient.QUERY_CHUNK_CODE) {
+            queries.remove(replyAddress);
+            queryLatency.record(System.nanoTime() - pending.sent);
+            pending.result.complete(pending.rows);
+        }
+    }
+
+    private void receive(WebSocket ws, Object decoded) {
+        if (decoded instanceof Response) {
+            receiveQueryResponse((Response) decoded);
+            return;
+        }
+        ExtensionServiceMessage message = (ExtensionServiceMessage) decoded;
+        switch (message.getOp()) {
+            case "validate":
+            case "authenticate":
+                String token = authToken;
+                if (token == null || token.equals(message.getObject())) {
+                    Map<String, Object> body = new LinkedHashMap<>();
+                    body.put("anonymous", false);
+                    send(ws, new Response().status(200).body(body));
+                } else {
+                    send(ws, new Response().status(401).body("Invalid token"));
+                }
+                break;
+            case ExtensionServiceMessage.OP_CONNECT_EXTENSION:
+                String sourceName = message.getSourceName();
+                sources.put(sourceName, ws);
+                Map<String, Object> config = new LinkedHashMap<>();
+                config.put("config", configs.getOrDefault(sourceName, new LinkedHashMap<>()));
+                send(ws, sourceMessage(ExtensionServiceMessage.OP_CONFIGURE_EXTENSION, sourceName, config,
+                        new LinkedHashMap<>()));
+                break;
+            case ExtensionServiceMessage.OP_NOTIFICATION:
+                receiveNotifications(ws, 1);
+                break;
+            default:
+                log.debug("Ignoring message with op {}", message.getOp());
+        }
+    }
+
+    /**
+     * Strips compression and binary attachments from a frame, leaving the JSON message itself.
+     */
+    private static ByteString unwrap(ByteString frame) throws IOException {
+        if (FrameCompressor.isCompressedFrame(frame)) {
+            frame = FrameCompressor.decompress(frame);
+        }
+        if (AttachmentFrame.isAttachmentFrame(frame)) {
+            frame = AttachmentFrame.decode(frame).getMessage();
+        }
+        return frame;
+    }
+
+    private void disconnected(WebSocket ws) {
+        sources.values().removeIf(source -> source == ws);
+        queries.values().removeIf(pending -> {
+            if (pending.ws == ws) {
+                pending.result.completeExceptionally(new IOException("Connection closed before the query completed"));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private class ServerListener extends WebSocketListener {
+        @Override
+        public void onMessage(@NotNull WebSocket ws, @NotNull ByteString frame) {
+            try {
+                ByteString message = unwrap(frame);
+                if (message.size() > 0 && message.getByte(0) == '[') {
+                    // A batch of notifications, acknowledged as a unit
+                    receiveNotifications(ws, mapper.readTree(message.toByteArray()).size());
+                } else {
+                    receive(ws, decoder.decode(frame));
+                }
+            } catch (Exception e) {
+                log.error("Could not handle frame of {} bytes", frame.size(), e);
+            }
+        }
+
+        @Override
+        public void onMessage(@NotNull WebSocket ws, @NotNull String text) {
+            onMessage(ws, ByteString.encodeUtf8(text));
+        }
+
+        @Override
+        public void onClosing(@NotNull WebSocket ws, int code, @NotNull String reason) {
+            disconnected(ws);
+            ws.close(1000, null);
+        }
+
+        @Override
+        public void onFailure(@NotNull WebSocket ws, @NotNull Throwable t, okhttp3.Response response) {
+            disconnected(ws);
+        }
+    }
+
+    private static class PendingQuery {
+        final WebSocket ws;
+        final long sent = System.nanoTime();
+        final List<Object> rows = new ArrayList<>();
+        final CompletableFuture<List<Object>> result = new CompletableFuture<>();
+
+        PendingQuery(WebSocket ws) {
+            this.ws = ws;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConnectionManager extends ExtjsdkTestBase {
+
+    ConnectionManager manager;
+
+    @Before
+    public void setup() {
+        manager = new ConnectionManager(1, 10, 40);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void testHandshakeLimit() {
+        FalseClient first = new FalseClient("first");
+        FalseClient second = new FalseClient("second");
+        CompletableFuture<Boolean> firstResult = manager.connect(first, "url", "token", 10);
+        CompletableFuture<Boolean> secondResult = manager.connect(second, "url", "token", 10);
+        assert manager.connect(first, "url", "token", 10) == firstResult;
+
+        waitUntilTrue(5 * 1000, () -> manager.getHandshakesInProgress() == 1 && manager.getHandshakesWaiting() == 1);
+        assert manager.getHandshakesInProgress() == 1;
+        assert manager.getHandshakesWaiting() == 1;
+        assert first.getSourceConnectionFuture() != null;
+        assert second.getSourceConnectionFuture() == null;
+
+        connect(first);
+        waitUntilTrue(5 * 1000, () -> firstResult.getNow(false) && second.getSourceConnectionFuture() != null);
+        assert firstResult.getNow(false);
+        assert manager.getHandshakesWaiting() == 0;
+
+        connect(second);
+        waitUntilTrue(5 * 1000, () -> secondResult.getNow(false));
+        assert secondResult.getNow(false);
+        assert manager.getHandshakesInProgress() == 0;
+        assert manager.getMetrics().histogram("extjsdk_time_to_connected_seconds", "").getCount() == 2;
+        assert first.getMetrics().histogram("extjsdk_time_to_connected_seconds", "").getCount() == 1;
+    }
+
+    @Test
+    public void testRetryAndCancel() {
+        FalseClient client = new FalseClient("src");
+        CompletableFuture<Boolean> result = manager.reconnect(client, "url", "token", 10);
+
+        // Each failed attempt is retried after a backoff
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            waitUntilTrue(5 * 1000, () -> client.getWebsocketConnectionFuture() != null
+                    && !client.getWebsocketConnectionFuture().isDone());
+            client.completeWebSocketConnection(false);
+        }
+        MetricsRegistry.Counter attempts = manager.getMetrics().counter("extjsdk_connection_attempts_total", "");
+        waitUntilTrue(5 * 1000, () -> attempts.get() == 4);
+        assert attempts.get() == 4;
+        assert manager.getMetrics().counter("extjsdk_connection_failures_total", "").get() == 3;
+        assert !result.isDone();
+
+        manager.cancel(client);
+        assert !result.getNow(true);
+        assert manager.getHandshakesInProgress() == 1;
+        client.completeWebSocketConnection(false);
+        waitUntilTrue(5 * 1000, () -> manager.getHandshakesInProgress() == 0);
+        assert manager.getHandshakesInProgress() == 0;
+    }
+
+    @Test
+    public void testRetriesFailedAuthenticationAndTimeout() {
+        FalseClient client = new FalseClient("src");
+        CompletableFuture<Boolean> result = manager.connect(client, "url", "token", 1);
+        MetricsRegistry.Counter failures = manager.getMetrics().counter("extjsdk_connection_failures_total", "");
+
+        waitUntilTrue(5 * 1000, () -> client.getAuthenticationFuture() != null);
+        client.completeWebSocketConnection(true);
+        client.completeAuthentication(false);
+        waitUntilTrue(5 * 1000, () -> failures.get() == 1);
+        assert failures.get() == 1;
+        assert !result.isDone();
+
+        // The next attempt gets no answer for the source connection, and times out
+        waitUntilTrue(5 * 1000, () -> client.getAuthenticationFuture() != null
+                && !client.getAuthenticationFuture().isDone());
+        client.completeWebSocketConnection(true);
+        client.completeAuthentication(true);
+        waitUntilTrue(5 * 1000, () -> failures.get() == 2);
+        assert failures.get() == 2;
+        assert !result.isDone();
+
+        manager.cancel(client);
+        assert !result.getNow(true);
+    }
+
+    @Test
+    public void testBackoff() {
+        ConnectionManager slow = new ConnectionManager(1, 1000, 8000);
+        try {
+            for (int retry = 1; retry <= 40; retry++) {
+                long ceiling = Math.min(8000, 1000L << Math.min(retry - 1, 30));
+                long backoff = slow.backoff(retry);
+                assert backoff >= ceiling / 2 && backoff <= ceiling : retry + ": " + backoff;
+            }
+        } finally {
+            slow.shutdown();
+        }
+    }
+
+    private void connect(FalseClient client) {
+        client.completeWebSocketConnection(true);
+        waitUntilTrue(5 * 1000, () -> client.getAuthenticationFuture() != null);
+        client.completeAuthentication(true);
+        waitUntilTrue(5 * 1000, () -> client.getSourceConnectionFuture() != null);
+        client.completeSourceConnection(true);
+    }
+}
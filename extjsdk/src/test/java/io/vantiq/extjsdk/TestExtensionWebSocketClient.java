@@ -307,6 +307,84 @@ public class TestExtensionWebSocketClient extends ExtjsdkTestBase {
         assert socket.compareData("resourceId", srcName);
     }
 
+    @Test
+    public void testNotificationBatchingBySize() {
+        markSourceConnected(true);
+        // Use a long delay so that only the size limit can trigger the flush
+        client.enableNotificationBatching(3, 60 * 1000);
+
+        for (int i = 0; i < 3; i++) {
+            Map<String,Object> m = new LinkedHashMap<>();
+            m.put("count", i);
+            client.sendNotification(m);
+        }
+
+        assert socket.framesReceived == 1;
+        assert socket.lastBatch.size() == 3;
+        for (int i = 0; i < 3; i++) {
+            Map<String,Object> msg = socket.lastBatch.get(i);
+            assert ExtensionServiceMessage.OP_NOTIFICATION.equals(msg.get("op"));
+            assert srcName.equals(msg.get("resourceId"));
+            assert Integer.valueOf(i).equals(getTransformVal(msg, "object.count"));
+        }
+
+        NotificationBatcher batcher = client.getNotificationBatcher();
+        assert batcher.getBatchesSent() == 1;
+        assert batcher.getNotificationsSent() == 3;
+        assert batcher.getFlushCount(NotificationBatcher.FlushReason.SIZE) == 1;
+        assert batcher.getFlushCount(NotificationBatcher.FlushReason.LATENCY) == 0;
+    }
+
+    @Test
+    public void testNotificationBatchingByLatency() {
+        markSourceConnected(true);
+        client.enableNotificationBatching(NotificationBatcher.DEFAULT_MAX_BATCH_SIZE, 5);
+
+        client.sendNotification(new LinkedHashMap<>());
+        client.sendNotification(new LinkedHashMap<>());
+
+        NotificationBatcher batcher = client.getNotificationBatcher();
+        // Sent from another thread than the one that flushes expired batches
+        waitUntilTrue(5 * 1000, () -> batcher.getFlushCount(NotificationBatcher.FlushReason.LATENCY) == 1);
+        assert socket.framesReceived == 1;
+        assert socket.lastBatch.size() == 2;
+        assert batcher.getFlushCount(NotificationBatcher.FlushReason.LATENCY) == 1;
+        assert batcher.getLargestBatch() == 2;
+
+        // Disabling batching sends anything still pending, and later notifications are sent individually
+        client.enableNotificationBatching(NotificationBatcher.DEFAULT_MAX_BATCH_SIZE, 60 * 1000);
+        NotificationBatcher explicitBatcher = client.getNotificationBatcher();
+        client.sendNotification(new LinkedHashMap<>());
+        client.disableNotificationBatching();
+        assert socket.lastBatch.size() == 1;
+        assert explicitBatcher.getFlushCount(NotificationBatcher.FlushReason.EXPLICIT) == 1;
+        assert client.getNotificationBatcher() == null;
+
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("msg", "str");
+        client.sendNotification(m);
+        assert socket.compareData("object.msg", "str");
+    }
+
+    @Test
+    public void testFailedNotificationBatchIsQueued() {
+        markSourceConnected(true);
+        client.enableNotificationBatching(2, 60 * 1000);
+        socket.failSends = true;
+
+        for (int i = 0; i < 2; i++) {
+            Map<String,Object> m = new LinkedHashMap<>();
+            m.put("count", i);
+            client.sendNotification(m);
+        }
+
+        // The batch is kept for the next connection rather than dropped, and gives back its notification slot
+        waitUntilTrue(5 * 1000, () -> !client.getFailedMessageQueue().isReplaying());
+        assert client.getFailedMessageQueue().size() == 2 : client.getFailedMessageQueue().size();
+        assert client.getNotificationBatcher().getBatchesSent() == 0;
+        assert client.getNotificationFlowControl().getInFlight() == 0;
+    }
+
     @Test
     public void testOpenAndClose() {
         // Setup a client and listener and mark things "connected"
@@ -389,10 +467,14 @@ public class TestExtensionWebSocketClient extends ExtjsdkTestBase {
 
         // Upon a "reconnection" (here we're just forcing the issue by sending a connectExtension message), we should
         // see that the queue was flushed
+        newClient.webSocket = new FalseWebSocket();
         newClient.webSocketFuture = CompletableFuture.completedFuture(true);
         newClient.authFuture = CompletableFuture.completedFuture(true);
         newClient.sourceFuture = CompletableFuture.completedFuture(false);
         newClient.listener.onMessage(client.webSocket, testListener.createConfigResponse(new LinkedHashMap<>(), srcName));
+        // The queue is replayed asynchronously
+        waitUntilTrue(5 * 1000, () -> newClient.failedMessageQueue.size() == 0
+                && !newClient.failedMessageQueue.isReplaying());
         assert newClient.failedMessageQueue.size() == 0;
 
         // Now lets do the same thing with a query
@@ -407,10 +489,14 @@ public class TestExtensionWebSocketClient extends ExtjsdkTestBase {
         newClient.sendQueryResponse(200, queryAddress, queryData);
         assert newClient.failedMessageQueue.size() == 1;
 
+        newClient.webSocket = new FalseWebSocket();
         newClient.webSocketFuture = CompletableFuture.completedFuture(true);
         newClient.authFuture = CompletableFuture.completedFuture(true);
         newClient.sourceFuture = CompletableFuture.completedFuture(false);
         newClient.listener.onMessage(client.webSocket, testListener.createConfigResponse(new LinkedHashMap<>(), srcName));
+        // The queue is replayed asynchronously
+        waitUntilTrue(5 * 1000, () -> newClient.failedMessageQueue.size() == 0
+                && !newClient.failedMessageQueue.isReplaying());
         assert newClient.failedMessageQueue.size() == 0;
     }
 
@@ -516,12 +602,24 @@ public class TestExtensionWebSocketClient extends ExtjsdkTestBase {
     private class FalseWebSocket implements WebSocket {
         
         Map<String,Object> lastData = null;
+        List<Map<String,Object>> lastBatch = null;
+        int framesReceived = 0;
         boolean messageReceived = false;
+        boolean failSends = false;
 
         @Override
         public boolean send(ByteString bytes) {
+            if (failSends) {
+                return false;
+            }
             try {
-                lastData = mapper.readValue(bytes.toByteArray(), Map.class);
+                Object data = mapper.readValue(bytes.toByteArray(), Object.class);
+                if (data instanceof List) {
+                    lastBatch = (List<Map<String,Object>>) data;
+                } else {
+                    lastData = (Map<String,Object>) data;
+                }
+                framesReceived++;
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFrameCompressor extends ExtjsdkTestBase {
+
+    MetricsRegistry metrics;
+    FrameCompressor compressor;
+
+    @Before
+    public void setup() {
+        metrics = new MetricsRegistry("src");
+        compressor = new FrameCompressor(FrameCompressor.DEFAULT_LEVEL, 100, metrics);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append("{\"tag\":\"ns=2;s=Line1.Temperature\",\"value\":").append(i).append("},");
+        }
+        ByteString frame = ByteString.encodeUtf8(json.append("{}]").toString());
+
+        ByteString compressed = compressor.compress(frame);
+        assert FrameCompressor.isCompressedFrame(compressed);
+        assert compressed.size() < frame.size() / 5 : compressed.size();
+        assert FrameCompressor.decompress(compressed).equals(frame);
+
+        assert compressor.getCompressionRatio() > 5;
+        assert metrics.counter("extjsdk_compression_input_bytes_total", "").get() == frame.size();
+        assert metrics.counter("extjsdk_compression_output_bytes_total", "").get() == compressed.size();
+        assert metrics.histogram("extjsdk_compression_seconds", "").getCount() == 1;
+    }
+
+    @Test
+    public void testUncompressedFrames() throws Exception {
+        // Too small
+        ByteString small = ByteString.encodeUtf8("{\"status\":200}");
+        assert compressor.compress(small) == small;
+
+        // Doesn't get any smaller
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        ByteString incompressible = ByteString.of(random);
+        assert compressor.compress(incompressible) == incompressible;
+
+        assert metrics.counter("extjsdk_compression_skipped_total", "").get() == 2;
+        assert compressor.getCompressionRatio() == 1;
+
+        try {
+            FrameCompressor.decompress(compressor.compress(ByteString.encodeUtf8(repeat("abc", 100))).substring(0, 5));
+            assert false : "A truncated frame should not decompress";
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            new FrameCompressor(0, 0, null);
+            assert false : "Level 0 is not a compression level";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testClientCompression() throws Exception {
+        FalseClient client = new FalseClient("src");
+        client.initiateFullConnection("url", "token");
+        client.webSocketFuture = CompletableFuture.completedFuture(true);
+        client.authFuture = CompletableFuture.completedFuture(true);
+        client.sourceFuture = CompletableFuture.completedFuture(true);
+        client.enableCompression(1, 200);
+
+        List<Object> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", i);
+            row.put("name", "row");
+            rows.add(row);
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("rows", rows);
+        client.sendNotification(data);
+        ByteString sent = ByteString.of(client.getLastMessageAsBytes());
+        assert FrameCompressor.isCompressedFrame(sent);
+
+        ExtensionServiceMessage message = (ExtensionServiceMessage) new MessageDecoder(new ObjectMapper()).decode(sent);
+        assert data.equals(message.getObject());
+        assert client.getMetrics().counter("extjsdk_bytes_sent_total", "", "op",
+                ExtensionServiceMessage.OP_NOTIFICATION).get() == sent.size();
+
+        client.disableCompression();
+        client.acknowledgeNotification();
+        client.sendNotification(data);
+        assert !FrameCompressor.isCompressedFrame(ByteString.of(client.getLastMessageAsBytes()));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+}
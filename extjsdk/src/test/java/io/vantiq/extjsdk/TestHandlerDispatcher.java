@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestHandlerDispatcher extends ExtjsdkTestBase {
+
+    HandlerDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testDirectRunsOnCaller() {
+        dispatcher = HandlerDispatcher.direct();
+        Thread caller = Thread.currentThread();
+        List<Thread> ran = new ArrayList<>();
+        dispatcher.dispatch(HandlerDispatcher.HandlerType.PUBLISH, null, new Handler<String>() {
+            @Override
+            public void handleMessage(String message) {
+                ran.add(Thread.currentThread());
+            }
+        }, "msg");
+
+        assert ran.size() == 1 && ran.get(0) == caller;
+        HandlerDispatcher.Stats stats = dispatcher.getStats(HandlerDispatcher.HandlerType.PUBLISH);
+        assert stats.getHandled() == 1;
+        assert stats.getQueueDepth() == 0;
+        assert stats.getLatencyPercentile(50, TimeUnit.NANOSECONDS) >= 0;
+        assert dispatcher.getStats(HandlerDispatcher.HandlerType.QUERY).getHandled() == 0;
+    }
+
+    @Test
+    public void testBoundedExecutorFreesCaller() throws Exception {
+        dispatcher = HandlerDispatcher.boundedExecutor(2, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        Handler<String> slow = new Handler<String>() {
+            @Override
+            public void handleMessage(String message) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(HandlerDispatcher.HandlerType.QUERY, null, slow, "msg" + i);
+        }
+
+        // The caller got here while every handler is still blocked, and one message is waiting for a thread
+        HandlerDispatcher.Stats stats = dispatcher.getStats(HandlerDispatcher.HandlerType.QUERY);
+        waitUntilTrue(1000, () -> stats.getQueueDepth() == 1);
+        assert stats.getQueueDepth() == 1;
+        assert stats.getMaxQueueDepth() >= 1;
+
+        release.countDown();
+        assert done.await(5, TimeUnit.SECONDS);
+        waitUntilTrue(1000, () -> stats.getHandled() == 3);
+        assert stats.getHandled() == 3;
+        assert stats.getQueueDepth() == 0;
+    }
+
+    @Test
+    public void testOrderedLanesKeepOrderPerKey() throws Exception {
+        dispatcher = HandlerDispatcher.orderedLanes(4, 100);
+        Map<String, List<Integer>> seen = Collections.synchronizedMap(new HashMap<>());
+        CountDownLatch done = new CountDownLatch(400);
+        Handler<int[]> handler = new Handler<int[]>() {
+            @Override
+            public void handleMessage(int[] message) {
+                seen.computeIfAbsent("key" + message[0], k -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(message[1]);
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            for (int key = 0; key < 4; key++) {
+                dispatcher.dispatch(HandlerDispatcher.HandlerType.PUBLISH, "key" + key, handler, new int[] {key, i});
+            }
+        }
+        assert done.await(5, TimeUnit.SECONDS);
+
+        for (List<Integer> values : seen.values()) {
+            for (int i = 0; i < 100; i++) {
+                assert values.get(i) == i;
+            }
+        }
+    }
+
+    @Test
+    public void testFailuresAreCounted() {
+        dispatcher = HandlerDispatcher.direct();
+        dispatcher.dispatch(HandlerDispatcher.HandlerType.HTTP, null, new Handler<String>() {
+            @Override
+            public void handleMessage(String message) {
+                throw new RuntimeException("Expected for test");
+            }
+        }, "msg");
+        assert dispatcher.getStats(HandlerDispatcher.HandlerType.HTTP).getFailures() == 1;
+        assert dispatcher.getStats(HandlerDispatcher.HandlerType.HTTP).getHandled() == 1;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMessageDecoder extends ExtjsdkTestBase {
+
+    ObjectMapper mapper;
+    MessageDecoder decoder;
+
+    @Before
+    public void setup() {
+        mapper = new ObjectMapper();
+        decoder = new MessageDecoder(mapper);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDecodeMessageMatchesFromMap() throws Exception {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("text", "caf\u00e9 \u2603");
+        body.put("list", Arrays.asList(1, 2, 3));
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put(ExtensionServiceMessage.ORIGIN_ADDRESS_HEADER, "addr");
+
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("unknownField", Arrays.asList("a", "b"));
+        m.put("op", ExtensionServiceMessage.OP_PUBLISH);
+        m.put("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        m.put("object", body);
+        m.put("resourceId", "src");
+        m.put("isExternal", true);
+        m.put(ExtensionServiceMessage.PROPERTY_MESSAGE_HEADERS, headers);
+        ByteString frame = ByteString.of(mapper.writeValueAsBytes(m));
+
+        Object decoded = decoder.decode(frame);
+        assert decoded instanceof ExtensionServiceMessage;
+        ExtensionServiceMessage msg = (ExtensionServiceMessage) decoded;
+        ExtensionServiceMessage expected = new ExtensionServiceMessage("").fromMap(m);
+
+        // The body is only decoded when asked for
+        assert msg.object == null;
+        assert body.equals(msg.getObject());
+        assert msg.object != null;
+
+        assert expected.asMap().equals(msg.asMap());
+        assert "addr".equals(ExtensionServiceMessage.extractReplyAddress(msg));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDecodeResponse() throws Exception {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("status", 404);
+        m.put("body", Arrays.asList("error"));
+        ByteString frame = ByteString.of(mapper.writeValueAsBytes(m));
+
+        Object decoded = decoder.decode(frame);
+        assert decoded instanceof Response;
+        Response resp = (Response) decoded;
+        assert resp.getStatus() == 404;
+        assert resp.body == null;
+        assert Arrays.asList("error").equals(resp.getBody());
+
+        // Scalar bodies are available immediately
+        m.put("status", 200);
+        m.put("body", "ok");
+        resp = (Response) decoder.decode(ByteString.of(mapper.writeValueAsBytes(m)));
+        assert resp.getStatus() == 200;
+        assert "ok".equals(resp.getBody());
+    }
+
+    @Test
+    public void testNonObjectFrameRejected() {
+        try {
+            decoder.decode(ByteString.encodeUtf8("[1, 2]"));
+            assert false : "A JSON array should not decode as a message";
+        } catch (java.io.IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMessageSerializer extends ExtjsdkTestBase {
+
+    ObjectMapper mapper;
+    MessageSerializer serializer;
+
+    @Before
+    public void setup() {
+        mapper = new ObjectMapper();
+        serializer = new MessageSerializer(mapper);
+    }
+
+    @Test
+    public void testNotificationMatchesMessage() throws Exception {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("a", 1);
+        data.put("b", "str");
+
+        ByteString frame = serializer.serializeNotification("src", data);
+        ExtensionServiceMessage msg = new ExtensionServiceMessage("");
+        msg.fromMap(mapper.readValue(frame.toByteArray(), Map.class));
+
+        assert ExtensionServiceMessage.OP_NOTIFICATION.equals(msg.getOp());
+        assert ExtensionServiceMessage.RESOURCE_NAME_SOURCES.equals(msg.resourceName);
+        assert "src".equals(msg.getSourceName());
+        assert data.equals(msg.getObject());
+
+        // Every field of the serialized message is there with the same value, apart from the null ones
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("op", ExtensionServiceMessage.OP_NOTIFICATION);
+        m.put("resourceId", "src");
+        m.put("resourceName", ExtensionServiceMessage.RESOURCE_NAME_SOURCES);
+        m.put("object", data);
+        Map<?, ?> legacy = mapper.readValue(mapper.writeValueAsBytes(new ExtensionServiceMessage("").fromMap(m)),
+                Map.class);
+        legacy.values().removeIf(value -> value == null);
+        assert legacy.equals(mapper.readValue(frame.toByteArray(), Map.class)) : frame.utf8();
+    }
+
+    @Test
+    public void testBatchAndBufferReuse() throws Exception {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("id", 1);
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("id", 2);
+
+        ByteString frame = serializer.serializeNotificationBatch("src", Arrays.asList(first, second));
+        List<?> batch = mapper.readValue(frame.toByteArray(), List.class);
+        assert batch.size() == 2;
+        assert first.equals(((Map) batch.get(0)).get("object"));
+        assert second.equals(((Map) batch.get(1)).get("object"));
+
+        // The frame returned earlier must not be affected by later use of the same buffer
+        ByteString copy = ByteString.of(frame.toByteArray());
+        serializer.serializeNotification("src", second);
+        assert copy.equals(frame);
+    }
+
+    @Test
+    public void testBinaryAttachments() throws Exception {
+        byte[] image = new byte[]{0, 1, 2, (byte) 0xff, 'x'};
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", "img");
+        data.put("image", image);
+        data.put("thumbnails", Arrays.asList(new byte[]{9}, new byte[0]));
+
+        // Off by default, so the image is Base64 text in a plain JSON frame
+        ByteString frame = serializer.serializeNotification("src", data);
+        assert !AttachmentFrame.isAttachmentFrame(frame);
+        assert frame.utf8().contains("\"AAEC/3g=\"");
+
+        serializer.setBinaryAttachments(true);
+        frame = serializer.serializeNotification("src", data);
+        assert AttachmentFrame.isAttachmentFrame(frame);
+        AttachmentFrame parts = AttachmentFrame.decode(frame);
+        assert parts.getAttachments().size() == 3;
+        assert Arrays.equals(parts.getAttachments().get(0), image);
+        assert parts.getMessage().utf8().contains("\"image\":{\"$attachment\":0}");
+
+        ExtensionServiceMessage msg = (ExtensionServiceMessage) new MessageDecoder(mapper).decode(frame);
+        assert "src".equals(msg.getSourceName());
+        Map object = (Map) msg.getObject();
+        assert "img".equals(object.get("name"));
+        assert Arrays.equals((byte[]) object.get("image"), image);
+        List thumbnails = (List) object.get("thumbnails");
+        assert Arrays.equals((byte[]) thumbnails.get(0), new byte[]{9});
+        assert ((byte[]) thumbnails.get(1)).length == 0;
+
+        // Batches and other messages carry attachments too, and messages without any stay plain JSON
+        frame = serializer.serializeNotificationBatch("src", Arrays.asList(data, data));
+        assert AttachmentFrame.decode(frame).getAttachments().size() == 6;
+        Response response = new Response().status(200).body(image);
+        assert AttachmentFrame.decode(serializer.serialize(response)).getAttachments().size() == 1;
+        Map<String, Object> plain = new LinkedHashMap<>();
+        plain.put("a", 1);
+        assert !AttachmentFrame.isAttachmentFrame(serializer.serializeNotification("src", plain));
+    }
+
+    @Test
+    public void testTruncatedAttachmentFrame() throws Exception {
+        serializer.setBinaryAttachments(true);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("bytes", new byte[100]);
+        ByteString frame = serializer.serializeNotification("src", data);
+        try {
+            AttachmentFrame.decode(frame.substring(0, frame.size() - 1));
+            assert false : "A truncated frame should not decode";
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
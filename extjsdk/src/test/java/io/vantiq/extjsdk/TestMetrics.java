@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import okio.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMetrics extends ExtjsdkTestBase {
+
+    MetricsRegistry registry;
+
+    @Before
+    public void setup() {
+        registry = new MetricsRegistry("src");
+    }
+
+    @Test
+    public void testRegistry() {
+        registry.counter("sent_total", "Sent", "op", "a").increment();
+        registry.counter("sent_total", "Sent", "op", "a").add(2);
+        registry.counter("sent_total", "Sent", "op", "b").increment();
+        registry.gauge("depth", "Depth", () -> 7);
+        MetricsRegistry.Histogram histogram = registry.histogram("latency_seconds", "Latency");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(50));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(20));
+
+        assert registry.counter("sent_total", "Sent", "op", "a").get() == 3;
+        assert registry.getFamilies().size() == 3;
+        assert histogram.getCount() == 3;
+        long[] counts = histogram.getCumulativeCounts();
+        assert counts[0] == 1;
+        // 3ms falls in the 5ms bucket
+        assert counts[4] == 1 && counts[5] == 2;
+        // 20s is above every bucket
+        assert counts[counts.length - 1] == 2;
+
+        try {
+            registry.histogram("depth", "Depth");
+            assert false : "A metric cannot change type";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assert MetricsReporter.formatLine(registry)
+                .startsWith("depth=7 latency_seconds=3/mean:") : MetricsReporter.formatLine(registry);
+        assert MetricsReporter.formatLine(registry).endsWith("sent_total{op=a}=3 sent_total{op=b}=1");
+    }
+
+    @Test
+    public void testPrometheusFormat() {
+        registry.counter("sent_total", "Sent", "op", "a").add(3);
+        registry.gauge("depth", "Depth", () -> 2.5);
+        registry.gauge("queue_depth", "Queue depth", "handler", "query", () -> 4);
+        registry.histogram("latency_seconds", "Latency").record(TimeUnit.MILLISECONDS.toNanos(1));
+
+        PrometheusMetricsReporter reporter = new PrometheusMetricsReporter();
+        assert reporter.scrape().isEmpty();
+        reporter.start(registry);
+        String text = reporter.scrape();
+
+        assert text.contains("# TYPE sent_total counter\n");
+        assert text.contains("sent_total{source=\"src\",op=\"a\"} 3\n");
+        assert text.contains("# HELP depth Depth\n# TYPE depth gauge\ndepth{source=\"src\"} 2.5\n");
+        assert text.contains("queue_depth{source=\"src\",handler=\"query\"} 4\n");
+        assert text.contains("latency_seconds_bucket{source=\"src\",le=\"5.0E-4\"} 0\n");
+        assert text.contains("latency_seconds_bucket{source=\"src\",le=\"0.001\"} 1\n");
+        assert text.contains("latency_seconds_bucket{source=\"src\",le=\"+Inf\"} 1\n");
+        assert text.contains("latency_seconds_count{source=\"src\"} 1\n");
+
+        reporter.stop();
+        assert reporter.scrape().isEmpty();
+    }
+
+    @Test
+    public void testPrometheusServesProbePort() throws Exception {
+        registry.counter("sent_total", "Sent").increment();
+        PrometheusMetricsReporter reporter = new PrometheusMetricsReporter();
+        reporter.start(registry);
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            // A plain TCP probe connects and hangs up without sending anything
+            CompletableFuture<Void> probe = CompletableFuture.runAsync(() -> {
+                try {
+                    new Socket("localhost", server.getLocalPort()).close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reporter.serve(server.accept());
+            probe.get(5, TimeUnit.SECONDS);
+
+            CompletableFuture<String> scrape = CompletableFuture.supplyAsync(() -> scrapeOver(server));
+            reporter.serve(server.accept());
+            String response = scrape.get(5, TimeUnit.SECONDS);
+
+            assert response.startsWith("HTTP/1.1 200 OK\r\n");
+            assert response.contains("Content-Type: " + PrometheusMetricsReporter.CONTENT_TYPE);
+            assert response.endsWith(reporter.scrape());
+            assert response.contains("sent_total{source=\"src\"} 1\n");
+
+            // A connection that sends nothing must not hold up the next scrape until its request times out
+            try (Socket idle = new Socket("localhost", server.getLocalPort())) {
+                reporter.accept(server.accept());
+                CompletableFuture<String> next = CompletableFuture.supplyAsync(() -> scrapeOver(server));
+                reporter.accept(server.accept());
+                assert next.get(1, TimeUnit.SECONDS).startsWith("HTTP/1.1 200 OK\r\n");
+            }
+        }
+    }
+
+    private static String scrapeOver(ServerSocket server) {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        registry.counter("sent_total", "Sent", "op", "a").add(4);
+        registry.histogram("latency_seconds", "Latency").record(TimeUnit.MILLISECONDS.toNanos(2));
+        MetricsReporter reporter = MetricsReporter.jmx();
+        reporter.start(registry);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = ((JmxMetricsReporter) reporter).getObjectName();
+        assert name.equals(new ObjectName("io.vantiq.extjsdk:type=Metrics,source=\"src\""));
+        assert server.getAttribute(name, "sent_total.a").equals(4L);
+        assert server.getAttribute(name, "latency_seconds.count").equals(1L);
+        assert server.getMBeanInfo(name).getAttributes().length == 4;
+
+        // Metrics created later show up too
+        registry.counter("reconnects_total", "Reconnects").increment();
+        assert server.getAttribute(name, "reconnects_total").equals(1L);
+
+        reporter.stop();
+        assert !server.isRegistered(name);
+    }
+
+    @Test
+    public void testClientMetrics() throws Exception {
+        FalseClient client = new FalseClient("src");
+        client.initiateFullConnection("url", "token");
+        client.webSocketFuture = CompletableFuture.completedFuture(true);
+        client.authFuture = CompletableFuture.completedFuture(true);
+        client.sourceFuture = CompletableFuture.completedFuture(true);
+        MetricsRegistry metrics = client.getMetrics();
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("a", 1);
+        client.sendNotification(data);
+        int notificationSize = client.getLastMessageAsBytes().length;
+        client.sendQueryResponse(ExtensionWebSocketClient.QUERY_DATA_CODE, "addr", data);
+        client.acknowledgeNotification();
+
+        assert metrics.counter("extjsdk_messages_sent_total", "", "op", ExtensionServiceMessage.OP_NOTIFICATION)
+                .get() == 1;
+        assert metrics.counter("extjsdk_bytes_sent_total", "", "op", ExtensionServiceMessage.OP_NOTIFICATION)
+                .get() == notificationSize;
+        assert metrics.counter("extjsdk_messages_sent_total", "", "op", "response").get() == 1;
+        assert metrics.histogram("extjsdk_serialization_seconds", "").getCount() >= 2;
+        assert metrics.histogram("extjsdk_notification_window_wait_seconds", "").getCount() == 1;
+        assert metrics.histogram("extjsdk_notification_ack_rtt_seconds", "").getCount() == 1;
+
+        ByteString received = ByteString.encodeUtf8("{\"status\":200}");
+        client.getListener().onMessage(client.webSocket, received);
+        assert metrics.counter("extjsdk_messages_received_total", "", "op", "response").get() == 1;
+        assert metrics.counter("extjsdk_bytes_received_total", "", "op", "response").get() == received.size();
+
+        // The failed message queue depth is read when reported
+        client.sourceFuture = CompletableFuture.completedFuture(false);
+        client.sendNotification(data);
+        String line = MetricsReporter.formatLine(metrics);
+        assert line.contains("extjsdk_failed_queue_depth=1") : line;
+        assert line.contains("extjsdk_notification_blocked_acquires=0") : line;
+        assert !line.contains("extjsdk_notification_ack_rtt_p99_seconds=NaN") : line;
+        assert line.contains("extjsdk_notification_batch_flushes{reason=size}=0") : line;
+        assert line.contains("extjsdk_handler_queue_depth{handler=publish}=0") : line;
+        assert line.contains("extjsdk_handler_latency_p99_seconds{handler=http}=NaN") : line;
+        assert line.contains("extjsdk_failed_queue_bytes_spilled=0") : line;
+    }
+}
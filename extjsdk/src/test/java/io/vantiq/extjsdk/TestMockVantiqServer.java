@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMockVantiqServer extends ExtjsdkTestBase {
+
+    static final String SOURCE_NAME = "mockSource";
+
+    MockVantiqServer server;
+    ExtensionWebSocketClient client;
+    File serverConfigFile;
+
+    @Before
+    public void setup() throws IOException {
+        server = new MockVantiqServer();
+        server.setAuthToken("token");
+        client = new ExtensionWebSocketClient(SOURCE_NAME);
+
+        // Make initial Utils.obtainServerConfig() call so that we don't get errors later on
+        serverConfigFile = new File("server.config");
+        serverConfigFile.createNewFile();
+        serverConfigFile.deleteOnExit();
+        Utils.obtainServerConfig();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.stop();
+        server.close();
+        serverConfigFile.delete();
+    }
+
+    @Test
+    public void testConnectAndNotify() throws Exception {
+        ExtensionWebSocketClient badClient = new ExtensionWebSocketClient(SOURCE_NAME);
+        try {
+            assert !badClient.initiateFullConnection(server.getUrl(), "wrong").get(10, TimeUnit.SECONDS);
+            assert !badClient.isAuthed();
+        } finally {
+            badClient.stop();
+        }
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("setting", "value");
+        server.setSourceConfig(SOURCE_NAME, config);
+        List<Object> received = new ArrayList<>();
+        client.setConfigHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                received.add(((Map) message.getObject()).get("config"));
+            }
+        });
+        assert client.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+        assert server.isConnected(SOURCE_NAME);
+        assert config.equals(received.get(0));
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        for (int i = 0; i < 100; i++) {
+            client.sendNotification(data);
+        }
+        // Batches are counted by the notifications they hold, but acknowledged once
+        client.enableNotificationBatching(10, 5);
+        for (int i = 0; i < 100; i++) {
+            client.sendNotification(data);
+        }
+        waitUntilTrue(10 * 1000, () -> server.getNotificationCount() == 200
+                && client.getNotificationFlowControl().getInFlight() == 0);
+        assert server.getNotificationCount() == 200;
+        assert client.getNotificationFlowControl().getInFlight() == 0;
+        assert server.getAckLatency().getCount() < 200;
+    }
+
+    @Test
+    public void testPublishAndQuery() throws Exception {
+        List<Object> published = new ArrayList<>();
+        client.setPublishHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                published.add(message.getObject());
+            }
+        });
+        client.setQueryHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
+                Map request = (Map) message.getObject();
+                if (request.containsKey("fail")) {
+                    client.sendQueryError(replyAddress, "test.failure", "Failed as asked", new Object[0]);
+                    return;
+                }
+                try (QueryResponseStream stream = client.openQueryResponseStream(replyAddress, 2, 1024 * 1024)) {
+                    for (int i = 0; i < (Integer) request.get("rows"); i++) {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        row.put("row", i);
+                        stream.write(row);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assert client.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        assert server.publish(SOURCE_NAME, data);
+        assert !server.publish("otherSource", data);
+        waitUntilTrue(5 * 1000, () -> published.size() == 1);
+        assert data.equals(published.get(0));
+
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put("rows", 5);
+        List<Object> rows = server.query(SOURCE_NAME, query).get(10, TimeUnit.SECONDS);
+        assert rows.size() == 5 : rows;
+        assert ((Map) rows.get(4)).get("row").equals(4);
+        assert server.getQueryLatency().getCount() == 1;
+
+        query.put("fail", true);
+        try {
+            server.query(SOURCE_NAME, query).get(10, TimeUnit.SECONDS);
+            assert false : "The query should have failed";
+        } catch (java.util.concurrent.ExecutionException e) {
+            assert e.getCause().getMessage().contains("400");
+        }
+    }
+
+    @Test
+    public void testSharedConnectionAcknowledgements() throws Exception {
+        SharedConnection connection = new SharedConnection(client.validifyUrl(server.getUrl()));
+        ExtensionWebSocketClient other = new ExtensionWebSocketClient("otherSource");
+        try {
+            client.setSharedConnection(connection);
+            other.setSharedConnection(connection);
+            for (ExtensionWebSocketClient source : new ExtensionWebSocketClient[] {client, other}) {
+                source.setQueryHandler(new Handler<ExtensionServiceMessage>() {
+                    @Override
+                    public void handleMessage(ExtensionServiceMessage message) {
+                        source.sendQueryResponse(ExtensionWebSocketClient.QUERY_DATA_CODE,
+                                ExtensionServiceMessage.extractReplyAddress(message),
+                                new Map[] {(Map) message.getObject()});
+                    }
+                });
+            }
+            assert client.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+            assert other.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+            assert connection.getSourceCount() == 2;
+
+            // Query responses are not acknowledged, so they must not take the acknowledgements of the notifications
+            // sent around them by either source
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("val", 1);
+            List<CompletableFuture<List<Object>>> queries = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                queries.add(server.query(SOURCE_NAME, data));
+                client.sendNotification(data);
+                queries.add(server.query("otherSource", data));
+                other.sendNotification(data);
+                other.sendNotification(data);
+            }
+            for (CompletableFuture<List<Object>> query : queries) {
+                assert query.get(10, TimeUnit.SECONDS).size() == 1;
+            }
+            waitUntilTrue(10 * 1000, () -> server.getNotificationCount() == 150
+                    && client.getNotificationFlowControl().getInFlight() == 0
+                    && other.getNotificationFlowControl().getInFlight() == 0);
+            assert server.getNotificationCount() == 150;
+            assert client.getNotificationFlowControl().getInFlight() == 0;
+            assert other.getNotificationFlowControl().getInFlight() == 0;
+            assert client.getNotificationFlowControl().getAcknowledgements() == 50
+                    : client.getNotificationFlowControl().getAcknowledgements();
+            assert other.getNotificationFlowControl().getAcknowledgements() == 100
+                    : other.getNotificationFlowControl().getAcknowledgements();
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void testNotifyingHandlerWithFullDispatcher() throws Exception {
+        // A single notification in flight, a single handler thread and a single queued publish, so that the reader
+        // soon has no room for the publishes while the handler waits for an acknowledgement only the reader can read
+        client.configureNotificationFlowControl(1, 1, 1);
+        HandlerDispatcher dispatcher = HandlerDispatcher.boundedExecutor(1, 1, 50);
+        client.setHandlerDispatcher(dispatcher);
+        AtomicLong handled = new AtomicLong();
+        client.setPublishHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                client.sendNotification(message.getObject());
+                client.sendNotification(message.getObject());
+                handled.incrementAndGet();
+            }
+        });
+        server.setAckDelay(100, TimeUnit.MILLISECONDS);
+        assert client.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        for (int i = 0; i < 20; i++) {
+            assert server.publish(SOURCE_NAME, data);
+        }
+
+        // Every publish is either handled or rejected, and every notification sent is acknowledged
+        HandlerDispatcher.Stats stats = dispatcher.getStats(HandlerDispatcher.HandlerType.PUBLISH);
+        waitUntilTrue(10 * 1000, () -> handled.get() + stats.getFailures() == 20
+                && client.getNotificationFlowControl().getInFlight() == 0);
+        assert handled.get() + stats.getFailures() == 20 : handled.get() + " handled, " + stats.getFailures()
+                + " rejected";
+        assert stats.getFailures() > 0;
+        assert client.getNotificationFlowControl().getInFlight() == 0;
+        assert server.getNotificationCount() == 2 * handled.get();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        // Runs for TestLoadSeconds, so that the same test can be used as a longer soak test
+        long seconds = Long.parseLong(System.getProperty("TestLoadSeconds", "2"));
+        AtomicLong publishes = new AtomicLong();
+        client.setPublishHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                publishes.incrementAndGet();
+            }
+        });
+        client.setQueryHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                client.sendQueryResponse(ExtensionWebSocketClient.QUERY_DATA_CODE,
+                        ExtensionServiceMessage.extractReplyAddress(message), new Map[] {(Map) message.getObject()});
+            }
+        });
+        server.setAckDelay(1, TimeUnit.MILLISECONDS);
+        assert client.initiateFullConnection(server.getUrl(), "token").get(10, TimeUnit.SECONDS);
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        server.startPublishLoad(SOURCE_NAME, 1000, () -> data);
+        server.startQueryLoad(SOURCE_NAME, 100, () -> data);
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        while (System.currentTimeMillis() < end) {
+            client.sendNotification(data);
+        }
+        server.stopLoad();
+
+        waitUntilTrue(10 * 1000, () -> client.getNotificationFlowControl().getInFlight() == 0);
+        print(String.format("Over %ds: %.0f notifications/s, ack p99 %.4fs, %d publishes, %d queries, query p99 %.4fs",
+                seconds, server.getNotificationRate(), MockVantiqServer.percentile(server.getAckLatency(), 0.99),
+                publishes.get(), server.getQueryLatency().getCount(),
+                MockVantiqServer.percentile(server.getQueryLatency(), 0.99)));
+        assert server.getNotificationCount() > 0;
+        assert publishes.get() > 0;
+        assert server.getQueryLatency().getCount() > 0;
+        double rtt = client.getMetrics().histogram("extjsdk_notification_ack_rtt_seconds", "").getSumSeconds();
+        assert rtt > 0;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestNotificationFlowControl extends ExtjsdkTestBase {
+
+    @Test
+    public void testWindowGrowsWithSteadyRtt() throws InterruptedException {
+        NotificationFlowControl flowControl = new NotificationFlowControl(2, 1, 10);
+        assert flowControl.getWindow() == 2;
+
+        // Every ack comes back immediately, so the window should grow up to its maximum. A GC pause can occasionally
+        // look like congestion, so allow for more acks than strictly necessary.
+        int acks = 0;
+        while (flowControl.getWindow() < 10 && acks < 2000) {
+            flowControl.acquire();
+            flowControl.sending();
+            flowControl.acknowledge();
+            acks++;
+        }
+
+        assert flowControl.getWindow() == 10;
+        assert flowControl.getInFlight() == 0;
+        assert flowControl.getAcknowledgements() == acks;
+        assert flowControl.getRttPercentile(50, TimeUnit.NANOSECONDS) >= 0;
+        assert flowControl.getRttPercentile(99, TimeUnit.NANOSECONDS)
+                >= flowControl.getRttPercentile(50, TimeUnit.NANOSECONDS);
+    }
+
+    @Test
+    public void testWindowShrinksWhenRttIncreases() throws InterruptedException {
+        NotificationFlowControl flowControl = new NotificationFlowControl(8, 1, 8);
+        // Establish a low baseline RTT
+        for (int i = 0; i < 10; i++) {
+            flowControl.acquire();
+            flowControl.sending();
+            flowControl.acknowledge();
+        }
+        int window = flowControl.getWindow();
+        long decreases = flowControl.getWindowDecreases();
+
+        // An ack that takes far longer than the baseline should halve the window
+        flowControl.acquire();
+        flowControl.sending();
+        Thread.sleep(50);
+        flowControl.acknowledge();
+
+        assert flowControl.getWindow() == Math.max(1, window / 2);
+        assert flowControl.getWindowDecreases() == decreases + 1;
+    }
+
+    @Test
+    public void testProducerBlocksUntilAck() throws Exception {
+        NotificationFlowControl flowControl = new NotificationFlowControl(1, 1, 1);
+        flowControl.acquire();
+        flowControl.sending();
+
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                flowControl.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assert !blocked.isDone();
+
+        flowControl.acknowledge();
+        blocked.get(5, TimeUnit.SECONDS);
+        assert flowControl.getBlockedAcquires() == 1;
+        assert flowControl.getBlockedTime(TimeUnit.MILLISECONDS) > 0;
+
+        // A reset forgets everything in flight
+        flowControl.reset();
+        assert flowControl.getInFlight() == 0;
+    }
+
+    @Test
+    public void testAbortAndUnexpectedAcks() throws InterruptedException {
+        NotificationFlowControl flowControl = new NotificationFlowControl(2, 1, 2);
+
+        // A response with nothing in flight is not an acknowledgement
+        assert flowControl.acknowledge() == -1;
+        assert flowControl.getAcknowledgements() == 0;
+
+        // An aborted send takes its send time with it, so the next acknowledgement is timed from the right send
+        flowControl.acquire();
+        long failed = flowControl.sending();
+        flowControl.acquire();
+        flowControl.sending();
+        flowControl.abort(failed);
+        assert flowControl.getInFlight() == 1;
+        assert flowControl.acknowledge() >= 0;
+        assert flowControl.getInFlight() == 0;
+        assert flowControl.acknowledge() == -1;
+        assert flowControl.getAcknowledgements() == 1;
+    }
+
+    @Test
+    public void testConfigureInPlace() throws Exception {
+        NotificationFlowControl flowControl = new NotificationFlowControl(1, 1, 1);
+        flowControl.acquire();
+        flowControl.sending();
+
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                flowControl.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assert !blocked.isDone();
+
+        // Growing the window lets the waiting producer through, while the notification in flight keeps its slot
+        flowControl.configure(2, 1, 4);
+        blocked.get(5, TimeUnit.SECONDS);
+        assert flowControl.getInFlight() == 2;
+        assert flowControl.getMaxWindow() == 4;
+
+        flowControl.sending();
+        assert flowControl.acknowledge() >= 0;
+        assert flowControl.acknowledge() >= 0;
+        assert flowControl.getInFlight() == 0;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQueryResponseStream extends ExtjsdkTestBase {
+
+    static final String REPLY_ADDRESS = "reply-address";
+
+    ObjectMapper mapper;
+    ExtensionWebSocketClient client;
+    RecordingWebSocket socket;
+
+    @Before
+    public void setup() {
+        mapper = new ObjectMapper();
+        client = new ExtensionWebSocketClient("src");
+        socket = new RecordingWebSocket();
+        client.webSocket = socket;
+        client.webSocketFuture = CompletableFuture.completedFuture(true);
+        client.authFuture = CompletableFuture.completedFuture(true);
+        client.sourceFuture = CompletableFuture.completedFuture(true);
+    }
+
+    @Test
+    public void testFramesCutByRowCount() throws Exception {
+        try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 2, 0)) {
+            for (int i = 0; i < 5; i++) {
+                stream.write(row(i, "value"));
+            }
+        }
+
+        List<Map> frames = socket.getFrames();
+        assert frames.size() == 3;
+        assertFrame(frames.get(0), ExtensionWebSocketClient.QUERY_CHUNK_CODE, 0, 1);
+        assertFrame(frames.get(1), ExtensionWebSocketClient.QUERY_CHUNK_CODE, 2, 3);
+        assertFrame(frames.get(2), ExtensionWebSocketClient.QUERY_DATA_CODE, 4);
+    }
+
+    @Test
+    public void testExactMultipleEndsWithData() throws Exception {
+        QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 2, 0);
+        for (int i = 0; i < 4; i++) {
+            stream.write(row(i, "value"));
+        }
+        // The second frame is full, but is held back until it is known whether it's the last
+        assert socket.getFrames().size() == 1;
+        stream.close();
+
+        List<Map> frames = socket.getFrames();
+        assert frames.size() == 2;
+        assertFrame(frames.get(1), ExtensionWebSocketClient.QUERY_DATA_CODE, 2, 3);
+        assert stream.getRowsWritten() == 4;
+        assert stream.getFramesSent() == 2;
+    }
+
+    @Test
+    public void testFramesCutByBytes() throws Exception {
+        String padding = String.join("", Collections.nCopies(100, "x"));
+        try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 0, 250)) {
+            for (int i = 0; i < 7; i++) {
+                stream.write(row(i, padding));
+            }
+        }
+
+        // Each row is a little over 100 bytes, so a frame fills up on its third row
+        List<Map> frames = socket.getFrames();
+        assert frames.size() == 3;
+        assertFrame(frames.get(0), ExtensionWebSocketClient.QUERY_CHUNK_CODE, 0, 1, 2);
+        assertFrame(frames.get(1), ExtensionWebSocketClient.QUERY_CHUNK_CODE, 3, 4, 5);
+        assertFrame(frames.get(2), ExtensionWebSocketClient.QUERY_DATA_CODE, 6);
+    }
+
+    @Test
+    public void testEmptyAndFailed() throws Exception {
+        client.openQueryResponseStream(REPLY_ADDRESS).close();
+        Map frame = socket.getFrames().get(0);
+        assert frame.get("status").equals(ExtensionWebSocketClient.QUERY_NODATA_CODE);
+        assert REPLY_ADDRESS.equals(((Map) frame.get("headers")).get(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER));
+        assert ((Map) frame.get("body")).isEmpty();
+
+        QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 10, 0);
+        stream.write(row(0, "value"));
+        stream.fail("code", "Query failed: {0}", new Object[]{"reason"});
+        // Closing a failed stream must not send the rows that were discarded
+        stream.close();
+
+        List<Map> frames = socket.getFrames();
+        assert frames.size() == 2;
+        assert frames.get(1).get("status").equals(400);
+        assert "code".equals(((Map) frames.get(1).get("body")).get("messageCode"));
+        assert stream.isClosed();
+    }
+
+    @Test
+    public void testMatchesResponse() throws Exception {
+        List<Map> rows = new ArrayList<>();
+        rows.add(row(0, "caf\u00e9"));
+        rows.add(row(1, "\"quoted\""));
+        try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS)) {
+            for (Map r : rows) {
+                stream.write(r);
+            }
+        }
+
+        Response expected = new Response()
+                .status(ExtensionWebSocketClient.QUERY_DATA_CODE)
+                .addHeader(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER, REPLY_ADDRESS)
+                .body(rows);
+        assert mapper.readValue(mapper.writeValueAsBytes(expected), Map.class).equals(socket.getFrames().get(0));
+    }
+
+    @Test
+    public void testFrameHeader() throws Exception {
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("columns", Arrays.asList("id", "value"));
+        try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 2, 0)) {
+            stream.setFrameHeader(header);
+            for (int i = 0; i < 3; i++) {
+                stream.write(new Object[]{i, "value"});
+            }
+            try {
+                stream.setFrameHeader(null);
+                assert false : "The header cannot change once rows are written";
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+
+        // Every frame carries the header, followed by its own rows
+        List<Map> frames = socket.getFrames();
+        assert frames.size() == 2;
+        for (int i = 0; i < frames.size(); i++) {
+            Map body = (Map) frames.get(i).get("body");
+            assert body.get("columns").equals(header.get("columns"));
+            List frameRows = (List) body.get(QueryResponseStream.FRAME_ROWS);
+            assert frameRows.size() == (i == 0 ? 2 : 1);
+            assert ((List) frameRows.get(0)).get(0).equals(i * 2);
+        }
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        socket.queued.set(QueryResponseStream.DEFAULT_MAX_QUEUED_BYTES + 1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 1, 0)) {
+                for (int i = 0; i < 3; i++) {
+                    stream.write(row(i, "value"));
+                }
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+
+        // The first frame is ready to go once the second row is written, but must wait for the websocket to drain
+        Thread.sleep(200);
+        assert socket.getFrames().isEmpty();
+        assert writer.isAlive();
+
+        socket.queued.set(0);
+        writer.join(5000);
+        assert !writer.isAlive();
+        assert error.get() == null;
+        assert socket.getFrames().size() == 3;
+    }
+
+    @Test
+    public void testQueuedWhenDisconnected() throws Exception {
+        client.sourceFuture = CompletableFuture.completedFuture(false);
+        try (QueryResponseStream stream = client.openQueryResponseStream(REPLY_ADDRESS, 1, 0)) {
+            stream.write(row(0, "value"));
+            stream.write(row(1, "value"));
+        }
+
+        assert socket.getFrames().isEmpty();
+        assert client.getFailedMessageQueue().size() == 2;
+        StoreAndForwardQueue.SpilledMessage last = (StoreAndForwardQueue.SpilledMessage)
+                new ArrayList<>(client.getFailedMessageQueue()).get(1);
+        assert !last.isNotification();
+        assert mapper.readValue(last.getFrame().toByteArray(), Map.class).get("status")
+                .equals(ExtensionWebSocketClient.QUERY_DATA_CODE);
+    }
+
+    Map<String, Object> row(int id, String value) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", id);
+        row.put("value", value);
+        return row;
+    }
+
+    void assertFrame(Map frame, int status, int... ids) {
+        assert frame.get("status").equals(status);
+        assert REPLY_ADDRESS.equals(((Map) frame.get("headers")).get(ExtensionServiceMessage.RESPONSE_ADDRESS_HEADER));
+        List body = (List) frame.get("body");
+        assert body.size() == ids.length;
+        for (int i = 0; i < ids.length; i++) {
+            assert ((Map) body.get(i)).get("id").equals(ids[i]);
+        }
+    }
+
+    /**
+     * A websocket that keeps every frame sent, and reports whatever outbound queue size the test sets.
+     */
+    class RecordingWebSocket extends FalseWebSocket {
+        final List<ByteString> sent = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong queued = new AtomicLong();
+
+        @Override
+        public boolean send(@NotNull ByteString bytes) {
+            sent.add(bytes);
+            return true;
+        }
+
+        @Override
+        public long queueSize() {
+            return queued.get();
+        }
+
+        List<Map> getFrames() throws Exception {
+            List<Map> frames = new ArrayList<>();
+            synchronized (sent) {
+                for (ByteString frame : sent) {
+                    frames.add(mapper.readValue(frame.toByteArray(), Map.class));
+                }
+            }
+            return frames;
+        }
+    }
+}
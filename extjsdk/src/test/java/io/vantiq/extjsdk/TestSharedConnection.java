@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSharedConnection extends ExtjsdkTestBase {
+
+    FalseSharedConnection connection;
+    ExtensionWebSocketClient clientA;
+    ExtensionWebSocketClient clientB;
+
+    @Before
+    public void setup() {
+        connection = new FalseSharedConnection();
+        clientA = new ExtensionWebSocketClient("srcA");
+        clientB = new ExtensionWebSocketClient("srcB");
+        clientA.setSharedConnection(connection);
+        clientB.setSharedConnection(connection);
+    }
+
+    @Test
+    public void testSharedHandshake() {
+        connectBoth();
+
+        // A single websocket carried a single authentication and a connection message per source
+        assert connection.opened == 1;
+        assert connection.socket.frames.size() == 3 : connection.socket.frames.size();
+        assert connection.socket.frames.get(0).utf8().contains("\"validate\"");
+        assert connection.getSourceCount() == 2;
+    }
+
+    @Test
+    public void testRouting() {
+        connectBoth();
+        List<ExtensionServiceMessage> publishesToB = new ArrayList<>();
+        clientB.setPublishHandler(new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                publishesToB.add(message);
+            }
+        });
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        connection.onMessage(connection.socket, TestListener.createPublishMessage(data, "srcB"));
+        assert publishesToB.size() == 1;
+        assert data.equals(publishesToB.get(0).getObject());
+
+        // Each acknowledgement goes back to the source that sent the notification it acknowledges
+        clientA.sendNotification(data);
+        clientB.sendNotification(data);
+        clientB.sendNotification(data);
+        assert clientA.getNotificationFlowControl().getInFlight() == 1;
+        assert clientB.getNotificationFlowControl().getInFlight() == 2;
+        ByteString ack = TestListener.createHttpMessage(new Response().status(200));
+        connection.onMessage(connection.socket, ack);
+        assert clientA.getNotificationFlowControl().getInFlight() == 0;
+        assert clientB.getNotificationFlowControl().getInFlight() == 2;
+        connection.onMessage(connection.socket, ack);
+        connection.onMessage(connection.socket, ack);
+        assert clientB.getNotificationFlowControl().getInFlight() == 0;
+    }
+
+    @Test
+    public void testRoutingByRequestId() throws Exception {
+        connectBoth();
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("val", 1);
+        clientA.sendNotification(data);
+        clientB.sendNotification(data);
+        int sent = connection.socket.frames.size();
+        Map frameA = mapper.readValue(connection.socket.frames.get(sent - 2).toByteArray(), Map.class);
+        Map frameB = mapper.readValue(connection.socket.frames.get(sent - 1).toByteArray(), Map.class);
+        assert data.equals(frameB.get("object"));
+        assert !frameA.get(SharedConnection.REQUEST_ID).equals(frameB.get(SharedConnection.REQUEST_ID));
+
+        // A response naming the message it answers goes to its sender, even if it is not the oldest
+        connection.onMessage(connection.socket, TestListener.createHttpMessage(new Response().status(200)
+                .addHeader(SharedConnection.REQUEST_ID_HEADER, (String) frameB.get(SharedConnection.REQUEST_ID))));
+        assert clientA.getNotificationFlowControl().getInFlight() == 1;
+        assert clientB.getNotificationFlowControl().getInFlight() == 0;
+
+        // One naming a message that expects no response, such as a query response, is not taken as an acknowledgement
+        connection.onMessage(connection.socket, TestListener.createHttpMessage(new Response().status(400)
+                .addHeader(SharedConnection.REQUEST_ID_HEADER, "unknown")));
+        assert clientA.getNotificationFlowControl().getInFlight() == 1;
+
+        connection.onMessage(connection.socket, TestListener.createHttpMessage(new Response().status(200)));
+        assert clientA.getNotificationFlowControl().getInFlight() == 0;
+    }
+
+    @Test
+    public void testWithRequestId() {
+        assert "{\"requestId\":\"7\",\"op\":\"x\"}".equals(
+                SharedConnection.withRequestId(ByteString.encodeUtf8("{\"op\":\"x\"}"), "7").utf8());
+        assert "{\"requestId\":\"7\"}".equals(
+                SharedConnection.withRequestId(ByteString.encodeUtf8("{}"), "7").utf8());
+        assert SharedConnection.withRequestId(ByteString.of((byte) 0, (byte) 1), "7") == null;
+    }
+
+    @Test
+    public void testDifferentCredentialsRejected() {
+        connectBoth();
+
+        // A source with other credentials must not run with those the connection was authenticated with
+        ExtensionWebSocketClient clientC = new ExtensionWebSocketClient("srcC");
+        clientC.setSharedConnection(connection);
+        clientC.initiateFullConnection("unused", "otherToken");
+        waitUntilTrue(5 * 1000, () -> clientC.authFuture.isDone());
+        assert !clientC.authFuture.getNow(true);
+        assert !clientC.isAuthed();
+        // Nothing was sent on its behalf
+        assert connection.socket.frames.size() == 3 : connection.socket.frames.size();
+    }
+
+    @Test
+    public void testDetachAndFailure() {
+        connectBoth();
+
+        clientA.stop();
+        assert connection.getSourceCount() == 1;
+        assert !connection.socket.closed;
+        assert clientB.isConnected();
+
+        // Losing the websocket closes every source still on it, and the next connection opens a new one
+        connection.onFailure(connection.socket, new EOFException(), null);
+        assert !clientB.isOpen();
+        assert connection.getSourceCount() == 0;
+        clientA.initiateWebsocketConnection("unused");
+        assert connection.opened == 2;
+
+        clientA.stop();
+        assert connection.socket.closed;
+    }
+
+    private void connectBoth() {
+        clientA.initiateFullConnection("unused", "token");
+        clientB.initiateFullConnection("unused", "token");
+        connection.onOpen(connection.socket, new okhttp3.Response.Builder()
+                .request(new Request.Builder().url("http://localhost").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(101)
+                .message("Switching Protocols")
+                .build());
+        waitUntilTrue(5 * 1000, () -> connection.socket.frames.size() == 1);
+        connection.onMessage(connection.socket, TestListener.createAuthenticationResponse(true));
+        waitUntilTrue(5 * 1000, () -> connection.socket.frames.size() == 3);
+        connection.onMessage(connection.socket, TestListener.createConfigResponse(new LinkedHashMap<>(), "srcB"));
+        connection.onMessage(connection.socket, TestListener.createConfigResponse(new LinkedHashMap<>(), "srcA"));
+        // The failed message queues are replayed asynchronously on connection, and hold back anything sent until done
+        waitUntilTrue(5 * 1000, () -> clientA.isConnected() && clientB.isConnected()
+                && !clientA.getFailedMessageQueue().isReplaying() && !clientB.getFailedMessageQueue().isReplaying());
+        assert clientA.isConnected();
+        assert clientB.isConnected();
+    }
+
+    private static class FalseSharedConnection extends SharedConnection {
+        RecordingWebSocket socket;
+        int opened = 0;
+
+        FalseSharedConnection() {
+            super("ws://unused/api/v1/wsock/websocket");
+        }
+
+        @Override
+        WebSocket openWebSocket(long minToCompress) {
+            opened++;
+            socket = new RecordingWebSocket();
+            return socket;
+        }
+    }
+
+    private static class RecordingWebSocket extends FalseWebSocket {
+        List<ByteString> frames = new CopyOnWriteArrayList<>();
+        boolean closed = false;
+
+        @Override
+        public boolean send(@NotNull ByteString bytes) {
+            frames.add(bytes);
+            return true;
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            closed = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extjsdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStoreAndForwardQueue extends ExtjsdkTestBase {
+
+    ObjectMapper mapper;
+    MessageSerializer serializer;
+    File spillDir;
+
+    @Before
+    public void setup() throws Exception {
+        mapper = new ObjectMapper();
+        serializer = new MessageSerializer(mapper);
+        spillDir = Files.createTempDirectory("extjsdk-spill").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        spillDir.delete();
+    }
+
+    @Test
+    public void testEvictsOldestWithoutSpill() {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 3, serializer);
+        for (int i = 0; i < 5; i++) {
+            queue.add(i);
+        }
+        assert queue.size() == 3;
+        assert queue.getMessagesDropped() == 2;
+        assert (Integer) queue.poll() == 2;
+    }
+
+    @Test
+    public void testSpillKeepsOrderAndRecovers() throws Exception {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 2, serializer);
+        queue.enableSpill(spillDir, 256, 64 * 1024);
+        for (int i = 0; i < 20; i++) {
+            queue.add(notification(i));
+        }
+        assert queue.size() == 20;
+        assert queue.getMemoryDepth() == 2;
+        assert queue.getSpilledDepth() == 18;
+        assert queue.getMessagesDropped() == 0;
+        assert queue.getBytesSpilled() > 0;
+        assert spillDir.listFiles().length > 1;
+
+        // The in-memory messages come out first, followed by the spilled ones in order
+        assert idOf(queue.poll()) == 0;
+        assert idOf(queue.poll()) == 1;
+        Object spilled = queue.poll();
+        assert spilled instanceof StoreAndForwardQueue.SpilledMessage;
+        assert ((StoreAndForwardQueue.SpilledMessage) spilled).isNotification();
+        assert idOf(spilled) == 2;
+
+        // A new queue for the same source picks up where this one left off
+        StoreAndForwardQueue recovered = new StoreAndForwardQueue("src", 2, serializer);
+        recovered.enableSpill(spillDir, 256, 64 * 1024);
+        assert recovered.size() == 17;
+        for (int i = 3; i < 20; i++) {
+            assert idOf(recovered.poll()) == i;
+        }
+        assert recovered.poll() == null;
+        assert spillDir.listFiles().length == 0;
+    }
+
+    @Test
+    public void testSpillLimitDropsOldestSegment() throws Exception {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 1, serializer);
+        queue.enableSpill(spillDir, 256, 512);
+        for (int i = 0; i < 50; i++) {
+            queue.add(notification(i));
+        }
+        assert queue.getMessagesDropped() > 0;
+        assert queue.getSpillBytesOnDisk() <= 512;
+        assert queue.size() == 50 - queue.getMessagesDropped();
+
+        // Whatever survived is still in order
+        int last = -1;
+        Object msg;
+        while ((msg = queue.poll()) != null) {
+            int id = idOf(msg);
+            assert id > last;
+            last = id;
+        }
+        assert last == 49;
+    }
+
+    @Test
+    public void testSpillLimitKeepsReplayingSegment() throws Exception {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 1, serializer);
+        queue.enableSpill(spillDir, 256, 512);
+        queue.setReplayRate(0);
+        queue.add(notification(0));
+        queue.add(notification(1));
+
+        // Hold the replay on its first message, so that message 1 is at the head of the segment it reads next
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> replayed = new ArrayList<>();
+        queue.startReplay(msg -> {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            synchronized (replayed) {
+                replayed.add(idOf(msg));
+            }
+            return true;
+        });
+        assert sending.await(5, TimeUnit.SECONDS);
+
+        for (int i = 2; i < 50; i++) {
+            queue.add(notification(i));
+        }
+        assert queue.getMessagesDropped() > 0;
+        assert queue.getSpillBytesOnDisk() <= 512;
+        long dropped = queue.getMessagesDropped();
+
+        release.countDown();
+        waitUntilTrue(5000, () -> !queue.isReplaying());
+        synchronized (replayed) {
+            assert replayed.size() == 50 - dropped : replayed;
+            // The segment being replayed survived, so nothing is missing from the front of the replay
+            assert replayed.get(0) == 0;
+            assert replayed.get(1) == 1;
+            for (int i = 1; i < replayed.size(); i++) {
+                assert replayed.get(i) > replayed.get(i - 1);
+            }
+        }
+    }
+
+    @Test
+    public void testSpillFailureKeepsOrderWithinCapacity() throws Exception {
+        boolean[] failing = {false};
+        MessageSerializer failingSerializer = new MessageSerializer(mapper) {
+            @Override
+            public ByteString serialize(Object obj) throws IOException {
+                if (failing[0]) {
+                    throw new IOException("Disk full");
+                }
+                return super.serialize(obj);
+            }
+        };
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 2, failingSerializer);
+        queue.enableSpill(spillDir, 256, 64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            queue.add(notification(i));
+        }
+        assert queue.getSpilledDepth() == 3;
+
+        // Messages that cannot be spilled stay in memory behind the spilled ones, and the oldest in memory are dropped
+        failing[0] = true;
+        for (int i = 5; i < 10; i++) {
+            queue.add(notification(i));
+        }
+        // Once the disk recovers, messages still follow those held in memory
+        failing[0] = false;
+        queue.add(notification(10));
+        assert queue.getMemoryDepth() == 2 : queue.getMemoryDepth();
+        assert queue.getMessagesDropped() == 6 : queue.getMessagesDropped();
+        assert queue.size() == 5;
+
+        int[] expected = {2, 3, 4, 9, 10};
+        for (int id : expected) {
+            assert idOf(queue.poll()) == id;
+        }
+        assert queue.poll() == null;
+    }
+
+    @Test
+    public void testPacedReplay() throws Exception {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 100, serializer);
+        for (int i = 0; i < 10; i++) {
+            queue.add(notification(i));
+        }
+        queue.setReplayRate(100);
+        List<Integer> replayed = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        queue.startReplay(msg -> {
+            synchronized (replayed) {
+                replayed.add(idOf(msg));
+            }
+            return true;
+        });
+        waitUntilTrue(5000, () -> !queue.isReplaying());
+        long elapsed = System.currentTimeMillis() - start;
+
+        assert replayed.size() == 10;
+        for (int i = 0; i < 10; i++) {
+            assert replayed.get(i) == i;
+        }
+        // 10 messages at 100 per second take at least 90ms
+        assert elapsed >= 90;
+        assert queue.getMessagesReplayed() == 10;
+        assert queue.isEmpty();
+    }
+
+    @Test
+    public void testReplayStopsWhenSendFails() {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue("src", 10, serializer);
+        queue.setReplayRate(0);
+        for (int i = 0; i < 5; i++) {
+            queue.add(notification(i));
+        }
+        queue.startReplay(msg -> idOf(msg) < 2);
+        waitUntilTrue(5000, () -> !queue.isReplaying());
+
+        // The message that failed is back at the head of the queue
+        assert queue.size() == 3;
+        assert idOf(queue.peek()) == 2;
+    }
+
+    ExtensionServiceMessage notification(int id) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", id);
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("op", ExtensionServiceMessage.OP_NOTIFICATION);
+        m.put("resourceId", "src");
+        m.put("object", data);
+        return new ExtensionServiceMessage("").fromMap(m);
+    }
+
+    int idOf(Object msg) {
+        try {
+            Object body;
+            if (msg instanceof StoreAndForwardQueue.SpilledMessage) {
+                byte[] bytes = ((StoreAndForwardQueue.SpilledMessage) msg).getFrame().toByteArray();
+                body = mapper.readValue(bytes, Map.class).get("object");
+            } else {
+                body = ((ExtensionServiceMessage) msg).getObject();
+            }
+            return (Integer) ((Map) body).get("id");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import io.vantiq.extjsdk.MetricsRegistry;
+
+/**
+ * The connection pools used for asynchronous processing. By default a single pool is shared by queries, publishes and
+ * polling. With {@link Settings} for each {@link Workload}, each gets a pool of its own, so that a burst of one kind
+ * of request, such as long running queries, cannot take the connections the others need.
+ */
+public class ConnectionPools {
+    /**
+     * The kinds of work that may be given pools of their own.
+     */
+    public enum Workload {
+        QUERY, PUBLISH, POLL;
+
+        /**
+         * @return  The name of the workload, as used in the configuration and the names of the metrics.
+         */
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * The settings of a single pool.
+     */
+    public static class Settings {
+        int maxPoolSize;
+        long connectionTimeout = CONNECTION_POOL_TIMEOUT;
+        boolean readOnly = false;
+        boolean autoCommit = true;
+
+        /**
+         * @param maxPoolSize   The maximum number of connections in the pool.
+         */
+        public Settings(int maxPoolSize) {
+            this.maxPoolSize = maxPoolSize;
+        }
+
+        /**
+         * @param connectionTimeout The milliseconds to wait for a connection before failing. Default is 5000.
+         * @return                  These settings.
+         */
+        public Settings connectionTimeout(long connectionTimeout) {
+            this.connectionTimeout = connectionTimeout;
+            return this;
+        }
+
+        /**
+         * @param readOnly  Whether the connections are read only. Default is false.
+         * @return          These settings.
+         */
+        public Settings readOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+            return this;
+        }
+
+        /**
+         * @param autoCommit    Whether the connections commit after each statement. If not, each request is committed
+         *                      when it completes. Default is true.
+         * @return              These settings.
+         */
+        public Settings autoCommit(boolean autoCommit) {
+            this.autoCommit = autoCommit;
+            return this;
+        }
+    }
+
+    // Timeout (in milliseconds) specifying how long getConnection() will wait for a connection before timing out
+    static final int CONNECTION_POOL_TIMEOUT = 5000;
+
+    private static final String SHARED = "shared";
+
+    // The pool for each workload, several of which are the same when the pool is shared
+    private final Map<Workload, HikariDataSource> pools = new EnumMap<>(Workload.class);
+    // Each distinct pool, by the name used in its metrics
+    private final Map<String, HikariDataSource> named = new LinkedHashMap<>();
+    // Filled in by registerMetrics() while handler threads may already be reading it
+    private final Map<Workload, MetricsRegistry.Histogram> acquireTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a single pool, shared by every workload.
+     *
+     * @param dbURL             The Database URL to be used to connect to the SQL Database.
+     * @param username          The username to be used to connect to the SQL Database, or null.
+     * @param password          The password to be used to connect to the SQL Database, or null.
+     * @param driverProperties  The properties passed to the driver.
+     * @param maxPoolSize       The maximum number of connections in the pool.
+     */
+    public ConnectionPools(String dbURL, String username, String password, Properties driverProperties,
+            int maxPoolSize) {
+        HikariDataSource ds = createPool(SHARED, dbURL, username, password, driverProperties,
+                new Settings(maxPoolSize));
+        named.put(SHARED, ds);
+        for (Workload workload : Workload.values()) {
+            pools.put(workload, ds);
+        }
+    }
+
+    /**
+     * Creates a separate pool for each workload.
+     *
+     * @param dbURL             The Database URL to be used to connect to the SQL Database.
+     * @param username          The username to be used to connect to the SQL Database, or null.
+     * @param password          The password to be used to connect to the SQL Database, or null.
+     * @param driverProperties  The properties passed to the driver.
+     * @param settings          The settings of the pool for every workload.
+     * @throws IllegalArgumentException if a workload has no settings.
+     */
+    public ConnectionPools(String dbURL, String username, String password, Properties driverProperties,
+            Map<Workload, Settings> settings) {
+        try {
+            for (Workload workload : Workload.values()) {
+                if (settings.get(workload) == null) {
+                    throw new IllegalArgumentException("No connection pool settings for " + workload.getName());
+                }
+                HikariDataSource ds = createPool(workload.getName(), dbURL, username, password, driverProperties,
+                        settings.get(workload));
+                named.put(workload.getName(), ds);
+                pools.put(workload, ds);
+            }
+        } catch (RuntimeException e) {
+            // Do not leave the pools already started behind
+            close();
+            throw e;
+        }
+    }
+
+    private static HikariDataSource createPool(String name, String dbURL, String username, String password,
+            Properties driverProperties, Settings settings) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("jdbc-" + name);
+        config.setJdbcUrl(dbURL);
+        if (username != null) {
+            config.setUsername(username);
+        }
+        if (password != null) {
+            config.setPassword(password);
+        }
+        config.setDataSourceProperties(driverProperties);
+        config.setConnectionTimeout(settings.connectionTimeout);
+        config.setMaximumPoolSize(settings.maxPoolSize);
+        config.setReadOnly(settings.readOnly);
+        config.setAutoCommit(settings.autoCommit);
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Obtains a connection from the pool for {@code workload}, recording how long it took if metrics are registered.
+     *
+     * @param workload  The kind of work the connection is for.
+     * @return          The connection, to be closed when done.
+     * @throws SQLException if no connection could be obtained within the pool's connection timeout.
+     */
+    public Connection getConnection(Workload workload) throws SQLException {
+        MetricsRegistry.Histogram acquireTime = acquireTimes.get(workload);
+        if (acquireTime == null) {
+            return pools.get(workload).getConnection();
+        }
+        long start = System.nanoTime();
+        try {
+            return pools.get(workload).getConnection();
+        } finally {
+            acquireTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reports the state of each pool through {@code metrics}, as {@code jdbc_pool_<name>_active}, {@code _idle},
+     * {@code _pending} and {@code _acquire_seconds}, where the name is {@code shared} or that of the workload.
+     * Registering again replaces the earlier gauges, so this is called with the new pools on every reconfiguration.
+     *
+     * @param metrics   The metrics of the source's client.
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        for (Map.Entry<String, HikariDataSource> entry : named.entrySet()) {
+            String prefix = "jdbc_pool_" + entry.getKey();
+            HikariPoolMXBean pool = entry.getValue().getHikariPoolMXBean();
+            metrics.gauge(prefix + "_active", "Connections in use.", pool::getActiveConnections);
+            metrics.gauge(prefix + "_idle", "Connections waiting to be used.", pool::getIdleConnections);
+            metrics.gauge(prefix + "_pending", "Threads waiting for a connection.",
+                    pool::getThreadsAwaitingConnection);
+            MetricsRegistry.Histogram acquireTime = metrics.histogram(prefix + "_acquire_seconds",
+                    "Time taken to obtain a connection.");
+            for (Map.Entry<Workload, HikariDataSource> workload : pools.entrySet()) {
+                if (workload.getValue() == entry.getValue()) {
+                    acquireTimes.put(workload.getKey(), acquireTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every pool.
+     */
+    public void close() {
+        for (HikariDataSource ds : named.values()) {
+            ds.close();
+        }
+    }
+}
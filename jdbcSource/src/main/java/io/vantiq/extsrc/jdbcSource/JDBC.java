@@ -8,34 +8,42 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
+import java.sql.JDBCType;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
-
 import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
 
 public class JDBC {
     Logger              log  = LoggerFactory.getLogger(this.getClass().getCanonicalName());
     private Connection  conn = null;
 
+    // Held for every use of the single connection, since the polling query runs on it alongside the requests. A
+    // request that opens a transaction on it would otherwise take in the statements of the others.
+    private final Object connLock = new Object();
+
     // Boolean flag specifying if publish/query requests are handled synchronously, or asynchronously
     boolean isAsync;
     
@@ -47,11 +55,22 @@ public class JDBC {
     // Timeout (in seconds) used to check if connection is still valid
     private static final int CHECK_CONNECTION_TIMEOUT = 5;
 
-    // Timeout (in milliseconds) specifying how long ds.getConnection() will wait for a connection before timing out
-    private static final int CONNECTION_POOL_TIMEOUT = 5000;
-
     // Used if asynchronous publish/query handling has been specified
-    private HikariDataSource ds = null;
+    private ConnectionPools pools = null;
+
+    // Prepared statements kept for reuse by the parameterized requests and polling
+    private StatementCache statementCache = new StatementCache(StatementCache.DEFAULT_MAX_STATEMENTS);
+
+    // Results of recent queries, kept for those that ask for it, or null if not enabled
+    private volatile QueryResultCache queryCache = null;
+
+    // Driver properties that let the driver send a batch as multi-row statements, used if rewriteBatches is set
+    private Properties driverProperties = new Properties();
+
+    /**
+     * The default number of rows sent and committed together by {@link #processBulkPublish}.
+     */
+    public static final int DEFAULT_BULK_BATCH_SIZE = 1000;
     
     /**
      * The method used to setup the connection to the SQL Database, using the values retrieved from the source config.
@@ -63,32 +82,80 @@ public class JDBC {
      * @throws VantiqSQLException 
      */
     public void setupJDBC(String dbURL, String username, String password, boolean asyncProcessing, int maxPoolSize) throws VantiqSQLException {
-        try {
-            if (asyncProcessing) {
-                // Create a connection pool
-                HikariConfig connectionPoolConfig = new HikariConfig();
-                connectionPoolConfig.setJdbcUrl(dbURL);
-                if (username != null) {
-                    connectionPoolConfig.setUsername(username);
-                }
-                if (password != null) {
-                    connectionPoolConfig.setPassword(password);
-                }
-                ds = new HikariDataSource(connectionPoolConfig);
-                ds.setConnectionTimeout(CONNECTION_POOL_TIMEOUT);
+        setupJDBC(dbURL, username, password, asyncProcessing, maxPoolSize, StatementCache.DEFAULT_MAX_STATEMENTS);
+    }
 
-                // Setting max pool size (should always match number of active threads for publish and query)
-                ds.setMaximumPoolSize(maxPoolSize);
-            } else {
-                // Open a single connection
-                conn = DriverManager.getConnection(dbURL,username,password);
+    /**
+     * The method used to setup the connection to the SQL Database, using the values retrieved from the source config.
+     * @param dbURL             The Database URL to be used to connect to the SQL Database.
+     * @param username          The username to be used to connect to the SQL Database.
+     * @param password          The password to be used to connect to the SQL Database.
+     * @param asyncProcessing   A boolean flag specifying if publish/query requests are handled synchronously, or asynchronously.
+     * @param maxPoolSize       An integer representing the maxPoolSize for the Connection Pool.
+     * @param statementCacheSize The number of prepared statements cached for each connection, or 0 to not cache them.
+     * @throws VantiqSQLException 
+     */
+    public void setupJDBC(String dbURL, String username, String password, boolean asyncProcessing, int maxPoolSize,
+            int statementCacheSize) throws VantiqSQLException {
+        setupJDBC(dbURL, username, password, asyncProcessing, maxPoolSize, statementCacheSize, false);
+    }
+
+    /**
+     * The method used to setup the connection to the SQL Database, using the values retrieved from the source config.
+     * @param dbURL             The Database URL to be used to connect to the SQL Database.
+     * @param username          The username to be used to connect to the SQL Database.
+     * @param password          The password to be used to connect to the SQL Database.
+     * @param asyncProcessing   A boolean flag specifying if publish/query requests are handled synchronously, or asynchronously.
+     * @param maxPoolSize       An integer representing the maxPoolSize for the Connection Pool.
+     * @param statementCacheSize The number of prepared statements cached for each connection, or 0 to not cache them.
+     * @param rewriteBatches    A boolean flag specifying if the driver should be asked to rewrite batches into
+     *                          multi-row statements, for the drivers known to support it (MySQL, MariaDB and PostgreSQL).
+     * @throws VantiqSQLException 
+     */
+    public void setupJDBC(String dbURL, String username, String password, boolean asyncProcessing, int maxPoolSize,
+            int statementCacheSize, boolean rewriteBatches) throws VantiqSQLException {
+        setupJDBC(dbURL, username, password, asyncProcessing, maxPoolSize, statementCacheSize, rewriteBatches, null);
+    }
+
+    /**
+     * The method used to setup the connection to the SQL Database, using the values retrieved from the source config.
+     * @param dbURL             The Database URL to be used to connect to the SQL Database.
+     * @param username          The username to be used to connect to the SQL Database.
+     * @param password          The password to be used to connect to the SQL Database.
+     * @param asyncProcessing   A boolean flag specifying if publish/query requests are handled synchronously, or asynchronously.
+     * @param maxPoolSize       An integer representing the maxPoolSize for the Connection Pool.
+     * @param statementCacheSize The number of prepared statements cached for each connection, or 0 to not cache them.
+     * @param rewriteBatches    A boolean flag specifying if the driver should be asked to rewrite batches into
+     *                          multi-row statements, for the drivers known to support it (MySQL, MariaDB and PostgreSQL).
+     * @param poolSettings      The settings of a separate connection pool for each workload, or null for a single pool
+     *                          of {@code maxPoolSize} shared by all of them. Only used for asynchronous processing.
+     * @throws VantiqSQLException 
+     */
+    public void setupJDBC(String dbURL, String username, String password, boolean asyncProcessing, int maxPoolSize,
+            int statementCacheSize, boolean rewriteBatches, Map<ConnectionPools.Workload, ConnectionPools.Settings>
+            poolSettings) throws VantiqSQLException {
+        statementCache = new StatementCache(statementCacheSize);
+        driverProperties = rewriteBatches ? batchRewriteProperties(dbURL) : new Properties();
+        try {
+            if (asyncProcessing && poolSettings != null) {
+                // Create a connection pool for each workload
+                pools = new ConnectionPools(dbURL, username, password, driverProperties, poolSettings);
+            } else if (asyncProcessing) {
+                // Create a connection pool (max pool size should always match number of active threads for publish
+                // and query)
+                pools = new ConnectionPools(dbURL, username, password, driverProperties, maxPoolSize);
             }
-            
+
             // Save login credentials for reconnection if necessary
             this.dbURL = dbURL;
             this.username = username;
             this.password = password;
             this.isAsync = asyncProcessing;
+
+            if (!asyncProcessing) {
+                // Open a single connection
+                conn = openConnection();
+            }
         } catch (SQLException e) {
             // Handle errors for JDBC
             reportSQLError(e);
@@ -106,7 +173,7 @@ public class JDBC {
         Map[] rsArray = null;
 
         if (isAsync) {
-            try (Connection conn = ds.getConnection();
+            try (Connection conn = pools.getConnection(ConnectionPools.Workload.QUERY);
                  Statement stmt = conn.createStatement();
                  ResultSet rs = stmt.executeQuery(sqlQuery)) {
                 rsArray = createMapFromResults(rs);
@@ -115,19 +182,197 @@ public class JDBC {
                 reportSQLError(e);
             }
         } else {
-            // Check that connection hasn't closed
-            diagnoseConnection();
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
 
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sqlQuery)) {
-                 rsArray = createMapFromResults(rs);
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(sqlQuery)) {
+                     rsArray = createMapFromResults(rs);
+                } catch (SQLException e) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                }
+            }
+        }
+
+        return rsArray;
+    }
+
+    /**
+     * Receives the rows of a query run by {@link #processQueryStreaming}, one at a time.
+     */
+    public interface RowConsumer {
+        /**
+         * @param row   The next row of the result, converted as by {@link JDBC#processQuery}.
+         * @throws IOException          if the row could not be passed on.
+         * @throws InterruptedException if interrupted while passing the row on.
+         */
+        void accept(Map<String, Object> row) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Receives the rows of a query run by {@link #processQueryColumnar}, as arrays of values.
+     */
+    public interface ColumnarConsumer {
+        /**
+         * Called once, before any rows.
+         * @param names     The names of the columns.
+         * @param types     The JDBC type of each column, such as {@code INTEGER} or {@code VARCHAR}.
+         * @throws IOException  if the columns could not be passed on.
+         */
+        void columns(List<String> names, List<String> types) throws IOException;
+
+        /**
+         * @param values    The values of the next row, in the order of the columns and converted as by
+         *                  {@link JDBC#processQuery}. Null values are kept, so that the positions line up.
+         * @throws IOException          if the row could not be passed on.
+         * @throws InterruptedException if interrupted while passing the row on.
+         */
+        void accept(Object[] values) throws IOException, InterruptedException;
+    }
+
+    /**
+     * The method used to execute the provided query without holding its result in memory. The database is asked to
+     * return the rows {@code fetchSize} at a time, and each row is passed to {@code consumer} as soon as it is read
+     * from the cursor, so memory use is bounded by what the consumer holds on to rather than by the size of the
+     * result.
+     * <p>
+     * Some drivers, PostgreSQL among them, only use a cursor outside of auto-commit, so auto-commit is turned off for
+     * the duration of the query. Others need a driver specific fetch size to stream, such as
+     * {@code Integer.MIN_VALUE} for MySQL. When requests are processed synchronously, the query holds the single
+     * connection until its last row has been passed on, and polling waits for it.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param fetchSize         The number of rows the driver should fetch from the database at a time.
+     * @param consumer          Receives each row of the result.
+     * @return                  The number of rows read.
+     * @throws VantiqSQLException
+     * @throws IOException          if {@code consumer} failed to pass on a row.
+     * @throws InterruptedException if {@code consumer} was interrupted.
+     */
+    public long processQueryStreaming(String sqlQuery, int fetchSize, RowConsumer consumer)
+            throws VantiqSQLException, IOException, InterruptedException {
+        return processQueryStreaming(sqlQuery, null, fetchSize, consumer);
+    }
+
+    /**
+     * The method used to execute the provided parameterized query without holding its result in memory, as
+     * {@link #processQueryStreaming(String, int, RowConsumer)} does. The statement is prepared for this query only,
+     * since the cursor stays open on it for as long as the rows are being read.
+     * @param sqlQuery          The SQL of the query, with a {@code ?} for each parameter.
+     * @param params            The values of the parameters, in order, or null if the query has none.
+     * @param fetchSize         The number of rows the driver should fetch from the database at a time.
+     * @param consumer          Receives each row of the result.
+     * @return                  The number of rows read.
+     * @throws VantiqSQLException
+     * @throws IOException          if {@code consumer} failed to pass on a row.
+     * @throws InterruptedException if {@code consumer} was interrupted.
+     */
+    public long processQueryStreaming(String sqlQuery, List<?> params, int fetchSize, RowConsumer consumer)
+            throws VantiqSQLException, IOException, InterruptedException {
+        return streamQuery(sqlQuery, params, fetchSize, rs -> {
+            RowReader reader = new RowReader(rs.getMetaData());
+            long rowCount = 0;
+            while (rs.next()) {
+                consumer.accept(reader.read(rs));
+                rowCount++;
+            }
+            return rowCount;
+        });
+    }
+
+    /**
+     * The method used to execute the provided query without holding its result in memory, as
+     * {@link #processQueryStreaming(String, List, int, RowConsumer)} does, but passing each row on as an array of
+     * values rather than a map. The names and types of the columns are passed on once, before the rows, so that they
+     * need not be repeated in every row.
+     * @param sqlQuery          The SQL of the query, with a {@code ?} for each parameter.
+     * @param params            The values of the parameters, in order, or null if the query has none.
+     * @param fetchSize         The number of rows the driver should fetch from the database at a time, or 0 to leave
+     *                          it to the driver.
+     * @param consumer          Receives the columns, then each row of the result.
+     * @return                  The number of rows read.
+     * @throws VantiqSQLException
+     * @throws IOException          if {@code consumer} failed to pass on a row.
+     * @throws InterruptedException if {@code consumer} was interrupted.
+     */
+    public long processQueryColumnar(String sqlQuery, List<?> params, int fetchSize, ColumnarConsumer consumer)
+            throws VantiqSQLException, IOException, InterruptedException {
+        return streamQuery(sqlQuery, params, fetchSize, rs -> {
+            RowReader reader = new RowReader(rs.getMetaData());
+            consumer.columns(reader.getNames(), reader.getTypes());
+            long rowCount = 0;
+            while (rs.next()) {
+                consumer.accept(reader.readValues(rs));
+                rowCount++;
+            }
+            return rowCount;
+        });
+    }
+
+    /**
+     * Reads the rows of a streamed query from its ResultSet.
+     */
+    private interface ResultsAction {
+        long read(ResultSet rs) throws SQLException, IOException, InterruptedException;
+    }
+
+    private long streamQuery(String sqlQuery, List<?> params, int fetchSize, ResultsAction action)
+            throws VantiqSQLException, IOException, InterruptedException {
+        long rowCount = 0;
+
+        if (isAsync) {
+            try (Connection conn = pools.getConnection(ConnectionPools.Workload.QUERY)) {
+                rowCount = streamResults(conn, sqlQuery, params, fetchSize, action);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
             }
+        } else {
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
+
+                try {
+                    rowCount = streamResults(conn, sqlQuery, params, fetchSize, action);
+                } catch (SQLException e) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                }
+            }
         }
 
-        return rsArray;
+        return rowCount;
+    }
+
+    private long streamResults(Connection conn, String sqlQuery, List<?> params, int fetchSize, ResultsAction action)
+            throws SQLException, IOException, InterruptedException {
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        try (Statement stmt = params == null
+                ? conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+                : conn.prepareStatement(sqlQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(fetchSize);
+            if (params != null) {
+                bindParameters((PreparedStatement) stmt, params);
+            }
+            try (ResultSet rs = params == null ? stmt.executeQuery(sqlQuery)
+                    : ((PreparedStatement) stmt).executeQuery()) {
+                return action.read(rs);
+            }
+        } finally {
+            if (autoCommit) {
+                // Ends the read only transaction
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    log.warn("Failed to roll back the transaction of a streamed query", e);
+                }
+                conn.setAutoCommit(true);
+            }
+        }
     }
     
     /**
@@ -137,25 +382,36 @@ public class JDBC {
      * @throws VantiqSQLException
      */
     public int processPublish(String sqlQuery) throws VantiqSQLException {
+        try {
+            return executeUpdate(sqlQuery);
+        } finally {
+            invalidateCachedResults(sqlQuery);
+        }
+    }
+
+    private int executeUpdate(String sqlQuery) throws VantiqSQLException {
         int publishSuccess = -1;
 
         if (isAsync) {
-            try (Connection conn = ds.getConnection();
+            try (Connection conn = pools.getConnection(ConnectionPools.Workload.PUBLISH);
                  Statement stmt = conn.createStatement()) {
                 publishSuccess = stmt.executeUpdate(sqlQuery);
+                commitIfNeeded(conn);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
             }
         } else {
-            // Check that connection hasn't closed
-            diagnoseConnection();
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
 
-            try (Statement stmt = conn.createStatement()) {
-                publishSuccess = stmt.executeUpdate(sqlQuery);
-            } catch (SQLException e) {
-                // Handle errors for JDBC
-                reportSQLError(e);
+                try (Statement stmt = conn.createStatement()) {
+                    publishSuccess = stmt.executeUpdate(sqlQuery);
+                } catch (SQLException e) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                }
             }
         }
 
@@ -171,10 +427,20 @@ public class JDBC {
      * @throws ClassCastException
      */
     public int[] processBatchPublish(List queryList) throws VantiqSQLException, ClassCastException {
+        try {
+            return executeBatch(queryList);
+        } finally {
+            for (Object query : queryList) {
+                invalidateCachedResults(String.valueOf(query));
+            }
+        }
+    }
+
+    private int[] executeBatch(List queryList) throws VantiqSQLException, ClassCastException {
         int[] publishSuccess = null;
 
         if (isAsync) {
-            try (Connection conn = ds.getConnection();
+            try (Connection conn = pools.getConnection(ConnectionPools.Workload.PUBLISH);
                  Statement stmt = conn.createStatement()) {
 
                 // Adding queries into batch
@@ -184,29 +450,428 @@ public class JDBC {
 
                 // Executing the batch
                 publishSuccess = stmt.executeBatch();
+                commitIfNeeded(conn);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
             }
         } else {
-            // Check that connection hasn't closed
-            diagnoseConnection();
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
 
-            try (Statement stmt = conn.createStatement()) {
-                // Adding queries into batch
-                for (int i = 0; i < queryList.size(); i++) {
-                    stmt.addBatch((String) queryList.get(i));
+                try (Statement stmt = conn.createStatement()) {
+                    // Adding queries into batch
+                    for (int i = 0; i < queryList.size(); i++) {
+                        stmt.addBatch((String) queryList.get(i));
+                    }
+
+                    // Executing the batch
+                    publishSuccess = stmt.executeBatch();
+                } catch (SQLException e) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
                 }
+            }
+        }
 
-                // Executing the batch
-                publishSuccess = stmt.executeBatch();
+        return publishSuccess;
+    }
+    
+    /**
+     * The method used to execute the provided parameterized query, using a cached PreparedStatement so that the
+     * database does not have to parse and plan it again. Also used for the polling query.
+     * @param sqlQuery          The SQL of the query, with a {@code ?} for each parameter.
+     * @param params            The values of the parameters, in order, or null if the query has none.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap 
+     *                          Array if nothing was returned)
+     * @throws VantiqSQLException
+     */
+    public Map[] processPreparedQuery(String sqlQuery, List<?> params) throws VantiqSQLException {
+        return withPreparedStatement(ConnectionPools.Workload.QUERY, sqlQuery, ps -> {
+            bindParameters(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                return createMapFromResults(rs);
+            }
+        });
+    }
+
+    /**
+     * The method used to execute the provided query, answering it from the query result cache when the same query
+     * has been run within its time to live. The results are only cached if the cache is enabled and the time to live
+     * is positive.
+     * @param sqlQuery          The SQL of the query, with a {@code ?} for each parameter.
+     * @param params            The values of the parameters, in order, or null if the query has none.
+     * @param cacheTtl          The milliseconds to keep the results for, 0 to bypass the cache, or less than 0 for the
+     *                          cache's default.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap
+     *                          Array if nothing was returned). Results from the cache are shared, and must not be
+     *                          changed.
+     * @throws VantiqSQLException
+     */
+    public Map[] processCachedQuery(String sqlQuery, List<?> params, long cacheTtl) throws VantiqSQLException {
+        QueryResultCache cache = queryCache;
+        long ttl = cache == null ? 0 : cacheTtl < 0 ? cache.getDefaultTtl() : cacheTtl;
+        if (ttl == 0) {
+            return params != null ? processPreparedQuery(sqlQuery, params) : processQuery(sqlQuery);
+        }
+        Map[] rows = cache.get(sqlQuery, params);
+        if (rows != null) {
+            return rows;
+        }
+        // Read before the query runs, so that results overtaken by a publish are not kept
+        long generation = cache.getGeneration();
+        rows = params != null ? processPreparedQuery(sqlQuery, params) : processQuery(sqlQuery);
+        if (rows != null) {
+            cache.put(sqlQuery, params, rows, ttl, generation);
+        }
+        return rows;
+    }
+
+    /**
+     * The method used to execute the pollQuery, using a cached PreparedStatement and the connection pool for polling.
+     * @param sqlQuery          The pollQuery.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap 
+     *                          Array if nothing was returned)
+     * @throws VantiqSQLException
+     */
+    public Map[] processPollQuery(String sqlQuery) throws VantiqSQLException {
+        return withPreparedStatement(ConnectionPools.Workload.POLL, sqlQuery, ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                return createMapFromResults(rs);
+            }
+        });
+    }
+
+    /**
+     * The method used to execute an incremental pollQuery, binding the current watermark as its parameters and
+     * offering the watermark column of each row returned to {@code watermark}.
+     * @param sqlQuery          The pollQuery, with a single {@code ?}, or any number of {@code :watermark}, where the
+     *                          watermark is to be bound.
+     * @param watermark         The watermark of the pollQuery.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap 
+     *                          Array if nothing was returned)
+     * @throws VantiqSQLException if the query fails, or its results have no column named as the watermark column.
+     */
+    public Map[] processWatermarkQuery(String sqlQuery, PollWatermark watermark) throws VantiqSQLException {
+        SqlTemplate template = SqlTemplate.parse(sqlQuery);
+        Object parameters = template.getNames().isEmpty() ? Collections.singletonList(watermark.getValue())
+                : Collections.singletonMap("watermark", watermark.getValue());
+        // Drop anything offered by an earlier poll that failed part way through
+        watermark.discard();
+        return withPreparedStatement(ConnectionPools.Workload.POLL, template.getSql(), ps -> {
+            template.bind(ps, parameters);
+            try (ResultSet rs = ps.executeQuery()) {
+                int column = findColumn(rs.getMetaData(), watermark.getColumn());
+                RowReader reader = new RowReader(rs.getMetaData());
+                List<HashMap<String, Object>> rows = new ArrayList<>();
+                while (rs.next()) {
+                    rows.add(reader.read(rs));
+                    watermark.offer(rs.getObject(column));
+                }
+                return rows.toArray(new HashMap[0]);
+            }
+        });
+    }
+
+    /**
+     * @return  The index of the column named {@code name}, ignoring case. Columns are matched by
+     *          {@link ResultSetMetaData#getColumnName}, as the rows sent for the poll are keyed.
+     * @throws SQLException if there is no such column.
+     */
+    private static int findColumn(ResultSetMetaData md, String name) throws SQLException {
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+            if (md.getColumnName(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new SQLException("The results of the pollQuery have no column named " + name);
+    }
+
+    /**
+     * The method used to execute the provided parameterized update, using a cached PreparedStatement.
+     * @param sqlQuery          The SQL of the update, with a {@code ?} for each parameter.
+     * @param params            The values of the parameters, in order, or null if the update has none.
+     * @return                  The integer value that is returned by the executeUpdate() method representing the row count.
+     * @throws VantiqSQLException
+     */
+    public int processPreparedPublish(String sqlQuery, List<?> params) throws VantiqSQLException {
+        try {
+            return withPreparedStatement(ConnectionPools.Workload.PUBLISH, sqlQuery, ps -> {
+                bindParameters(ps, params);
+                return ps.executeUpdate();
+            });
+        } finally {
+            invalidateCachedResults(sqlQuery);
+        }
+    }
+
+    /**
+     * The method used to execute the provided parameterized update once for each set of parameters, as a single
+     * batch, using a cached PreparedStatement.
+     * @param sqlQuery          The SQL of the update, with a {@code ?} for each parameter.
+     * @param paramSets         The values of the parameters for each execution of the update.
+     * @return                  The row counts of each execution, as returned by executeBatch().
+     * @throws VantiqSQLException
+     * @throws ClassCastException if an element of {@code paramSets} is not a List.
+     */
+    public int[] processPreparedBatchPublish(String sqlQuery, List<?> paramSets)
+            throws VantiqSQLException, ClassCastException {
+        try {
+            return withPreparedStatement(ConnectionPools.Workload.PUBLISH, sqlQuery, ps -> {
+                ps.clearBatch();
+                for (Object params : paramSets) {
+                    bindParameters(ps, (List<?>) params);
+                    ps.addBatch();
+                }
+                return ps.executeBatch();
+            });
+        } finally {
+            invalidateCachedResults(sqlQuery);
+        }
+    }
+
+    /**
+     * The method used to insert or update many rows with a single SQL template, triggered by a PUBLISH or SELECT that
+     * includes "rows". The statement is prepared once and the rows are bound to it and sent in batches of
+     * {@code batchSize}, each committed on its own, so that a failure leaves the earlier batches in place. When
+     * requests are processed synchronously, the single connection is held until the last batch is committed.
+     * @param sqlTemplate       The SQL, with {@code ?} for each parameter if the rows are lists, or {@code :name} if
+     *                          they are maps. See {@link SqlTemplate}.
+     * @param rows              The rows, each a List or a Map of parameter values.
+     * @param batchSize         The number of rows sent and committed together, or 0 or less for
+     *                          {@link #DEFAULT_BULK_BATCH_SIZE}.
+     * @return                  The number of rows affected. Rows the driver does not report a count for, such as those
+     *                          in a rewritten batch, are counted as one each.
+     * @throws VantiqSQLException
+     * @throws IllegalArgumentException if a row cannot be bound to the template.
+     */
+    public int processBulkPublish(String sqlTemplate, List<?> rows, int batchSize)
+            throws VantiqSQLException, IllegalArgumentException {
+        SqlTemplate template = SqlTemplate.parse(sqlTemplate);
+        int size = batchSize > 0 ? batchSize : DEFAULT_BULK_BATCH_SIZE;
+        int[] committed = {0};
+
+        if (isAsync) {
+            try (Connection conn = pools.getConnection(ConnectionPools.Workload.PUBLISH)) {
+                bulkPublish(conn, template, rows, size, committed);
             } catch (SQLException e) {
+                log.error("Bulk publish failed after {} of {} rows were committed", committed[0], rows.size());
                 // Handle errors for JDBC
                 reportSQLError(e);
+            } finally {
+                invalidateCachedResults(sqlTemplate);
+            }
+        } else {
+            // Held for the whole of the transactions, so that no other statement runs inside them
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
+
+                try {
+                    bulkPublish(conn, template, rows, size, committed);
+                } catch (SQLException e) {
+                    log.error("Bulk publish failed after {} of {} rows were committed", committed[0], rows.size());
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                } finally {
+                    invalidateCachedResults(sqlTemplate);
+                }
             }
         }
 
-        return publishSuccess;
+        return committed[0];
+    }
+
+    /**
+     * Runs a bulk publish in its own transactions, one per batch, counting the rows affected by the committed
+     * batches in {@code committed[0]}. The connection's auto-commit setting is restored afterwards.
+     */
+    private void bulkPublish(Connection conn, SqlTemplate template, List<?> rows, int batchSize, int[] committed)
+            throws SQLException {
+        StatementCache cache = statementCache;
+        boolean autoCommit = conn.getAutoCommit();
+        PreparedStatement ps = cache.prepare(conn, template.getSql());
+        try {
+            synchronized (ps) {
+                conn.setAutoCommit(false);
+                ps.clearParameters();
+                ps.clearBatch();
+                int batched = 0;
+                for (Object row : rows) {
+                    template.bind(ps, row);
+                    ps.addBatch();
+                    if (++batched == batchSize) {
+                        committed[0] += executeAndCommit(conn, ps);
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    committed[0] += executeAndCommit(conn, ps);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            try {
+                ps.clearBatch();
+                conn.rollback();
+            } catch (SQLException rollbackError) {
+                log.warn("Failed to roll back a bulk publish batch", rollbackError);
+            }
+            throw e;
+        } finally {
+            if (!cache.isEnabled()) {
+                ps.close();
+            }
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static int executeAndCommit(Connection conn, PreparedStatement ps) throws SQLException {
+        int count = 0;
+        for (int rowCount : ps.executeBatch()) {
+            count += rowCount == Statement.SUCCESS_NO_INFO ? 1 : Math.max(rowCount, 0);
+        }
+        conn.commit();
+        return count;
+    }
+
+    /**
+     * Commits the work done on a pooled connection, if its pool does not commit automatically.
+     */
+    private static void commitIfNeeded(Connection conn) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    /**
+     * Rolls back the work done on a pooled connection by a request that failed, if its pool does not commit
+     * automatically.
+     */
+    private void rollbackIfNeeded(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+        } catch (SQLException e) {
+            log.warn("Failed to roll back a failed request", e);
+        }
+    }
+
+    /**
+     * @return  The connection pools, whose state is reported in the source's metrics, or null if requests are
+     *          processed synchronously.
+     */
+    public ConnectionPools getConnectionPools() {
+        return pools;
+    }
+
+    /**
+     * Drops the cached results read from the tables that a statement may have changed.
+     */
+    private void invalidateCachedResults(String sql) {
+        QueryResultCache cache = queryCache;
+        if (cache != null) {
+            cache.invalidate(sql);
+        }
+    }
+
+    /**
+     * @param queryResultCache  The cache used by {@link #processCachedQuery}, or null to not cache results.
+     */
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryCache = queryResultCache;
+    }
+
+    /**
+     * @return  The cache of query results, or null if results are not cached.
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return  The cache of prepared statements, whose hit rate is reported in the source's metrics.
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * The work done with a PreparedStatement by {@link #withPreparedStatement}.
+     */
+    private interface StatementAction<T> {
+        T run(PreparedStatement ps) throws SQLException, VantiqSQLException;
+    }
+
+    /**
+     * Obtains a connection and the cached PreparedStatement for {@code sql} on it, and runs {@code action} with the
+     * statement while holding its lock, since a statement is shared by everything using its connection.
+     */
+    private <T> T withPreparedStatement(ConnectionPools.Workload workload, String sql, StatementAction<T> action)
+            throws VantiqSQLException {
+        T result = null;
+
+        if (isAsync) {
+            try (Connection conn = pools.getConnection(workload)) {
+                try {
+                    result = runPrepared(conn, sql, action);
+                    commitIfNeeded(conn);
+                } catch (SQLException | VantiqSQLException | RuntimeException e) {
+                    // Otherwise the next request to borrow the connection would commit what was done before the error
+                    rollbackIfNeeded(conn);
+                    throw e;
+                }
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
+            }
+        } else {
+            synchronized (connLock) {
+                // Check that connection hasn't closed
+                diagnoseConnection();
+
+                try {
+                    result = runPrepared(conn, sql, action);
+                } catch (SQLException e) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private <T> T runPrepared(Connection conn, String sql, StatementAction<T> action)
+            throws SQLException, VantiqSQLException {
+        StatementCache cache = statementCache;
+        PreparedStatement ps = cache.prepare(conn, sql);
+        try {
+            synchronized (ps) {
+                ps.clearParameters();
+                return action.run(ps);
+            }
+        } finally {
+            if (!cache.isEnabled()) {
+                ps.close();
+            }
+        }
+    }
+
+    /**
+     * Sets the parameters of a PreparedStatement, in order.
+     * @param ps        The statement.
+     * @param params    The values of the parameters, or null if there are none.
+     * @throws SQLException if a value could not be converted to the type of its parameter.
+     */
+    static void bindParameters(PreparedStatement ps, List<?> params) throws SQLException {
+        if (params == null) {
+            return;
+        }
+        for (int i = 0; i < params.size(); i++) {
+            ps.setObject(i + 1, params.get(i));
+        }
     }
     
     /**
@@ -216,61 +881,19 @@ public class JDBC {
      *                       (or an empty HashMap Array if the ResultSet was empty).
      * @throws VantiqSQLException
      */
-    @SuppressWarnings({"rawtypes", "PMD.CognitiveComplexity", "PMD.SimpleDateFormatNeedsLocale"})
+    @SuppressWarnings({"rawtypes"})
     Map[] createMapFromResults(ResultSet queryResults) throws VantiqSQLException {
         ArrayList<HashMap<String, Object>> rows = new ArrayList<HashMap<String, Object>>();
         try {
             if (!queryResults.next()) { 
                 return rows.toArray(new HashMap[0]);
             } else {
-                ResultSetMetaData md = queryResults.getMetaData(); 
-                int columns = md.getColumnCount();
-
-                // These formatters need to be local as they are not threadsafe.  Issue #290
-                DateFormat dfTimestamp  = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-                DateFormat dfDate       = new SimpleDateFormat("yyyy-MM-dd");
-                DateFormat dfTime       = new SimpleDateFormat("HH:mm:ss.SSSZ");
-                
+                RowReader reader = new RowReader(queryResults.getMetaData());
+
                 // Iterate over rows of Result Set and create a map for each row
                 do {
-                    HashMap<String, Object> row = new HashMap<>(columns);
-                    for (int i=1; i<=columns; ++i) {
-                        // Check column type to retrieve data in appropriate manner
-                        int columnType = md.getColumnType(i);
-                        switch (columnType) {
-                            case java.sql.Types.DECIMAL:
-                                if (queryResults.getBigDecimal(i) != null) {
-                                    row.put(md.getColumnName(i), queryResults.getBigDecimal(i));
-                                }
-                                break;
-                            case java.sql.Types.DATE:
-                                Date rowDate = queryResults.getDate(i);
-                                if (rowDate != null) {
-                                    row.put(md.getColumnName(i), dfDate.format(rowDate));
-                                }
-                                break;
-                            case java.sql.Types.TIME:
-                                Time rowTime = queryResults.getTime(i);
-                                if (rowTime != null) {
-                                    row.put(md.getColumnName(i), dfTime.format(rowTime));
-                                }
-                                break;
-                            case java.sql.Types.TIMESTAMP:
-                                Timestamp rowTimestamp = queryResults.getTimestamp(i);
-                                if (rowTimestamp != null) {
-                                    row.put(md.getColumnName(i), dfTimestamp.format(rowTimestamp));
-                                }
-                                break;
-                            default:
-                                // If none of the initial cases are met, the data will be converted to a String via getObject()
-                                if(queryResults.getObject(i) != null) {
-                                    row.put(md.getColumnName(i), queryResults.getObject(i));
-                                }
-                                break;
-                        }
-                    }
                     // Add each row map to the list of rows
-                    rows.add(row);
+                    rows.add(reader.read(queryResults));
                 } while(queryResults.next());
             }
         } catch (SQLException e) {
@@ -278,22 +901,176 @@ public class JDBC {
         }
         return rows.toArray(new HashMap[0]);
     }
+
+    /**
+     * Converts the rows of a ResultSet into maps, one row at a time. The names of the columns and the way each is read
+     * are worked out once from the ResultSetMetaData, so that each row only needs a single call to the ResultSet per
+     * column.
+     */
+    static class RowReader {
+        // Unlike SimpleDateFormat these are threadsafe, so they are shared. Values use the JVM's time zone.
+        private static final DateTimeFormatter TIMESTAMP_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+        private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSSZ");
+
+        /**
+         * Reads a single column of the current row, returning null if it is null.
+         */
+        private interface ColumnDecoder {
+            Object decode(ResultSet rs, int column) throws SQLException;
+        }
+
+        private final String[] names;
+        private final String[] types;
+        private final ColumnDecoder[] decoders;
+        private final int mapCapacity;
+
+        RowReader(ResultSetMetaData md) throws SQLException {
+            int columns = md.getColumnCount();
+            ZoneId zone = ZoneId.systemDefault();
+            names = new String[columns];
+            types = new String[columns];
+            decoders = new ColumnDecoder[columns];
+            for (int i = 0; i < columns; i++) {
+                names[i] = md.getColumnName(i + 1);
+                types[i] = typeName(md, i + 1);
+                decoders[i] = decoderFor(md.getColumnType(i + 1), zone);
+            }
+            // Large enough that the map never has to grow
+            mapCapacity = (int) (columns / 0.75f) + 1;
+        }
+
+        private static ColumnDecoder decoderFor(int columnType, ZoneId zone) {
+            // Check column type to retrieve data in appropriate manner
+            switch (columnType) {
+                case java.sql.Types.DECIMAL:
+                    return ResultSet::getBigDecimal;
+                case java.sql.Types.DATE:
+                    return (rs, column) -> {
+                        Date rowDate = rs.getDate(column);
+                        return rowDate == null ? null : DATE_FORMAT.format(rowDate.toLocalDate());
+                    };
+                case java.sql.Types.TIME:
+                    return (rs, column) -> {
+                        // java.sql.Time does not support toInstant(), so use its time on 1970-01-01
+                        Time rowTime = rs.getTime(column);
+                        return rowTime == null ? null
+                                : TIME_FORMAT.format(Instant.ofEpochMilli(rowTime.getTime()).atZone(zone));
+                    };
+                case java.sql.Types.TIMESTAMP:
+                    return (rs, column) -> {
+                        Timestamp rowTimestamp = rs.getTimestamp(column);
+                        return rowTimestamp == null ? null
+                                : TIMESTAMP_FORMAT.format(rowTimestamp.toInstant().atZone(zone));
+                    };
+                default:
+                    // If none of the initial cases are met, the data is left as returned by getObject()
+                    return ResultSet::getObject;
+            }
+        }
+
+        /**
+         * The standard name of the JDBC type of a column, or the database's own name for vendor specific types.
+         */
+        private static String typeName(ResultSetMetaData md, int column) throws SQLException {
+            try {
+                return JDBCType.valueOf(md.getColumnType(column)).getName();
+            } catch (IllegalArgumentException e) {
+                return md.getColumnTypeName(column);
+            }
+        }
+
+        /**
+         * @return  The names of the columns, in order.
+         */
+        List<String> getNames() {
+            return Arrays.asList(names);
+        }
+
+        /**
+         * @return  The JDBC type of each column, in order.
+         */
+        List<String> getTypes() {
+            return Arrays.asList(types);
+        }
+
+        /**
+         * @param queryResults  A ResultSet positioned on the row to convert.
+         * @return              The values of the current row, in the order of the columns, including nulls.
+         * @throws SQLException
+         */
+        Object[] readValues(ResultSet queryResults) throws SQLException {
+            Object[] values = new Object[decoders.length];
+            for (int i = 0; i < decoders.length; i++) {
+                values[i] = decoders[i].decode(queryResults, i + 1);
+            }
+            return values;
+        }
+
+        /**
+         * @param queryResults  A ResultSet positioned on the row to convert.
+         * @return              The current row, as a map from column names to values. Null values are left out.
+         * @throws SQLException
+         */
+        HashMap<String, Object> read(ResultSet queryResults) throws SQLException {
+            HashMap<String, Object> row = new HashMap<>(mapCapacity);
+            for (int i = 0; i < decoders.length; i++) {
+                Object value = decoders[i].decode(queryResults, i + 1);
+                if (value != null) {
+                    row.put(names[i], value);
+                }
+            }
+            return row;
+        }
+    }
     
     /**
      * Method used to try and reconnect if database connection was lost. Used for synchronous processing (connection pool handles this internally).
      * @throws VantiqSQLException
      */
     public void diagnoseConnection() throws VantiqSQLException {
-        try {
-            if (!conn.isValid(CHECK_CONNECTION_TIMEOUT)) {
-                conn = DriverManager.getConnection(dbURL,username,password);
+        synchronized (connLock) {
+            try {
+                if (!conn.isValid(CHECK_CONNECTION_TIMEOUT)) {
+                    conn = openConnection();
+                }
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
             }
-        } catch (SQLException e) {
-            // Handle errors for JDBC
-            reportSQLError(e);
         }
     }
     
+    /**
+     * Opens the single connection used for synchronous processing.
+     */
+    private Connection openConnection() throws SQLException {
+        Properties info = new Properties();
+        info.putAll(driverProperties);
+        if (username != null) {
+            info.setProperty("user", username);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        return DriverManager.getConnection(dbURL, info);
+    }
+
+    /**
+     * The driver properties that make the driver for {@code dbURL} send a batch of inserts as multi-row statements,
+     * or no properties if the driver is not known to support it.
+     */
+    static Properties batchRewriteProperties(String dbURL) {
+        Properties properties = new Properties();
+        if (dbURL.startsWith("jdbc:mysql:") || dbURL.startsWith("jdbc:mariadb:")) {
+            properties.setProperty("rewriteBatchedStatements", "true");
+        } else if (dbURL.startsWith("jdbc:postgresql:")) {
+            properties.setProperty("reWriteBatchedInserts", "true");
+        }
+        return properties;
+    }
+
     /**
      * Method used to throw the VantiqSQLException whenever is necessary
      * @param e The SQLException caught by the calling method
@@ -309,6 +1086,7 @@ public class JDBC {
      * Closes the SQL Connection.
      */
     public void close() {
+        statementCache.close();
         // Close single connection if open
         try {
             if (conn!=null) {
@@ -318,8 +1096,8 @@ public class JDBC {
             log.error("A error occurred when closing the Connection: ", e);
         }
         // Close connection pool if open
-        if (ds != null) {
-            ds.close();
+        if (pools != null) {
+            pools.close();
         }
     }
 }
@@ -8,22 +8,26 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
+import io.vantiq.extjsdk.QueryResponseStream;
 import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
 
 /**
@@ -41,21 +45,26 @@ public class JDBCCore {
     
     Timer                       pollTimer = null;
     ExtensionWebSocketClient    client  = null;
-    JDBC                        jdbc    = null;
+
+    // The JDBC instance in use, published without locking so that concurrent requests do not contend on a monitor
+    private final AtomicReference<SharedJDBC> jdbc = new AtomicReference<>();
     
     final Logger log;
-    final static int RECONNECT_INTERVAL = 5000;
     final static int DEFAULT_BUNDLE_SIZE = 500;
     final static String SELECT_STATEMENT_IDENTIFIER = "select";
+    final static String POLL_BATCH_ROWS = "rows";
+    final static String FORMAT = "format";
+    final static String COLUMNAR_FORMAT = "columnar";
+    final static String COLUMNS = "columns";
+    final static String COLUMN_TYPES = "types";
+    final static String CACHE_TTL = "cacheTtl";
     
-    // Used to check row bundling in tests
-    public Map[] lastRowBundle = null;
+    // The number of rows in the last message of the latest query response, used to check row bundling in tests
+    public volatile int lastFrameRows = 0;
 
     ExecutorService queryPool = null;
     ExecutorService publishPool = null;
 
-    private static final String SYNCH_LOCK = "synchLock";
-
     /**
      * Stops sending messages to the source and tries to reconnect, closing on a failure
      */
@@ -99,18 +108,8 @@ public class JDBCCore {
    
             jdbcConfigHandler.configComplete = false;
             
-            boolean sourcesSucceeded = false;
-            while (!sourcesSucceeded) {
-                client.initiateFullConnection(targetVantiqServer, authToken);
-                sourcesSucceeded = exitIfConnectionFails(client, 10);
-                if (!sourcesSucceeded) {
-                    try {
-                        Thread.sleep(RECONNECT_INTERVAL);
-                    } catch (InterruptedException e) {
-                        log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                    }
-                }
-            }
+            // Retried with a jittered backoff on the shared scheduler, so that this doesn't hold up the websocket
+            ConnectionManager.getDefault().reconnect(client, targetVantiqServer, authToken, 10);
         }
     };    
     
@@ -138,29 +137,33 @@ public class JDBCCore {
     /**
      * Tries to connect to a source and waits up to {@code timeout} seconds before failing and trying again.
      * @param timeout   The maximum number of seconds to wait before assuming failure and stopping.
-     * @return          true if the source connection succeeds, (will retry indefinitely and never return false).
+     * @return          true once the source connection succeeds, or false if {@link #stop()} cancelled it first.
+     * @throws RuntimeException if the client could not start connecting, as thrown by
+     *                          {@link ExtensionWebSocketClient#initiateFullConnection}. It is not retried.
      */
     public boolean start(int timeout) {
-        boolean sourcesSucceeded = false;
-        while (!sourcesSucceeded) {
-            client = new ExtensionWebSocketClient(sourceName);
-            jdbcConfigHandler = new JDBCHandleConfiguration(this);
-            
-            client.setConfigHandler(jdbcConfigHandler);
-            client.setReconnectHandler(reconnectHandler);
-            client.setCloseHandler(closeHandler);
-            client.initiateFullConnection(targetVantiqServer, authToken);
-            
-            sourcesSucceeded = exitIfConnectionFails(client, timeout);
-            if (!sourcesSucceeded) {
-                try {
-                    Thread.sleep(RECONNECT_INTERVAL);
-                } catch (InterruptedException e) {
-                    log.error("An error occurred when trying to sleep the current thread. Error Message: ", e);
-                }
-            }
+        try {
+            return startAsync(timeout).join();
+        } catch (CompletionException e) {
+            // Rethrow what the connection attempt threw rather than the wrapper added by join()
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
         }
-        return true;
+    }
+
+    /**
+     * Connects to the source through the shared {@link ConnectionManager}, retrying with a jittered backoff until it
+     * succeeds. Each attempt waits up to {@code timeout} seconds before failing and trying again.
+     * @param timeout   The maximum number of seconds to wait for each attempt before assuming failure.
+     * @return          A {@link CompletableFuture} that completes as true once the source connection succeeds.
+     */
+    public CompletableFuture<Boolean> startAsync(int timeout) {
+        client = new ExtensionWebSocketClient(sourceName);
+        jdbcConfigHandler = new JDBCHandleConfiguration(this);
+
+        client.setConfigHandler(jdbcConfigHandler);
+        client.setReconnectHandler(reconnectHandler);
+        client.setCloseHandler(closeHandler);
+        return ConnectionManager.getDefault().connect(client, targetVantiqServer, authToken, timeout);
     }
     
     /**
@@ -174,35 +177,59 @@ public class JDBCCore {
         Map<String, ?> request = (Map<String, ?>) message.getObject();
         String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
 
-        // Getting local copy of JDBC class
-        JDBC localJDBC = null;
-        synchronized (SYNCH_LOCK) {
-            localJDBC = jdbc;
-        }
-        if (localJDBC == null) {
+        // Getting local copy of JDBC class, which stays open until it is released
+        SharedJDBC sharedJDBC = acquireJDBC();
+        if (sharedJDBC == null) {
             if (client != null) {
                 client.sendQueryError(replyAddress, this.getClass().getName() + ".closed",
                         "JDBC connection closed before operation could complete.", null);
             }
+            return;
         }
+        JDBC localJDBC = sharedJDBC.get();
 
         // Gather query results and send the appropriate response, or send a query error if an exception is caught
         try {
             if (request.get("query") instanceof String) {
                 String queryString = (String) request.get("query");
+                List params = request.get("params") instanceof List ? (List) request.get("params") : null;
                 // Check if SQL Query is an update statement, or query statement
                 if (queryString.trim().toLowerCase().startsWith(SELECT_STATEMENT_IDENTIFIER)) {
-                    Map[] queryArray = localJDBC.processQuery(queryString);
-                    sendDataFromQuery(queryArray, message);
+                    if (COLUMNAR_FORMAT.equals(request.get(FORMAT))) {
+                        int fetchSize = request.get("fetchSize") instanceof Integer
+                                ? (Integer) request.get("fetchSize") : 0;
+                        sendColumnarFromQuery(localJDBC, queryString, params, fetchSize, message);
+                    } else if (request.get("fetchSize") instanceof Integer && (Integer) request.get("fetchSize") != 0) {
+                        streamDataFromQuery(localJDBC, queryString, params, (Integer) request.get("fetchSize"),
+                                message);
+                    } else {
+                        // A negative time to live leaves it to the cache, if there is one
+                        long cacheTtl = request.get(CACHE_TTL) instanceof Number
+                                ? ((Number) request.get(CACHE_TTL)).longValue() : -1;
+                        Map[] queryArray = localJDBC.processCachedQuery(queryString, params, cacheTtl);
+                        sendDataFromQuery(queryArray, message);
+                    }
                 } else {
-                    int data = localJDBC.processPublish(queryString);
-                    log.trace("The returned integer value from Publish Query is the following: ", data);
+                    if (request.get("rows") instanceof List) {
+                        processBulkUpdate(localJDBC, queryString, (List) request.get("rows"), request.get("batchSize"));
+                    } else if (params != null) {
+                        processPreparedUpdate(localJDBC, queryString, params);
+                    } else {
+                        int data = localJDBC.processPublish(queryString);
+                        log.trace("The returned integer value from Publish Query is the following: ", data);
+                    }
 
                     // Send empty response back
                     client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
                 }
             } else if (request.get("query") instanceof List) {
                 List queryArray = (List) request.get("query");
+                if (request.get("params") != null) {
+                    client.sendQueryError(replyAddress, this.getClass().getName() + ".paramsWithBatch",
+                            "The Query Request could not be executed because 'params' can only be used with a "
+                            + "single query string.", null);
+                    return;
+                }
                 // Check that each batch element is a SQL Update Statement
                 for (int i = 0; i < queryArray.size(); i++) {
                     if (queryArray.get(i).toString().trim().toLowerCase().startsWith(SELECT_STATEMENT_IDENTIFIER)) {
@@ -235,6 +262,8 @@ public class JDBCCore {
             client.sendQueryError(replyAddress, Exception.class.getCanonicalName(), 
                     "Failed to execute query for reason: " + e.getMessage() + 
                     ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get("query"), null);
+        } finally {
+            sharedJDBC.release();
         }
     }
     
@@ -246,22 +275,26 @@ public class JDBCCore {
     public void executePublish(ExtensionServiceMessage message) {
         Map<String, ?> request = (Map<String, ?>) message.getObject();
 
-        // Getting local copy of JDBC class
-        JDBC localJDBC = null;
-        synchronized (SYNCH_LOCK) {
-            localJDBC = jdbc;
-        }
-
-        if (localJDBC == null) {
+        // Getting local copy of JDBC class, which stays open until it is released
+        SharedJDBC sharedJDBC = acquireJDBC();
+        if (sharedJDBC == null) {
             log.error("JDBC connection closed before operation could complete");
+            return;
         }
+        JDBC localJDBC = sharedJDBC.get();
 
         // Gather query results, or send a query error if an exception is caught
         try {
             if (request.get("query") instanceof String) {
                 String queryString = (String) request.get("query");
-                int data = localJDBC.processPublish(queryString);
-                log.trace("The returned integer value from Publish Query is the following: ", data);
+                if (request.get("rows") instanceof List) {
+                    processBulkUpdate(localJDBC, queryString, (List) request.get("rows"), request.get("batchSize"));
+                } else if (request.get("params") instanceof List) {
+                    processPreparedUpdate(localJDBC, queryString, (List) request.get("params"));
+                } else {
+                    int data = localJDBC.processPublish(queryString);
+                    log.trace("The returned integer value from Publish Query is the following: ", data);
+                }
             } else if (request.get("query") instanceof List) {
                 List queryArray = (List) request.get("query");
                 int[] data = localJDBC.processBatchPublish(queryArray);
@@ -278,9 +311,51 @@ public class JDBCCore {
         } catch (Exception e) {
             log.error("An unexpected error occurred when executing the requested query.", e);
             log.error("Request was: {}", request);
+        } finally {
+            sharedJDBC.release();
         }
     }
     
+    /**
+     * Executes a parameterized update through a PreparedStatement. If every element of {@code params} is itself a
+     * List, the update is run once for each of them as a single batch. Otherwise {@code params} holds the parameters
+     * of a single execution.
+     * @param localJDBC     The JDBC instance to run the update on.
+     * @param queryString   The SQL of the update, with a {@code ?} for each parameter.
+     * @param params        The parameters, or a list of parameter lists.
+     * @throws VantiqSQLException
+     */
+    void processPreparedUpdate(JDBC localJDBC, String queryString, List params) throws VantiqSQLException {
+        boolean isBatch = !params.isEmpty();
+        for (Object p : params) {
+            isBatch = isBatch && p instanceof List;
+        }
+        if (isBatch) {
+            int[] data = localJDBC.processPreparedBatchPublish(queryString, params);
+            log.trace("The returned integer array from Publish Query is the following: ", data);
+        } else {
+            int data = localJDBC.processPreparedPublish(queryString, params);
+            log.trace("The returned integer value from Publish Query is the following: ", data);
+        }
+    }
+    
+    /**
+     * Executes a bulk insert or update, binding each of {@code rows} to the single statement in {@code queryString}
+     * and sending them in batches that are committed one at a time.
+     * @param localJDBC     The JDBC instance to run the update on.
+     * @param queryString   The SQL of the update, with {@code ?} or {@code :name} parameters.
+     * @param rows          The rows, each a List or a Map of parameter values.
+     * @param batchSize     The "batchSize" of the request, the number of rows to send and commit together. The
+     *                      default is used if it is not a positive Integer.
+     * @throws VantiqSQLException
+     */
+    void processBulkUpdate(JDBC localJDBC, String queryString, List rows, Object batchSize)
+            throws VantiqSQLException {
+        int size = batchSize instanceof Integer ? (Integer) batchSize : 0;
+        int data = localJDBC.processBulkPublish(queryString, rows, size);
+        log.trace("The number of rows affected by the bulk publish is the following: {}", data);
+    }
+
     /**
      * Executes a query (pollQuery) at a certain rate (pollTime), both specified in the Source Configuration.
      * The resulting data is sent as a notification back to the Source. If multiple rows of data are returned,
@@ -288,25 +363,59 @@ public class JDBCCore {
      * @param pollQuery     The query string
      */
     public void executePolling(String pollQuery) {
-        // Getting local copy of JDBC class
-        JDBC localJDBC = null;
-        synchronized (SYNCH_LOCK) {
-            localJDBC = jdbc;
-        }
+        executePolling(pollQuery, null);
+    }
+
+    /**
+     * Executes the pollQuery, as {@link #executePolling(String)} does. If a watermark is given, only the rows past it
+     * are requested, and the watermark is moved past the rows returned once they have all been sent.
+     * @param pollQuery     The query string, with the watermark as its parameter if a watermark is given.
+     * @param watermark     The watermark of an incremental pollQuery, or null to return the full results each time.
+     */
+    public void executePolling(String pollQuery, PollWatermark watermark) {
+        executePolling(pollQuery, watermark, null, 1);
+    }
 
-        if (localJDBC == null) {
+    /**
+     * Executes the pollQuery, as {@link #executePolling(String, PollWatermark)} does, optionally sending only the rows
+     * that changed since the last poll, and sending several rows in each notification.
+     * @param pollQuery     The query string, with the watermark as its parameter if a watermark is given.
+     * @param watermark     The watermark of an incremental pollQuery, or null to return the full results each time.
+     * @param changes       The results of the previous poll, to send only the rows inserted, updated or deleted
+     *                      since, or null to send every row.
+     * @param batchSize     The number of rows sent in each notification, as a list under "rows", or 1 to send each
+     *                      row as a notification of its own.
+     */
+    public void executePolling(String pollQuery, PollWatermark watermark, PollChangeDetector changes, int batchSize) {
+        // Getting local copy of JDBC class, which stays open until it is released
+        SharedJDBC sharedJDBC = acquireJDBC();
+        if (sharedJDBC == null) {
             return;
         }
+        JDBC localJDBC = sharedJDBC.get();
         try {
-            Map[] queryMap = localJDBC.processQuery(pollQuery);
-            if (queryMap != null) {
-                for (Map h : queryMap) {
-                    if (client.isConnected()) {
-                        client.sendNotification(h);
-                    } else {
-                        log.warn("The connection to Vantiq is not active, so the pollQuery response was unable to be " +
-                                "sent.");
-                    }
+            // Prepared, so that the database only plans the polling query once
+            Map[] queryMap = watermark != null ? localJDBC.processWatermarkQuery(pollQuery, watermark)
+                    : localJDBC.processPollQuery(pollQuery);
+            if (queryMap == null) {
+                queryMap = new Map[0];
+            }
+            List<? extends Map> results = changes != null ? changes.diff(queryMap) : Arrays.asList(queryMap);
+            boolean allSent = sendPollResults(results, batchSize);
+            if (allSent) {
+                if (watermark != null) {
+                    watermark.commit();
+                }
+                if (changes != null) {
+                    changes.commit();
+                }
+            } else {
+                // Poll the unsent rows again
+                if (watermark != null) {
+                    watermark.discard();
+                }
+                if (changes != null) {
+                    changes.discard();
                 }
             }
         } catch (VantiqSQLException e) {
@@ -315,9 +424,111 @@ public class JDBCCore {
         } catch (Exception e) {
             log.error("An unexpected error occurred when executing the polling query.", e);
             log.error("The pollQuery was: " + pollQuery);
+        } finally {
+            sharedJDBC.release();
         }
     }
     
+    /**
+     * Sends the results of a poll as notifications, {@code batchSize} rows at a time.
+     * @return  true if every row was sent, false if the connection to Vantiq was not active.
+     */
+    boolean sendPollResults(List<? extends Map> results, int batchSize) {
+        boolean allSent = true;
+        int step = Math.max(batchSize, 1);
+        for (int i = 0; i < results.size(); i += step) {
+            Object notification;
+            if (batchSize > 1) {
+                Map<String, Object> batch = new LinkedHashMap<>();
+                batch.put(POLL_BATCH_ROWS, results.subList(i, Math.min(i + step, results.size())));
+                notification = batch;
+            } else {
+                notification = results.get(i);
+            }
+            if (client.isConnected()) {
+                client.sendNotification(notification);
+            } else {
+                allSent = false;
+                log.warn("The connection to Vantiq is not active, so the pollQuery response was unable to be " +
+                        "sent.");
+            }
+        }
+        return allSent;
+    }
+
+   /**
+    * Called by executeQuery() when the query asks for a {@code fetchSize}. Runs the query and sends each
+    * 'bundleFactor' rows back to VANTIQ as soon as they have been read from the cursor, so that only about one bundle
+    * is held in memory however large the result. A bundleFactor of 0 is treated as the default here, since it would
+    * hold the whole result.
+    * @param localJDBC      The JDBC instance to run the query on.
+    * @param queryString    The query to run.
+    * @param params         The parameters of the query, or null if it has none.
+    * @param fetchSize      The number of rows the driver should fetch from the database at a time.
+    * @param message        The Query message
+    */
+   public void streamDataFromQuery(JDBC localJDBC, String queryString, List params, int fetchSize,
+           ExtensionServiceMessage message) {
+       Map<String, ?> request = (Map<String, ?>) message.getObject();
+       String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
+
+       int bundleFactor = DEFAULT_BUNDLE_SIZE;
+       // Frames are only cut by size when the request leaves the number of rows to us
+       int maxFrameBytes = QueryResponseStream.DEFAULT_MAX_FRAME_BYTES;
+       if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > 0) {
+           bundleFactor = (Integer) request.get("bundleFactor");
+           maxFrameBytes = 0;
+       }
+
+       QueryResponseStream stream = client.openQueryResponseStream(replyAddress, bundleFactor, maxFrameBytes);
+       sendQueryResults(stream, request,
+               () -> localJDBC.processQueryStreaming(queryString, params, fetchSize, stream::write));
+   }
+
+   /**
+    * Called by executeQuery() when the query asks for the columnar {@code format}. Runs the query and sends each
+    * 'bundleFactor' rows back to VANTIQ as they are read, as in streamDataFromQuery(), but with each row as an array of
+    * values. Every bundle is an object holding the names of the columns under 'columns', their JDBC types under
+    * 'types', and the rows under 'rows', so that the column names are sent once per bundle rather than once per row.
+    * As in streamDataFromQuery(), a bundleFactor of 0 is treated as the default, since it would hold the whole result.
+    * @param localJDBC      The JDBC instance to run the query on.
+    * @param queryString    The query to run.
+    * @param params         The parameters of the query, or null if it has none.
+    * @param fetchSize      The number of rows the driver should fetch from the database at a time, or 0 to leave it
+    *                       to the driver.
+    * @param message        The Query message
+    */
+   public void sendColumnarFromQuery(JDBC localJDBC, String queryString, List params, int fetchSize,
+           ExtensionServiceMessage message) {
+       Map<String, ?> request = (Map<String, ?>) message.getObject();
+       String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
+
+       int bundleFactor = DEFAULT_BUNDLE_SIZE;
+       // Frames are only cut by size when the request leaves the number of rows to us
+       int maxFrameBytes = QueryResponseStream.DEFAULT_MAX_FRAME_BYTES;
+       if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > 0) {
+           bundleFactor = (Integer) request.get("bundleFactor");
+           maxFrameBytes = 0;
+       }
+
+       QueryResponseStream stream = client.openQueryResponseStream(replyAddress, bundleFactor, maxFrameBytes);
+       sendQueryResults(stream, request,
+               () -> localJDBC.processQueryColumnar(queryString, params, fetchSize, new JDBC.ColumnarConsumer() {
+                   @Override
+                   public void columns(List<String> names, List<String> types) {
+                       Map<String, Object> header = new LinkedHashMap<>();
+                       header.put(COLUMNS, names);
+                       header.put(COLUMN_TYPES, types);
+                       stream.setFrameHeader(header);
+                   }
+
+                   @Override
+                   public void accept(Object[] values) throws IOException, InterruptedException {
+                       stream.write(values);
+                   }
+               }));
+   }
+
    /**
     * Called by executeQuery() once the query has been executed, and sends the retrieved data back to VANTIQ.
     * @param queryArray     A HashMap Array containing the retrieved data from processQuery().
@@ -328,38 +539,127 @@ public class JDBCCore {
        String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
        
        int bundleFactor = DEFAULT_BUNDLE_SIZE;
+       // Frames are only cut by size when the request leaves the number of rows to us
+       int maxFrameBytes = QueryResponseStream.DEFAULT_MAX_FRAME_BYTES;
        if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > -1) {
            bundleFactor = (Integer) request.get("bundleFactor");
+           maxFrameBytes = 0;
        }
        
-       // Send the results of the query
-       if (queryArray.length == 0) {
-           // If data is empty send empty map with 204 code
-           client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
-           lastRowBundle = null;
-       } else if (bundleFactor == 0) {
-           // If the bundleFactor was specified to be 0, then we sent the entire array
-           client.sendQueryResponse(200, replyAddress, queryArray);
-           lastRowBundle = queryArray;
-       } else {
-           // Otherwise, send messages containing 'bundleFactor' number of rows
-           int len = queryArray.length;
-           for (int i = 0; i < len; i += bundleFactor) {
-               Map[] rowBundle = Arrays.copyOfRange(queryArray, i, Math.min(queryArray.length, i + bundleFactor));
-               
-               // If we reached the last row, send with 200 code
-               if  (i + bundleFactor >= len) {
-                   client.sendQueryResponse(200, replyAddress, rowBundle);
-               } else {
-                   // Otherwise, send row with 100 code signifying more data to come 
-                   client.sendQueryResponse(100, replyAddress, rowBundle);
-               }
-               lastRowBundle = rowBundle;
+       // Send the results of the query as they are serialized, 'bundleFactor' rows at a time, or at most
+       // QueryResponseStream.DEFAULT_MAX_FRAME_BYTES at a time if the request gave no bundleFactor. A bundleFactor of 0
+       // sends everything in one message.
+       QueryResponseStream stream = client.openQueryResponseStream(replyAddress, bundleFactor, maxFrameBytes);
+       sendQueryResults(stream, request, () -> {
+           for (Map row : queryArray) {
+               stream.write(row);
            }
+       });
+   }
+
+   /**
+    * Writes the rows of a query response to its stream, whether they are read from the database as they are written
+    * or are already in memory.
+    */
+   private interface ResultsWriter {
+       void write() throws VantiqSQLException, IOException, InterruptedException;
+   }
+
+   /**
+    * Writes the rows of a query response to {@code stream} with {@code writer} and closes it, or ends the response with
+    * a query error if the rows could not be read or sent.
+    * @param stream     The stream the response is sent through.
+    * @param request    The object of the Query message.
+    * @param writer     Writes the rows to {@code stream}.
+    */
+   private void sendQueryResults(QueryResponseStream stream, Map<String, ?> request, ResultsWriter writer) {
+       try {
+           writer.write();
+           stream.close();
+       } catch (VantiqSQLException e) {
+           log.error("Could not execute requested query.", e);
+           log.error("Request was: {}", request);
+           stream.fail(VantiqSQLException.class.getCanonicalName(),
+                   "Failed to execute query for reason: " + e.getMessage() +
+                   ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get("query"), null);
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+           stream.fail(this.getClass().getName() + ".interrupted", "Sending the query results was interrupted.",
+                   null);
+       } catch (IOException e) {
+           log.error("Failed to serialize the query results.", e);
+           stream.fail(this.getClass().getName() + ".serializationFailed",
+                   "Failed to serialize the query results for reason: " + e.getMessage(), null);
        }
+       lastFrameRows = stream.getLastFrameRows();
    }
    
     
+    /**
+     * Makes {@code newJDBC} the JDBC instance used by new requests. The instance it replaces is closed once the
+     * requests already using it have finished.
+     * @param newJDBC   The JDBC instance to use, or null to close the current one without replacing it.
+     */
+    void setJDBC(JDBC newJDBC) {
+        SharedJDBC old = jdbc.getAndSet(newJDBC == null ? null : new SharedJDBC(newJDBC));
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * Obtains the current JDBC instance, which will not be closed until it is released.
+     * @return  The current instance, which must be released when done, or null if there is none.
+     */
+    SharedJDBC acquireJDBC() {
+        while (true) {
+            SharedJDBC current = jdbc.get();
+            if (current == null || current.retain()) {
+                return current;
+            }
+            // It was replaced and closed before it could be retained, so try its replacement
+        }
+    }
+
+    /**
+     * A JDBC instance shared by the requests using it. It is closed when it has been replaced and every request that
+     * retained it has released it.
+     */
+    static final class SharedJDBC {
+        private final JDBC jdbc;
+        // One for each request using it, plus one while it is the current instance
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedJDBC(JDBC jdbc) {
+            this.jdbc = jdbc;
+        }
+
+        JDBC get() {
+            return jdbc;
+        }
+
+        /**
+         * @return  true if the instance was retained, false if it has already been closed.
+         */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                jdbc.close();
+            }
+        }
+    }
+
     /**
      * Closes all resources held by this program except for the {@link ExtensionWebSocketClient}. 
      */
@@ -368,12 +668,7 @@ public class JDBCCore {
             pollTimer.cancel();
             pollTimer = null;
         }
-        synchronized (SYNCH_LOCK) {
-            if (jdbc != null) {
-                jdbc.close();
-                jdbc = null;
-            }
-        }
+        setJDBC(null);
         if (queryPool != null) {
             queryPool.shutdownNow();
             queryPool = null;
@@ -389,42 +684,12 @@ public class JDBCCore {
      */
     public void stop() {
         close();
+        if (client != null) {
+            ConnectionManager.getDefault().cancel(client);
+        }
         if (client != null && client.isOpen()) {
             client.stop();
             client = null;
         }
     }
-
-    /**
-     * Waits for the connection to succeed or fail, logs and exits if the connection does not succeed within
-     * {@code timeout} seconds.
-     *
-     * @param client    The client to watch for success or failure.
-     * @param timeout   The maximum number of seconds to wait before assuming failure and stopping
-     * @return          true if the connection succeeded, false if it failed to connect within {@code timeout} seconds.
-     */
-    public boolean exitIfConnectionFails(ExtensionWebSocketClient client, int timeout) {
-        boolean sourcesSucceeded = false;
-        try {
-            sourcesSucceeded = client.getSourceConnectionFuture().get(timeout, TimeUnit.SECONDS);
-        }
-        catch (TimeoutException e) {
-            log.error("Timeout: full connection did not succeed within {} seconds: {}", timeout, e);
-        }
-        catch (Exception e) {
-            log.error("Exception occurred while waiting for webSocket connection", e);
-        }
-        if (!sourcesSucceeded) {
-            log.error("Failed to connect to all sources.");
-            if (!client.isOpen()) {
-                log.error("Failed to connect to server url '" + targetVantiqServer + "'.");
-            } else if (!client.isAuthed()) {
-                log.error("Failed to authenticate within " + timeout + " seconds using the given authentication data.");
-            } else {
-                log.error("Failed to connect within 10 seconds");
-            }
-            return false;
-        }
-        return true;
-    }
 }
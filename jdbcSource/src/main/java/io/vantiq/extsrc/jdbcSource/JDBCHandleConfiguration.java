@@ -8,9 +8,18 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -22,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
 import io.vantiq.extjsdk.Handler;
+import io.vantiq.extjsdk.MetricsRegistry;
 import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
 
 /**
@@ -66,9 +76,31 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
     private static final String DB_URL = "dbURL";
     private static final String POLL_TIME = "pollTime";
     private static final String POLL_QUERY = "pollQuery";
+    private static final String POLL_WATERMARK_COLUMN = "pollWatermarkColumn";
+    private static final String POLL_WATERMARK_INITIAL = "pollWatermarkInitial";
+    private static final String POLL_WATERMARK_FILE = "pollWatermarkFile";
+    private static final String POLL_BATCH_SIZE = "pollBatchSize";
+    private static final String POLL_CHANGE_KEY = "pollChangeKey";
     private static final String ASYNCH_PROCESSING = "asynchronousProcessing";
     private static final String MAX_ACTIVE = "maxActiveTasks";
     private static final String MAX_QUEUED = "maxQueuedTasks";
+    private static final String STATEMENT_CACHE_SIZE = "statementCacheSize";
+    private static final String REWRITE_BATCHES = "rewriteBatches";
+    private static final String CONNECTION_POOLS = "connectionPools";
+    private static final String POOL_SIZE = "maxPoolSize";
+    private static final String POOL_CONNECTION_TIMEOUT = "connectionTimeout";
+    private static final String POOL_READ_ONLY = "readOnly";
+    private static final String POOL_AUTO_COMMIT = "autoCommit";
+    private static final String EXECUTION_MODE = "executionMode";
+    private static final String QUERY_CACHE = "queryCache";
+    private static final String CACHE_MAX_ENTRIES = "maxEntries";
+    private static final String CACHE_MAX_BYTES = "maxBytes";
+    private static final String CACHE_TTL = "ttl";
+    private static final String CACHE_TABLES = "tables";
+    private static final String VIRTUAL_THREADS_MODE = "virtualThreads";
+
+    // The size of the polling pool when connectionPools does not give one, since polls run one at a time
+    private static final int DEFAULT_POLL_POOL_SIZE = 1;
 
     public JDBCHandleConfiguration(JDBCCore source) {
         this.source = source;
@@ -166,14 +198,31 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
         
         // Initialize JDBC Source with config values
         try {
-            if (source.jdbc != null) {
-                source.jdbc.close();
+            int statementCacheSize = StatementCache.DEFAULT_MAX_STATEMENTS;
+            if (generalConfig.get(STATEMENT_CACHE_SIZE) instanceof Integer
+                    && (Integer) generalConfig.get(STATEMENT_CACHE_SIZE) >= 0) {
+                statementCacheSize = (Integer) generalConfig.get(STATEMENT_CACHE_SIZE);
             }
+            boolean rewriteBatches = Boolean.TRUE.equals(generalConfig.get(REWRITE_BATCHES));
+            Map<ConnectionPools.Workload, ConnectionPools.Settings> poolSettings =
+                    createPoolSettings(generalConfig, maxPoolSize / 2);
             JDBC jdbc = new JDBC();
-            jdbc.setupJDBC(dbURL, username, password, asynchronousProcessing, maxPoolSize);
-            source.jdbc = jdbc; 
+            jdbc.setupJDBC(dbURL, username, password, asynchronousProcessing, maxPoolSize, statementCacheSize,
+                    rewriteBatches, poolSettings);
+            registerStatementCacheMetrics(jdbc.getStatementCache());
+            QueryResultCache queryCache = createQueryResultCache(generalConfig);
+            if (queryCache != null) {
+                jdbc.setQueryResultCache(queryCache);
+                registerQueryResultCacheMetrics(queryCache);
+            }
+            if (jdbc.getConnectionPools() != null) {
+                jdbc.getConnectionPools().registerMetrics(source.client.getMetrics());
+            }
+            // The previous instance is closed once the requests using it have finished
+            source.setJDBC(jdbc);
         } catch (VantiqSQLException e) {
             log.error("Configuration failed. Exception occurred while setting up JDBC Source: ", e);
+            source.setJDBC(null);
             return false;
         }
         
@@ -183,10 +232,25 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
                 int pollTime = (Integer) generalConfig.get(POLL_TIME);
                 if (pollTime > 0) {
                     String pollQuery = (String) generalConfig.get(POLL_QUERY);
+                    PollWatermark watermark = createPollWatermark(generalConfig);
+                    if (generalConfig.get(POLL_WATERMARK_COLUMN) != null && watermark == null) {
+                        // The error has been logged, and polling everything instead could flood Vantiq
+                        return false;
+                    }
+                    PollChangeDetector changes = null;
+                    if (generalConfig.get(POLL_CHANGE_KEY) != null) {
+                        changes = createPollChangeDetector(generalConfig);
+                        if (changes == null) {
+                            return false;
+                        }
+                    }
+                    int batchSize = generalConfig.get(POLL_BATCH_SIZE) instanceof Integer
+                            ? (Integer) generalConfig.get(POLL_BATCH_SIZE) : 1;
+                    PollChangeDetector pollChanges = changes;
                     TimerTask task = new TimerTask() {
                         @Override
                         public void run() {
-                            source.executePolling(pollQuery);
+                            source.executePolling(pollQuery, watermark, pollChanges, batchSize);
                         }
                     };
                     // Create new Timer, and schedule the task according to the pollTime
@@ -209,6 +273,191 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
         return true;
     }
 
+    /**
+     * Creates the watermark for an incremental pollQuery, if the configuration names a pollWatermarkColumn. The
+     * watermark is saved to pollWatermarkFile, by default {@code <sourceName>.watermark} in the working directory.
+     * @param generalConfig The general section of the configuration.
+     * @return              The watermark, or null if there is no pollWatermarkColumn, or the configuration is invalid.
+     */
+    PollWatermark createPollWatermark(Map<String, ?> generalConfig) {
+        Object column = generalConfig.get(POLL_WATERMARK_COLUMN);
+        if (column == null) {
+            return null;
+        } else if (!(column instanceof String)) {
+            log.error("Configuration failed. The pollWatermarkColumn must be a string.");
+            return null;
+        }
+        Path file = Paths.get(generalConfig.get(POLL_WATERMARK_FILE) instanceof String
+                ? (String) generalConfig.get(POLL_WATERMARK_FILE) : sourceName + ".watermark");
+        PollWatermark watermark = new PollWatermark((String) column, generalConfig.get(POLL_WATERMARK_INITIAL), file);
+        if (watermark.getValue() == null) {
+            log.error("Configuration failed. A pollWatermarkInitial must be specified along with the "
+                    + "pollWatermarkColumn, unless a watermark has been saved.");
+            return null;
+        }
+        return watermark;
+    }
+
+    /**
+     * Creates the change detector that makes polling send only the rows that changed, from the pollChangeKey of the
+     * configuration.
+     * @param generalConfig The general section of the configuration.
+     * @return              The change detector, or null if the configuration is invalid.
+     */
+    PollChangeDetector createPollChangeDetector(Map<String, ?> generalConfig) {
+        Object key = generalConfig.get(POLL_CHANGE_KEY);
+        List<String> keyColumns = new ArrayList<>();
+        if (key instanceof String) {
+            keyColumns.add((String) key);
+        } else if (key instanceof List) {
+            for (Object column : (List) key) {
+                keyColumns.add(String.valueOf(column));
+            }
+        }
+        if (keyColumns.isEmpty()) {
+            log.error("Configuration failed. The pollChangeKey must be a column name or a list of column names.");
+            return null;
+        }
+        if (generalConfig.get(POLL_WATERMARK_COLUMN) != null) {
+            // Rows outside the watermark would all appear to have been deleted
+            log.error("Configuration failed. The pollChangeKey cannot be used along with the pollWatermarkColumn.");
+            return null;
+        }
+        return new PollChangeDetector(keyColumns);
+    }
+
+    /**
+     * Creates the cache of query results from the queryCache of the configuration, which may set maxEntries, maxBytes,
+     * ttl in milliseconds, and the tables whose results are dropped when a publish changes them, such as
+     * {@code {maxEntries: 500, ttl: 30000, tables: ["Currency", "Country"]}}.
+     * @param generalConfig The general section of the configuration.
+     * @return              The cache, or null if results are not to be cached.
+     */
+    QueryResultCache createQueryResultCache(Map<String, ?> generalConfig) {
+        if (!(generalConfig.get(QUERY_CACHE) instanceof Map)) {
+            return null;
+        }
+        Map<String, ?> cacheConfig = (Map<String, ?>) generalConfig.get(QUERY_CACHE);
+        int maxEntries = QueryResultCache.DEFAULT_MAX_ENTRIES;
+        if (cacheConfig.get(CACHE_MAX_ENTRIES) instanceof Integer && (Integer) cacheConfig.get(CACHE_MAX_ENTRIES) > 0) {
+            maxEntries = (Integer) cacheConfig.get(CACHE_MAX_ENTRIES);
+        }
+        long maxBytes = QueryResultCache.DEFAULT_MAX_BYTES;
+        if (cacheConfig.get(CACHE_MAX_BYTES) instanceof Number
+                && ((Number) cacheConfig.get(CACHE_MAX_BYTES)).longValue() > 0) {
+            maxBytes = ((Number) cacheConfig.get(CACHE_MAX_BYTES)).longValue();
+        }
+        long ttl = QueryResultCache.DEFAULT_TTL;
+        if (cacheConfig.get(CACHE_TTL) instanceof Number && ((Number) cacheConfig.get(CACHE_TTL)).longValue() >= 0) {
+            ttl = ((Number) cacheConfig.get(CACHE_TTL)).longValue();
+        }
+        List<String> tables = new ArrayList<>();
+        Object tablesConfig = cacheConfig.get(CACHE_TABLES);
+        if (tablesConfig instanceof String) {
+            tables.add((String) tablesConfig);
+        } else if (tablesConfig instanceof List) {
+            for (Object table : (List) tablesConfig) {
+                tables.add(String.valueOf(table));
+            }
+        }
+        if (tables.isEmpty()) {
+            log.warn("The queryCache has no tables, so cached results are only refreshed once they expire.");
+        }
+        return new QueryResultCache(maxEntries, maxBytes, ttl, tables);
+    }
+
+    /**
+     * Reads the settings of a separate connection pool for each workload from the connectionPools of the
+     * configuration, which has an optional object for each of query, publish and poll, such as
+     * {@code {query: {maxPoolSize: 10, connectionTimeout: 30000, readOnly: true}, poll: {maxPoolSize: 1}}}.
+     * @param generalConfig     The general section of the configuration.
+     * @param maxActiveTasks    The number of threads running queries and publishes, and so the default size of their
+     *                          pools.
+     * @return                  The settings of every workload, or null to share a single pool between them.
+     */
+    Map<ConnectionPools.Workload, ConnectionPools.Settings> createPoolSettings(Map<String, ?> generalConfig,
+            int maxActiveTasks) {
+        if (!(generalConfig.get(CONNECTION_POOLS) instanceof Map)) {
+            return null;
+        } else if (!asynchronousProcessing) {
+            log.warn("The connectionPools are ignored, since asynchronousProcessing is not enabled.");
+            return null;
+        }
+        Map<String, ?> poolsConfig = (Map<String, ?>) generalConfig.get(CONNECTION_POOLS);
+        Map<ConnectionPools.Workload, ConnectionPools.Settings> settings =
+                new EnumMap<>(ConnectionPools.Workload.class);
+        for (ConnectionPools.Workload workload : ConnectionPools.Workload.values()) {
+            Map<String, ?> poolConfig = poolsConfig.get(workload.getName()) instanceof Map
+                    ? (Map<String, ?>) poolsConfig.get(workload.getName()) : Collections.emptyMap();
+            ConnectionPools.Settings pool =
+                    new ConnectionPools.Settings(poolSize(poolConfig, workload, maxActiveTasks));
+            if (poolConfig.get(POOL_CONNECTION_TIMEOUT) instanceof Integer) {
+                pool.connectionTimeout((Integer) poolConfig.get(POOL_CONNECTION_TIMEOUT));
+            }
+            if (poolConfig.get(POOL_READ_ONLY) instanceof Boolean) {
+                pool.readOnly((Boolean) poolConfig.get(POOL_READ_ONLY));
+            }
+            if (poolConfig.get(POOL_AUTO_COMMIT) instanceof Boolean) {
+                pool.autoCommit((Boolean) poolConfig.get(POOL_AUTO_COMMIT));
+            }
+            settings.put(workload, pool);
+        }
+        return settings;
+    }
+
+    /**
+     * @param generalConfig     The general section of the configuration.
+     * @param workload          The workload whose pool to size.
+     * @param maxActiveTasks    The number of threads running queries and publishes.
+     * @return                  The size of the pool for {@code workload} set by the connectionPools, or the default.
+     */
+    private static int configuredPoolSize(Map<String, ?> generalConfig, ConnectionPools.Workload workload,
+            int maxActiveTasks) {
+        Object poolsConfig = generalConfig.get(CONNECTION_POOLS);
+        Object poolConfig = poolsConfig instanceof Map ? ((Map<String, ?>) poolsConfig).get(workload.getName()) : null;
+        return poolSize(poolConfig instanceof Map ? (Map<String, ?>) poolConfig : Collections.emptyMap(), workload,
+                maxActiveTasks);
+    }
+
+    private static int poolSize(Map<String, ?> poolConfig, ConnectionPools.Workload workload, int maxActiveTasks) {
+        if (poolConfig.get(POOL_SIZE) instanceof Integer && (Integer) poolConfig.get(POOL_SIZE) > 0) {
+            return (Integer) poolConfig.get(POOL_SIZE);
+        }
+        return workload == ConnectionPools.Workload.POLL ? DEFAULT_POLL_POOL_SIZE : maxActiveTasks;
+    }
+
+    /**
+     * Reports the prepared statement cache of the current JDBC instance through the client's metrics. Registering
+     * again replaces the earlier gauges, so this is called with the new cache on every reconfiguration.
+     * @param cache The statement cache of the current JDBC instance.
+     */
+    void registerStatementCacheMetrics(StatementCache cache) {
+        MetricsRegistry metrics = source.client.getMetrics();
+        metrics.gauge("jdbc_statement_cache_hits", "Prepared statements found in the cache.", cache::getHits);
+        metrics.gauge("jdbc_statement_cache_misses", "Prepared statements that had to be prepared.",
+                cache::getMisses);
+        metrics.gauge("jdbc_statement_cache_hit_ratio", "Fraction of prepared statements found in the cache.",
+                cache::getHitRate);
+    }
+
+    /**
+     * Reports the query result cache through the client's metrics. Registering again replaces the earlier gauges, so
+     * this is called with the new cache on every reconfiguration.
+     * @param cache The cache to report.
+     */
+    void registerQueryResultCacheMetrics(QueryResultCache cache) {
+        MetricsRegistry metrics = source.client.getMetrics();
+        metrics.gauge("jdbc_query_cache_hits", "Queries answered from the cache.", cache::getHits);
+        metrics.gauge("jdbc_query_cache_misses", "Queries that went to the database.", cache::getMisses);
+        metrics.gauge("jdbc_query_cache_hit_ratio", "Fraction of queries answered from the cache.",
+                cache::getHitRate);
+        metrics.gauge("jdbc_query_cache_evictions", "Results dropped to make room for others.", cache::getEvictions);
+        metrics.gauge("jdbc_query_cache_invalidations", "Results dropped because a publish changed their tables.",
+                cache::getInvalidations);
+        metrics.gauge("jdbc_query_cache_entries", "Results kept in the cache.", cache::size);
+        metrics.gauge("jdbc_query_cache_bytes", "Estimated size of the results kept in the cache.", cache::getBytes);
+    }
+
     /**
      * Method used to create the query and publish handlers
      * @param generalConfig     The general configuration of the JDBC Source
@@ -235,6 +484,19 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
             // Used to set the max pool size for connection pool
             maxPoolSize = 2*maxActiveTasks;
 
+            if (VIRTUAL_THREADS_MODE.equals(generalConfig.get(EXECUTION_MODE))) {
+                ExecutorService queryExecutor = newVirtualThreadExecutor();
+                ExecutorService publishExecutor = newVirtualThreadExecutor();
+                if (queryExecutor != null && publishExecutor != null) {
+                    createVirtualThreadHandlers(queryExecutor, publishExecutor,
+                            configuredPoolSize(generalConfig, ConnectionPools.Workload.QUERY, maxActiveTasks),
+                            configuredPoolSize(generalConfig, ConnectionPools.Workload.PUBLISH, maxActiveTasks));
+                    return maxPoolSize;
+                }
+                log.warn("Virtual threads require Java 21 or later, so a pool of {} threads is used instead.",
+                        maxActiveTasks);
+            }
+
             // Creating the thread pool executors with Queue
             source.queryPool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0l, TimeUnit.MILLISECONDS,
                     new LinkedBlockingQueue<Runnable>(maxQueuedTasks));
@@ -294,6 +556,81 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
         return maxPoolSize;
     }
 
+    /**
+     * Creates the query and publish handlers that run each request on a virtual thread of its own. Rather than
+     * limiting the number of threads, the number of requests using the database at once is limited by a semaphore
+     * sized to the connection pool they use, and the rest wait for a permit. A waiting virtual thread costs little, so
+     * requests are never rejected however many arrive at once.
+     * @param queryExecutor     The executor starting a virtual thread for each query.
+     * @param publishExecutor   The executor starting a virtual thread for each publish.
+     * @param queryPermits      The number of queries that may run at once.
+     * @param publishPermits    The number of publishes that may run at once.
+     */
+    private void createVirtualThreadHandlers(ExecutorService queryExecutor, ExecutorService publishExecutor,
+            int queryPermits, int publishPermits) {
+        source.queryPool = queryExecutor;
+        source.publishPool = publishExecutor;
+        Semaphore queryLimit = new Semaphore(queryPermits);
+        Semaphore publishLimit = new Semaphore(publishPermits);
+
+        queryHandler = new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                try {
+                    queryExecutor.execute(withPermit(queryLimit, () -> handleQueryRequest(source.client, message)));
+                } catch (RejectedExecutionException e) {
+                    // Only happens once the source is shutting down
+                    log.error("The source is closing, and as a result the request was unable to be processed.", e);
+                    String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
+                    source.client.sendQueryError(replyAddress, "io.vantiq.extsrc.JDBCHandleConfiguration.queryHandler.closing",
+                            "The source is closing, and as a result the request was unable to be processed.", null);
+                }
+            }
+        };
+        publishHandler = new Handler<ExtensionServiceMessage>() {
+            @Override
+            public void handleMessage(ExtensionServiceMessage message) {
+                try {
+                    publishExecutor.execute(withPermit(publishLimit, () -> source.executePublish(message)));
+                } catch (RejectedExecutionException e) {
+                    log.error("The source is closing, and as a result the request was unable to be processed.", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return  {@code task}, made to wait for a permit from {@code permits} before it runs, and to return it after.
+     */
+    static Runnable withPermit(Semaphore permits, Runnable task) {
+        return () -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                // The executor is being shut down
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * @return  An executor that runs each task on a new virtual thread, or null if the JVM does not support them.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so that the source still runs on Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     /**
      * Method called by the query handler to process the request
      * @param client    The ExtensionWebSocketClient used to send a query response error if necessary
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the results of each poll with those of the previous poll, so that only the rows that were inserted,
+ * changed or deleted in between are sent. Rows are matched by the values of their key columns, and compared by a
+ * 64 bit hash of their contents.
+ * <p>
+ * The previous results are kept as a map from a 64 bit key to the hash of the row, held in primitive arrays that are
+ * kept at most half full, so that a row costs between 34 and 68 bytes. Integer keys are kept as they are. Other keys,
+ * such as strings and keys of several columns, are kept by their hash and also by value, which is needed to report
+ * the row when it is deleted.
+ * <p>
+ * {@link #diff} does not change what is remembered. Call {@link #commit()} once the changes have been sent, or
+ * {@link #discard()} to find the same changes again on the next poll.
+ */
+public class PollChangeDetector {
+    /**
+     * The value of {@link #CHANGE} for a row not in the previous results.
+     */
+    public static final String INSERT = "insert";
+    /**
+     * The value of {@link #CHANGE} for a row whose contents differ from the previous results.
+     */
+    public static final String UPDATE = "update";
+    /**
+     * The value of {@link #CHANGE} for a row no longer in the results. Only its key columns are sent.
+     */
+    public static final String DELETE = "delete";
+
+    /**
+     * The property of each change holding its type.
+     */
+    public static final String CHANGE = "change";
+    /**
+     * The property of each change holding the row.
+     */
+    public static final String ROW = "row";
+
+    private final List<String> keyColumns;
+    private RowHashes previous = new RowHashes(16);
+    private RowHashes pending = null;
+
+    /**
+     * @param keyColumns    The columns that identify a row. They must be present in the results of the pollQuery.
+     */
+    public PollChangeDetector(List<String> keyColumns) {
+        this.keyColumns = new ArrayList<>(keyColumns);
+    }
+
+    /**
+     * Finds the changes between {@code rows} and the results remembered from the last commit. On the first poll,
+     * every row is an insert.
+     *
+     * @param rows  The results of the pollQuery.
+     * @return      One map for each change, holding {@link #CHANGE} and {@link #ROW}, with the deletes last. Rows
+     *              whose key is null cannot be matched, so they are always inserts.
+     */
+    public List<Map<String, Object>> diff(Map[] rows) {
+        List<Map<String, Object>> changes = new ArrayList<>();
+        RowHashes current = new RowHashes(rows.length);
+        for (Map row : rows) {
+            Object keyValue = keyOf(row);
+            if (keyValue == null) {
+                changes.add(change(INSERT, row));
+                continue;
+            }
+            long key = keyHash(keyValue);
+            long hash = rowHash(row);
+            current.put(key, hash, keyValue instanceof Long ? null : keyValue);
+            int slot = previous.find(key);
+            if (slot < 0) {
+                changes.add(change(INSERT, row));
+            } else if (previous.hashes[slot] != hash) {
+                changes.add(change(UPDATE, row));
+            }
+        }
+        for (int slot = 0; slot < previous.keys.length; slot++) {
+            if (previous.used[slot] && current.find(previous.keys[slot]) < 0) {
+                changes.add(change(DELETE, deletedRow(previous.keyValue(slot))));
+            }
+        }
+        pending = current;
+        return changes;
+    }
+
+    /**
+     * Remembers the results given to the last {@link #diff}, so that the next poll is compared against them.
+     */
+    public void commit() {
+        if (pending != null) {
+            previous = pending;
+            pending = null;
+        }
+    }
+
+    /**
+     * Forgets the results given to the last {@link #diff}, so that the next poll is compared against the results
+     * before them.
+     */
+    public void discard() {
+        pending = null;
+    }
+
+    /**
+     * @return  The number of rows remembered from the last commit.
+     */
+    public int size() {
+        return previous.size;
+    }
+
+    private Object keyOf(Map row) {
+        if (keyColumns.size() == 1) {
+            Object value = row.get(keyColumns.get(0));
+            // Integer keys are kept as they are, rather than hashed
+            if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+                return ((Number) value).longValue();
+            }
+            return value;
+        }
+        Map<String, Object> key = new LinkedHashMap<>();
+        for (String column : keyColumns) {
+            key.put(column, row.get(column));
+        }
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> deletedRow(Object keyValue) {
+        if (keyColumns.size() > 1) {
+            return (Map<String, Object>) keyValue;
+        }
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put(keyColumns.get(0), keyValue);
+        return row;
+    }
+
+    private static Map<String, Object> change(String type, Map row) {
+        Map<String, Object> change = new LinkedHashMap<>();
+        change.put(CHANGE, type);
+        change.put(ROW, row);
+        return change;
+    }
+
+    private static long keyHash(Object keyValue) {
+        if (keyValue instanceof Long) {
+            return (Long) keyValue;
+        }
+        return hash(String.valueOf(keyValue));
+    }
+
+    /**
+     * Hashes the columns of a row in a way that does not depend on the order they are iterated in.
+     */
+    static long rowHash(Map<?, ?> row) {
+        long hash = row.size();
+        for (Map.Entry<?, ?> entry : row.entrySet()) {
+            hash += mix(hash(String.valueOf(entry.getKey())) * 31 + hash(String.valueOf(entry.getValue())));
+        }
+        return hash;
+    }
+
+    /**
+     * The 64 bit FNV-1a hash of the UTF-8 bytes of {@code s}.
+     */
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of {@code h}, so that summing hashes does not cancel out similar ones.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * An open addressing hash map from 64 bit keys to 64 bit row hashes, with the original value of each key that is
+     * not an integer.
+     */
+    private static class RowHashes {
+        long[] keys;
+        long[] hashes;
+        boolean[] used;
+        Object[] keyValues;
+        int size;
+
+        RowHashes(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected * 2, 16) - 1) << 1;
+            keys = new long[capacity];
+            hashes = new long[capacity];
+            used = new boolean[capacity];
+            keyValues = null;
+        }
+
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = (int) mix(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, long hash, Object keyValue) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = (int) mix(key) & mask;
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (!used[slot]) {
+                used[slot] = true;
+                keys[slot] = key;
+                size++;
+            }
+            hashes[slot] = hash;
+            if (keyValue != null) {
+                if (keyValues == null) {
+                    keyValues = new Object[keys.length];
+                }
+                keyValues[slot] = keyValue;
+            }
+        }
+
+        Object keyValue(int slot) {
+            return keyValues == null || keyValues[slot] == null ? (Object) keys[slot] : keyValues[slot];
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldHashes = hashes;
+            boolean[] oldUsed = used;
+            Object[] oldKeyValues = keyValues;
+            keys = new long[oldKeys.length * 2];
+            hashes = new long[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            keyValues = null;
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldUsed[slot]) {
+                    put(oldKeys[slot], oldHashes[slot], oldKeyValues == null ? null : oldKeyValues[slot]);
+                }
+            }
+        }
+    }
+}
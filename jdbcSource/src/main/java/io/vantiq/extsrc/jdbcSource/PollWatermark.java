@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The position reached by an incremental pollQuery: the largest value of the watermark column seen so far, such as
+ * an increasing id or a last modified timestamp. The value is bound into the pollQuery so that each poll only returns
+ * the rows added since the last, and is saved to a file so that a restarted source carries on where it stopped.
+ * <p>
+ * Values are offered as each row is read, and only become the watermark once {@link #commit()} is called, after the
+ * rows have been sent, so that rows that could not be sent are fetched again by the next poll.
+ */
+public class PollWatermark {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    private static final String COLUMN = "column";
+    private static final String TYPE = "type";
+    private static final String VALUE = "value";
+
+    private final String column;
+    private final Path file;
+    private Object value;
+    private Object pending;
+
+    /**
+     * @param column        The column of the pollQuery's results holding the watermark.
+     * @param initialValue  The watermark to use if none has been saved, or null if there is none.
+     * @param file          The file the watermark is saved to. A watermark saved there for a different column is
+     *                      ignored.
+     */
+    public PollWatermark(String column, Object initialValue, Path file) {
+        this.column = column;
+        this.file = file;
+        this.value = initialValue;
+        Object saved = load();
+        if (saved != null) {
+            log.info("Resuming polling from the {} of {} saved in {}", column, saved, file);
+            this.value = saved;
+        }
+    }
+
+    /**
+     * @return  The name of the column holding the watermark.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @return  The current watermark, to bind into the pollQuery, or null if there is none yet.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Offers the watermark column of a row just read. The largest value offered becomes the watermark on the next
+     * {@link #commit()}. Values that cannot be compared are assumed to arrive in order, as they do when the pollQuery
+     * is ordered by the watermark column.
+     *
+     * @param candidate The value of the watermark column, which is ignored if null.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void offer(Object candidate) {
+        if (candidate == null) {
+            return;
+        }
+        if (pending != null && candidate instanceof Comparable && pending.getClass() == candidate.getClass()
+                && ((Comparable) candidate).compareTo(pending) <= 0) {
+            return;
+        }
+        pending = candidate;
+    }
+
+    /**
+     * Makes the largest value offered since the last commit the watermark, and saves it.
+     */
+    public void commit() {
+        if (pending == null) {
+            return;
+        }
+        value = pending;
+        pending = null;
+        save();
+    }
+
+    /**
+     * Forgets the values offered since the last commit, so that the same rows are polled again.
+     */
+    public void discard() {
+        pending = null;
+    }
+
+    private Object load() {
+        if (file == null || !Files.exists(file)) {
+            return null;
+        }
+        Properties saved = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved.load(reader);
+        } catch (IOException e) {
+            log.error("Could not read the saved watermark from {}. Starting from the initial value.", file, e);
+            return null;
+        }
+        if (!column.equals(saved.getProperty(COLUMN))) {
+            log.warn("Ignoring the watermark saved in {}, since it is for the column {}", file,
+                    saved.getProperty(COLUMN));
+            return null;
+        }
+        try {
+            return fromString(saved.getProperty(TYPE), saved.getProperty(VALUE));
+        } catch (RuntimeException e) {
+            log.error("Could not parse the watermark saved in {}. Starting from the initial value.", file, e);
+            return null;
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        Properties saved = new Properties();
+        saved.setProperty(COLUMN, column);
+        saved.setProperty(TYPE, value.getClass().getName());
+        saved.setProperty(VALUE, value.toString());
+        // Write then rename, so that a crash never leaves a partly written watermark behind
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                saved.store(writer, "Watermark of the pollQuery");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not save the watermark {} to {}", value, file, e);
+        }
+    }
+
+    /**
+     * Restores a saved value as the type it was read from the database as, so that it binds into the pollQuery the
+     * same way. Types without a known string form are restored as strings.
+     */
+    static Object fromString(String type, String value) {
+        if (type == null || value == null) {
+            return null;
+        }
+        switch (type) {
+            case "java.lang.Integer":
+                return Integer.valueOf(value);
+            case "java.lang.Long":
+                return Long.valueOf(value);
+            case "java.lang.Short":
+                return Short.valueOf(value);
+            case "java.lang.Double":
+                return Double.valueOf(value);
+            case "java.lang.Float":
+                return Float.valueOf(value);
+            case "java.math.BigInteger":
+                return new BigInteger(value);
+            case "java.math.BigDecimal":
+                return new BigDecimal(value);
+            case "java.sql.Timestamp":
+                return Timestamp.valueOf(value);
+            case "java.sql.Date":
+                return java.sql.Date.valueOf(value);
+            case "java.time.LocalDateTime":
+                return LocalDateTime.parse(value);
+            case "java.time.OffsetDateTime":
+                return OffsetDateTime.parse(value);
+            default:
+                return value;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the results of recent queries, so that the same query run again within its time to live is answered without
+ * going to the database. Results are kept by the query's SQL, with runs of whitespace outside of quotes treated as a
+ * single space, and by its parameters.
+ * <p>
+ * The least recently used results are dropped once there are more than {@code maxEntries} of them, or once their
+ * estimated size passes {@code maxBytes}. Results are also dropped when a publish changes a table they were read from,
+ * but only for the tables being watched. Results read from other tables are only refreshed once they expire.
+ * <p>
+ * The cached rows are shared by every request that finds them, so they must not be changed.
+ */
+public class QueryResultCache {
+    /**
+     * The default number of results kept.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    /**
+     * The default estimated size of the results kept, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /**
+     * The default time results are kept for, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 60000;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long defaultTtl;
+    private final Map<String, Pattern> watchedTables = new LinkedHashMap<>();
+
+    // In access order, so that the least recently used results come first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    // Changed by every invalidation, so that results read while a watched table was being changed are not kept
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxEntries    The number of results to keep.
+     * @param maxBytes      The estimated size of the results to keep, in bytes.
+     * @param defaultTtl    The milliseconds results are kept for, unless the query asks for another time.
+     * @param tables        The tables whose results are dropped when a publish changes them.
+     */
+    public QueryResultCache(int maxEntries, long maxBytes, long defaultTtl, List<String> tables) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.defaultTtl = defaultTtl;
+        for (String table : tables) {
+            String name = table.toLowerCase();
+            watchedTables.put(name, Pattern.compile("\\b" + Pattern.quote(name) + "\\b"));
+        }
+    }
+
+    /**
+     * @return  The milliseconds results are kept for, unless the query asks for another time.
+     */
+    public long getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    /**
+     * @return  The current generation, to pass to {@link #put} once the query it was read before has run.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param sql       The SQL of the query.
+     * @param params    The parameters of the query, or null if it has none.
+     * @return          The rows kept for the query, or null if there are none or they have expired.
+     */
+    public Map[] get(String sql, List<?> params) {
+        Key key = new Key(normalize(sql), params);
+        long now = System.nanoTime();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.expires < 0) {
+                hits.incrementAndGet();
+                return entry.rows;
+            }
+            if (entry != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Keeps the rows of a query, unless a watched table has been changed since {@code generation} was read, in which
+     * case they may already be out of date.
+     *
+     * @param sql           The SQL of the query.
+     * @param params        The parameters of the query, or null if it has none.
+     * @param rows          The rows the query returned.
+     * @param ttl           The milliseconds to keep the rows for.
+     * @param generation    The {@link #getGeneration() generation} read before the query was run.
+     */
+    public void put(String sql, List<?> params, Map[] rows, long ttl, long generation) {
+        String normalized = normalize(sql);
+        Key key = new Key(normalized, params);
+        long size = estimateSize(normalized, rows);
+        if (size > maxBytes || ttl <= 0) {
+            return;
+        }
+        Entry entry = new Entry(rows, size, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl),
+                tablesIn(normalized));
+        synchronized (this) {
+            if (generation != this.generation) {
+                return;
+            }
+            remove(key);
+            entries.put(key, entry);
+            bytes += size;
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= eldest.next().getValue().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the results read from any watched table that {@code sql} names, once it has been run.
+     *
+     * @param sql   The SQL of a statement that may have changed the database.
+     */
+    public void invalidate(String sql) {
+        Set<String> tables = tablesIn(normalize(sql));
+        if (tables.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            generation++;
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!Collections.disjoint(entry.tables, tables)) {
+                    bytes -= entry.size;
+                    it.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every result.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    /**
+     * @return  The number of queries answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return  The number of queries that had to go to the database.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return  The fraction of queries answered from the cache, or 0 if there have been none.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return  The number of results dropped to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return  The number of results dropped because a publish changed their tables.
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return  The number of results kept.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return  The estimated size of the results kept, in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void remove(Key key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+    }
+
+    private Set<String> tablesIn(String normalized) {
+        Set<String> tables = new HashSet<>();
+        String sql = normalized.toLowerCase();
+        for (Map.Entry<String, Pattern> table : watchedTables.entrySet()) {
+            if (table.getValue().matcher(sql).find()) {
+                tables.add(table.getKey());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Trims {@code sql} and replaces every run of whitespace outside of quotes with a single space, so that queries
+     * differing only in their layout share results.
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            if (quote != 0 && c == quote) {
+                quote = 0;
+            } else if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * A rough estimate of the memory held by the rows of a result, counting the characters of strings and a fixed
+     * amount for every other value and for each map entry.
+     */
+    private static long estimateSize(String sql, Map[] rows) {
+        long size = 64 + 2L * sql.length();
+        for (Map<?, ?> row : rows) {
+            size += 48;
+            for (Map.Entry<?, ?> column : row.entrySet()) {
+                size += 32 + valueSize(column.getKey()) + valueSize(column.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static long valueSize(Object value) {
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        return 24;
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final List<?> params;
+
+        Key(String sql, List<?> params) {
+            this.sql = sql;
+            // Copied, so that a later change to the request does not change the key
+            this.params = params == null ? Collections.emptyList() : new ArrayList<>(params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sql.equals(other.sql) && params.equals(other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + params.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final Map[] rows;
+        final long size;
+        final long expires;
+        final Set<String> tables;
+
+        Entry(Map[] rows, long size, long expires, Set<String> tables) {
+            this.rows = rows;
+            this.size = size;
+            this.expires = expires;
+            this.tables = tables;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SQL of a bulk publish, whose rows are bound to it either by position or by name. Positional parameters are
+ * written as {@code ?} and bound from rows given as lists. Named parameters are written as {@code :name} and bound
+ * from rows given as maps, by key. The template is turned into plain JDBC SQL by replacing each named parameter with
+ * a {@code ?}. Text inside quotes and PostgreSQL style {@code ::} casts are left alone.
+ */
+public class SqlTemplate {
+    private final String sql;
+    private final List<String> names;
+
+    private SqlTemplate(String sql, List<String> names) {
+        this.sql = sql;
+        this.names = names;
+    }
+
+    /**
+     * @param template  The SQL, with {@code ?} or {@code :name} for each parameter.
+     * @return          The parsed template.
+     */
+    public static SqlTemplate parse(String template) {
+        StringBuilder sql = new StringBuilder(template.length());
+        List<String> names = new ArrayList<>();
+        char quote = 0;
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ':' && i + 1 < template.length() && template.charAt(i + 1) == ':') {
+                // A cast, not a parameter
+                sql.append("::");
+                i += 2;
+                continue;
+            } else if (c == ':' && i + 1 < template.length()
+                    && Character.isJavaIdentifierStart(template.charAt(i + 1))) {
+                int end = i + 1;
+                while (end < template.length() && Character.isJavaIdentifierPart(template.charAt(end))) {
+                    end++;
+                }
+                names.add(template.substring(i + 1, end));
+                sql.append('?');
+                i = end;
+                continue;
+            }
+            sql.append(c);
+            i++;
+        }
+        return new SqlTemplate(sql.toString(), Collections.unmodifiableList(names));
+    }
+
+    /**
+     * @return  The SQL to prepare, with a {@code ?} for every parameter.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return  The names of the parameters in the order they appear, or an empty list if they are positional.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Sets the parameters of {@code ps} from a single row.
+     *
+     * @param ps    A statement prepared from {@link #getSql()}.
+     * @param row   A List of the values in order, or a Map from parameter names to values if the template uses named
+     *              parameters. Names missing from the map are bound as null.
+     * @throws SQLException             if a value could not be converted to the type of its parameter.
+     * @throws IllegalArgumentException if the row is neither a List nor a Map, or is a Map and the template has no
+     *                                  named parameters.
+     */
+    public void bind(PreparedStatement ps, Object row) throws SQLException {
+        if (row instanceof List) {
+            JDBC.bindParameters(ps, (List<?>) row);
+        } else if (row instanceof Map && !names.isEmpty()) {
+            Map<?, ?> values = (Map<?, ?>) row;
+            for (int i = 0; i < names.size(); i++) {
+                ps.setObject(i + 1, values.get(names.get(i)));
+            }
+        } else if (row instanceof Map) {
+            throw new IllegalArgumentException("Rows given as maps need named parameters (:name) in the query.");
+        } else {
+            throw new IllegalArgumentException("Each row must be a list or a map, but found: " + row);
+        }
+    }
+}
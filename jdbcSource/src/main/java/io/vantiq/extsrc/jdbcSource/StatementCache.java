@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2021 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the most recently used {@link PreparedStatement}s of each database connection, so that the database does not
+ * have to parse and plan the same SQL again every time it is run.
+ * <p>
+ * Statements are cached against the physical connection they were prepared on, since a pooled connection handed out
+ * by Hikari is a new wrapper each time, and closes the statements prepared through it when it is returned to the pool.
+ * Statements for a connection in auto-commit mode are prepared on the physical connection, so that they outlive the
+ * wrapper. Those for a connection that is not are prepared through the wrapper, so that Hikari knows of the changes
+ * they make and rolls back any left uncommitted when the connection is returned. They are only reused until then.
+ * Each connection keeps at most {@code maxStatements}, and closes the least recently used one when another is needed.
+ * Statements belonging to connections that have since been closed are dropped the next time a statement is prepared.
+ * <p>
+ * A cached statement may be shared by several threads when they share a connection, so callers must synchronize on
+ * the statement while setting its parameters and running it.
+ */
+public class StatementCache {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    /**
+     * The default number of statements cached for each connection.
+     */
+    public static final int DEFAULT_MAX_STATEMENTS = 100;
+
+    private final int maxStatements;
+    private final Map<Connection, Map<String, PreparedStatement>> caches = new IdentityHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxStatements The number of statements to keep for each connection. With 0, nothing is cached, and
+     *                      callers are expected to close the statements they are given.
+     */
+    public StatementCache(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * @return  true if statements obtained from {@link #prepare} stay open for reuse, false if the caller must close
+     *          them.
+     */
+    public boolean isEnabled() {
+        return maxStatements > 0;
+    }
+
+    /**
+     * Returns the cached statement for {@code sql} on {@code conn}, or prepares and caches a new one.
+     *
+     * @param conn  The connection to run the statement on. May be a pooled connection.
+     * @param sql   The SQL of the statement.
+     * @return      The prepared statement. Its parameters may still be set from an earlier use.
+     * @throws SQLException if the statement could not be prepared.
+     */
+    public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        if (!isEnabled()) {
+            misses.incrementAndGet();
+            return conn.prepareStatement(sql);
+        }
+        Connection physical = physicalConnection(conn);
+        Map<String, PreparedStatement> statements;
+        synchronized (caches) {
+            statements = caches.get(physical);
+            if (statements == null) {
+                dropClosedConnections();
+                statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > maxStatements) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+                caches.put(physical, statements);
+            }
+        }
+        synchronized (statements) {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null && !statement.isClosed()) {
+                hits.incrementAndGet();
+                return statement;
+            }
+            misses.incrementAndGet();
+            statement = conn.getAutoCommit() ? physical.prepareStatement(sql) : conn.prepareStatement(sql);
+            statements.put(sql, statement);
+            return statement;
+        }
+    }
+
+    /**
+     * @return  The number of statements found in the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return  The number of statements that had to be prepared.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return  The fraction of statements found in the cache, or 0 if none have been asked for.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Closes every cached statement.
+     */
+    public void close() {
+        synchronized (caches) {
+            for (Map<String, PreparedStatement> statements : caches.values()) {
+                synchronized (statements) {
+                    statements.values().forEach(this::closeQuietly);
+                    statements.clear();
+                }
+            }
+            caches.clear();
+        }
+    }
+
+    /**
+     * Finds the connection that a pooled connection wraps, so that the statements outlive the wrapper.
+     */
+    private static Connection physicalConnection(Connection conn) {
+        try {
+            if (conn.isWrapperFor(Connection.class)) {
+                return conn.unwrap(Connection.class);
+            }
+        } catch (SQLException e) {
+            // Use the connection as it is
+        }
+        return conn;
+    }
+
+    private void dropClosedConnections() {
+        Iterator<Map.Entry<Connection, Map<String, PreparedStatement>>> it = caches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Connection, Map<String, PreparedStatement>> entry = it.next();
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException e) {
+                closed = true;
+            }
+            if (closed) {
+                synchronized (entry.getValue()) {
+                    entry.getValue().values().forEach(this::closeQuietly);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.debug("Failed to close a cached statement", e);
+        }
+    }
+}
@@ -27,12 +27,17 @@ import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -118,6 +123,50 @@ public class TestJDBC extends TestJDBCBase {
     static final String CREATE_TABLE_DATETIME = "CREATE TABLE TestDates(ts TIMESTAMP);";
     static final String INSERT_VALUE_DATETIME = "INSERT INTO TestDates VALUES ('" + TIMESTAMP + "');";
     static final String QUERY_TABLE_DATETIME = "SELECT * FROM TestDates";
+
+    // Queries to test streaming query results
+    static final String CREATE_TABLE_STREAMING = "CREATE TABLE TestStreaming(id int not null, name varchar (255));";
+    static final String INSERT_ROW_STREAMING_FRAG = "INSERT INTO TestStreaming VALUES (";
+    static final String SELECT_QUERY_STREAMING = "SELECT id, name FROM TestStreaming ORDER BY id;";
+    static final String DROP_TABLE_STREAMING = "DROP TABLE TestStreaming;";
+
+    // Queries to test parameterized statements
+    static final String CREATE_TABLE_PREPARED = "CREATE TABLE TestPrepared(id int not null, name varchar (255));";
+    static final String INSERT_PREPARED = "INSERT INTO TestPrepared VALUES (?, ?)";
+    static final String SELECT_PREPARED = "SELECT id, name FROM TestPrepared WHERE id >= ? ORDER BY id";
+    static final String DROP_TABLE_PREPARED = "DROP TABLE TestPrepared;";
+
+    // Queries to test bulk publish
+    static final String CREATE_TABLE_BULK = "CREATE TABLE TestBulk(id int not null primary key, name varchar (255));";
+    static final String INSERT_BULK_POSITIONAL = "INSERT INTO TestBulk VALUES (?, ?)";
+    static final String INSERT_BULK_NAMED = "INSERT INTO TestBulk (id, name) VALUES (:id, :name)";
+    static final String COUNT_BULK = "SELECT COUNT(*) AS total FROM TestBulk";
+    static final String DROP_TABLE_BULK = "DROP TABLE TestBulk;";
+
+    // Queries to test incremental polling
+    static final String CREATE_TABLE_WATERMARK = "CREATE TABLE TestWatermark(id int not null, name varchar (255));";
+    static final String INSERT_WATERMARK = "INSERT INTO TestWatermark VALUES (?, ?)";
+    static final String POLL_WATERMARK = "SELECT id, name FROM TestWatermark WHERE id > ? ORDER BY id";
+    static final String POLL_WATERMARK_NAMED = "SELECT id, name FROM TestWatermark WHERE id > :watermark ORDER BY id";
+    static final String DROP_TABLE_WATERMARK = "DROP TABLE TestWatermark;";
+
+    // Queries for testing separate connection pools
+    static final String CREATE_TABLE_POOLS = "CREATE TABLE TestPools(id int not null, name varchar (255));";
+    static final String INSERT_POOLS = "INSERT INTO TestPools VALUES (?, ?)";
+    static final String QUERY_POOLS = "SELECT id, name FROM TestPools ORDER BY id";
+    static final String DROP_TABLE_POOLS = "DROP TABLE TestPools;";
+
+    // Queries for testing columnar results
+    static final String CREATE_TABLE_COLUMNAR = "CREATE TABLE TestColumnar(id int not null, name varchar (255));";
+    static final String INSERT_COLUMNAR = "INSERT INTO TestColumnar VALUES (?, ?)";
+    static final String QUERY_COLUMNAR = "SELECT id, name FROM TestColumnar WHERE id > ? ORDER BY id";
+    static final String DROP_TABLE_COLUMNAR = "DROP TABLE TestColumnar;";
+
+    // Queries for testing the query result cache
+    static final String CREATE_TABLE_CACHED = "CREATE TABLE TestCached(id int not null, name varchar (255));";
+    static final String INSERT_CACHED = "INSERT INTO TestCached VALUES (?, ?)";
+    static final String QUERY_CACHED = "SELECT id, name FROM TestCached";
+    static final String DROP_TABLE_CACHED = "DROP TABLE TestCached;";
     static final String DROP_TABLE_DATETIME = "DROP TABLE TestDates";
     
     // Queries to test null values
@@ -289,6 +338,55 @@ public class TestJDBC extends TestJDBCBase {
             } catch (VantiqSQLException e) {
                 // Shouldn't throw Exception
             }
+
+            // Delete streaming table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_STREAMING);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete parameterized statements table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_PREPARED);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete bulk publish table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_BULK);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete incremental polling table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_WATERMARK);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete connection pools table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_POOLS);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete columnar results table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_COLUMNAR);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+
+            // Delete query result cache table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_CACHED);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
             
             // Close the new JDBC Instance
             dropTablesJDBC.close();
@@ -394,6 +492,391 @@ public class TestJDBC extends TestJDBCBase {
         jdbc.close();
     }
     
+    @Test
+    public void testProcessQueryStreaming() throws Exception {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+
+        int numRows = 250;
+        jdbc.processPublish(CREATE_TABLE_STREAMING);
+        for (int i = 0; i < numRows; i++) {
+            jdbc.processPublish(INSERT_ROW_STREAMING_FRAG + i + ", 'row" + i + "');");
+        }
+
+        // Rows are streamed in order, and match those returned by the non-streaming path
+        Map[] expected = jdbc.processQuery(SELECT_QUERY_STREAMING);
+        ArrayList<Map> rows = new ArrayList<>();
+        long rowCount = jdbc.processQueryStreaming(SELECT_QUERY_STREAMING, 10, rows::add);
+        assert rowCount == numRows;
+        assert rows.size() == numRows;
+        for (int i = 0; i < numRows; i++) {
+            assertEquals(expected[i], rows.get(i));
+        }
+
+        // Errors are reported the same way as for processQuery
+        try {
+            jdbc.processQueryStreaming(NO_TABLE, 10, row -> fail("Should not receive any rows"));
+            fail("Should have thrown exception.");
+        } catch (VantiqSQLException e) {
+            // Expected behavior
+        }
+
+        jdbc.processPublish(DROP_TABLE_STREAMING);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testPreparedStatements() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        jdbc.processPublish(CREATE_TABLE_PREPARED);
+
+        // A single set of parameters, then a batch of them
+        assert jdbc.processPreparedPublish(INSERT_PREPARED, Arrays.asList(0, "it's quoted")) == 1;
+        List<List<Object>> batch = new ArrayList<>();
+        for (int i = 1; i < 10; i++) {
+            batch.add(Arrays.asList(i, "row" + i));
+        }
+        assert jdbc.processPreparedBatchPublish(INSERT_PREPARED, batch).length == 9;
+
+        Map[] queryResult = jdbc.processPreparedQuery(SELECT_PREPARED, Arrays.asList(0));
+        assert queryResult.length == 10;
+        assert queryResult[0].get("name").equals("it's quoted");
+        queryResult = jdbc.processPreparedQuery(SELECT_PREPARED, Arrays.asList(5));
+        assert queryResult.length == 5;
+
+        // The insert and the select were each prepared once, and reused afterwards
+        StatementCache cache = jdbc.getStatementCache();
+        assert cache.getMisses() == 2 : cache.getMisses();
+        assert cache.getHits() == 2 : cache.getHits();
+
+        // Nothing is cached when the cache is disabled
+        jdbc.close();
+        jdbc = new JDBC();
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0, 0);
+        jdbc.processPreparedQuery(SELECT_PREPARED, Arrays.asList(0));
+        jdbc.processPreparedQuery(SELECT_PREPARED, Arrays.asList(0));
+        assert jdbc.getStatementCache().getHits() == 0;
+
+        jdbc.processPublish(DROP_TABLE_PREPARED);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testSqlTemplate() {
+        SqlTemplate template = SqlTemplate.parse("INSERT INTO t VALUES (:id, ':notParam', :name::text, ?)");
+        assert template.getSql().equals("INSERT INTO t VALUES (?, ':notParam', ?::text, ?)") : template.getSql();
+        assert template.getNames().equals(Arrays.asList("id", "name"));
+        assert SqlTemplate.parse(INSERT_BULK_POSITIONAL).getNames().isEmpty();
+    }
+
+    @Test
+    public void testPollChangeDetector() {
+        PollChangeDetector changes = new PollChangeDetector(Arrays.asList("id"));
+        Map[] rows = new Map[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new LinkedHashMap<String, Object>();
+            rows[i].put("id", i);
+            rows[i].put("name", "row" + i);
+        }
+        assert changes.diff(rows).size() == 100;
+        // Nothing is remembered until the changes are committed
+        changes.discard();
+        assert changes.diff(rows).size() == 100;
+        changes.commit();
+        assert changes.size() == 100;
+        assert changes.diff(rows).isEmpty();
+        changes.commit();
+
+        // Change row 5, delete row 7 and insert row 100
+        rows[5].put("name", "changed");
+        rows[7] = new LinkedHashMap<String, Object>();
+        rows[7].put("id", 100);
+        List<Map<String, Object>> diff = changes.diff(rows);
+        changes.commit();
+        assert diff.size() == 3 : diff;
+        assert diff.get(0).get(PollChangeDetector.CHANGE).equals(PollChangeDetector.UPDATE);
+        assert diff.get(1).get(PollChangeDetector.CHANGE).equals(PollChangeDetector.INSERT);
+        assert diff.get(2).get(PollChangeDetector.CHANGE).equals(PollChangeDetector.DELETE);
+        assert ((Map) diff.get(2).get(PollChangeDetector.ROW)).get("id").equals(7L);
+
+        // Keys of several columns are reported by value when deleted
+        changes = new PollChangeDetector(Arrays.asList("id", "name"));
+        changes.diff(rows);
+        changes.commit();
+        diff = changes.diff(Arrays.copyOf(rows, 99));
+        assert diff.size() == 1 : diff;
+        assert ((Map) diff.get(0).get(PollChangeDetector.ROW)).get("name").equals("row99");
+    }
+
+    @Test
+    public void testQueryResultCache() throws InterruptedException {
+        QueryResultCache cache = new QueryResultCache(2, QueryResultCache.DEFAULT_MAX_BYTES, 60000,
+                Arrays.asList("Currency"));
+        Map[] rows = {new LinkedHashMap<String, Object>()};
+        cache.put("SELECT *  FROM\n  Currency", null, rows, 60000, cache.getGeneration());
+        // Layout does not matter outside of quotes, but parameters do
+        assert cache.get("SELECT * FROM Currency", null) == rows;
+        assert cache.get("SELECT * FROM Currency", Arrays.asList(1)) == null;
+        assert QueryResultCache.normalize(" SELECT  'a  b'   FROM x ").equals("SELECT 'a  b' FROM x");
+
+        // Publishes to a watched table drop its results, and results read before the publish are not kept
+        long generation = cache.getGeneration();
+        cache.invalidate("INSERT INTO currency VALUES (1)");
+        assert cache.get("SELECT * FROM Currency", null) == null;
+        cache.put("SELECT * FROM Currency", null, rows, 60000, generation);
+        assert cache.size() == 0;
+        assert cache.getInvalidations() == 1;
+
+        // The least recently used results are evicted, and expired results are dropped
+        generation = cache.getGeneration();
+        cache.put("SELECT 1 FROM Other", null, rows, 60000, generation);
+        cache.put("SELECT 2 FROM Other", null, rows, 60000, generation);
+        cache.get("SELECT 1 FROM Other", null);
+        cache.put("SELECT 3 FROM Other", null, rows, 1, generation);
+        assert cache.get("SELECT 2 FROM Other", null) == null;
+        assert cache.get("SELECT 1 FROM Other", null) == rows;
+        assert cache.getEvictions() == 1;
+        Thread.sleep(10);
+        assert cache.get("SELECT 3 FROM Other", null) == null;
+        assert cache.size() == 1;
+    }
+
+    @Test
+    public void testCachedQuery() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        QueryResultCache cache = new QueryResultCache(10, QueryResultCache.DEFAULT_MAX_BYTES, 60000,
+                Arrays.asList("TestCached"));
+        jdbc.setQueryResultCache(cache);
+        jdbc.processPublish(CREATE_TABLE_CACHED);
+
+        try {
+            jdbc.processPreparedPublish(INSERT_CACHED, Arrays.asList(1, "first"));
+            Map[] rows = jdbc.processCachedQuery(QUERY_CACHED, null, -1);
+            assert rows.length == 1;
+            assert jdbc.processCachedQuery(QUERY_CACHED, null, -1) == rows;
+            assert cache.getHits() == 1;
+
+            // A publish to the table is seen by the next query
+            jdbc.processPreparedPublish(INSERT_CACHED, Arrays.asList(2, "second"));
+            assert jdbc.processCachedQuery(QUERY_CACHED, null, -1).length == 2;
+
+            // A time to live of 0 bypasses the cache
+            long misses = cache.getMisses();
+            assert jdbc.processCachedQuery(QUERY_CACHED, null, 0).length == 2;
+            assert cache.getMisses() == misses;
+        } finally {
+            jdbc.setQueryResultCache(null);
+            jdbc.processPublish(DROP_TABLE_CACHED);
+            jdbc.close();
+        }
+    }
+
+    @Test
+    public void testBulkPublish() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        jdbc.processPublish(CREATE_TABLE_BULK);
+
+        // Rows as lists, in batches that do not divide them evenly
+        List<Object> rows = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            rows.add(Arrays.asList(i, "row" + i));
+        }
+        assert jdbc.processBulkPublish(INSERT_BULK_POSITIONAL, rows, 100) == 250;
+
+        // Rows as maps, with a missing name inserted as null
+        rows.clear();
+        for (int i = 250; i < 300; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", i);
+            if (i % 2 == 0) {
+                row.put("name", "row" + i);
+            }
+            rows.add(row);
+        }
+        assert jdbc.processBulkPublish(INSERT_BULK_NAMED, rows, 0) == 50;
+        assert ((Number) jdbc.processQuery(COUNT_BULK)[0].get("total")).intValue() == 300;
+
+        // A duplicate key in the second batch leaves only the first batch committed
+        rows.clear();
+        for (int i = 300; i < 310; i++) {
+            rows.add(Arrays.asList(i, "row" + i));
+        }
+        rows.add(Arrays.asList(0, "duplicate"));
+        try {
+            jdbc.processBulkPublish(INSERT_BULK_POSITIONAL, rows, 5);
+            fail("Should have thrown exception for the duplicate key.");
+        } catch (VantiqSQLException e) {
+            // Expected
+        }
+        assert ((Number) jdbc.processQuery(COUNT_BULK)[0].get("total")).intValue() == 305;
+
+        // Maps cannot be bound to positional parameters
+        try {
+            jdbc.processBulkPublish(INSERT_BULK_POSITIONAL, Arrays.asList(new LinkedHashMap<>()), 0);
+            fail("Should have thrown exception for a map row without named parameters.");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // The connection commits on its own again afterwards, so another connection sees the delete
+        jdbc.processPublish("DELETE FROM TestBulk WHERE id >= 300");
+        JDBC otherJDBC = new JDBC();
+        otherJDBC.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        assert ((Number) otherJDBC.processQuery(COUNT_BULK)[0].get("total")).intValue() == 300;
+        otherJDBC.close();
+
+        jdbc.processPublish(DROP_TABLE_BULK);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testWatermarkQuery() throws VantiqSQLException, IOException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        jdbc.processPublish(CREATE_TABLE_WATERMARK);
+        Path file = Files.createTempFile("TestWatermark", ".watermark");
+        Files.delete(file);
+
+        try {
+            PollWatermark watermark = new PollWatermark("id", 0, file);
+            for (int i = 1; i <= 5; i++) {
+                jdbc.processPreparedPublish(INSERT_WATERMARK, Arrays.asList(i, "row" + i));
+            }
+            Map[] rows = jdbc.processWatermarkQuery(POLL_WATERMARK, watermark);
+            assert rows.length == 5;
+            watermark.commit();
+
+            // Only the new rows are returned, and nothing moves the watermark until the rows are committed
+            for (int i = 6; i <= 8; i++) {
+                jdbc.processPreparedPublish(INSERT_WATERMARK, Arrays.asList(i, "row" + i));
+            }
+            rows = jdbc.processWatermarkQuery(POLL_WATERMARK_NAMED, watermark);
+            assert rows.length == 3;
+            assert rows[0].get("id").equals(6);
+            watermark.discard();
+            assert jdbc.processWatermarkQuery(POLL_WATERMARK, watermark).length == 3;
+            watermark.commit();
+            assert jdbc.processWatermarkQuery(POLL_WATERMARK, watermark).length == 0;
+
+            // A new watermark resumes from the saved one, unless it is for another column
+            assert new PollWatermark("id", 0, file).getValue().equals(8);
+            assert new PollWatermark("name", "", file).getValue().equals("");
+
+            try {
+                jdbc.processWatermarkQuery(POLL_WATERMARK, new PollWatermark("missing", 0, null));
+                fail("Should have thrown exception for a watermark column not in the results.");
+            } catch (VantiqSQLException e) {
+                // Expected
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            jdbc.processPublish(DROP_TABLE_WATERMARK);
+            jdbc.close();
+        }
+    }
+    
+    @Test
+    public void testSeparateConnectionPools() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        Map<ConnectionPools.Workload, ConnectionPools.Settings> poolSettings =
+                new EnumMap<>(ConnectionPools.Workload.class);
+        poolSettings.put(ConnectionPools.Workload.QUERY, new ConnectionPools.Settings(2).readOnly(true));
+        poolSettings.put(ConnectionPools.Workload.PUBLISH, new ConnectionPools.Settings(2).autoCommit(false));
+        poolSettings.put(ConnectionPools.Workload.POLL, new ConnectionPools.Settings(1).connectionTimeout(1000));
+        JDBC pooledJDBC = new JDBC();
+        pooledJDBC.setupJDBC(testDBURL, testDBUsername, testDBPassword, true, 4, 10, false, poolSettings);
+        assertNotNull(pooledJDBC.getConnectionPools());
+
+        try {
+            pooledJDBC.processPublish(CREATE_TABLE_POOLS);
+            // Publishes without auto-commit are committed once they complete, so other pools see them
+            for (int i = 1; i <= 3; i++) {
+                pooledJDBC.processPreparedPublish(INSERT_POOLS, Arrays.asList(i, "row" + i));
+            }
+            assertEquals(3, pooledJDBC.processQuery(QUERY_POOLS).length);
+            assertEquals(3, pooledJDBC.processPollQuery(QUERY_POOLS).length);
+        } finally {
+            pooledJDBC.processPublish(DROP_TABLE_POOLS);
+            pooledJDBC.close();
+        }
+    }
+    
+    @Test
+    public void testFailedPublishRolledBack() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        // A single publish connection, so that the publish after the failed one borrows the same connection
+        Map<ConnectionPools.Workload, ConnectionPools.Settings> poolSettings =
+                new EnumMap<>(ConnectionPools.Workload.class);
+        poolSettings.put(ConnectionPools.Workload.PUBLISH, new ConnectionPools.Settings(1).autoCommit(false));
+        JDBC pooledJDBC = new JDBC();
+        pooledJDBC.setupJDBC(testDBURL, testDBUsername, testDBPassword, true, 4, 10, false, poolSettings);
+
+        try {
+            pooledJDBC.processPublish(CREATE_TABLE_POOLS);
+            // The second row breaks the not null constraint, after the first has been inserted
+            try {
+                pooledJDBC.processPreparedBatchPublish(INSERT_POOLS,
+                        Arrays.asList(Arrays.asList(1, "row1"), Arrays.asList(null, "row2")));
+                fail("Should have thrown exception for a null id.");
+            } catch (VantiqSQLException e) {
+                // Expected
+            }
+            pooledJDBC.processPreparedPublish(INSERT_POOLS, Arrays.asList(3, "row3"));
+
+            // Committing the later publish must not commit the first row of the failed one
+            Map[] rows = pooledJDBC.processQuery(QUERY_POOLS);
+            assertEquals(1, rows.length);
+            assertTrue(rows[0].containsValue("row3"));
+        } finally {
+            pooledJDBC.processPublish(DROP_TABLE_POOLS);
+            pooledJDBC.close();
+        }
+    }
+    
+    @Test
+    public void testQueryColumnar() throws Exception {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        jdbc.processPublish(CREATE_TABLE_COLUMNAR);
+
+        try {
+            jdbc.processPreparedPublish(INSERT_COLUMNAR, Arrays.asList(1, "first"));
+            jdbc.processPreparedPublish(INSERT_COLUMNAR, Arrays.asList(2, null));
+            List<String> columns = new ArrayList<>();
+            List<String> types = new ArrayList<>();
+            List<Object[]> rows = new ArrayList<>();
+            long rowCount = jdbc.processQueryColumnar(QUERY_COLUMNAR, Arrays.asList(0), 0,
+                    new JDBC.ColumnarConsumer() {
+                        @Override
+                        public void columns(List<String> names, List<String> columnTypes) {
+                            columns.addAll(names);
+                            types.addAll(columnTypes);
+                        }
+
+                        @Override
+                        public void accept(Object[] values) {
+                            rows.add(values);
+                        }
+                    });
+
+            // The columns are given once, and nulls keep their place in the rows
+            assertEquals(2, rowCount);
+            assertEquals(2, columns.size());
+            assertTrue(columns.get(0).equalsIgnoreCase("id"));
+            assertEquals("INTEGER", types.get(0));
+            assertEquals(1, rows.get(0)[0]);
+            assertEquals("first", rows.get(0)[1]);
+            assertEquals(2, rows.get(1).length);
+            assertNull(rows.get(1)[1]);
+        } finally {
+            jdbc.processPublish(DROP_TABLE_COLUMNAR);
+            jdbc.close();
+        }
+    }
+    
     @Test
     public void testExtendedTypes() throws VantiqSQLException {
         assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
@@ -822,21 +1305,21 @@ public class TestJDBC extends TestJDBCBase {
         VantiqResponse response = vantiq.query(testSourceName, params);
         JsonArray responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == JDBCCore.DEFAULT_BUNDLE_SIZE;
+        assert core.lastFrameRows == JDBCCore.DEFAULT_BUNDLE_SIZE;
 
         // Query with an invalid bundleFactor
         params.put("bundleFactor", "jibberish");
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == JDBCCore.DEFAULT_BUNDLE_SIZE;
+        assert core.lastFrameRows == JDBCCore.DEFAULT_BUNDLE_SIZE;
 
         // Query with an invalid bundleFactor
         params.put("bundleFactor", -1);
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == JDBCCore.DEFAULT_BUNDLE_SIZE;
+        assert core.lastFrameRows == JDBCCore.DEFAULT_BUNDLE_SIZE;
 
         // Query with bundleFactor that divides evenly into 2000 rows
         int bundleFactor = 200;
@@ -844,7 +1327,7 @@ public class TestJDBC extends TestJDBCBase {
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == bundleFactor;
+        assert core.lastFrameRows == bundleFactor;
 
         // Query with bundleFactor that doesn't divide evenly into 2000 rows
         bundleFactor = 600;
@@ -852,7 +1335,7 @@ public class TestJDBC extends TestJDBCBase {
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == numRows % bundleFactor;
+        assert core.lastFrameRows == numRows % bundleFactor;
 
         // Drop table and then create it again
         Map<String,Object> drop_params = new LinkedHashMap<String,Object>();
@@ -860,12 +1343,12 @@ public class TestJDBC extends TestJDBCBase {
         vantiq.publish("sources", testSourceName, drop_params);
         vantiq.publish("sources", testSourceName, create_params);
 
-        // Check that lastRowBundle is null when the query returns no data
+        // Check that no rows were sent in a message when the query returns no data
         params.remove("bundleFactor");
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == 0;
-        assert core.lastRowBundle == null;
+        assert core.lastFrameRows == 0;
 
         // Insert fewer rows, and make sure that using bundleFactor of 0 works
         numRows = 100;
@@ -876,7 +1359,7 @@ public class TestJDBC extends TestJDBCBase {
         response = vantiq.query(testSourceName, params);
         responseBody = (JsonArray) response.getBody();
         assert responseBody.size() == numRows;
-        assert core.lastRowBundle.length == numRows;
+        assert core.lastFrameRows == numRows;
 
         // Delete the Source from VANTIQ
         deleteSource();
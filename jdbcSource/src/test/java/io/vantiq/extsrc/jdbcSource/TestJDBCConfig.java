@@ -14,6 +14,12 @@ import static org.junit.Assume.assumeTrue;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -157,6 +163,51 @@ public class TestJDBCConfig extends TestJDBCBase {
         sendConfig(conf, vantiqConf);
         assertFalse("Should not fail when maxActiveTasks and maxQueuedTasks are set correctly", configIsFailed());
     }
+
+    @Test
+    public void testVirtualThreads() {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        nCore.start(5);
+
+        // Falls back to the thread pool before Java 21, so either way the configuration succeeds
+        Map conf = minimalConfig();
+        general.put("asynchronousProcessing", true);
+        general.put("executionMode", "virtualThreads");
+        Map vantiqConf = createMinimalVantiq();
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail with executionMode set to virtualThreads", configIsFailed());
+        assertTrue(nCore.queryPool != null);
+    }
+
+    @Test
+    public void testWithPermit() throws InterruptedException {
+        Semaphore permits = new Semaphore(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(10);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            for (int i = 0; i < 10; i++) {
+                executor.execute(JDBCHandleConfiguration.withPermit(permits, () -> {
+                    mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }));
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Every task ran, but never more than there were permits
+        assertTrue(mostRunning.get() <= 2);
+        assertTrue(permits.availablePermits() == 2);
+    }
     
 // ================================================= Helper functions =================================================
     
@@ -168,7 +219,7 @@ public class TestJDBCConfig extends TestJDBCBase {
         config.put("jdbcConfig", jdbcConfig);
         config.put("vantiq", vantiqConfig);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
         
         handler.handleMessage(m);
     }
@@ -21,12 +21,15 @@ import java.sql.SQLException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.FalseClient;
 import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
@@ -50,7 +53,7 @@ public class TestJDBCCore extends TestJDBCBase {
         
         jdbc = new JDBC();
         core = new NoSendJDBCCore(sourceName, authToken, targetVantiqServer);
-        core.jdbc = jdbc;
+        core.setJDBC(jdbc);
         core.start(10);
     }
     
@@ -71,13 +74,13 @@ public class TestJDBCCore extends TestJDBCBase {
         msg.messageHeaders = header;
         
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executePublish(msg);
         assertFalse("Core should not be closed", core.isClosed());
         
         request = new LinkedHashMap<>();
         request.put("query", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.executePublish(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
@@ -94,54 +97,63 @@ public class TestJDBCCore extends TestJDBCBase {
         msg.messageHeaders = header;
         
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executeQuery(msg);
         assertFalse("Core should not be closed", core.isClosed());
         
         request = new LinkedHashMap<>();
         request.put("query", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.executeQuery(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
     
     @Test
-    public void testExitIfConnectionFails() throws VantiqSQLException {
+    public void testJDBCClosedAfterLastRelease() {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        JDBC first = new JDBC() {
+            @Override
+            public void close() {
+                closed.set(true);
+                super.close();
+            }
+        };
+        core.setJDBC(first);
+        JDBCCore.SharedJDBC inUse = core.acquireJDBC();
+        assertTrue("Should have acquired the current instance", inUse.get() == first);
+
+        // Replacing it leaves it open for the request still using it
+        core.setJDBC(new JDBC());
+        assertFalse("Should not be closed while in use", closed.get());
+        JDBCCore.SharedJDBC replacement = core.acquireJDBC();
+        assertTrue("New requests should get the replacement", replacement.get() != first);
+        replacement.release();
+
+        inUse.release();
+        assertTrue("Should be closed once released", closed.get());
+        assertFalse("A closed instance cannot be retained", inUse.retain());
+
+        core.setJDBC(null);
+        assertTrue("Nothing to acquire once closed", core.acquireJDBC() == null);
+    }
+    
+    @Test
+    public void testStartThroughConnectionManager() throws VantiqSQLException {
         assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
         jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
         
-        core.start(3);
-        assertTrue("Should have succeeded", core.exitIfConnectionFails(core.client, 3));
+        assertTrue("Should have succeeded", core.start(3));
         assertFalse("Success means it shouldn't be closed", core.isClosed());
-        
-        
+
+        // A source that never answers is retried until the core is stopped
         core.close();
         core = new NoSendJDBCCore(sourceName, authToken, targetVantiqServer);
         FalseClient fc = new FalseClient(sourceName);
         core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(false);
-        assertFalse("Should fail due to authentication failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-        
-        core.close();
-        core = new NoSendJDBCCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(false);
-        assertFalse("Should fail due to WebSocket failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-        
-        core.close();
-        core = new NoSendJDBCCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(true);
-        assertFalse("Should fail due to timeout on source connection", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
+        CompletableFuture<Boolean> connected = ConnectionManager.getDefault().connect(fc, targetVantiqServer,
+                authToken, 1);
+        assertFalse("Should not have connected", connected.isDone());
+        core.stop();
+        assertFalse("Stopping should cancel the connection", connected.join());
     }
 }
@@ -66,17 +66,19 @@ public class JMSMain {
 
         startSources(sources);
 
-        // Can leave now because the threads created by the sources' WebSocket connections will keep the JVM alive
+        // Can leave now because the connection manager's threads and the sources' WebSocket connections will keep the
+        // JVM alive
     }
 
     /**
-     * Starts every source, giving each up to 10 seconds to connect. Starts them in new threads so they don't block.
+     * Starts every source, giving each up to 10 seconds to connect. Connects them through the shared
+     * ConnectionManager so they don't block.
      * @param sources   The list of sources which should be started.
      */
     private static void startSources(List<JMSCore> sources) {
         for (JMSCore source : sources) {
-            // Starting in threads so they can all connect at once
-            new Thread( () -> {source.start(10);} ).start();;
+            // Connected in parallel by the shared connection manager, which limits concurrent handshakes
+            source.startAsync(10);
         }
     }
 
@@ -8,6 +8,9 @@
 
 package io.vantiq.extsrc.jmsSource;
 
+import java.util.concurrent.CompletableFuture;
+
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.FalseClient;
 
 public class NoSendJMSCore extends JMSCore {
@@ -20,26 +23,30 @@ public class NoSendJMSCore extends JMSCore {
     }
     
     /**
-     * Tries to connect to a source and waits up to {@code timeout} seconds for it to succeed or fail.
-     * @return  true if the source connection succeeds, false if it fails.
+     * Connects a {@link FalseClient} through the shared {@link ConnectionManager}, as the real core does, completing
+     * each step of the connection as soon as it is started.
+     * @return  A {@link CompletableFuture} that completes as true once the source connection succeeds.
      */
     @Override
-    public boolean start(int timeout) {
+    public CompletableFuture<Boolean> startAsync(int timeout) {
         closed = false;
-        fClient = new FalseClient(sourceName);
+        fClient = new FalseClient(sourceName) {
+            @Override
+            public CompletableFuture<Boolean> initiateFullConnection(String url, String token) {
+                CompletableFuture<Boolean> connected = super.initiateFullConnection(url, token);
+                completeAuthentication(true);
+                completeWebSocketConnection(true);
+                completeSourceConnection(true);
+                return connected;
+            }
+        };
         client = fClient;
         jmsConfigHandler = new JMSHandleConfiguration(this);
         
         client.setConfigHandler(jmsConfigHandler);
         client.setReconnectHandler(reconnectHandler);
         client.setCloseHandler(closeHandler);
-        client.initiateFullConnection(targetVantiqServer, authToken);
-        
-        fClient.completeAuthentication(true);
-        fClient.completeWebSocketConnection(true);
-        fClient.completeSourceConnection(true);
-        
-        return exitIfConnectionFails(client, timeout);
+        return ConnectionManager.getDefault().connect(client, targetVantiqServer, authToken, timeout);
     }
     
     @Override
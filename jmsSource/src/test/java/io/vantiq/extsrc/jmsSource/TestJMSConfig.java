@@ -202,7 +202,7 @@ public class TestJMSConfig extends TestJMSBase {
         Map<String, Object> config = new LinkedHashMap<>();
         config.put("jmsConfig", jmsConfig);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
         
         handler.handleMessage(m);
     }
@@ -13,11 +13,13 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import io.vantiq.extjsdk.ConnectionManager;
 import io.vantiq.extjsdk.ExtensionServiceMessage;
 import io.vantiq.extjsdk.FalseClient;
 
@@ -59,14 +61,14 @@ public class TestJMSCore extends TestJMSBase {
         
         // Sending an empty publish request
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.sendJMSMessage(msg);
         assertFalse("Core should not be closed", core.isClosed());
         
         // Sending jibberish as publish request
         request = new LinkedHashMap<>();
         request.put("publish", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.sendJMSMessage(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
@@ -81,52 +83,32 @@ public class TestJMSCore extends TestJMSBase {
         
         // Sending empty query request
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.readQueueMessage(msg);
         assertFalse("Core should not be closed", core.isClosed());
         
         // Sending jibberish as query request
         request = new LinkedHashMap<>();
         request.put("query", "jibberish");
-        msg.object = request;
+        msg.setObject(request);
         core.readQueueMessage(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
     
     @Test
-    public void testExitIfConnectionFails() {        
-        core.start(3);
-        assertTrue("Should have succeeded", core.exitIfConnectionFails(core.client, 3));
+    public void testStartThroughConnectionManager() {        
+        assertTrue("Should have succeeded", core.start(3));
         assertFalse("Success means it shouldn't be closed", core.isClosed());
-        
-        
+
+        // A source that never answers is retried until the core is stopped
         core.close();
         core = new NoSendJMSCore(sourceName, authToken, targetVantiqServer);
         FalseClient fc = new FalseClient(sourceName);
         core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(false);
-        assertFalse("Should fail due to authentication failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-        
-        core.close();
-        core = new NoSendJMSCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(false);
-        assertFalse("Should fail due to WebSocket failing", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
-        
-        core.close();
-        core = new NoSendJMSCore(sourceName, authToken, targetVantiqServer);
-        fc = new FalseClient(sourceName);
-        core.client = core.fClient = fc;
-        fc.initiateFullConnection(targetVantiqServer, authToken);
-        fc.completeWebSocketConnection(true);
-        fc.completeAuthentication(true);
-        assertFalse("Should fail due to timeout on source connection", core.exitIfConnectionFails(core.client, 3));
-        assertFalse("Failure does not mean it should be closed", core.isClosed());
+        CompletableFuture<Boolean> connected = ConnectionManager.getDefault().connect(fc, targetVantiqServer,
+                authToken, 1);
+        assertFalse("Should not have connected", connected.isDone());
+        core.stop();
+        assertFalse("Stopping should cancel the connection", connected.join());
     }
 }
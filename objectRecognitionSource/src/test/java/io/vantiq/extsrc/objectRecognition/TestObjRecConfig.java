@@ -474,7 +474,7 @@ public class TestObjRecConfig {
         Map<String, Object> config = new LinkedHashMap<>();
         config.put("objRecConfig", ORConfig);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
         
         handler.handleMessage(m);
     }
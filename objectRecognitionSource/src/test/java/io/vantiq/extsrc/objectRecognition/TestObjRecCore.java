@@ -140,20 +140,20 @@ public class TestObjRecCore extends ObjRecTestBase {
                 , setupRetriever(null));
         request = new LinkedHashMap<>();
         request.put(BasicTestRetriever.RETURN_NULL, null);
-        msg.object = request;
+        msg.setObject(request);
         retrieverResults = core.retrieveImage(msg);
         assert retrieverResults == null;
         assertFalse("Core should not be closed", core.isClosed());
         
         request = new LinkedHashMap<>();
         request.put(BasicTestRetriever.THROW_EXCEPTION_ON_REQ, null);
-        msg.object = request;
+        msg.setObject(request);
         retrieverResults = core.retrieveImage(msg);
         assert retrieverResults == null;
         assertFalse("Core should not be closed", core.isClosed());
         
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         retrieverResults = core.retrieveImage(msg);
         assert retrieverResults != null;
         data = retrieverResults.getImage();
@@ -162,7 +162,7 @@ public class TestObjRecCore extends ObjRecTestBase {
         
         request = new LinkedHashMap<>();
         request.put(BasicTestRetriever.THROW_FATAL_ON_REQ, null);
-        msg.object = request;
+        msg.setObject(request);
         retrieverResults = core.retrieveImage(msg);
         assert retrieverResults == null;
         assertTrue("Core should be closed after fatal error", core.isClosed());
@@ -172,7 +172,7 @@ public class TestObjRecCore extends ObjRecTestBase {
         core.start(5);
         assertFalse("Resetting closed status failed", core.isClosed());
         
-        msg.object = null;
+        msg.setObject(null);
         retrieverResults = core.retrieveImage(msg);
         assert retrieverResults == null;
         assertTrue("Core should be closed after runtime error", core.isClosed());
@@ -263,7 +263,7 @@ public class TestObjRecCore extends ObjRecTestBase {
         Map<String, String> header = new LinkedHashMap<>();
         header.put(ExtensionServiceMessage.ORIGIN_ADDRESS_HEADER, "queryAddress");
         msg.messageHeaders = header;
-        msg.object = new LinkedHashMap<>();
+        msg.setObject(new LinkedHashMap<>());
         
         assertTrue("Test helper setupNeuralNet failed unexpectedly"
                 , setupNeuralNet(BasicTestNeuralNet.THROW_EXCEPTION_ON_REQ));
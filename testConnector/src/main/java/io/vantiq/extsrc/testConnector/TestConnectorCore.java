@@ -194,18 +194,24 @@ public class TestConnectorCore {
 
     /**
      * Helper method that reads the data from files as a String, and then creates a map of filenames and their data.
+     * Raw bytes are Base64 encoded, unless the client sends binary attachments, in which case the byte[] is returned
+     * as is and sent without encoding.
      * @param filenames The list of filenames from which to read data
      * @param rawBytes A flag specifying whether to read from file as raw bytes or as String
-     * @return A map of filenames to their data (as a String)
+     * @return A map of filenames to their data (as a String, or a byte[] when sent as binary attachments)
      * @throws Exception
      */
     public Map readFromFiles(List<String> filenames, Boolean rawBytes) throws Exception {
-        Map<String, String> fileData = new LinkedHashMap<>();
+        Map<String, Object> fileData = new LinkedHashMap<>();
         for (String filename : filenames) {
-            String data;
+            Object data;
             if (rawBytes) {
                 byte[] rawData = Files.readAllBytes(Paths.get(filename));
-                data = Base64.getEncoder().encodeToString(rawData);
+                if (client != null && client.isBinaryAttachments()) {
+                    data = rawData;
+                } else {
+                    data = Base64.getEncoder().encodeToString(rawData);
+                }
             } else {
                 data = new String(Files.readAllBytes(Paths.get(filename)));
             }
@@ -108,7 +108,7 @@ public class TestTestConnectorConfig {
         Map<String, Object> config = new LinkedHashMap<>();
         config.put("testConfig", testConfig);
         obj.put("config", config);
-        m.object = obj;
+        m.setObject(obj);
 
         handler.handleMessage(m);
     }
@@ -79,7 +79,7 @@ public class TestTestConnectorCore {
         Map<String, Object> request;
         ExtensionServiceMessage msg = new ExtensionServiceMessage("");
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executePublish(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
@@ -92,7 +92,7 @@ public class TestTestConnectorCore {
         header.put(ExtensionServiceMessage.ORIGIN_ADDRESS_HEADER, "queryAddress");
         msg.messageHeaders = header;
         request = new LinkedHashMap<>();
-        msg.object = request;
+        msg.setObject(request);
         core.executeQuery(msg);
         assertFalse("Core should not be closed", core.isClosed());
     }
@@ -135,7 +135,7 @@ public class TestUDPConfigHandler extends UDPTestBase {
         ExtensionServiceMessage msg = new ExtensionServiceMessage("");
         msg.resourceId = sourceName;
         Map<String,Object> object = new LinkedHashMap<>();
-        msg.object = object;
+        msg.setObject(object);
         Map<String,Object> config = new LinkedHashMap<>();
         object.put("config", config);
         Map<String,Object> udpSourceConfig = new LinkedHashMap<>();